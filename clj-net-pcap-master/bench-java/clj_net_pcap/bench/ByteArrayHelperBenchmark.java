@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import clj_net_pcap.ByteArrayHelper;
+
+import org.jnetpcap.packet.PcapPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The ByteArrayHelper readers as used by the extraction functions,
+ * reading the header fields of an IPv4/UDP packet in the DSL byte array format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteArrayHelperBenchmark {
+
+    private byte[] ba;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PcapPacket[] packets = Fixtures.packets("dns-query-response.pcap", false);
+        ba = Fixtures.byteArrays(packets)[0];
+        Fixtures.release(packets);
+    }
+
+    @Benchmark
+    public int getIntBigEndian() {
+        return ByteArrayHelper.getIntBigEndian(ba, 8);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return ByteArrayHelper.getInt(ba, 16 + 26);
+    }
+
+    @Benchmark
+    public int getInt16() {
+        return ByteArrayHelper.getInt16(ba, 16 + 34);
+    }
+
+    @Benchmark
+    public int getByte() {
+        return ByteArrayHelper.getByte(ba, 16 + 22);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return ByteArrayHelper.getLong(ba, 0);
+    }
+
+    @Benchmark
+    public long getEthernetAddress() {
+        return ByteArrayHelper.getEthernetAddress(ba, 16);
+    }
+
+    @Benchmark
+    public void readIpv4UdpHeader(Blackhole bh) {
+        bh.consume(ByteArrayHelper.getEthernetAddress(ba, 16));
+        bh.consume(ByteArrayHelper.getEthernetAddress(ba, 16 + 6));
+        bh.consume(ByteArrayHelper.getNibbleHigh(ba, 16 + 14));
+        bh.consume(ByteArrayHelper.getInt16(ba, 16 + 18));
+        bh.consume(ByteArrayHelper.getByte(ba, 16 + 22));
+        bh.consume(ByteArrayHelper.getInt(ba, 16 + 26));
+        bh.consume(ByteArrayHelper.getInt(ba, 16 + 30));
+        bh.consume(ByteArrayHelper.getInt16(ba, 16 + 34));
+        bh.consume(ByteArrayHelper.getInt16(ba, 16 + 36));
+    }
+
+}
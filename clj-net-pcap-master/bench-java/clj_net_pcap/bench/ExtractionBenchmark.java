@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+
+import org.jnetpcap.packet.PcapPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction functions created with create-extraction-fn from ipv4-udp-be-dsl-expression
+ * for the different output types, applied to the raw packets of a UDP fixture.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtractionBenchmark {
+
+    @Param({"dns-query-response.pcap"})
+    public String fixture;
+
+    @Param({"java-map", "clj-map", "csv-str", "json-str", "record"})
+    public String type;
+
+    @Param({"static", "dynamic"})
+    public String offsets;
+
+    private byte[][] arrays;
+    private IFn f;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PcapPacket[] packets = Fixtures.packets(fixture, false);
+        arrays = Fixtures.byteArrays(packets);
+        Fixtures.release(packets);
+
+        String ns = "clj-net-pcap.byte-array-extraction-dsl";
+        Object rules = ((IDeref) Fixtures.var(ns, "ipv4-udp-be-dsl-expression")).deref();
+        Object expr = Fixtures.var("clojure.core", "hash-map").invoke(
+                Fixtures.keyword("type"), Fixtures.keyword(type),
+                Fixtures.keyword("offsets"), Fixtures.keyword(offsets),
+                Fixtures.keyword("rules"), rules);
+        f = (IFn) Fixtures.var(ns, "create-extraction-fn").invoke(expr);
+    }
+
+    @Benchmark
+    public Object extract() {
+        byte[] ba = arrays[next];
+        next = (next + 1 == arrays.length) ? 0 : next + 1;
+        return f.invoke(ba, 0);
+    }
+
+}
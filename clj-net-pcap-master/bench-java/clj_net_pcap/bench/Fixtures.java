@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import clj_net_pcap.MappedPcapReader;
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JMemory;
+import org.jnetpcap.packet.JRegistry;
+import org.jnetpcap.packet.JScanner;
+import org.jnetpcap.packet.PcapPacket;
+
+/**
+ * Access to the offline pcap fixtures and the Clojure functions used by the benchmarks.
+ *
+ * The fixtures are read from the test data directory, which can be changed via
+ * the system property clj-net-pcap.fixtures.
+ * Loading clj-net-pcap.native extracts and loads the native libraries,
+ * so load() has to be called before any jNetPcap class is used.
+ */
+final class Fixtures {
+
+    static final String DIR = System.getProperty("clj-net-pcap.fixtures", "test/clj_net_pcap/test/data");
+
+    private Fixtures() {
+    }
+
+    static void load() {
+        require("clj-net-pcap.native");
+    }
+
+    static void require(String ns) {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read(ns));
+    }
+
+    static IFn var(String ns, String name) {
+        require(ns);
+        return Clojure.var(ns, name);
+    }
+
+    static Object keyword(String name) {
+        return Clojure.read(":" + name);
+    }
+
+    /**
+     * Reads all packets of the fixture into newly allocated packets.
+     * When scan is true, the packets are scanned.
+     */
+    static PcapPacket[] packets(String fixture, boolean scan) throws IOException {
+        load();
+        MappedPcapReader reader = new MappedPcapReader(DIR + "/" + fixture);
+        try {
+            int id = JRegistry.mapDLTToId(reader.getLinkType());
+            JScanner scanner = new JScanner();
+            List<PcapPacket> packets = new ArrayList<PcapPacket>();
+            for (MappedPcapReader.Chunk chunk : reader.chunks()) {
+                MappedPcapReader.Cursor cursor = chunk.cursor();
+                while (cursor.next()) {
+                    PcapHeader hdr = new PcapHeader(cursor.capLen(), cursor.wireLen(),
+                                                    cursor.seconds(), cursor.micros());
+                    PcapPacket pkt = new PcapPacket(hdr, cursor.data());
+                    if (scan) {
+                        scanner.scan(pkt, id, cursor.wireLen());
+                    }
+                    packets.add(pkt);
+                }
+            }
+            if (packets.isEmpty()) {
+                throw new IOException("No packets in fixture: " + fixture);
+            }
+            return packets.toArray(new PcapPacket[packets.size()]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static int protocolId(String fixture) throws IOException {
+        load();
+        MappedPcapReader reader = new MappedPcapReader(DIR + "/" + fixture);
+        try {
+            return JRegistry.mapDLTToId(reader.getLinkType());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Converts the packets to byte arrays in the format used by the byte array extraction DSL:
+     * a 16 byte big endian header with seconds, micro seconds, capture length, and wire length,
+     * followed by the packet data.
+     */
+    static byte[][] byteArrays(PcapPacket[] packets) {
+        byte[][] arrays = new byte[packets.length][];
+        for (int i = 0; i < packets.length; i++) {
+            PcapPacket p = packets[i];
+            PcapHeader hdr = p.getCaptureHeader();
+            ByteBuffer bb = ByteBuffer.allocate(16 + p.size());
+            bb.putInt((int) hdr.hdr_sec());
+            bb.putInt(hdr.hdr_usec());
+            bb.putInt(hdr.caplen());
+            bb.putInt(hdr.wirelen());
+            bb.put(p.getByteArray(0, p.size()));
+            arrays[i] = bb.array();
+        }
+        return arrays;
+    }
+
+    static void release(PcapPacket[] packets) {
+        for (JMemory p : packets) {
+            p.release();
+        }
+    }
+
+}
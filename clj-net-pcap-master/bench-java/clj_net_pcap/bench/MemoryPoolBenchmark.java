@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
+import org.jnetpcap.nio.JMemoryPool;
+import org.jnetpcap.packet.PcapPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying packet data into memory of the default JMemoryPool via JMemoryPool.duplicate.
+ * The duplicated memory is freed again via JMemoryPool.free in each operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryPoolBenchmark {
+
+    @Param({"offline-test.pcap", "http-get.pcap"})
+    public String fixture;
+
+    private PcapPacket[] packets;
+    private ByteBuffer[] buffers;
+    private JMemoryPool pool;
+    private JBuffer dst;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        packets = Fixtures.packets(fixture, false);
+        buffers = new ByteBuffer[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(packets[i].size());
+            packets[i].transferTo(buffers[i]);
+            buffers[i].flip();
+        }
+        pool = JMemoryPool.defaultMemoryPool();
+        dst = new JBuffer(JMemory.Type.POINTER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.release(packets);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1 == packets.length) ? 0 : next + 1;
+        return i;
+    }
+
+    @Benchmark
+    public int duplicateMemory() {
+        int n = pool.duplicate(packets[nextIndex()], dst);
+        pool.free(dst);
+        return n;
+    }
+
+    @Benchmark
+    public int duplicateByteBuffer() {
+        ByteBuffer src = buffers[nextIndex()];
+        int n = pool.duplicate(src.duplicate(), dst);
+        pool.free(dst);
+        return n;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
+import org.jnetpcap.packet.JPacket;
+import org.jnetpcap.packet.PcapPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deep copies of scanned packets via the PcapPacket copy constructors.
+ *
+ * With release set to true, the copies are released explicitly right away;
+ * otherwise, they are left to the DisposableGC like in the default capture pipeline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCopyBenchmark {
+
+    @Param({"offline-test.pcap", "http-get.pcap"})
+    public String fixture;
+
+    @Param({"true", "false"})
+    public boolean release;
+
+    private PcapPacket[] packets;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        packets = Fixtures.packets(fixture, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.release(packets);
+    }
+
+    private PcapPacket nextPacket() {
+        PcapPacket p = packets[next];
+        next = (next + 1 == packets.length) ? 0 : next + 1;
+        return p;
+    }
+
+    private JMemory done(JMemory copy) {
+        if (release) {
+            copy.release();
+        }
+        return copy;
+    }
+
+    @Benchmark
+    public JMemory copyPcapPacket() {
+        return done(new PcapPacket(nextPacket()));
+    }
+
+    @Benchmark
+    public JMemory copyJPacket() {
+        return done(new PcapPacket((JPacket) nextPacket()));
+    }
+
+    @Benchmark
+    public JMemory copyHeaderAndData() {
+        PcapPacket p = nextPacket();
+        return done(new PcapPacket(p.getCaptureHeader(), (JBuffer) p));
+    }
+
+}
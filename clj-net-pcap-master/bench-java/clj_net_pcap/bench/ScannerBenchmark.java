@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.packet.JScanner;
+import org.jnetpcap.packet.PcapPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning of the packets of a fixture with JScanner.scan.
+ * Each operation scans one packet; the packets of the fixture are used round robin.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScannerBenchmark {
+
+    @Param({"offline-test.pcap", "dns-query-response.pcap", "http-get.pcap", "tcp-syn-ack.pcap",
+            "icmpv6-router-solicitation.pcap"})
+    public String fixture;
+
+    private PcapPacket[] packets;
+    private int id;
+    private JScanner scanner;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        packets = Fixtures.packets(fixture, false);
+        id = Fixtures.protocolId(fixture);
+        scanner = new JScanner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.release(packets);
+    }
+
+    private PcapPacket nextPacket() {
+        PcapPacket p = packets[next];
+        next = (next + 1 == packets.length) ? 0 : next + 1;
+        return p;
+    }
+
+    @Benchmark
+    public int scan() {
+        PcapPacket p = nextPacket();
+        return scanner.scan(p, id, p.getCaptureHeader().wirelen());
+    }
+
+}
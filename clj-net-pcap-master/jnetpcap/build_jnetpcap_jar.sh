@@ -0,0 +1,108 @@
+#!/bin/bash
+#
+# This script builds the patched jnetpcap source tree that is included in this
+# directory, including its native libraries, and bundles the result in a jar
+# file with the same layout as created by prepare_jnetpcap_bundled_jar.sh.
+# clj-net-pcap depends on this jar as jnetpcap/jnetpcap with the version given
+# below because it uses Java classes and native methods that are not part of
+# the jnetpcap releases by Sly Technologies.
+#
+# Only the native libraries for the platform on which this script is run are
+# built and bundled. The previously released native libraries in "native/" do
+# not contain the native methods added in the source tree and are hence
+# deliberately not included.
+#
+# Requirements: a JDK (javac with -h), g++, and the libpcap development files.
+#
+# Usage: ./build_jnetpcap_jar.sh [install]
+# With "install", the jar is additionally installed in the local Maven
+# repository such that Leiningen can resolve it without deploying it.
+#
+# Author: Ruediger Gad <r.c.g@gmx.de>
+#
+# License: GNU GPLv2 or at your option later
+#
+# This file comes without any warranty.
+# You use it and the produced results at your own risk
+#
+
+set -e
+
+JNETPCAP_VERSION="1.4.r1425-1h"
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+SRC_DIR="$SCRIPT_DIR/jnetpcap-src-1.4.r1425-1/src"
+BUILD_DIR="$SCRIPT_DIR/jnetpcap_build"
+JAR_FILE="$SCRIPT_DIR/jnetpcap-$JNETPCAP_VERSION.jar"
+
+if [ -z "$JAVA_HOME" ]
+then
+  JAVA_HOME="$(dirname "$(dirname "$(readlink -f "$(which javac)")")")"
+fi
+echo "Using JAVA_HOME: $JAVA_HOME"
+
+#
+# Determine the names used by clj-net-pcap for locating the native libs in the jar.
+#
+case "$(uname -m)" in
+  x86_64) ARCH="amd64" ;;
+  i?86) ARCH="i386" ;;
+  *) ARCH="$(uname -m)" ;;
+esac
+OS="$(uname -s | tr '[:upper:]' '[:lower:]')"
+
+#
+# The libpcap version is used for enabling version dependent functionality, e.g., 1.8.1 -> 181.
+#
+if [ -z "$LIBPCAP_VERSION" ]
+then
+  LIBPCAP_VERSION="$(pkg-config --modversion libpcap 2> /dev/null || pcap-config --version 2> /dev/null || echo "")"
+  LIBPCAP_VERSION="$(echo "$LIBPCAP_VERSION" | sed 's/[\.-]//g')"
+fi
+if [ -z "$LIBPCAP_VERSION" ]
+then
+  echo "Could not determine the libpcap version. Please set LIBPCAP_VERSION, e.g., to 181 for libpcap 1.8.1."
+  exit 1
+fi
+echo "Using libpcap version: $LIBPCAP_VERSION"
+
+rm -rf "$BUILD_DIR"
+trap 'rm -rf "$BUILD_DIR"' EXIT
+mkdir -p "$BUILD_DIR/classes" "$BUILD_DIR/include" "$BUILD_DIR/native/$OS/$ARCH"
+
+#
+# Compile the Java classes and generate the JNI headers.
+#
+echo "Compiling Java classes..."
+find "$SRC_DIR/java1.5" -name "*.java" > "$BUILD_DIR/sources.txt"
+javac -nowarn -encoding ISO-8859-1 -source 8 -target 8 \
+  -d "$BUILD_DIR/classes" -h "$BUILD_DIR/include" @"$BUILD_DIR/sources.txt"
+cp -r "$SRC_DIR/java1.5/resources" "$BUILD_DIR/classes"
+
+#
+# Compile the native libraries like the comp-jni-linux target of build.xml.
+#
+CXX_FLAGS="-shared -fPIC -O2 -DLIBPCAP_VERSION=0x$LIBPCAP_VERSION \
+  -I$BUILD_DIR/include -I$SRC_DIR/c -I$JAVA_HOME/include -I$JAVA_HOME/include/$OS"
+NATIVE_DIR="$BUILD_DIR/native/$OS/$ARCH"
+
+echo "Compiling libjnetpcap.so..."
+g++ $CXX_FLAGS -Wl,-soname,libjnetpcap.so -o "$NATIVE_DIR/libjnetpcap.so" \
+  "$SRC_DIR"/c/*.cpp -lpcap -lstdc++
+
+echo "Compiling libjnetpcap-pcap100.so..."
+g++ $CXX_FLAGS -DLinux -Wl,-soname,libjnetpcap-pcap100.so -o "$NATIVE_DIR/libjnetpcap-pcap100.so" \
+  "$SRC_DIR"/c/*_pcap100.cpp -L"$NATIVE_DIR" -ljnetpcap -lpcap -lstdc++
+
+#
+# Bundle everything in a jar.
+#
+echo "Creating $JAR_FILE..."
+rm -f "$JAR_FILE"
+jar cf "$JAR_FILE" -C "$BUILD_DIR/classes" . -C "$BUILD_DIR" native
+
+if [ "$1" == "install" ]
+then
+  echo "Installing $JAR_FILE in the local Maven repository..."
+  mvn install:install-file -Dfile="$JAR_FILE" -DpomFile="$SCRIPT_DIR/pom.xml"
+fi
@@ -559,19 +559,22 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_DirectBulkByteBufferWrapper_free__Ljava
         return -1;
     }
 
-    free(addr);
-    return 0;
+    /*
+     * Returns the buffer to the pool of the bulk loop it came from.
+     */
+    return bulk_buffer_pool_release(addr);
 }
 
 /*
- * Class:     org_jnetpcap_Pcap
- * Method:    loop
- * Signature: (IIIZZLorg/jnetpcap/BulkByteBufferHandler;Ljava/lang/Object;)I
+ * Common implementation of the bulk loops.
+ * The direct loop takes its buffers from a pool with the given capacity,
+ * a capacity of 0 means that the pool is not limited. jpool is optional and
+ * receives the pool statistics.
  */
-JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteBufferHandler_2Ljava_lang_Object_2
-(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint snapLength, jboolean useIntTs, jboolean useIntermediateBuffer, jobject jhandler, jobject juser) {
+static jint bulk_loop(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint snapLength,
+		jboolean useIntTs, jboolean useIntermediateBuffer, jint poolCapacity, jboolean poolBlocking,
+		jobject jpool, jobject jhandler, jobject juser) {
 
-//	printf("LOOP-BulkByteBufferHandler\n"); fflush(stdout);
 	if (jhandler == NULL) {
 		throwException(env, NULL_PTR_EXCEPTION, NULL);
 		return -1;
@@ -594,6 +597,9 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
 	data.p = p;
 	data.exception = NULL;
 	data.mid = BulkByteBufferHandlerNextPacketMID;
+	data.pool = NULL;
+	data.pool_blocking = (poolBlocking == JNI_TRUE);
+	data.jpool = jpool;
 
     pcap_pkthdr dummyHdr;
     int bulkBufferEntrySize = snapLength;
@@ -606,19 +612,34 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
         bulkBufferEntrySize += sizeof(dummyHdr.ts.tv_usec);
     }
 
-
     bulk_buffer_t wb_tmp;
-    wb_tmp.data = malloc(bulkBufferEntrySize * bulkSize);
+    bulk_buffer_t rb_tmp;
     wb_tmp.bytes = 0;
     wb_tmp.packets = 0;
     data.write_buffer = &wb_tmp;
     if (useIntermediateBuffer) {
-        bulk_buffer_t rb_tmp;
+        wb_tmp.data = malloc(bulkBufferEntrySize * bulkSize);
         rb_tmp.data = malloc(bulkBufferEntrySize * bulkSize);
         rb_tmp.bytes = 0;
         rb_tmp.packets = 0;
         data.read_buffer = &rb_tmp;
     } else {
+        if (jpool != NULL) {
+            jclass clazz = env->GetObjectClass(jpool);
+            data.pool_allocated_fid = env->GetFieldID(clazz, "allocated", "I");
+            data.pool_dropped_fid = env->GetFieldID(clazz, "dropped", "J");
+            env->DeleteLocalRef(clazz);
+            if (data.pool_allocated_fid == NULL || data.pool_dropped_fid == NULL) {
+                return -1; // Exception already thrown
+            }
+        }
+
+        data.pool = bulk_buffer_pool_create(bulkBufferEntrySize * bulkSize, poolCapacity);
+        if (data.pool == NULL) {
+            throwException(env, OUT_OF_MEMORY_ERROR, "Could not allocate bulk buffer pool.");
+            return -1;
+        }
+        wb_tmp.data = bulk_buffer_pool_acquire(data.pool, data.pool_blocking);
         data.read_buffer = NULL;
     }
     data.bulk_size = bulkSize;
@@ -632,12 +653,19 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
         } else {
             r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch, (u_char *)&data);
         }
+        free(wb_tmp.data);
+        free(rb_tmp.data);
     } else {
         if (useIntTs) {
             r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch_direct_int_ts, (u_char *)&data);
         } else {
             r = pcap_loop(p, jcnt, cb_bulk_byte_buffer_dispatch_direct, (u_char *)&data);
         }
+        if (data.write_buffer->data != NULL) {
+            bulk_buffer_pool_release(data.write_buffer->data);
+        }
+        cb_bulk_byte_buffer_update_pool_stats(&data);
+        bulk_buffer_pool_close(data.pool);
     }
 
 	if (data.exception != NULL) {
@@ -647,6 +675,45 @@ JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteB
 	return r;
 }
 
+/*
+ * Class:     org_jnetpcap_Pcap
+ * Method:    loop
+ * Signature: (IIIZZLorg/jnetpcap/BulkByteBufferHandler;Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZZLorg_jnetpcap_BulkByteBufferHandler_2Ljava_lang_Object_2
+(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint snapLength, jboolean useIntTs, jboolean useIntermediateBuffer, jobject jhandler, jobject juser) {
+
+//	printf("LOOP-BulkByteBufferHandler\n"); fflush(stdout);
+	return bulk_loop(env, obj, jcnt, bulkSize, snapLength, useIntTs, useIntermediateBuffer,
+			0, JNI_FALSE, NULL, jhandler, juser);
+}
+
+/*
+ * Class:     org_jnetpcap_Pcap
+ * Method:    loop
+ * Signature: (IIIZLorg/jnetpcap/DirectBulkBufferPool;Lorg/jnetpcap/BulkByteBufferHandler;Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_org_jnetpcap_Pcap_loop__IIIZLorg_jnetpcap_DirectBulkBufferPool_2Lorg_jnetpcap_BulkByteBufferHandler_2Ljava_lang_Object_2
+(JNIEnv *env, jobject obj, jint jcnt, jint bulkSize, jint snapLength, jboolean useIntTs, jobject jpool, jobject jhandler, jobject juser) {
+
+	if (jpool == NULL) {
+		throwException(env, NULL_PTR_EXCEPTION, NULL);
+		return -1;
+	}
+
+	jclass clazz = env->GetObjectClass(jpool);
+	jfieldID capacityFID = env->GetFieldID(clazz, "capacity", "I");
+	jfieldID blockingFID = env->GetFieldID(clazz, "blocking", "Z");
+	env->DeleteLocalRef(clazz);
+	if (capacityFID == NULL || blockingFID == NULL) {
+		return -1; // Exception already thrown
+	}
+
+	return bulk_loop(env, obj, jcnt, bulkSize, snapLength, useIntTs, JNI_FALSE,
+			env->GetIntField(jpool, capacityFID), env->GetBooleanField(jpool, blockingFID),
+			jpool, jhandler, juser);
+}
+
 /*
  * Class:     org_jnetpcap_Pcap
  * Method:    loop
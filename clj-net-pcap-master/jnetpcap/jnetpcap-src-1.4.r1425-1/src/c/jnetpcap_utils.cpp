@@ -736,6 +736,159 @@ void pcap_callback(u_char *user, const pcap_pkthdr *pkt_header,
 	}
 }
 
+/*****************************************************************************
+ * BULK BUFFER POOL
+ */
+
+static void bulk_buffer_pool_lock(bulk_buffer_pool_t *pool) {
+	while (__sync_lock_test_and_set(&pool->lock, 1)) {
+		while (pool->lock) {
+		}
+	}
+}
+
+static void bulk_buffer_pool_unlock(bulk_buffer_pool_t *pool) {
+	__sync_lock_release(&pool->lock);
+}
+
+bulk_buffer_pool_t *bulk_buffer_pool_create(size_t buffer_size, int capacity) {
+	bulk_buffer_pool_t *pool = (bulk_buffer_pool_t *) malloc(sizeof(bulk_buffer_pool_t));
+	if (pool == NULL) {
+		return NULL;
+	}
+
+	pool->lock = 0;
+	pool->free_list = NULL;
+	pool->buffer_size = buffer_size;
+	pool->capacity = capacity;
+	pool->allocated = 0;
+	pool->closed = 0;
+	pool->dropped = 0;
+
+	return pool;
+}
+
+/**
+ * Returns the data address of a free buffer or NULL when the pool is
+ * exhausted. When blocking is set, waits until another thread returned a
+ * buffer instead.
+ */
+void *bulk_buffer_pool_acquire(bulk_buffer_pool_t *pool, int blocking) {
+	while (1) {
+		bulk_buffer_hdr_t *hdr = NULL;
+		int allocate = 0;
+
+		bulk_buffer_pool_lock(pool);
+		if (pool->free_list != NULL) {
+			hdr = pool->free_list;
+			pool->free_list = hdr->next;
+		} else if (pool->capacity <= 0 || pool->allocated < pool->capacity) {
+			pool->allocated++;
+			allocate = 1;
+		}
+		bulk_buffer_pool_unlock(pool);
+
+		if (allocate) {
+			hdr = (bulk_buffer_hdr_t *) malloc(BULK_BUFFER_HDR_SIZE + pool->buffer_size);
+			if (hdr == NULL) {
+				bulk_buffer_pool_lock(pool);
+				pool->allocated--;
+				bulk_buffer_pool_unlock(pool);
+				return NULL;
+			}
+			hdr->magic = BULK_BUFFER_MAGIC;
+			hdr->pool = pool;
+		}
+
+		if (hdr != NULL) {
+			hdr->next = NULL;
+			return ((char *) hdr) + BULK_BUFFER_HDR_SIZE;
+		}
+
+		if (!blocking) {
+			return NULL;
+		}
+
+#ifdef WIN32
+		Sleep(1);
+#else
+		usleep(1000);
+#endif /*WIN32*/
+	}
+}
+
+/**
+ * Returns the buffer with the given data address to its pool.
+ * Returns -1 if the address does not belong to a pooled buffer.
+ */
+int bulk_buffer_pool_release(void *data) {
+	bulk_buffer_hdr_t *hdr = (bulk_buffer_hdr_t *) (((char *) data) - BULK_BUFFER_HDR_SIZE);
+	if (hdr->magic != BULK_BUFFER_MAGIC) {
+		return -1;
+	}
+
+	bulk_buffer_pool_t *pool = hdr->pool;
+	int free_pool = 0;
+
+	bulk_buffer_pool_lock(pool);
+	if (pool->closed) {
+		pool->allocated--;
+		free_pool = (pool->allocated == 0);
+	} else {
+		hdr->next = pool->free_list;
+		pool->free_list = hdr;
+		hdr = NULL;
+	}
+	bulk_buffer_pool_unlock(pool);
+
+	if (hdr != NULL) {
+		hdr->magic = 0;
+		free(hdr);
+	}
+	if (free_pool) {
+		free(pool);
+	}
+
+	return 0;
+}
+
+/**
+ * Frees all free buffers. Buffers that are still in use are freed when they
+ * are returned. The pool itself is freed with the last buffer.
+ */
+void bulk_buffer_pool_close(bulk_buffer_pool_t *pool) {
+	bulk_buffer_pool_lock(pool);
+	bulk_buffer_hdr_t *hdr = pool->free_list;
+	pool->free_list = NULL;
+	pool->closed = 1;
+	while (hdr != NULL) {
+		bulk_buffer_hdr_t *next = hdr->next;
+		hdr->magic = 0;
+		free(hdr);
+		pool->allocated--;
+		hdr = next;
+	}
+	int free_pool = (pool->allocated == 0);
+	bulk_buffer_pool_unlock(pool);
+
+	if (free_pool) {
+		free(pool);
+	}
+}
+
+/**
+ * Copies the pool counters to the DirectBulkBufferPool Java object, if any.
+ */
+void cb_bulk_byte_buffer_update_pool_stats(cb_bulk_byte_buffer_t *data) {
+	if (data->jpool == NULL) {
+		return;
+	}
+
+	JNIEnv *env = data->env;
+	env->SetIntField(data->jpool, data->pool_allocated_fid, (jint) data->pool->allocated);
+	env->SetLongField(data->jpool, data->pool_dropped_fid, data->pool->dropped);
+}
+
 /**
  * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
  * it to java listener. This version casts the timestamp values to int.
@@ -849,14 +1002,23 @@ void cb_bulk_byte_buffer_dispatch(u_char *user, const pcap_pkthdr *pkt_header,
 }
 
 /**
- * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
- * it to java listener. This version casts the timestamp values to int.
+ * Bulk dispatcher that fills buffers taken from a bulk_buffer_pool_t and
+ * dispatches them, wrapped in a new java.nio.ByteBuffer, to java listener. This version casts the timestamp values to int.
  */
 void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr *pkt_header,
 		const u_char *pkt_data) {
 
 	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
 
+    if (data->write_buffer->data == NULL) {
+        data->write_buffer->data = bulk_buffer_pool_acquire(data->pool, data->pool_blocking);
+        if (data->write_buffer->data == NULL) {
+            data->pool->dropped++;
+            cb_bulk_byte_buffer_update_pool_stats(data);
+            return;
+        }
+    }
+
     int offset = 0;
     char *data_ptr = (char *) data->write_buffer->data;
     int tv_sec = (int) pkt_header->ts.tv_sec;
@@ -882,10 +1044,16 @@ void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr
     jobject buffer = env->NewDirectByteBuffer((void *) data->write_buffer->data,
 			data->write_buffer->bytes);
 
-    data->write_buffer->data = malloc(data->bulk_buffer_entry_size * data->bulk_size);
+    /*
+     * The buffer is returned to the pool when the consumer is done with it.
+     * When the pool is exhausted, packets are dropped until a buffer was returned.
+     */
+    data->write_buffer->data = bulk_buffer_pool_acquire(data->pool, data->pool_blocking);
     data->write_buffer->bytes = 0;
     data->write_buffer->packets = 0;
 
+	cb_bulk_byte_buffer_update_pool_stats(data);
+
 	if (buffer == NULL) {
 		return;
 	}
@@ -905,14 +1073,23 @@ void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char *user, const pcap_pkthdr
 }
 
 /**
- * Bulk dispatcher that allocates a new java.nio.ByteBuffer and dispatches
- * it to java listener.
+ * Bulk dispatcher that fills buffers taken from a bulk_buffer_pool_t and
+ * dispatches them, wrapped in a new java.nio.ByteBuffer, to java listener.
  */
 void cb_bulk_byte_buffer_dispatch_direct(u_char *user, const pcap_pkthdr *pkt_header,
 		const u_char *pkt_data) {
 
 	cb_bulk_byte_buffer_t *data = (cb_bulk_byte_buffer_t *)user;
 
+    if (data->write_buffer->data == NULL) {
+        data->write_buffer->data = bulk_buffer_pool_acquire(data->pool, data->pool_blocking);
+        if (data->write_buffer->data == NULL) {
+            data->pool->dropped++;
+            cb_bulk_byte_buffer_update_pool_stats(data);
+            return;
+        }
+    }
+
     int offset = 0;
     char *data_ptr = (char *) data->write_buffer->data;
     memcpy((void *) (data_ptr + data->write_buffer->bytes), &(pkt_header->ts.tv_sec), sizeof(pkt_header->ts.tv_sec));
@@ -936,10 +1113,16 @@ void cb_bulk_byte_buffer_dispatch_direct(u_char *user, const pcap_pkthdr *pkt_he
     jobject buffer = env->NewDirectByteBuffer((void *) data->write_buffer->data,
 			data->write_buffer->bytes);
 
-    data->write_buffer->data = malloc(data->bulk_buffer_entry_size * data->bulk_size);
+    /*
+     * The buffer is returned to the pool when the consumer is done with it.
+     * When the pool is exhausted, packets are dropped until a buffer was returned.
+     */
+    data->write_buffer->data = bulk_buffer_pool_acquire(data->pool, data->pool_blocking);
     data->write_buffer->bytes = 0;
     data->write_buffer->packets = 0;
 
+	cb_bulk_byte_buffer_update_pool_stats(data);
+
 	if (buffer == NULL) {
 		return;
 	}
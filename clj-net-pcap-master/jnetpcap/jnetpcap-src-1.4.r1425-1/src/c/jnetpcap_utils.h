@@ -96,6 +96,44 @@ typedef struct bulk_buffer_t {
     long packets;
 } bulk_buffer_t;
 
+/*
+ * Every buffer handed out by a bulk_buffer_pool_t is prefixed with this header.
+ * The header links the buffer back to its pool such that a buffer can be
+ * returned via its data address only, e.g., from
+ * DirectBulkByteBufferWrapper.freeNativeMemory().
+ */
+#define BULK_BUFFER_MAGIC 0x42554c4b
+#define BULK_BUFFER_HDR_SIZE 32
+
+typedef struct bulk_buffer_hdr_t {
+    unsigned int magic;
+    struct bulk_buffer_pool_t *pool;
+    struct bulk_buffer_hdr_t *next;
+} bulk_buffer_hdr_t;
+
+/*
+ * Pool of equally sized native buffers for the direct bulk loop.
+ * Buffers are acquired by the capture thread and released by arbitrary
+ * threads once the consumer is done with the data. A capacity of 0 means that
+ * the number of buffers is not limited; returned buffers are still recycled.
+ * After bulk_buffer_pool_close(), returned buffers are freed and the pool
+ * itself is freed once the last outstanding buffer was returned.
+ */
+typedef struct bulk_buffer_pool_t {
+    volatile int lock;
+    bulk_buffer_hdr_t *free_list;
+    size_t buffer_size;
+    int capacity;
+    int allocated;     // Buffers currently allocated, free or in use
+    int closed;
+    jlong dropped;     // Packets dropped because the pool was exhausted
+} bulk_buffer_pool_t;
+
+bulk_buffer_pool_t *bulk_buffer_pool_create(size_t buffer_size, int capacity);
+void *bulk_buffer_pool_acquire(bulk_buffer_pool_t *pool, int blocking);
+int bulk_buffer_pool_release(void *data);
+void bulk_buffer_pool_close(bulk_buffer_pool_t *pool);
+
 typedef struct cb_bulk_byte_buffer_t {
 	pcap_t *p;
 	jmethodID mid;
@@ -108,6 +146,11 @@ typedef struct cb_bulk_byte_buffer_t {
     bulk_buffer_t *read_buffer;
     int bulk_size;
     int bulk_buffer_entry_size;
+    bulk_buffer_pool_t *pool;   // Only used by the direct dispatchers
+    int pool_blocking;
+    jobject jpool;              // DirectBulkBufferPool for stats, may be NULL
+    jfieldID pool_allocated_fid;
+    jfieldID pool_dropped_fid;
 } cb_bulk_byte_buffer_t;
 
 typedef struct cb_byte_buffer_t {
@@ -159,6 +202,7 @@ void cb_bulk_byte_buffer_dispatch_int_ts(u_char*, const pcap_pkthdr*, const u_ch
 void cb_bulk_byte_buffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_bulk_byte_buffer_dispatch_direct_int_ts(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_bulk_byte_buffer_dispatch_direct(u_char*, const pcap_pkthdr*, const u_char*);
+void cb_bulk_byte_buffer_update_pool_stats(cb_bulk_byte_buffer_t*);
 void cb_byte_buffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_jbuffer_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
 void cb_pcap_packet_dispatch(u_char*, const pcap_pkthdr*, const u_char*);
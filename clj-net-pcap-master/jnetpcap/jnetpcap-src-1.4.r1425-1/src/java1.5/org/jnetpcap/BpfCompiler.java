@@ -0,0 +1,984 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates a validated BPF program into a class that extends BpfFilter.
+ * <p>
+ * Each BPF instruction is translated into a few bytecode instructions: the A
+ * and X registers and the scratch memory are local variables, constants are
+ * inlined, and jumps become branches. Packet loads are assembled from single
+ * bytes in network byte order after a bounds check against the capture length.
+ * The matches methods for byte arrays and ByteBuffers are generated from the
+ * same program and only differ in how a byte is loaded.
+ * </p>
+ * <p>
+ * Each class is defined by its own class loader, so it is unloaded together
+ * with the filter. Programs whose methods would exceed the size up to which
+ * HotSpot compiles methods are not compiled, as the interpreter is faster than
+ * an interpreted generated method. If the system property
+ * {@value #INTERPRET_PROPERTY} is set to true, no programs are compiled.
+ * </p>
+ *
+ * @author Ruediger Gad
+ */
+final class BpfCompiler {
+
+	/**
+	 * System property that disables the compilation of BPF programs.
+	 */
+	public static final String INTERPRET_PROPERTY = "org.jnetpcap.bpf.interpret";
+
+	/** Methods larger than this are not compiled by HotSpot. */
+	private static final int HUGE_METHOD_LIMIT = 8000;
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private static final int ACC_PUBLIC = 0x0001;
+
+	private static final int ACC_FINAL = 0x0010;
+
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int ICONST_0 = 0x03;
+
+	private static final int ICONST_1 = 0x04;
+
+	private static final int BIPUSH = 0x10;
+
+	private static final int SIPUSH = 0x11;
+
+	private static final int LDC_W = 0x13;
+
+	private static final int ILOAD = 0x15;
+
+	private static final int ALOAD_0 = 0x2a;
+
+	private static final int ALOAD_1 = 0x2b;
+
+	private static final int BALOAD = 0x33;
+
+	private static final int ISTORE = 0x36;
+
+	private static final int IADD = 0x60;
+
+	private static final int ISUB = 0x64;
+
+	private static final int IMUL = 0x68;
+
+	private static final int INEG = 0x74;
+
+	private static final int ISHL = 0x78;
+
+	private static final int IUSHR = 0x7c;
+
+	private static final int IAND = 0x7e;
+
+	private static final int IOR = 0x80;
+
+	private static final int IXOR = 0x82;
+
+	private static final int IFEQ = 0x99;
+
+	private static final int IFNE = 0x9a;
+
+	private static final int IFLT = 0x9b;
+
+	private static final int IF_ICMPEQ = 0x9f;
+
+	private static final int IF_ICMPNE = 0xa0;
+
+	private static final int IF_ICMPLT = 0xa1;
+
+	private static final int IF_ICMPGE = 0xa2;
+
+	private static final int IF_ICMPGT = 0xa3;
+
+	private static final int IF_ICMPLE = 0xa4;
+
+	private static final int GOTO = 0xa7;
+
+	private static final int IRETURN = 0xac;
+
+	private static final int RETURN = 0xb1;
+
+	private static final int INVOKEVIRTUAL = 0xb6;
+
+	private static final int INVOKESPECIAL = 0xb7;
+
+	private static final int INVOKESTATIC = 0xb8;
+
+	/** Local variable of the first byte of the packet. */
+	private static final int OFFSET = 2;
+
+	/** Local variable of the capture length. */
+	private static final int CAPLEN = 3;
+
+	/** Local variable of the original length. */
+	private static final int WIRELEN = 4;
+
+	/** Local variable of the A register. */
+	private static final int REG_A = 5;
+
+	/** Local variable of the X register. */
+	private static final int REG_X = 6;
+
+	/** Local variable of the index of the current load. */
+	private static final int INDEX = 7;
+
+	/** Local variable of the first scratch memory word. */
+	private static final int MEM = 8;
+
+	private static final int MAX_LOCALS = MEM + BpfFilter.MEMORY_WORDS;
+
+	private static final int MAX_STACK = 6;
+
+	private static final String SUPER = "org/jnetpcap/BpfFilter";
+
+	private BpfCompiler() {
+	}
+
+	/**
+	 * Compiles the program of a validated filter.
+	 *
+	 * @param program
+	 *          the filter with the program
+	 * @return the compiled filter or null if the program is not compiled
+	 */
+	static BpfFilter compile(BpfFilter program) {
+		if (Boolean.getBoolean(INTERPRET_PROPERTY)) {
+			return null;
+		}
+
+		try {
+			final String name = "org/jnetpcap/CompiledBpfFilter"
+					+ count.incrementAndGet();
+			final byte[] b = new ClassWriter(name, program).toByteArray();
+			if (b == null) {
+				return null;
+			}
+
+			final BpfFilter filter = (BpfFilter) new Loader(BpfFilter.class
+					.getClassLoader()).define(name.replace('/', '.'), b)
+					.getDeclaredConstructor().newInstance();
+			filter.code = program.code;
+			filter.jt = program.jt;
+			filter.jf = program.jf;
+			filter.k = program.k;
+
+			return filter;
+
+		} catch (Exception e) {
+			// Fall back to the interpreter
+		} catch (LinkageError e) {
+			// Fall back to the interpreter
+		}
+
+		return null;
+	}
+
+	/**
+	 * Class loader for a compiled filter.
+	 */
+	private static final class Loader extends ClassLoader {
+
+		/**
+		 * Creates a loader that delegates to the given loader.
+		 *
+		 * @param parent
+		 *          the parent loader
+		 */
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		/**
+		 * Defines the class.
+		 *
+		 * @param name
+		 *          binary name of the class
+		 * @param b
+		 *          class file
+		 * @return the class
+		 */
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Writes the class file of a compiled filter. The class file uses the Java 5
+	 * format, which does not require stack map frames.
+	 */
+	private static final class ClassWriter {
+
+		private final BpfFilter program;
+
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+		private final DataOutputStream cp = new DataOutputStream(pool);
+
+		private final Map<String, Integer> entries = new HashMap<String, Integer>();
+
+		private int entryCount = 1;
+
+		private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(methods);
+
+		private final int codeName;
+
+		private final int thisClass;
+
+		private final int superClass;
+
+		private final boolean tooLarge;
+
+		/**
+		 * Creates the class file of a compiled filter.
+		 *
+		 * @param name
+		 *          internal name of the class
+		 * @param program
+		 *          the filter with the program
+		 * @throws IOException
+		 *           never
+		 */
+		ClassWriter(String name, BpfFilter program) throws IOException {
+			this.program = program;
+			this.codeName = utf8Entry("Code");
+			this.thisClass = classEntry(name);
+			this.superClass = classEntry(SUPER);
+
+			writeConstructor();
+
+			final byte[] array = new Code(false).toByteArray();
+			final byte[] buffer = new Code(true).toByteArray();
+			this.tooLarge = array == null || buffer == null;
+
+			if (tooLarge == false) {
+				writeMethod("matches", "([BIII)Z", array, MAX_LOCALS);
+				writeMethod("matches", "(Ljava/nio/ByteBuffer;III)Z", buffer,
+						MAX_LOCALS);
+			}
+		}
+
+		/**
+		 * Gets the class file.
+		 *
+		 * @return the class file or null if the program is too large
+		 * @throws IOException
+		 *           never
+		 */
+		byte[] toByteArray() throws IOException {
+			if (tooLarge) {
+				return null;
+			}
+
+			final ByteArrayOutputStream b = new ByteArrayOutputStream();
+			final DataOutputStream d = new DataOutputStream(b);
+			d.writeInt(0xCAFEBABE);
+			d.writeShort(0);
+			d.writeShort(49);
+			d.writeShort(entryCount);
+			d.write(pool.toByteArray());
+			d.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			d.writeShort(thisClass);
+			d.writeShort(superClass);
+			d.writeShort(0); // interfaces
+			d.writeShort(0); // fields
+			d.writeShort(3); // methods
+
+			d.write(methods.toByteArray());
+			d.writeShort(0); // attributes
+
+			return b.toByteArray();
+		}
+
+		/**
+		 * Writes the public no-argument constructor.
+		 *
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeConstructor() throws IOException {
+			final byte[] code = new byte[5];
+			final int init = methodEntry(superClass, "<init>", "()V");
+			code[0] = (byte) ALOAD_0;
+			code[1] = (byte) INVOKESPECIAL;
+			code[2] = (byte) (init >> 8);
+			code[3] = (byte) init;
+			code[4] = (byte) RETURN;
+
+			writeMethod("<init>", "()V", code, 1);
+		}
+
+		/**
+		 * Writes a public method.
+		 *
+		 * @param name
+		 *          method name
+		 * @param desc
+		 *          method descriptor
+		 * @param code
+		 *          bytecode
+		 * @param maxLocals
+		 *          number of local variables
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeMethod(String name, String desc, byte[] code,
+				int maxLocals) throws IOException {
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(utf8Entry(name));
+			out.writeShort(utf8Entry(desc));
+			out.writeShort(1); // attributes
+
+			out.writeShort(codeName);
+			out.writeInt(12 + code.length);
+			out.writeShort(MAX_STACK);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		}
+
+		/**
+		 * Gets or adds a UTF8 constant.
+		 *
+		 * @param s
+		 *          the string
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int utf8Entry(String s) throws IOException {
+			final String key = "U" + s;
+			Integer i = entries.get(key);
+			if (i == null) {
+				cp.writeByte(1);
+				cp.writeUTF(s);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets or adds an integer constant.
+		 *
+		 * @param v
+		 *          the value
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int intEntry(int v) throws IOException {
+			final String key = "I" + v;
+			Integer i = entries.get(key);
+			if (i == null) {
+				cp.writeByte(3);
+				cp.writeInt(v);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets or adds a class constant.
+		 *
+		 * @param internalName
+		 *          internal name of the class
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int classEntry(String internalName) throws IOException {
+			final String key = "C" + internalName;
+			Integer i = entries.get(key);
+			if (i == null) {
+				final int name = utf8Entry(internalName);
+				cp.writeByte(7);
+				cp.writeShort(name);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets or adds a method reference constant.
+		 *
+		 * @param owner
+		 *          index of the class constant
+		 * @param name
+		 *          method name
+		 * @param desc
+		 *          method descriptor
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int methodEntry(int owner, String name, String desc)
+				throws IOException {
+			final String key = "M" + owner + "." + name + desc;
+			Integer i = entries.get(key);
+			if (i == null) {
+				final int n = utf8Entry(name);
+				final int t = utf8Entry(desc);
+				cp.writeByte(12);
+				cp.writeShort(n);
+				cp.writeShort(t);
+				final int nameAndType = entryCount++;
+
+				cp.writeByte(10);
+				cp.writeShort(owner);
+				cp.writeShort(nameAndType);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Bytecode of a matches method. Branches are written with the index of the
+		 * target BPF instruction, or -1 for the shared reject code at the end, and
+		 * are resolved once all instructions are written.
+		 */
+		private final class Code {
+
+			private final boolean byteBuffer;
+
+			private byte[] b = new byte[256];
+
+			private int size = 0;
+
+			/** Bytecode position of each BPF instruction. */
+			private final int[] labels;
+
+			/** Bytecode positions of the branch opcodes. */
+			private int[] branches = new int[32];
+
+			/** Targets of the branches. */
+			private int[] targets = new int[32];
+
+			private int branchCount = 0;
+
+			/**
+			 * Creates the bytecode of a matches method.
+			 *
+			 * @param byteBuffer
+			 *          true for the ByteBuffer variant, false for byte arrays
+			 * @throws IOException
+			 *           never
+			 */
+			Code(boolean byteBuffer) throws IOException {
+				this.byteBuffer = byteBuffer;
+				this.labels = new int[program.code.length];
+
+				for (int i = REG_A; i < MAX_LOCALS; i++) {
+					op(ICONST_0);
+					op(ISTORE, i);
+				}
+
+				for (int i = 0; i < program.code.length; i++) {
+					labels[i] = size;
+					instruction(i);
+				}
+
+				// Shared code for rejected packets
+				final int reject = size;
+				op(ICONST_0);
+				op(IRETURN);
+
+				for (int i = 0; i < branchCount; i++) {
+					final int target = (targets[i] < 0) ? reject : labels[targets[i]];
+					final int delta = target - branches[i];
+					b[branches[i] + 1] = (byte) (delta >> 8);
+					b[branches[i] + 2] = (byte) delta;
+				}
+			}
+
+			/**
+			 * Gets the bytecode.
+			 *
+			 * @return the bytecode or null if the method is too large
+			 */
+			byte[] toByteArray() {
+				if (size > HUGE_METHOD_LIMIT) {
+					return null;
+				}
+
+				final byte[] code = new byte[size];
+				System.arraycopy(b, 0, code, 0, size);
+
+				return code;
+			}
+
+			/**
+			 * Writes the bytecode of a BPF instruction.
+			 *
+			 * @param i
+			 *          index of the instruction
+			 * @throws IOException
+			 *           never
+			 */
+			private void instruction(int i) throws IOException {
+				final int c = program.code[i];
+				final int k = program.k[i];
+
+				switch (c & 0x07) {
+				case BpfFilter.LD:
+				case BpfFilter.LDX:
+					load(c, k);
+					op(ISTORE, ((c & 0x07) == BpfFilter.LD) ? REG_A : REG_X);
+					break;
+
+				case BpfFilter.ST:
+					op(ILOAD, REG_A);
+					op(ISTORE, MEM + k);
+					break;
+
+				case BpfFilter.STX:
+					op(ILOAD, REG_X);
+					op(ISTORE, MEM + k);
+					break;
+
+				case BpfFilter.ALU:
+					alu(c, k);
+					op(ISTORE, REG_A);
+					break;
+
+				case BpfFilter.JMP:
+					jump(i, c, k);
+					break;
+
+				case BpfFilter.RET:
+					if ((c & 0x18) == BpfFilter.K) {
+						op((k != 0) ? ICONST_1 : ICONST_0);
+						op(IRETURN);
+					} else {
+						op(ILOAD, ((c & 0x18) == BpfFilter.A) ? REG_A : REG_X);
+						branch(IFEQ, -1);
+						op(ICONST_1);
+						op(IRETURN);
+					}
+					break;
+
+				default: // MISC
+					if ((c & 0xf8) == BpfFilter.TAX) {
+						op(ILOAD, REG_A);
+						op(ISTORE, REG_X);
+					} else {
+						op(ILOAD, REG_X);
+						op(ISTORE, REG_A);
+					}
+				}
+			}
+
+			/**
+			 * Writes the bytecode that pushes the value of a load instruction.
+			 *
+			 * @param c
+			 *          instruction code
+			 * @param k
+			 *          constant of the instruction
+			 * @throws IOException
+			 *           never
+			 */
+			private void load(int c, int k) throws IOException {
+				switch (c & 0xe0) {
+				case BpfFilter.IMM:
+					push(k);
+					return;
+
+				case BpfFilter.LEN:
+					op(ILOAD, WIRELEN);
+					return;
+
+				case BpfFilter.MEM:
+					op(ILOAD, MEM + k);
+					return;
+
+				case BpfFilter.MSH:
+					bounds(false, k, 1);
+					loadByte(0);
+					push(0x0f);
+					op(IAND);
+					push(2);
+					op(ISHL);
+					return;
+				}
+
+				final int size = ((c & 0x18) == BpfFilter.W) ? 4
+						: ((c & 0x18) == BpfFilter.H) ? 2 : 1;
+				bounds((c & 0xe0) == BpfFilter.IND, k, size);
+
+				for (int j = 0; j < size; j++) {
+					loadByte(j);
+					if (j < size - 1) {
+						push(8 * (size - 1 - j));
+						op(ISHL);
+					}
+					if (j > 0) {
+						op(IOR);
+					}
+				}
+			}
+
+			/**
+			 * Writes the bounds check of a packet load, which rejects the packet if
+			 * the load is not within the capture length, and stores the index of the
+			 * first byte in the INDEX variable.
+			 *
+			 * @param indirect
+			 *          true if the X register is added to the constant
+			 * @param k
+			 *          constant of the instruction
+			 * @param size
+			 *          number of bytes
+			 * @throws IOException
+			 *           never
+			 */
+			private void bounds(boolean indirect, int k, int size) throws IOException {
+				if (k < 0 || k > Integer.MAX_VALUE - size) {
+					// Never within a capture length
+					branch(GOTO, -1);
+					return;
+				}
+
+				if (indirect) {
+					// X is unsigned and must not exceed caplen - size - k
+					op(ILOAD, REG_X);
+					branch(IFLT, -1);
+					op(ILOAD, REG_X);
+					op(ILOAD, CAPLEN);
+					push(size + k);
+					op(ISUB);
+					branch(IF_ICMPGT, -1);
+
+					op(ILOAD, OFFSET);
+					op(ILOAD, REG_X);
+					op(IADD);
+				} else {
+					op(ILOAD, CAPLEN);
+					push(size + k);
+					branch(IF_ICMPLT, -1);
+
+					op(ILOAD, OFFSET);
+				}
+
+				if (k != 0) {
+					push(k);
+					op(IADD);
+				}
+				op(ISTORE, INDEX);
+			}
+
+			/**
+			 * Writes the bytecode that pushes an unsigned byte of the packet.
+			 *
+			 * @param j
+			 *          offset from the INDEX variable
+			 * @throws IOException
+			 *           never
+			 */
+			private void loadByte(int j) throws IOException {
+				op(ALOAD_1);
+				op(ILOAD, INDEX);
+				if (j != 0) {
+					push(j);
+					op(IADD);
+				}
+
+				if (byteBuffer) {
+					op(INVOKEVIRTUAL);
+					u2(methodEntry(classEntry("java/nio/ByteBuffer"), "get", "(I)B"));
+				} else {
+					op(BALOAD);
+				}
+
+				push(0xff);
+				op(IAND);
+			}
+
+			/**
+			 * Writes the bytecode that pushes the result of an ALU instruction.
+			 *
+			 * @param c
+			 *          instruction code
+			 * @param k
+			 *          constant of the instruction
+			 * @throws IOException
+			 *           never
+			 */
+			private void alu(int c, int k) throws IOException {
+				final boolean x = (c & 0x08) == BpfFilter.X;
+				final int operation = c & 0xf0;
+
+				if ((operation == BpfFilter.DIV || operation == BpfFilter.MOD) && x) {
+					op(ILOAD, REG_X);
+					branch(IFEQ, -1);
+				}
+
+				op(ILOAD, REG_A);
+				if (operation == BpfFilter.NEG) {
+					op(INEG);
+					return;
+				}
+
+				if (x) {
+					op(ILOAD, REG_X);
+				} else {
+					push(k);
+				}
+
+				switch (operation) {
+				case BpfFilter.ADD:
+					op(IADD);
+					break;
+				case BpfFilter.SUB:
+					op(ISUB);
+					break;
+				case BpfFilter.MUL:
+					op(IMUL);
+					break;
+				case BpfFilter.OR:
+					op(IOR);
+					break;
+				case BpfFilter.AND:
+					op(IAND);
+					break;
+				case BpfFilter.XOR:
+					op(IXOR);
+					break;
+				case BpfFilter.LSH:
+					if (x) {
+						helper("lsh");
+					} else {
+						op(ISHL);
+					}
+					break;
+				case BpfFilter.RSH:
+					if (x) {
+						helper("rsh");
+					} else {
+						op(IUSHR);
+					}
+					break;
+				case BpfFilter.DIV:
+					helper("divu");
+					break;
+				default: // MOD
+					helper("modu");
+				}
+			}
+
+			/**
+			 * Writes a call of a static helper of BpfFilter with two int arguments.
+			 *
+			 * @param name
+			 *          name of the helper
+			 * @throws IOException
+			 *           never
+			 */
+			private void helper(String name) throws IOException {
+				op(INVOKESTATIC);
+				u2(methodEntry(superClass, name, "(II)I"));
+			}
+
+			/**
+			 * Writes the bytecode of a jump instruction.
+			 *
+			 * @param i
+			 *          index of the instruction
+			 * @param c
+			 *          instruction code
+			 * @param k
+			 *          constant of the instruction
+			 * @throws IOException
+			 *           never
+			 */
+			private void jump(int i, int c, int k) throws IOException {
+				final int operation = c & 0xf0;
+				if (operation == BpfFilter.JA) {
+					branch(GOTO, i + 1 + k);
+					return;
+				}
+
+				final int jt = program.jt[i];
+				final int jf = program.jf[i];
+				if (jt == jf) {
+					if (jt != 0) {
+						branch(GOTO, i + 1 + jt);
+					}
+					return;
+				}
+
+				final boolean x = (c & 0x08) == BpfFilter.X;
+				final boolean unsigned = operation == BpfFilter.JGT
+						|| operation == BpfFilter.JGE;
+
+				op(ILOAD, REG_A);
+				if (unsigned) {
+					push(Integer.MIN_VALUE);
+					op(IXOR);
+				}
+
+				if (x) {
+					op(ILOAD, REG_X);
+					if (unsigned) {
+						push(Integer.MIN_VALUE);
+						op(IXOR);
+					}
+				} else {
+					push(unsigned ? k ^ Integer.MIN_VALUE : k);
+				}
+
+				int taken;
+				int notTaken;
+				switch (operation) {
+				case BpfFilter.JEQ:
+					taken = IF_ICMPEQ;
+					notTaken = IF_ICMPNE;
+					break;
+				case BpfFilter.JGT:
+					taken = IF_ICMPGT;
+					notTaken = IF_ICMPLE;
+					break;
+				case BpfFilter.JGE:
+					taken = IF_ICMPGE;
+					notTaken = IF_ICMPLT;
+					break;
+				default: // JSET
+					op(IAND);
+					taken = IFNE;
+					notTaken = IFEQ;
+				}
+
+				if (jt == 0) {
+					branch(notTaken, i + 1 + jf);
+				} else {
+					branch(taken, i + 1 + jt);
+					if (jf != 0) {
+						branch(GOTO, i + 1 + jf);
+					}
+				}
+			}
+
+			/**
+			 * Writes the bytecode that pushes an int constant.
+			 *
+			 * @param v
+			 *          the value
+			 * @throws IOException
+			 *           never
+			 */
+			private void push(int v) throws IOException {
+				if (v >= -1 && v <= 5) {
+					op(ICONST_0 + v);
+				} else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+					op(BIPUSH, v);
+				} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+					op(SIPUSH);
+					u2(v);
+				} else {
+					op(LDC_W);
+					u2(intEntry(v));
+				}
+			}
+
+			/**
+			 * Writes a branch, which is resolved later.
+			 *
+			 * @param opcode
+			 *          the branch opcode
+			 * @param target
+			 *          index of the target instruction or -1 to reject the packet
+			 */
+			private void branch(int opcode, int target) {
+				if (branchCount == branches.length) {
+					final int[] tmp = new int[branchCount * 2];
+					System.arraycopy(branches, 0, tmp, 0, branchCount);
+					branches = tmp;
+
+					final int[] tmp2 = new int[branchCount * 2];
+					System.arraycopy(targets, 0, tmp2, 0, branchCount);
+					targets = tmp2;
+				}
+				branches[branchCount] = size;
+				targets[branchCount] = target;
+				branchCount++;
+
+				op(opcode);
+				u2(0);
+			}
+
+			/**
+			 * Writes an opcode.
+			 *
+			 * @param opcode
+			 *          the opcode
+			 */
+			private void op(int opcode) {
+				if (size == b.length) {
+					final byte[] tmp = new byte[size * 2];
+					System.arraycopy(b, 0, tmp, 0, size);
+					b = tmp;
+				}
+				b[size++] = (byte) opcode;
+			}
+
+			/**
+			 * Writes an opcode with a single byte operand.
+			 *
+			 * @param opcode
+			 *          the opcode
+			 * @param operand
+			 *          the operand
+			 */
+			private void op(int opcode, int operand) {
+				op(opcode);
+				op(operand);
+			}
+
+			/**
+			 * Writes an unsigned short operand.
+			 *
+			 * @param v
+			 *          the operand
+			 */
+			private void u2(int v) {
+				op(v >> 8);
+				op(v);
+			}
+		}
+	}
+}
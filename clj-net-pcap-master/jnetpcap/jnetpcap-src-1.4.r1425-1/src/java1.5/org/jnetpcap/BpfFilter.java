@@ -0,0 +1,568 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.jnetpcap.nio.JBuffer;
+
+/**
+ * A BPF program that is evaluated in user space on packets that have already
+ * been captured, e.g., to re-filter or route packets in a forwarder or to
+ * filter offline data.
+ * <p>
+ * {@link #compile(PcapBpfProgram)} translates the program into the bytecode of
+ * a generated class, so the JIT compiler turns each filter into native code
+ * with the constants of the program inlined. The semantics follow
+ * <code>pcap_offline_filter</code>: loads beyond the capture length reject the
+ * packet, as does a division by zero, and the packet matches when the program
+ * returns a non-zero value.
+ * </p>
+ * <p>
+ * The <code>offset</code> of the <code>matches</code> methods is the index of
+ * the first byte of the packet, e.g., the data after the record header of a
+ * bulk buffer, and the capture length must not exceed the buffer. Filters are
+ * stateless and thread safe.
+ * </p>
+ *
+ * @author Ruediger Gad
+ */
+public abstract class BpfFilter {
+
+	/** Maximum number of instructions of a program, like BPF_MAXINSNS. */
+	public static final int MAX_INSTRUCTIONS = 4096;
+
+	/** Number of scratch memory words. */
+	public static final int MEMORY_WORDS = 16;
+
+	static final int LD = 0x00;
+
+	static final int LDX = 0x01;
+
+	static final int ST = 0x02;
+
+	static final int STX = 0x03;
+
+	static final int ALU = 0x04;
+
+	static final int JMP = 0x05;
+
+	static final int RET = 0x06;
+
+	static final int MISC = 0x07;
+
+	static final int W = 0x00;
+
+	static final int H = 0x08;
+
+	static final int B = 0x10;
+
+	static final int IMM = 0x00;
+
+	static final int ABS = 0x20;
+
+	static final int IND = 0x40;
+
+	static final int MEM = 0x60;
+
+	static final int LEN = 0x80;
+
+	static final int MSH = 0xa0;
+
+	static final int ADD = 0x00;
+
+	static final int SUB = 0x10;
+
+	static final int MUL = 0x20;
+
+	static final int DIV = 0x30;
+
+	static final int OR = 0x40;
+
+	static final int AND = 0x50;
+
+	static final int LSH = 0x60;
+
+	static final int RSH = 0x70;
+
+	static final int NEG = 0x80;
+
+	static final int MOD = 0x90;
+
+	static final int XOR = 0xa0;
+
+	static final int JA = 0x00;
+
+	static final int JEQ = 0x10;
+
+	static final int JGT = 0x20;
+
+	static final int JGE = 0x30;
+
+	static final int JSET = 0x40;
+
+	static final int K = 0x00;
+
+	static final int X = 0x08;
+
+	static final int A = 0x10;
+
+	static final int TAX = 0x00;
+
+	static final int TXA = 0x80;
+
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[2048];
+		}
+	};
+
+	/** Instruction codes of the program. */
+	int[] code;
+
+	/** True jump offsets of the program. */
+	int[] jt;
+
+	/** False jump offsets of the program. */
+	int[] jf;
+
+	/** Constants of the program. */
+	int[] k;
+
+	/**
+	 * Creates a filter; the program is set by the factory methods.
+	 */
+	protected BpfFilter() {
+	}
+
+	/**
+	 * Compiles the program to bytecode. Programs that are too large to be
+	 * compiled by the JIT compiler are interpreted instead.
+	 *
+	 * @param program
+	 *          the program, e.g., as compiled by {@link Pcap#compile}
+	 * @return the filter
+	 * @throws IllegalArgumentException
+	 *           if the program is invalid
+	 */
+	public static BpfFilter compile(PcapBpfProgram program) {
+		return compile(program.toLongArray());
+	}
+
+	/**
+	 * Compiles the program to bytecode. Programs that are too large to be
+	 * compiled by the JIT compiler are interpreted instead.
+	 *
+	 * @param instructions
+	 *          the instructions as returned by
+	 *          {@link PcapBpfProgram#toLongArray()}
+	 * @return the filter
+	 * @throws IllegalArgumentException
+	 *           if the program is invalid
+	 */
+	public static BpfFilter compile(long[] instructions) {
+		final BpfFilter interpreter = interpret(instructions);
+		final BpfFilter compiled = BpfCompiler.compile(interpreter);
+
+		return (compiled == null) ? interpreter : compiled;
+	}
+
+	/**
+	 * Creates a filter that interprets the program, e.g., as reference for the
+	 * compiled filter.
+	 *
+	 * @param instructions
+	 *          the instructions as returned by
+	 *          {@link PcapBpfProgram#toLongArray()}
+	 * @return the filter
+	 * @throws IllegalArgumentException
+	 *           if the program is invalid
+	 */
+	public static BpfFilter interpret(long[] instructions) {
+		final BpfFilter filter = new BpfInterpreter();
+		filter.decode(instructions);
+		filter.validate();
+
+		return filter;
+	}
+
+	/**
+	 * Encodes an instruction in the layout of
+	 * {@link PcapBpfProgram#getInstruction(int)}, i.e., a native
+	 * <code>struct bpf_insn</code>.
+	 *
+	 * @param code
+	 *          the instruction code
+	 * @param jt
+	 *          the true jump offset
+	 * @param jf
+	 *          the false jump offset
+	 * @param k
+	 *          the constant
+	 * @return the instruction
+	 */
+	public static long instruction(int code, int jt, int jf, int k) {
+		final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		b.putShort(0, (short) code);
+		b.put(2, (byte) jt);
+		b.put(3, (byte) jf);
+		b.putInt(4, k);
+
+		return b.getLong(0);
+	}
+
+	/**
+	 * Decodes the instructions.
+	 *
+	 * @param instructions
+	 *          the instructions
+	 */
+	private void decode(long[] instructions) {
+		final int n = instructions.length;
+		code = new int[n];
+		jt = new int[n];
+		jf = new int[n];
+		k = new int[n];
+
+		final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < n; i++) {
+			b.putLong(0, instructions[i]);
+			code[i] = b.getShort(0) & 0xffff;
+			jt[i] = b.get(2) & 0xff;
+			jf[i] = b.get(3) & 0xff;
+			k[i] = b.getInt(4);
+		}
+	}
+
+	/**
+	 * Checks the program like <code>bpf_validate</code>: all jumps are forward
+	 * and within the program, scratch memory indexes are valid, divisions by a
+	 * constant zero are rejected, and the last instruction is a return.
+	 *
+	 * @throws IllegalArgumentException
+	 *           if the program is invalid
+	 */
+	private void validate() {
+		final int n = code.length;
+		if (n == 0 || n > MAX_INSTRUCTIONS) {
+			throw new IllegalArgumentException("invalid program length " + n);
+		}
+
+		for (int i = 0; i < n; i++) {
+			final int c = code[i];
+			boolean valid;
+
+			switch ((c > 0xff) ? -1 : c & 0x07) {
+			case LD:
+			case LDX:
+				switch (c & 0xe0) {
+				case IMM:
+				case LEN:
+					valid = true;
+					break;
+				case ABS:
+				case IND:
+					valid = (c & 0x07) == LD && (c & 0x18) != 0x18;
+					break;
+				case MSH:
+					valid = (c & 0x07) == LDX && (c & 0x18) == B;
+					break;
+				case MEM:
+					valid = k[i] >= 0 && k[i] < MEMORY_WORDS;
+					break;
+				default:
+					valid = false;
+				}
+				break;
+
+			case ST:
+			case STX:
+				valid = k[i] >= 0 && k[i] < MEMORY_WORDS;
+				break;
+
+			case ALU:
+				switch (c & 0xf0) {
+				case ADD:
+				case SUB:
+				case MUL:
+				case OR:
+				case AND:
+				case XOR:
+				case NEG:
+					valid = true;
+					break;
+				case DIV:
+				case MOD:
+					valid = (c & 0x08) == X || k[i] != 0;
+					break;
+				case LSH:
+				case RSH:
+					valid = (c & 0x08) == X || (k[i] >= 0 && k[i] < 32);
+					break;
+				default:
+					valid = false;
+				}
+				break;
+
+			case JMP:
+				switch (c & 0xf0) {
+				case JA:
+					valid = k[i] >= 0 && k[i] < n - i - 1;
+					break;
+				case JEQ:
+				case JGT:
+				case JGE:
+				case JSET:
+					valid = jt[i] < n - i - 1 && jf[i] < n - i - 1;
+					break;
+				default:
+					valid = false;
+				}
+				break;
+
+			case RET:
+				valid = (c & 0x18) != 0x18;
+				break;
+
+			case MISC:
+				valid = (c & 0xf8) == TAX || (c & 0xf8) == TXA;
+				break;
+
+			default:
+				valid = false;
+			}
+
+			if (valid == false) {
+				throw new IllegalArgumentException("invalid instruction 0x"
+						+ Integer.toHexString(c) + " at " + i);
+			}
+		}
+
+		if ((code[n - 1] & 0x07) != RET) {
+			throw new IllegalArgumentException("program does not end with a return");
+		}
+	}
+
+	/**
+	 * Gets the number of instructions of the program.
+	 *
+	 * @return number of instructions
+	 */
+	public int getInstructionCount() {
+		return code.length;
+	}
+
+	/**
+	 * Checks if the program was compiled to bytecode.
+	 *
+	 * @return true if compiled, false if interpreted
+	 */
+	public boolean isCompiled() {
+		return true;
+	}
+
+	/**
+	 * Evaluates the filter on a packet.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @param wirelen
+	 *          original length, used by <code>len</code> loads
+	 * @return true if the packet matches
+	 */
+	public abstract boolean matches(byte[] buf, int offset, int caplen,
+			int wirelen);
+
+	/**
+	 * Evaluates the filter on a packet. The position and limit of the buffer are
+	 * ignored.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @param wirelen
+	 *          original length, used by <code>len</code> loads
+	 * @return true if the packet matches
+	 */
+	public abstract boolean matches(ByteBuffer buf, int offset, int caplen,
+			int wirelen);
+
+	/**
+	 * Evaluates the filter on a packet whose original length is the capture
+	 * length.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @return true if the packet matches
+	 */
+	public boolean matches(byte[] buf, int offset, int caplen) {
+		return matches(buf, offset, caplen, caplen);
+	}
+
+	/**
+	 * Evaluates the filter on a packet whose original length is the capture
+	 * length.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @return true if the packet matches
+	 */
+	public boolean matches(ByteBuffer buf, int offset, int caplen) {
+		return matches(buf, offset, caplen, caplen);
+	}
+
+	/**
+	 * Evaluates the filter on a packet in native memory. The packet data is
+	 * copied with a single call into a buffer of the current thread, as the
+	 * accessors of the JBuffer are native calls.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @param wirelen
+	 *          original length, used by <code>len</code> loads
+	 * @return true if the packet matches
+	 */
+	public boolean matches(JBuffer buf, int offset, int caplen, int wirelen) {
+		final byte[] b = scratch(caplen);
+		if (caplen > 0) {
+			buf.getByteArray(offset, b, 0, caplen);
+		}
+
+		return matches(b, 0, caplen, wirelen);
+	}
+
+	/**
+	 * Evaluates the filter on a packet in native memory whose original length is
+	 * the capture length.
+	 *
+	 * @param buf
+	 *          the buffer
+	 * @param offset
+	 *          index of the first byte of the packet
+	 * @param caplen
+	 *          capture length
+	 * @return true if the packet matches
+	 */
+	public boolean matches(JBuffer buf, int offset, int caplen) {
+		return matches(buf, offset, caplen, caplen);
+	}
+
+	/**
+	 * Evaluates the filter on a captured packet, like
+	 * <code>pcap_offline_filter</code>.
+	 *
+	 * @param header
+	 *          capture header
+	 * @param buf
+	 *          the packet data
+	 * @return true if the packet matches
+	 */
+	public boolean matches(PcapHeader header, JBuffer buf) {
+		return matches(buf, 0, header.caplen(), header.wirelen());
+	}
+
+	/**
+	 * Gets the copy buffer of the current thread.
+	 *
+	 * @param size
+	 *          minimum size
+	 * @return the buffer
+	 */
+	static byte[] scratch(int size) {
+		byte[] b = SCRATCH.get();
+		if (b.length < size) {
+			b = new byte[size];
+			SCRATCH.set(b);
+		}
+
+		return b;
+	}
+
+	/**
+	 * Unsigned division.
+	 *
+	 * @param a
+	 *          dividend
+	 * @param b
+	 *          divisor, not zero
+	 * @return quotient
+	 */
+	protected static int divu(int a, int b) {
+		return (int) ((a & 0xffffffffL) / (b & 0xffffffffL));
+	}
+
+	/**
+	 * Unsigned remainder.
+	 *
+	 * @param a
+	 *          dividend
+	 * @param b
+	 *          divisor, not zero
+	 * @return remainder
+	 */
+	protected static int modu(int a, int b) {
+		return (int) ((a & 0xffffffffL) % (b & 0xffffffffL));
+	}
+
+	/**
+	 * Left shift that yields 0 for shift counts of 32 or more, like libpcap.
+	 *
+	 * @param a
+	 *          value
+	 * @param n
+	 *          unsigned shift count
+	 * @return shifted value
+	 */
+	protected static int lsh(int a, int n) {
+		return (n >= 0 && n < 32) ? a << n : 0;
+	}
+
+	/**
+	 * Logical right shift that yields 0 for shift counts of 32 or more, like
+	 * libpcap.
+	 *
+	 * @param a
+	 *          value
+	 * @param n
+	 *          unsigned shift count
+	 * @return shifted value
+	 */
+	protected static int rsh(int a, int n) {
+		return (n >= 0 && n < 32) ? a >>> n : 0;
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Evaluates a validated BPF program like <code>bpf_filter</code> of libpcap.
+ * Used for programs that can not be compiled and as reference for the
+ * compiled filters.
+ *
+ * @author Ruediger Gad
+ */
+final class BpfInterpreter
+    extends BpfFilter {
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.jnetpcap.BpfFilter#isCompiled()
+	 */
+	@Override
+	public boolean isCompiled() {
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.jnetpcap.BpfFilter#matches(java.nio.ByteBuffer, int, int, int)
+	 */
+	@Override
+	public boolean matches(ByteBuffer buf, int offset, int caplen, int wirelen) {
+		if (buf.hasArray()) {
+			return matches(buf.array(), buf.arrayOffset() + offset, caplen, wirelen);
+		}
+
+		final byte[] b = scratch(caplen);
+		final ByteBuffer src = buf.duplicate();
+		src.clear();
+		src.position(offset);
+		src.get(b, 0, caplen);
+
+		return matches(b, 0, caplen, wirelen);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.jnetpcap.BpfFilter#matches(byte[], int, int, int)
+	 */
+	@Override
+	public boolean matches(byte[] p, int offset, int caplen, int wirelen) {
+		final int[] mem = new int[MEMORY_WORDS];
+		int a = 0;
+		int x = 0;
+		int pc = 0;
+
+		while (true) {
+			final int c = code[pc];
+			final int kc = k[pc];
+			int src;
+
+			switch (c & 0x07) {
+			case LD:
+			case LDX:
+				final int v;
+				switch (c & 0xe0) {
+				case IMM:
+					v = kc;
+					break;
+				case LEN:
+					v = wirelen;
+					break;
+				case MEM:
+					v = mem[kc];
+					break;
+				case MSH:
+					if (inBounds(kc, 0, 1, caplen) == false) {
+						return false;
+					}
+					v = (p[offset + kc] & 0x0f) << 2;
+					break;
+				default: // ABS and IND
+					final int base = ((c & 0xe0) == IND) ? x : 0;
+					final int size = ((c & 0x18) == W) ? 4 : ((c & 0x18) == H) ? 2 : 1;
+					if (inBounds(kc, base, size, caplen) == false) {
+						return false;
+					}
+					final int i = offset + base + kc;
+					if (size == 4) {
+						v = ((p[i] & 0xff) << 24) | ((p[i + 1] & 0xff) << 16)
+								| ((p[i + 2] & 0xff) << 8) | (p[i + 3] & 0xff);
+					} else if (size == 2) {
+						v = ((p[i] & 0xff) << 8) | (p[i + 1] & 0xff);
+					} else {
+						v = p[i] & 0xff;
+					}
+				}
+
+				if ((c & 0x07) == LD) {
+					a = v;
+				} else {
+					x = v;
+				}
+				pc++;
+				break;
+
+			case ST:
+				mem[kc] = a;
+				pc++;
+				break;
+
+			case STX:
+				mem[kc] = x;
+				pc++;
+				break;
+
+			case ALU:
+				src = ((c & 0x08) == X) ? x : kc;
+				switch (c & 0xf0) {
+				case ADD:
+					a += src;
+					break;
+				case SUB:
+					a -= src;
+					break;
+				case MUL:
+					a *= src;
+					break;
+				case DIV:
+					if (src == 0) {
+						return false;
+					}
+					a = divu(a, src);
+					break;
+				case MOD:
+					if (src == 0) {
+						return false;
+					}
+					a = modu(a, src);
+					break;
+				case OR:
+					a |= src;
+					break;
+				case AND:
+					a &= src;
+					break;
+				case XOR:
+					a ^= src;
+					break;
+				case LSH:
+					a = lsh(a, src);
+					break;
+				case RSH:
+					a = rsh(a, src);
+					break;
+				default: // NEG
+					a = -a;
+				}
+				pc++;
+				break;
+
+			case JMP:
+				if ((c & 0xf0) == JA) {
+					pc += 1 + kc;
+					break;
+				}
+
+				src = ((c & 0x08) == X) ? x : kc;
+				final boolean taken;
+				switch (c & 0xf0) {
+				case JEQ:
+					taken = a == src;
+					break;
+				case JGT:
+					taken = (a ^ Integer.MIN_VALUE) > (src ^ Integer.MIN_VALUE);
+					break;
+				case JGE:
+					taken = (a ^ Integer.MIN_VALUE) >= (src ^ Integer.MIN_VALUE);
+					break;
+				default: // JSET
+					taken = (a & src) != 0;
+				}
+				pc += 1 + (taken ? jt[pc] : jf[pc]);
+				break;
+
+			case RET:
+				switch (c & 0x18) {
+				case A:
+					return a != 0;
+				case X:
+					return x != 0;
+				default:
+					return kc != 0;
+				}
+
+			default: // MISC
+				if ((c & 0xf8) == TAX) {
+					x = a;
+				} else {
+					a = x;
+				}
+				pc++;
+			}
+		}
+	}
+
+	/**
+	 * Checks if a load of size bytes at the unsigned index base + k is within
+	 * the capture length, without wrapping around.
+	 *
+	 * @param k
+	 *          the constant of the instruction
+	 * @param base
+	 *          the index register for indirect loads or 0
+	 * @param size
+	 *          number of bytes
+	 * @param caplen
+	 *          capture length
+	 * @return true if the load is within bounds
+	 */
+	private static boolean inBounds(int k, int base, int size, int caplen) {
+		return (k & 0xffffffffL) + (base & 0xffffffffL) + size <= caplen;
+	}
+}
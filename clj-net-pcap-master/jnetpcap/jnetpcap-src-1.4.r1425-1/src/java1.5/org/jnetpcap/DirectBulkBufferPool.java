@@ -0,0 +1,95 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+/**
+ * Configuration and statistics of the native buffer pool that is used by
+ * {@link Pcap#loop_direct(int, int, int, boolean, DirectBulkBufferPool, DirectBulkByteBufferHandler, Object)}.
+ * <p>
+ * The native buffers of the bulks are taken from a pool of at most
+ * <code>capacity</code> buffers. A buffer is returned to the pool via
+ * {@link DirectBulkByteBufferWrapper#freeNativeMemory()} once the consumer is
+ * done with the data. When all buffers are in use, the capture loop either
+ * drops packets, which are counted in {@link #getDropped()}, or, if
+ * <code>blocking</code> is set, waits until a buffer was returned.
+ * </p>
+ * <p>
+ * The statistics are updated by the capture loop once per bulk.
+ * </p>
+ * 
+ * @author Ruediger Gad
+ */
+public class DirectBulkBufferPool {
+
+	/** Maximum number of native buffers; 0 means unlimited. Read by native code. */
+	private final int capacity;
+
+	/** Wait for free buffers instead of dropping packets. Read by native code. */
+	private final boolean blocking;
+
+	/** Written by native code. */
+	private volatile int allocated;
+
+	/** Written by native code. */
+	private volatile long dropped;
+
+	/**
+	 * Creates a pool configuration.
+	 * 
+	 * @param capacity
+	 *          maximum number of native buffers; 0 means unlimited
+	 * @param blocking
+	 *          if true, the capture loop waits for free buffers instead of
+	 *          dropping packets when the pool is exhausted
+	 */
+	public DirectBulkBufferPool(int capacity, boolean blocking) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative: "
+					+ capacity);
+		}
+		this.capacity = capacity;
+		this.blocking = blocking;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isBlocking() {
+		return blocking;
+	}
+
+	/**
+	 * @return number of native buffers currently allocated, free or in use
+	 */
+	public int getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * @return number of packets dropped because no buffer was available
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectBulkBufferPool: capacity=" + capacity + ", blocking="
+				+ blocking + ", allocated=" + allocated + ", dropped=" + dropped;
+	}
+}
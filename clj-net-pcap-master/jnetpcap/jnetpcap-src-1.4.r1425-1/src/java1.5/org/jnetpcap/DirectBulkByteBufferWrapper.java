@@ -44,7 +44,11 @@ public class DirectBulkByteBufferWrapper {
         super.finalize();
     }
 
-    public void freeNativeMemory() {
+    /**
+     * Returns the native memory to the pool of the capture loop.
+     * The buffer must not be accessed anymore afterwards.
+     */
+    public synchronized void freeNativeMemory() {
         if (buffer != null && buffer.isDirect()) {
             free(buffer);
             buffer = null;
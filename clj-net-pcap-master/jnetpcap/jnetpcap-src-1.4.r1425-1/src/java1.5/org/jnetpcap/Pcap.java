@@ -2290,16 +2290,30 @@ public class Pcap {
 			PcapHeader header);
 
 
-	public int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, final DirectBulkByteBufferHandler handler, Object user) {
-        BulkByteBufferHandler hdlr = new BulkByteBufferHandler() {
+	public <T> int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, final DirectBulkByteBufferHandler<T> handler, T user) {
+        return loop_direct(cnt, bulkSize, snapLength, useIntTs, new DirectBulkBufferPool(0, false), handler, user);
+    }
+
+	/**
+	 * Start a pcap loop for bulk processing without intermediate buffer.
+	 * The native buffers are taken from a pool configured by <code>pool</code>.
+	 * Each buffer has to be returned to the pool via
+	 * {@link DirectBulkByteBufferWrapper#freeNativeMemory()} when the handler
+	 * is done with it.
+	 */
+	public <T> int loop_direct(int cnt, int bulkSize, int snapLength, boolean useIntTs, DirectBulkBufferPool pool, final DirectBulkByteBufferHandler<T> handler, T user) {
+        BulkByteBufferHandler<T> hdlr = new BulkByteBufferHandler<T>() {
             @Override
-            public void nextPacket(ByteBuffer buffer, Object userData) {
+            public void nextPacket(ByteBuffer buffer, T userData) {
                 handler.nextPacket(new DirectBulkByteBufferWrapper(buffer), userData);
             }
         };
-        return loop(cnt, bulkSize, snapLength, useIntTs, false, hdlr, user);
+        return loop(cnt, bulkSize, snapLength, useIntTs, pool, hdlr, user);
     }
 
+	@LibraryMember("pcap_loop")
+	private native <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, DirectBulkBufferPool pool, BulkByteBufferHandler<T> handler, T user);
+
 	public <T> int loop(int cnt, int bulkSize, int snapLength, boolean useIntTs, BulkByteBufferHandler<T> handler, T user) {
         return loop(cnt, bulkSize, snapLength, useIntTs, true, handler, user);
     }
@@ -72,16 +72,46 @@ public abstract class DisposableReference extends PhantomReference<Object>
 	/** The link collection. */
 	private LinkSequence<DisposableReference> linkCollection;
 
+	/** Set when the reference is tracked by DisposableGC. */
+	private final boolean tracked;
+
 	/**
-	 * Instantiates a new disposable reference.
+	 * Instantiates a new disposable reference that is tracked by
+	 * {@link DisposableGC}.
 	 * 
 	 * @param referant
 	 *            the referant
 	 */
 	public DisposableReference(Object referant) {
-		super(referant, gc.refQueue);
+		this(referant, true);
+	}
 
-		gc.addReference(this);
+	/**
+	 * Instantiates a new disposable reference.
+	 * 
+	 * @param referant
+	 *            the referant
+	 * @param tracked
+	 *            if true, DisposableGC disposes the reference after the referant
+	 *            was garbage collected; otherwise, the reference has to be
+	 *            disposed explicitly
+	 */
+	protected DisposableReference(Object referant, boolean tracked) {
+		super(referant, tracked ? gc.refQueue : null);
+		this.tracked = tracked;
+
+		if (tracked) {
+			gc.addReference(this);
+		}
+	}
+
+	/**
+	 * Checks if this reference is tracked by DisposableGC.
+	 * 
+	 * @return true if tracked, otherwise false
+	 */
+	public boolean isTracked() {
+		return tracked;
 	}
 
 	/*
@@ -212,7 +242,9 @@ public abstract class DisposableReference extends PhantomReference<Object>
 	 * Removes the.
 	 */
 	public void remove() {
-		linkCollection().remove(this);
+		if (linkCollection() != null) {
+			linkCollection().remove(this);
+		}
 		super.clear();
 	}
 
@@ -564,7 +564,16 @@ public abstract class JMemory {
 		this.owner = true;
 		this.keeper = this;
 
-		this.ref = createReference(this.physical, size);
+		/*
+		 * Memory allocated while a scope is open is owned and released by the
+		 * scope and is hence not tracked by DisposableGC.
+		 */
+		final MemoryScope scope = MemoryScope.current();
+		this.ref = createReference(this.physical, size, scope == null);
+
+		if (scope != null) {
+			scope.add(this);
+		}
 
 		return physical;
 	}
@@ -632,6 +641,18 @@ public abstract class JMemory {
 		this.size = 0;
 	}
 
+	/**
+	 * Releases the memory immediately. If this object is the owner of the
+	 * memory, the native memory is deallocated. Otherwise, this object is reset
+	 * to the un-peered state. This allows to release memory deterministically
+	 * instead of waiting for the garbage collector. After the release, neither
+	 * this object nor any other object peered with the released memory must be
+	 * used.
+	 */
+	public void release() {
+		cleanup();
+	}
+
 	/**
 	 * Creates a cleanup/dispose weak reference object. This reference object is
 	 * responsible for cleanup, after the actual JMemory object is garbage
@@ -653,7 +674,36 @@ public abstract class JMemory {
 	 * @return a reference that is tied to this JMemory object
 	 */
 	protected JMemoryReference createReference(final long address, long size) {
-		return new JMemoryReference(this, address, size);
+		return createReference(address, size, true);
+	}
+
+	/**
+	 * Creates a cleanup/dispose reference object, see
+	 * {@link #createReference(long, long)}. Subclasses that provide their own
+	 * cleanup code override this method.
+	 * 
+	 * @param address
+	 *          native memory address to use in the disposable
+	 * @param size
+	 *          the size
+	 * @param tracked
+	 *          if false, the reference is not tracked by DisposableGC and has to
+	 *          be disposed explicitly, e.g., by a {@link MemoryScope}
+	 * @return a reference that is tied to this JMemory object
+	 */
+	protected JMemoryReference createReference(final long address, long size,
+			boolean tracked) {
+		return new JMemoryReference(this, address, size, tracked);
+	}
+
+	/**
+	 * Gets the object that keeps the physical memory, this object is peered
+	 * with, alive.
+	 * 
+	 * @return the keeper or null if not peered
+	 */
+	final Object getKeeper() {
+		return keeper;
 	}
 
 	/**
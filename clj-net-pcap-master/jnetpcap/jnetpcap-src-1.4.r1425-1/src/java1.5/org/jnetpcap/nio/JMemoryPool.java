@@ -18,9 +18,15 @@
  */
 package org.jnetpcap.nio;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.sql.Time;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.jnetpcap.nio.JMemory.Type;
 
@@ -42,6 +48,24 @@ import org.jnetpcap.nio.JMemory.Type;
  * the memory management is done completely behind the scene, very efficiently
  * and automatically using java's garbage collection mechanism.
  * </p>
+ * <p>
+ * Each thread allocates from its own {@link Arena}, i.e., its own current
+ * block, so that threads that copy packets concurrently do not contend on a
+ * common lock. Allocations within a block only bump a pointer. When the block
+ * of an arena is exhausted, the thread allocates a new block for its arena and
+ * retires the old one. Requests larger than the block size get a dedicated
+ * block.
+ * </p>
+ * <p>
+ * Memory can optionally be given back explicitly via {@link #free(JMemory)}.
+ * A retired block whose memory was entirely given back is deallocated
+ * immediately instead of waiting for the garbage collector.
+ * </p>
+ * <p>
+ * While a {@link MemoryScope} is open in the calling thread, memory is
+ * allocated from the blocks of the scope instead and released when the scope
+ * is closed.
+ * </p>
  * 
  * @author Sly Technologies, Inc.
  */
@@ -55,11 +79,32 @@ public class JMemoryPool {
 	 */
 	public static class Block extends JMemory {
 
-		/** How many bytes are available for allocation in this current block. */
-		private int available = 0;
+		/** Updater for {@link #current}. */
+		private static final AtomicIntegerFieldUpdater<Block> CURRENT =
+				AtomicIntegerFieldUpdater.newUpdater(Block.class, "current");
+
+		/** Updater for {@link #live}. */
+		private static final AtomicIntegerFieldUpdater<Block> LIVE =
+				AtomicIntegerFieldUpdater.newUpdater(Block.class, "live");
+
+		/** Updater for {@link #released}. */
+		private static final AtomicIntegerFieldUpdater<Block> RELEASED =
+				AtomicIntegerFieldUpdater.newUpdater(Block.class, "released");
 
 		/** Position into the block where the next available byte resides. */
-		private int current = 0;
+		private volatile int current = 0;
+
+		/**
+		 * Number of allocated bytes that have not been given back via
+		 * {@link #free(int, int)}.
+		 */
+		private volatile int live = 0;
+
+		/** Set when no more allocations take place from this block. */
+		private volatile boolean retired = false;
+
+		/** Set to 1 when the native memory was released explicitly. */
+		private volatile int released = 0;
 
 		/** The created on. */
 		private final long createdOn;
@@ -72,7 +117,6 @@ public class JMemoryPool {
 		 */
 		Block(final int size) {
 			super(size);
-			this.available = size;
 			this.createdOn = System.currentTimeMillis();
 		}
 
@@ -89,36 +133,98 @@ public class JMemoryPool {
 
 		/**
 		 * Allocates requested size number of bytes from existing memory block.
+		 * This method does not block and can be called concurrently.
 		 * 
 		 * @param size
 		 *          number of bytes
-		 * @return offset into the buffer where the allocated memory begins
+		 * @return offset into the buffer where the allocated memory begins or -1
+		 *         if the block does not have enough memory available
 		 */
-		public synchronized int allocate(int size) {
-
-			/* Align to an even boundary */
-			size += (size % BUS_WIDTH);
-
-			if (size > this.available) {
-				return -1;
+		public int allocate(int size) {
+			final int aligned = align(size);
+
+			/*
+			 * The bytes are accounted as live before the memory is reserved, so that
+			 * a concurrent retire() can not release the block in between.
+			 */
+			LIVE.addAndGet(this, size);
+			while (true) {
+				final int allocated = this.current;
+				if (aligned > size() - allocated) {
+					free(allocated, size);
+					return -1;
+				}
+
+				if (CURRENT.compareAndSet(this, allocated, allocated + aligned)) {
+					return allocated;
+				}
 			}
-			final int allocated = this.current;
-			this.available -= size;
-			this.current += size;
+		}
 
-			return allocated;
+		/**
+		 * Gets the number of bytes that are still available for allocation.
+		 * 
+		 * @return available bytes
+		 */
+		public int available() {
+			return Math.max(0, size() - this.current);
 		}
 
 		/**
-		 * Frees the existing memory to be put back in the memory pool.
+		 * Frees the existing memory to be put back in the memory pool. The memory
+		 * is not reused for subsequent allocations. Instead, when the block is
+		 * retired and all of its memory has been freed, the native memory of the
+		 * entire block is deallocated.
 		 * 
 		 * @param offset
 		 *          the offset
 		 * @param length
-		 *          the length
+		 *          the length as requested via {@link #allocate(int)}
 		 */
 		public void free(final int offset, final int length) {
-			// Do nothing for now
+			if (LIVE.addAndGet(this, -length) == 0 && this.retired) {
+				release();
+			}
+		}
+
+		/**
+		 * Stops further allocations from this block. The block is released as
+		 * soon as all allocated memory has been freed.
+		 * 
+		 * @return number of bytes that were left unused
+		 */
+		int retire() {
+			this.retired = true;
+			final int unused = available();
+			CURRENT.set(this, Integer.MAX_VALUE / 2);
+
+			if (this.live == 0) {
+				release();
+			}
+
+			return unused;
+		}
+
+		/**
+		 * Checks if the native memory of this block was released explicitly.
+		 * 
+		 * @return true if released, otherwise false
+		 */
+		public boolean isReleased() {
+			return this.released != 0;
+		}
+
+		/**
+		 * Releases the native memory of the entire block, if this did not happen
+		 * yet.
+		 * 
+		 * @see org.jnetpcap.nio.JMemory#release()
+		 */
+		@Override
+		public void release() {
+			if (RELEASED.compareAndSet(this, 0, 1)) {
+				cleanup();
+			}
 		}
 
 		/**
@@ -134,7 +240,9 @@ public class JMemoryPool {
 			b.append('[');
 			b.append("capacity=").append(size());
 			b.append(',');
-			b.append("available=").append(this.current);
+			b.append("available=").append(available());
+			b.append(',');
+			b.append("live=").append(this.live);
 			b.append(',');
 			b.append("createdOn=").append(new Time(this.createdOn).toString());
 			b.append(']');
@@ -143,6 +251,144 @@ public class JMemoryPool {
 		}
 	}
 
+	/**
+	 * Per thread allocation state and statistics. The statistics are only
+	 * updated by the owning thread and can be read from any thread.
+	 * 
+	 * @author Ruediger Gad
+	 */
+	public static final class Arena {
+
+		/** Name of the owning thread. */
+		private final String threadName;
+
+		/** The owning thread. */
+		private final WeakReference<Thread> thread;
+
+		/** Current block from which allocations take place. */
+		private volatile Block block;
+
+		/** Offset of the last allocation. */
+		private int offset;
+
+		/** Number of allocations. */
+		private volatile long allocations = 0;
+
+		/** Number of allocated bytes. */
+		private volatile long allocatedBytes = 0;
+
+		/** Number of blocks used as current block. */
+		private volatile long blocks = 0;
+
+		/** Number of dedicated blocks for oversized requests. */
+		private volatile long oversizeBlocks = 0;
+
+		/** Bytes left unused in retired blocks. */
+		private volatile long unusedBytes = 0;
+
+		/**
+		 * Creates an arena for the calling thread.
+		 */
+		Arena() {
+			final Thread t = Thread.currentThread();
+			this.threadName = t.getName();
+			this.thread = new WeakReference<Thread>(t);
+		}
+
+		/**
+		 * Retires the current block.
+		 */
+		void retireBlock() {
+			final Block b = this.block;
+			this.block = null;
+			if (b != null) {
+				this.unusedBytes += b.retire();
+			}
+		}
+
+		/**
+		 * Gets the name of the owning thread.
+		 * 
+		 * @return the thread name
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * Checks if the owning thread is still alive.
+		 * 
+		 * @return true if alive, otherwise false
+		 */
+		public boolean isAlive() {
+			final Thread t = thread.get();
+			return t != null && t.isAlive();
+		}
+
+		/**
+		 * @return the number of allocations
+		 */
+		public long getAllocations() {
+			return allocations;
+		}
+
+		/**
+		 * @return the number of allocated bytes
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * @return the number of blocks that were used as current block
+		 */
+		public long getBlockCount() {
+			return blocks;
+		}
+
+		/**
+		 * @return the number of dedicated blocks for requests larger than the
+		 *         block size
+		 */
+		public long getOversizeBlockCount() {
+			return oversizeBlocks;
+		}
+
+		/**
+		 * @return the number of bytes that were left unused in retired blocks
+		 */
+		public long getUnusedBytes() {
+			return unusedBytes;
+		}
+
+		/**
+		 * To string.
+		 * 
+		 * @return the string
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder(120);
+			b.append("JMemoryPool::Arena");
+			b.append('[');
+			b.append("thread=").append(threadName);
+			b.append(',');
+			b.append("allocations=").append(allocations);
+			b.append(',');
+			b.append("allocatedBytes=").append(allocatedBytes);
+			b.append(',');
+			b.append("blocks=").append(blocks);
+			b.append(',');
+			b.append("oversizeBlocks=").append(oversizeBlocks);
+			b.append(',');
+			b.append("unusedBytes=").append(unusedBytes);
+			b.append(']');
+
+			return b.toString();
+		}
+	}
+
 	/**
 	 * The size of the native integer which is also the bus-size in bytes of the
 	 * hardware architecture. We use the BUS_WIDTH to align our allocated memory
@@ -187,10 +433,34 @@ public class JMemoryPool {
 	}
 
 	/**
-	 * Currently active block from which memory allocations take place if its big
-	 * enough to fullfil the requests.
+	 * Aligns the size to the BUS_WIDTH.
+	 * 
+	 * @param size
+	 *          size in bytes
+	 * @return aligned size
+	 */
+	static int align(final int size) {
+		return (size + BUS_WIDTH - 1) & ~(BUS_WIDTH - 1);
+	}
+
+	/**
+	 * Arenas of all threads that allocated from this pool.
 	 */
-	private Block block;
+	private final ConcurrentLinkedQueue<Arena> arenas =
+			new ConcurrentLinkedQueue<Arena>();
+
+	/**
+	 * Arena of the calling thread from which memory allocations take place.
+	 */
+	private final ThreadLocal<Arena> localArena = new ThreadLocal<Arena>() {
+
+		@Override
+		protected Arena initialValue() {
+			final Arena arena = new Arena();
+			arenas.add(arena);
+			return arena;
+		}
+	};
 
 	/**
 	 * Current default block size when creating new memory blocks. This is user
@@ -224,12 +494,11 @@ public class JMemoryPool {
 	 * @param memory
 	 *          memory pointer
 	 */
-	public synchronized void allocate(final int size, final JMemory memory) {
+	public void allocate(final int size, final JMemory memory) {
+		final Arena arena = localArena.get();
+		final Block block = allocate(arena, size);
 
-		final Block block = getBlock(size);
-		final int offset = block.allocate(size);
-
-		memory.peer(block, offset, size);
+		memory.peer(block, arena.offset, size);
 	}
 
 	/**
@@ -257,9 +526,10 @@ public class JMemoryPool {
 	 *          memory pointed to by src
 	 * @return number of bytes duplicated
 	 */
-	public synchronized int duplicate(JMemory src, JMemory dst) {
-		final Block block = getBlock(src.size);
-		final int offset = block.allocate(src.size);
+	public int duplicate(JMemory src, JMemory dst) {
+		final Arena arena = localArena.get();
+		final Block block = allocate(arena, src.size);
+		final int offset = arena.offset;
 
 		src.transferTo(block, 0, src.size, offset);
 		dst.peer(block, offset, src.size);
@@ -285,7 +555,7 @@ public class JMemoryPool {
 	 *          length of peer
 	 * @return total number of bytes duplicated
 	 */
-	public synchronized int duplicate2(JMemory src1,
+	public int duplicate2(JMemory src1,
 			JMemory src2,
 			JMemory dst1,
 			JMemory dst2) {
@@ -294,8 +564,9 @@ public class JMemoryPool {
 
 		final int size = src1.size + src2.size;
 
-		final Block block = getBlock(size);
-		final int offset = block.allocate(size);
+		final Arena arena = localArena.get();
+		final Block block = allocate(arena, size);
+		final int offset = arena.offset;
 
 		int o = src1.transferTo(block, 0, size1, offset);
 		src2.transferTo(block, 0, size2, offset + o);
@@ -324,7 +595,7 @@ public class JMemoryPool {
 	 *          length of peer
 	 * @return total number of bytes duplicated
 	 */
-	public synchronized int duplicate2(JMemory src1,
+	public int duplicate2(JMemory src1,
 			ByteBuffer src2,
 			JMemory dst1,
 			JMemory dst2) {
@@ -334,8 +605,9 @@ public class JMemoryPool {
 
 		final int size = size1 + size2;
 
-		final Block block = getBlock(size);
-		final int offset = block.allocate(size);
+		final Arena arena = localArena.get();
+		final Block block = allocate(arena, size);
+		final int offset = arena.offset;
 
 		int o = src1.transferTo(block, 0, size1, offset);
 		block.transferFrom(src2, offset + o);
@@ -357,12 +629,13 @@ public class JMemoryPool {
 	 *          memory pointed to by src
 	 * @return number of bytes duplicated
 	 */
-	public synchronized int duplicate(ByteBuffer src, JMemory dst) {
+	public int duplicate(ByteBuffer src, JMemory dst) {
 
 		final int size = src.limit() - src.position();
 
-		final Block block = getBlock(size);
-		final int offset = block.allocate(size);
+		final Arena arena = localArena.get();
+		final Block block = allocate(arena, size);
+		final int offset = arena.offset;
 
 		block.transferFrom(src, offset);
 
@@ -371,31 +644,145 @@ public class JMemoryPool {
 		return size;
 	}
 
+	/**
+	 * Gives memory that was allocated from this pool back. The memory object is
+	 * reset to an un-peered state. Any other objects that are peered with the
+	 * same memory, e.g., the state and data of a copied packet, must no longer be
+	 * used.
+	 * 
+	 * @param memory
+	 *          memory object that was peered via {@link #allocate(int, JMemory)}
+	 *          or one of the duplicate methods; when the memory was allocated
+	 *          with one of the duplicate2 methods, both destinations have to be
+	 *          freed
+	 */
+	public void free(final JMemory memory) {
+		final Object keeper = memory.getKeeper();
+		final int size = memory.size();
+
+		memory.cleanup();
+
+		if (keeper instanceof Block) {
+			((Block) keeper).free(0, size);
+		}
+	}
+
+	/**
+	 * Allocates size bytes from the block of the arena. The offset of the
+	 * allocation is stored in the arena. If the block of the arena is
+	 * exhausted, a new block is used.
+	 * 
+	 * @param arena
+	 *          arena of the calling thread
+	 * @param size
+	 *          number of bytes
+	 * @return block in which the memory was allocated
+	 */
+	private Block allocate(final Arena arena, final int size) {
+		final MemoryScope scope = MemoryScope.current();
+		Block block;
+		int offset;
+
+		if (scope != null) {
+			/*
+			 * The scope always succeeds and the block of the arena is not touched,
+			 * so no block of the scope ends up in the arena.
+			 */
+			block = scope.allocate(size);
+			offset = scope.offset();
+		} else {
+			block = arena.block;
+			offset = (block == null) ? -1 : block.allocate(size);
+
+			if (offset < 0) {
+				block = newBlock(align(size));
+				offset = block.allocate(size);
+
+				if (align(size) > this.blockSize) {
+					arena.oversizeBlocks++;
+					block.retire();
+				} else {
+					arena.retireBlock();
+					arena.block = block;
+					arena.blocks++;
+				}
+			}
+		}
+
+		arena.allocations++;
+		arena.allocatedBytes += size;
+		arena.offset = offset;
+
+		return block;
+	}
+
 	/**
 	 * Gets a block of memory that is big enough to hold at least size number of
 	 * bytes. The user must further request from the block
+	 * {@link Block#allocate(int)} the size of memory needed. The block will then
+	 * return an offset into the memory which has been reserved for this
+	 * allocation.
 	 * 
 	 * @param size
 	 *          minimum available amount of memory in a block
-	 * @return block big enough to hold size number of bytes
-	 *         {@link Block#allocate(int)} the size of memory needed. The block
-	 *         will then return an offset into the memory which has been reserved
-	 *         for this allocation. The pool of used blocks with potential of some
-	 *         available memory in them is maintained using a WeakReference. This
-	 *         allows the blocks to be GCed when no references to them exist, even
-	 *         if there is still a bit of available memory left in them.
+	 * @return the block of the arena of the calling thread or a dedicated block,
+	 *         if the size is larger than the block size; if a
+	 *         {@link MemoryScope} is open, the block of the scope
 	 * @see Block#allocate(int)
 	 */
 	public Block getBlock(int size) {
+		size = align(size);
+
+		final MemoryScope scope = MemoryScope.current();
+		if (scope != null) {
+			return scope.getBlock(size);
+		}
+
+		final Arena arena = localArena.get();
+		if (size > this.blockSize) {
+			arena.oversizeBlocks++;
+			return newBlock(size);
+		}
+
+		if (arena.block == null || arena.block.available() < size) {
+			arena.retireBlock();
+			arena.block = newBlock(size);
+			arena.blocks++;
+		}
 
-		/* Align to an even boundary */
-		size += (size % BUS_WIDTH);
+		return arena.block;
+	}
 
-		if (this.block == null || this.block.available < size) {
-			this.block = newBlock(size);
+	/**
+	 * Gets the arenas of the threads that allocated memory from this pool.
+	 * Arenas of threads that terminated are removed and their current blocks are
+	 * retired.
+	 * 
+	 * @return list of arenas
+	 */
+	public List<Arena> getArenas() {
+		final List<Arena> list = new ArrayList<Arena>();
+
+		for (Iterator<Arena> i = arenas.iterator(); i.hasNext();) {
+			final Arena arena = i.next();
+			if (arena.isAlive()) {
+				list.add(arena);
+			} else {
+				i.remove();
+				arena.retireBlock();
+			}
 		}
 
-		return this.block;
+		return list;
+	}
+
+	/**
+	 * Retires the blocks of all arenas. Subsequent allocations use new blocks.
+	 */
+	public void retireBlocks() {
+		for (Arena arena : arenas) {
+			arena.retireBlock();
+		}
 	}
 
 	/**
@@ -428,7 +815,7 @@ public class JMemoryPool {
 	 */
 	public static void shutdown() {
 		if (defaultPool != null) {
-			defaultPool.block = null;
+			defaultPool.retireBlocks();
 			defaultPool = null;
 		}
 	}
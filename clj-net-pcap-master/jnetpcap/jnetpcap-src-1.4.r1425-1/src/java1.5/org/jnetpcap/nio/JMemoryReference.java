@@ -48,7 +48,25 @@ public class JMemoryReference extends DisposableReference {
 	 *          the size
 	 */
 	public JMemoryReference(Object referant, long address, long size) {
-		super(referant);
+		this(referant, address, size, true);
+	}
+
+	/**
+	 * Instantiates a new j memory reference.
+	 * 
+	 * @param referant
+	 *          the referant
+	 * @param address
+	 *          the address
+	 * @param size
+	 *          the size
+	 * @param tracked
+	 *          if false, the reference is not tracked by DisposableGC, e.g.,
+	 *          because the memory is owned by a {@link MemoryScope}
+	 */
+	public JMemoryReference(Object referant, long address, long size,
+			boolean tracked) {
+		super(referant, tracked);
 		this.address = address;
 		this.size = size;
 	}
@@ -65,7 +83,9 @@ public class JMemoryReference extends DisposableReference {
 	 */
 	@Override
 	public void dispose() {
-		disposeNative(size);
+		if (address != 0L) {
+			disposeNative(size);
+		}
 	}
 
 	/**
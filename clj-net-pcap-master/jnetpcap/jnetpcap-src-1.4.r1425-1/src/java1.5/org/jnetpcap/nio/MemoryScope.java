@@ -0,0 +1,321 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.nio;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scope for explicit, deterministic release of native memory.
+ * <p>
+ * While a scope is open, all native memory that is allocated by the thread
+ * that opened the scope is owned by the scope. This includes JMemory based
+ * objects, e.g., JBuffer, JStruct, or JScanner instances, that allocate their
+ * own memory as well as copies of packets that would otherwise be allocated
+ * from the {@link JMemoryPool}. The latter are allocated from blocks that
+ * belong to the scope.
+ * </p>
+ * <p>
+ * Memory owned by a scope is not tracked by the {@link DisposableGC}, i.e., no
+ * phantom references are registered and the garbage collector is not involved
+ * in releasing the memory. Instead, all memory owned by the scope is released
+ * when the scope is closed. Memory can be released earlier via
+ * {@link JMemory#release()}.
+ * </p>
+ * <p>
+ * After the scope was closed, objects that were allocated in the scope or that
+ * are peered with such memory must not be used anymore. Memory that is needed
+ * beyond the scope has to be copied after the scope was closed or while a
+ * parent scope is current.
+ * </p>
+ * <p>
+ * Scopes can be nested. A scope must be closed by the thread that opened it
+ * and nested scopes must be closed in reverse order.
+ * </p>
+ *
+ * <pre>
+ * MemoryScope scope = MemoryScope.open();
+ * try {
+ * 	PcapPacket copy = new PcapPacket(packet);
+ * 	// ...
+ * } finally {
+ * 	scope.close();
+ * }
+ * </pre>
+ *
+ * @author Ruediger Gad
+ */
+public final class MemoryScope implements Closeable {
+
+	/** The current scope of each thread. */
+	private static final ThreadLocal<MemoryScope> current =
+			new ThreadLocal<MemoryScope>();
+
+	/**
+	 * Number of open scopes in all threads. Allows to skip the thread local
+	 * lookup when no scope is open.
+	 */
+	private static final AtomicInteger openScopes = new AtomicInteger();
+
+	/**
+	 * Gets the current scope of the calling thread.
+	 *
+	 * @return the current scope or null if no scope is open
+	 */
+	public static MemoryScope current() {
+		if (openScopes.get() == 0) {
+			return null;
+		}
+
+		return current.get();
+	}
+
+	/**
+	 * Opens a new scope with the default block size for the calling thread.
+	 *
+	 * @return the new scope
+	 */
+	public static MemoryScope open() {
+		return open(JMemoryPool.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Opens a new scope for the calling thread.
+	 *
+	 * @param blockSize
+	 *          size of the blocks from which packet copies are allocated
+	 * @return the new scope
+	 */
+	public static MemoryScope open(int blockSize) {
+		final MemoryScope scope = new MemoryScope(current.get(), blockSize);
+		current.set(scope);
+		openScopes.incrementAndGet();
+
+		return scope;
+	}
+
+	/**
+	 * Detaches the current scope from the calling thread, e.g., to allocate
+	 * long lived objects that must not be owned by the scope. The scope has to
+	 * be attached again via {@link #attach(MemoryScope)}.
+	 *
+	 * @return the detached scope or null if no scope was current
+	 */
+	public static MemoryScope detach() {
+		final MemoryScope scope = current();
+		if (scope != null) {
+			current.remove();
+		}
+
+		return scope;
+	}
+
+	/**
+	 * Attaches a scope that was detached via {@link #detach()} again.
+	 *
+	 * @param scope
+	 *          the scope as returned by detach; null is ignored
+	 */
+	public static void attach(MemoryScope scope) {
+		if (scope != null) {
+			current.set(scope);
+		}
+	}
+
+	/** The scope that was current when this scope was opened. */
+	private final MemoryScope parent;
+
+	/** The thread that opened this scope. */
+	private final Thread thread;
+
+	/** Size of the blocks from which packet copies are allocated. */
+	private final int blockSize;
+
+	/** Memory objects that own memory allocated in this scope. */
+	private final List<JMemory> owners = new ArrayList<JMemory>();
+
+	/** Current block for pool allocations. */
+	private JMemoryPool.Block block;
+
+	/** Offset of the last pool allocation. */
+	private int offset;
+
+	/** Number of bytes allocated in this scope. */
+	private long allocatedBytes = 0;
+
+	/** Set when the scope was closed. */
+	private boolean closed = false;
+
+	/**
+	 * Creates a scope.
+	 *
+	 * @param parent
+	 *          the parent scope or null
+	 * @param blockSize
+	 *          size of the blocks from which packet copies are allocated
+	 */
+	private MemoryScope(MemoryScope parent, int blockSize) {
+		this.parent = parent;
+		this.thread = Thread.currentThread();
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Adds an object that owns memory allocated in this scope.
+	 *
+	 * @param memory
+	 *          the memory owner
+	 */
+	void add(JMemory memory) {
+		owners.add(memory);
+		allocatedBytes += memory.size;
+	}
+
+	/**
+	 * Allocates size bytes from the blocks of this scope. The offset of the
+	 * allocation is available via {@link #offset()}.
+	 *
+	 * @param size
+	 *          number of bytes
+	 * @return the block in which the memory was allocated
+	 */
+	JMemoryPool.Block allocate(int size) {
+		int o = (block == null) ? -1 : block.allocate(size);
+
+		if (o < 0) {
+			/* Block.allocate reserves the aligned size. */
+			final int aligned = JMemoryPool.align(size);
+			block = new JMemoryPool.Block(Math.max(aligned, blockSize));
+			o = block.allocate(size);
+		}
+
+		offset = o;
+		return block;
+	}
+
+	/**
+	 * Gets the offset of the last allocation via {@link #allocate(int)}.
+	 *
+	 * @return the offset
+	 */
+	int offset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the current block, allocating a new one if the current block does not
+	 * have size bytes available.
+	 *
+	 * @param size
+	 *          number of bytes
+	 * @return the block
+	 */
+	JMemoryPool.Block getBlock(int size) {
+		final int aligned = JMemoryPool.align(size);
+		if (block == null || block.available() < aligned) {
+			block = new JMemoryPool.Block(Math.max(aligned, blockSize));
+		}
+
+		return block;
+	}
+
+	/**
+	 * Gets the number of memory objects owned by this scope.
+	 *
+	 * @return number of owners
+	 */
+	public int size() {
+		return owners.size();
+	}
+
+	/**
+	 * Gets the number of bytes of native memory that were allocated in this
+	 * scope.
+	 *
+	 * @return allocated bytes
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Checks if this scope was closed.
+	 *
+	 * @return true if closed, otherwise false
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Releases all memory owned by this scope and makes the parent scope the
+	 * current scope again. Closing a closed scope has no effect.
+	 *
+	 * @throws IllegalStateException
+	 *           if called by another thread than the one that opened the scope
+	 *           or if this scope is not the current scope
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		if (Thread.currentThread() != thread || current.get() != this) {
+			throw new IllegalStateException(
+					"Scope must be closed in reverse order by the opening thread.");
+		}
+
+		closed = true;
+		if (parent != null) {
+			current.set(parent);
+		} else {
+			current.remove();
+		}
+		openScopes.decrementAndGet();
+
+		for (int i = owners.size() - 1; i >= 0; i--) {
+			owners.get(i).cleanup();
+		}
+		owners.clear();
+		block = null;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder(80);
+		b.append("MemoryScope");
+		b.append('[');
+		b.append("thread=").append(thread.getName());
+		b.append(',');
+		b.append("owners=").append(owners.size());
+		b.append(',');
+		b.append("allocatedBytes=").append(allocatedBytes);
+		b.append(',');
+		b.append("closed=").append(closed);
+		b.append(']');
+
+		return b.toString();
+	}
+}
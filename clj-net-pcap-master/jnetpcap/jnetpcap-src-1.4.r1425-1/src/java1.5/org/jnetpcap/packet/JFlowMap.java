@@ -24,6 +24,11 @@ import java.util.Map;
 // TODO: Auto-generated Javadoc
 /**
  * The Class JFlowMap.
+ * <p>
+ * The map keeps a copy of every packet of every flow and grows without bound.
+ * For flow accounting on long running or high volume captures, use
+ * {@link JFlowTable} instead.
+ * </p>
  * 
  * @author Mark Bednarczyk
  * @author Sly Technologies, Inc.
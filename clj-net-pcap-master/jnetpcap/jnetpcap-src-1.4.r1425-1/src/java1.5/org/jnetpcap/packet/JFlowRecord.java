@@ -0,0 +1,182 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.packet;
+
+import java.util.Arrays;
+
+/**
+ * Accounting record of a single flow as kept by {@link JFlowTable}.
+ * <p>
+ * The flow is identified by the header map and the pairs of its
+ * {@link JFlowKey}. For reversable flows, both directions are accounted in
+ * the same record and the pairs are given in a canonical direction.
+ * Timestamps are the capture timestamps of the packets in nano seconds.
+ * </p>
+ * 
+ * @author Ruediger Gad
+ */
+public class JFlowRecord {
+
+	/**
+	 * The reason why a record was exported.
+	 */
+	public enum Reason {
+		/** The record is a snapshot of a flow that is still in the table. */
+		SNAPSHOT,
+		/** No packet was seen for the idle timeout. */
+		IDLE_TIMEOUT,
+		/** The flow was active for longer than the active timeout. */
+		ACTIVE_TIMEOUT,
+		/** The flow was evicted as least recently used flow to make room. */
+		EVICTED,
+		/** The table was flushed. */
+		FLUSH
+	}
+
+	private final long headerMap;
+
+	private final long[] pairs;
+
+	private final long packets;
+
+	private final long bytes;
+
+	private final long first;
+
+	private final long last;
+
+	private final Reason reason;
+
+	/**
+	 * Creates a flow record.
+	 * 
+	 * @param headerMap
+	 *          header map of the flow key
+	 * @param pairs
+	 *          pairs of the flow key
+	 * @param packets
+	 *          number of packets
+	 * @param bytes
+	 *          number of bytes on the wire
+	 * @param first
+	 *          timestamp of the first packet in nano seconds
+	 * @param last
+	 *          timestamp of the last packet in nano seconds
+	 * @param reason
+	 *          the reason for exporting the record
+	 */
+	public JFlowRecord(long headerMap, long[] pairs, long packets, long bytes,
+	    long first, long last, Reason reason) {
+		this.headerMap = headerMap;
+		this.pairs = pairs;
+		this.packets = packets;
+		this.bytes = bytes;
+		this.first = first;
+		this.last = last;
+		this.reason = reason;
+	}
+
+	/**
+	 * @return the header map of the flow key
+	 */
+	public long getHeaderMap() {
+		return headerMap;
+	}
+
+	/**
+	 * @return the number of pairs of the flow key
+	 */
+	public int getPairCount() {
+		return pairs.length;
+	}
+
+	/**
+	 * @param index
+	 *          index of the pair
+	 * @return the pair of the flow key at the given index
+	 */
+	public long getPair(int index) {
+		return pairs[index];
+	}
+
+	/**
+	 * @return the number of packets
+	 */
+	public long getPackets() {
+		return packets;
+	}
+
+	/**
+	 * @return the number of bytes on the wire
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the timestamp of the first packet in nano seconds
+	 */
+	public long getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return the timestamp of the last packet in nano seconds
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @return the reason why this record was exported
+	 */
+	public Reason getReason() {
+		return reason;
+	}
+
+	/**
+	 * Checks if the given record identifies the same flow.
+	 * 
+	 * @param other
+	 *          the other record
+	 * @return true if header map and pairs are equal
+	 */
+	public boolean sameFlow(JFlowRecord other) {
+		return headerMap == other.headerMap && Arrays.equals(pairs, other.pairs);
+	}
+
+	/**
+	 * To string.
+	 * 
+	 * @return the string
+	 */
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("[map=0x").append(Long.toHexString(headerMap));
+		for (int i = 0; i < pairs.length; i++) {
+			b.append(", pair").append(i).append("=0x").append(Long.toHexString(pairs[i]));
+		}
+		b.append(", packets=").append(packets);
+		b.append(", bytes=").append(bytes);
+		b.append(", first=").append(first);
+		b.append(", last=").append(last);
+		b.append(", reason=").append(reason);
+		b.append(']');
+
+		return b.toString();
+	}
+}
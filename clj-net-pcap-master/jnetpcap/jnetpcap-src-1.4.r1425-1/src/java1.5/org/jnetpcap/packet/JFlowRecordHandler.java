@@ -0,0 +1,35 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.packet;
+
+/**
+ * Receives the flow records that are exported by a {@link JFlowTable}.
+ * 
+ * @author Ruediger Gad
+ */
+public interface JFlowRecordHandler {
+
+	/**
+	 * Called for each exported flow record. The handler is called without
+	 * holding any locks of the flow table, but possibly concurrently from
+	 * multiple threads.
+	 * 
+	 * @param record
+	 *          the exported record; the record is not reused by the table
+	 */
+	public void nextFlow(JFlowRecord record);
+}
@@ -0,0 +1,673 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded flow table for flow accounting.
+ * <p>
+ * Unlike {@link JFlowMap}, packets are neither copied nor stored. Instead,
+ * per flow, only the key and the packet and byte counters as well as the
+ * timestamps of the first and last packet are kept. The entries are stored
+ * in off-heap memory with a fixed size per flow.
+ * </p>
+ * <p>
+ * The table is split into segments that are locked independently. Each
+ * segment uses open addressing with linear probing for looking up flows and
+ * keeps its flows in least recently used order. When a segment is full, the
+ * least recently used flow is evicted to make room for a new flow. Thus, the
+ * memory used by the table is bounded by the maximum number of flows, see
+ * {@link #BYTES_PER_FLOW}.
+ * </p>
+ * <p>
+ * Flows are exported as {@link JFlowRecord} to the {@link JFlowRecordHandler}
+ * when they are evicted, via {@link #expire(long)} when no packet was seen
+ * for the idle timeout or the flow is active for longer than the active
+ * timeout, and via {@link #flush()}. After an active timeout, the counters of
+ * the flow are reset while the flow stays in the table. Timeouts are
+ * evaluated based on the capture timestamps of the packets.
+ * </p>
+ * <p>
+ * The table can be used concurrently, e.g., as handler for multiple scanner
+ * threads.
+ * </p>
+ *
+ * @author Ruediger Gad
+ */
+public class JFlowTable implements PcapPacketHandler<Object> {
+
+	/** Maximum number of pairs of a flow key. */
+	public static final int MAX_PAIRS = 3;
+
+	private static final int OFF_HEADER_MAP = 0;
+
+	private static final int OFF_PAIRS = 8;
+
+	private static final int OFF_PACKETS = OFF_PAIRS + 8 * MAX_PAIRS;
+
+	private static final int OFF_BYTES = OFF_PACKETS + 8;
+
+	private static final int OFF_FIRST = OFF_BYTES + 8;
+
+	private static final int OFF_LAST = OFF_FIRST + 8;
+
+	private static final int OFF_HASH = OFF_LAST + 8;
+
+	private static final int OFF_PAIR_COUNT = OFF_HASH + 4;
+
+	/** Size of an entry in off-heap memory. */
+	public static final int ENTRY_SIZE = OFF_PAIR_COUNT + 4;
+
+	/**
+	 * Approximate number of bytes used per flow, including the lookup index and
+	 * the least recently used list.
+	 */
+	public static final int BYTES_PER_FLOW = ENTRY_SIZE + 4 * 4;
+
+	/** Default number of segments. */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	private final Segment[] segments;
+
+	private final int segmentMask;
+
+	private final long idleTimeout;
+
+	private final long activeTimeout;
+
+	private final JFlowRecordHandler handler;
+
+	private final AtomicLong packetCount = new AtomicLong();
+
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * Creates a flow table with the default concurrency level.
+	 *
+	 * @param maxFlows
+	 *          maximum number of flows in the table
+	 * @param idleTimeout
+	 *          idle timeout in nano seconds; 0 disables the idle timeout
+	 * @param activeTimeout
+	 *          active timeout in nano seconds; 0 disables the active timeout
+	 * @param handler
+	 *          handler for exported flow records; may be null
+	 */
+	public JFlowTable(int maxFlows, long idleTimeout, long activeTimeout,
+	    JFlowRecordHandler handler) {
+		this(maxFlows, DEFAULT_CONCURRENCY_LEVEL, idleTimeout, activeTimeout,
+		    handler);
+	}
+
+	/**
+	 * Creates a flow table.
+	 *
+	 * @param maxFlows
+	 *          maximum number of flows in the table
+	 * @param concurrencyLevel
+	 *          number of independently locked segments; rounded up to a power
+	 *          of two
+	 * @param idleTimeout
+	 *          idle timeout in nano seconds; 0 disables the idle timeout
+	 * @param activeTimeout
+	 *          active timeout in nano seconds; 0 disables the active timeout
+	 * @param handler
+	 *          handler for exported flow records; may be null
+	 * @throws IllegalArgumentException
+	 *           if the off-heap memory of a segment would exceed 2 GB
+	 */
+	public JFlowTable(int maxFlows, int concurrencyLevel, long idleTimeout,
+	    long activeTimeout, JFlowRecordHandler handler) {
+		if (maxFlows < 1 || concurrencyLevel < 1) {
+			throw new IllegalArgumentException(
+			    "maxFlows and concurrencyLevel must be positive.");
+		}
+
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxFlows) {
+			segmentCount <<= 1;
+		}
+
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		this.idleTimeout = idleTimeout;
+		this.activeTimeout = activeTimeout;
+		this.handler = handler;
+
+		int perSegment = (int) ((maxFlows + (long) segmentCount - 1) / segmentCount);
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+	/**
+	 * Computes the maximum number of flows for the given memory limit.
+	 *
+	 * @param bytes
+	 *          memory limit in bytes
+	 * @return the maximum number of flows
+	 */
+	public static int maxFlowsForMemory(long bytes) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, bytes / BYTES_PER_FLOW));
+	}
+
+	/**
+	 * Accounts the given packet. The packet is not retained.
+	 *
+	 * @param packet
+	 *          the packet
+	 * @param user
+	 *          ignored
+	 */
+	public void nextPacket(PcapPacket packet, Object user) {
+		update(packet.getState().getFlowKey(), packet.getCaptureHeader()
+		    .timestampInNanos(), packet.getCaptureHeader().wirelen());
+	}
+
+	/**
+	 * Accounts a packet of the flow with the given key.
+	 *
+	 * @param key
+	 *          the flow key
+	 * @param timestamp
+	 *          timestamp of the packet in nano seconds
+	 * @param length
+	 *          length of the packet on the wire
+	 */
+	public void update(JFlowKey key, long timestamp, int length) {
+		int pairCount = Math.min(key.getPairCount(), MAX_PAIRS);
+		long p0 = 0, p1 = 0, p2 = 0;
+		long r0 = 0, r1 = 0, r2 = 0;
+		boolean reversable = (key.getFlags() & JFlowKey.FLAG_REVERSABLE) != 0;
+
+		if (pairCount > 2) {
+			p2 = key.getPair(2, false);
+			r2 = reversable ? key.getPair(2, true) : p2;
+		}
+		if (pairCount > 1) {
+			p1 = key.getPair(1, false);
+			r1 = reversable ? key.getPair(1, true) : p1;
+		}
+		if (pairCount > 0) {
+			p0 = key.getPair(0, false);
+			r0 = reversable ? key.getPair(0, true) : p0;
+		}
+
+		if (reversable && compare(r0, r1, r2, p0, p1, p2) < 0) {
+			update(key.getHeaderMap(), pairCount, r0, r1, r2, timestamp, length);
+		} else {
+			update(key.getHeaderMap(), pairCount, p0, p1, p2, timestamp, length);
+		}
+	}
+
+	/**
+	 * Accounts a packet of the flow with the given header map and pairs. The
+	 * pairs are used as given, i.e., for reversable flows, the caller has to
+	 * use a canonical direction.
+	 *
+	 * @param headerMap
+	 *          header map of the flow key
+	 * @param pairs
+	 *          pairs of the flow key; at most {@link #MAX_PAIRS} are used
+	 * @param timestamp
+	 *          timestamp of the packet in nano seconds
+	 * @param length
+	 *          length of the packet on the wire
+	 */
+	public void update(long headerMap, long[] pairs, long timestamp, int length) {
+		int pairCount = Math.min(pairs.length, MAX_PAIRS);
+		update(headerMap, pairCount, (pairCount > 0) ? pairs[0] : 0,
+		    (pairCount > 1) ? pairs[1] : 0, (pairCount > 2) ? pairs[2] : 0,
+		    timestamp, length);
+	}
+
+	private void update(long headerMap, int pairCount, long p0, long p1,
+	    long p2, long timestamp, int length) {
+		int hash = hash(headerMap, p0, p1, p2);
+		Segment seg = segments[(hash >>> 16) & segmentMask];
+		JFlowRecord evicted = null;
+
+		seg.lock();
+		try {
+			int pos = seg.findSlot(hash, headerMap, pairCount, p0, p1, p2);
+			int id = seg.index[pos] - 1;
+
+			if (id >= 0) {
+				seg.account(id, timestamp, length);
+				seg.touch(id);
+			} else {
+				if (seg.count == seg.maxEntries) {
+					evicted = seg.toRecord(seg.head, JFlowRecord.Reason.EVICTED);
+					seg.remove(seg.head);
+					pos = seg.findSlot(hash, headerMap, pairCount, p0, p1, p2);
+				}
+				seg.insert(pos, hash, headerMap, pairCount, p0, p1, p2, timestamp,
+				    length);
+			}
+		} finally {
+			seg.unlock();
+		}
+
+		packetCount.incrementAndGet();
+		if (evicted != null) {
+			evictedCount.incrementAndGet();
+			export(evicted);
+		}
+	}
+
+	/**
+	 * Exports and removes the flows that reached the idle timeout and exports
+	 * the flows that reached the active timeout.
+	 * <p>
+	 * Idle flows are found via the least recently used order. When packets
+	 * with older timestamps arrive later, e.g., due to parallel processing,
+	 * such flows may be exported with a delay.
+	 * </p>
+	 *
+	 * @param now
+	 *          current time in nano seconds, typically the timestamp of the
+	 *          latest packet
+	 * @return number of exported flows
+	 */
+	public int expire(long now) {
+		List<JFlowRecord> expired = new ArrayList<JFlowRecord>();
+
+		for (Segment seg : segments) {
+			seg.lock();
+			try {
+				if (idleTimeout > 0) {
+					while (seg.head >= 0 && seg.last(seg.head) + idleTimeout <= now) {
+						if (seg.packets(seg.head) > 0) {
+							expired.add(seg.toRecord(seg.head,
+							    JFlowRecord.Reason.IDLE_TIMEOUT));
+						}
+						seg.remove(seg.head);
+					}
+				}
+
+				if (activeTimeout > 0) {
+					for (int id = seg.head; id >= 0; id = seg.next[id]) {
+						if (seg.packets(id) > 0 && seg.first(id) + activeTimeout <= now) {
+							expired.add(seg.toRecord(id, JFlowRecord.Reason.ACTIVE_TIMEOUT));
+							seg.reset(id);
+						}
+					}
+				}
+			} finally {
+				seg.unlock();
+			}
+		}
+
+		for (JFlowRecord r : expired) {
+			export(r);
+		}
+
+		return expired.size();
+	}
+
+	/**
+	 * Exports and removes all flows.
+	 *
+	 * @return number of exported flows
+	 */
+	public int flush() {
+		List<JFlowRecord> flushed = new ArrayList<JFlowRecord>();
+
+		for (Segment seg : segments) {
+			seg.lock();
+			try {
+				while (seg.head >= 0) {
+					if (seg.packets(seg.head) > 0) {
+						flushed.add(seg.toRecord(seg.head, JFlowRecord.Reason.FLUSH));
+					}
+					seg.remove(seg.head);
+				}
+			} finally {
+				seg.unlock();
+			}
+		}
+
+		for (JFlowRecord r : flushed) {
+			export(r);
+		}
+
+		return flushed.size();
+	}
+
+	/**
+	 * Returns a snapshot of all flows in the table without removing them.
+	 *
+	 * @return list of records with reason {@link JFlowRecord.Reason#SNAPSHOT}
+	 */
+	public List<JFlowRecord> snapshot() {
+		List<JFlowRecord> records = new ArrayList<JFlowRecord>();
+
+		for (Segment seg : segments) {
+			seg.lock();
+			try {
+				for (int id = seg.head; id >= 0; id = seg.next[id]) {
+					records.add(seg.toRecord(id, JFlowRecord.Reason.SNAPSHOT));
+				}
+			} finally {
+				seg.unlock();
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * @return the current number of flows in the table
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment seg : segments) {
+			seg.lock();
+			try {
+				size += seg.count;
+			} finally {
+				seg.unlock();
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of flows in the table
+	 */
+	public int getMaxFlows() {
+		return segments.length * segments[0].maxEntries;
+	}
+
+	/**
+	 * @return the total number of accounted packets
+	 */
+	public long getTotalPacketCount() {
+		return packetCount.get();
+	}
+
+	/**
+	 * @return the number of flows that were evicted to make room for new flows
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	private void export(JFlowRecord record) {
+		if (handler != null) {
+			handler.nextFlow(record);
+		}
+	}
+
+	private static int compare(long a0, long a1, long a2, long b0, long b1,
+	    long b2) {
+		if (a0 != b0) {
+			return (a0 < b0) ? -1 : 1;
+		}
+		if (a1 != b1) {
+			return (a1 < b1) ? -1 : 1;
+		}
+		if (a2 != b2) {
+			return (a2 < b2) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int hash(long headerMap, long p0, long p1, long p2) {
+		long h = mix(headerMap);
+		h = mix(h ^ p0);
+		h = mix(h ^ p1);
+		h = mix(h ^ p2);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * A part of the table with its own lock.
+	 */
+	private static final class Segment extends ReentrantLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+
+		private final ByteBuffer entries;
+
+		/** Open addressing index; entry id + 1 or 0 for empty slots. */
+		private final int[] index;
+
+		private final int indexMask;
+
+		/** Least recently used list; the next pointers also form the free list. */
+		private final int[] prev;
+
+		private final int[] next;
+
+		private int head = -1;
+
+		private int tail = -1;
+
+		private int free = 0;
+
+		private int count = 0;
+
+		Segment(int maxEntries) {
+			if ((long) maxEntries * ENTRY_SIZE > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many flows per segment: "
+				    + maxEntries + "; use a higher concurrency level.");
+			}
+			this.maxEntries = maxEntries;
+			this.entries = ByteBuffer.allocateDirect(maxEntries * ENTRY_SIZE).order(
+			    ByteOrder.nativeOrder());
+
+			int indexSize = 2;
+			while (indexSize < maxEntries * 2) {
+				indexSize <<= 1;
+			}
+			this.index = new int[indexSize];
+			this.indexMask = indexSize - 1;
+
+			this.prev = new int[maxEntries];
+			this.next = new int[maxEntries];
+			for (int i = 0; i < maxEntries; i++) {
+				next[i] = (i + 1 < maxEntries) ? i + 1 : -1;
+			}
+		}
+
+		/**
+		 * Returns the index position of the flow or of the empty slot where the
+		 * flow has to be inserted.
+		 */
+		int findSlot(int hash, long headerMap, int pairCount, long p0, long p1,
+		    long p2) {
+			int pos = hash & indexMask;
+			while (true) {
+				int id = index[pos] - 1;
+				if (id < 0) {
+					return pos;
+				}
+
+				int off = id * ENTRY_SIZE;
+				if (entries.getInt(off + OFF_HASH) == hash
+				    && entries.getLong(off + OFF_HEADER_MAP) == headerMap
+				    && entries.getInt(off + OFF_PAIR_COUNT) == pairCount
+				    && entries.getLong(off + OFF_PAIRS) == p0
+				    && entries.getLong(off + OFF_PAIRS + 8) == p1
+				    && entries.getLong(off + OFF_PAIRS + 16) == p2) {
+					return pos;
+				}
+
+				pos = (pos + 1) & indexMask;
+			}
+		}
+
+		void insert(int pos, int hash, long headerMap, int pairCount, long p0,
+		    long p1, long p2, long timestamp, int length) {
+			int id = free;
+			free = next[id];
+
+			int off = id * ENTRY_SIZE;
+			entries.putLong(off + OFF_HEADER_MAP, headerMap);
+			entries.putLong(off + OFF_PAIRS, p0);
+			entries.putLong(off + OFF_PAIRS + 8, p1);
+			entries.putLong(off + OFF_PAIRS + 16, p2);
+			entries.putLong(off + OFF_PACKETS, 1);
+			entries.putLong(off + OFF_BYTES, length);
+			entries.putLong(off + OFF_FIRST, timestamp);
+			entries.putLong(off + OFF_LAST, timestamp);
+			entries.putInt(off + OFF_HASH, hash);
+			entries.putInt(off + OFF_PAIR_COUNT, pairCount);
+
+			index[pos] = id + 1;
+			append(id);
+			count++;
+		}
+
+		void account(int id, long timestamp, int length) {
+			int off = id * ENTRY_SIZE;
+			entries.putLong(off + OFF_PACKETS, entries.getLong(off + OFF_PACKETS) + 1);
+			entries.putLong(off + OFF_BYTES, entries.getLong(off + OFF_BYTES) + length);
+			if (timestamp < entries.getLong(off + OFF_FIRST)) {
+				entries.putLong(off + OFF_FIRST, timestamp);
+			}
+			if (timestamp > entries.getLong(off + OFF_LAST)) {
+				entries.putLong(off + OFF_LAST, timestamp);
+			}
+		}
+
+		/**
+		 * Resets the counters after an active timeout. The first timestamp is set
+		 * with the next accounted packet.
+		 */
+		void reset(int id) {
+			int off = id * ENTRY_SIZE;
+			entries.putLong(off + OFF_PACKETS, 0);
+			entries.putLong(off + OFF_BYTES, 0);
+			entries.putLong(off + OFF_FIRST, Long.MAX_VALUE);
+		}
+
+		long packets(int id) {
+			return entries.getLong(id * ENTRY_SIZE + OFF_PACKETS);
+		}
+
+		long first(int id) {
+			return entries.getLong(id * ENTRY_SIZE + OFF_FIRST);
+		}
+
+		long last(int id) {
+			return entries.getLong(id * ENTRY_SIZE + OFF_LAST);
+		}
+
+		JFlowRecord toRecord(int id, JFlowRecord.Reason reason) {
+			int off = id * ENTRY_SIZE;
+			long[] pairs = new long[entries.getInt(off + OFF_PAIR_COUNT)];
+			for (int i = 0; i < pairs.length; i++) {
+				pairs[i] = entries.getLong(off + OFF_PAIRS + 8 * i);
+			}
+
+			return new JFlowRecord(entries.getLong(off + OFF_HEADER_MAP), pairs,
+			    entries.getLong(off + OFF_PACKETS), entries.getLong(off + OFF_BYTES),
+			    entries.getLong(off + OFF_FIRST), entries.getLong(off + OFF_LAST),
+			    reason);
+		}
+
+		/**
+		 * Removes the flow from the index and the least recently used list and
+		 * returns its entry to the free list.
+		 */
+		void remove(int id) {
+			int pos = entries.getInt(id * ENTRY_SIZE + OFF_HASH) & indexMask;
+			while (index[pos] != id + 1) {
+				pos = (pos + 1) & indexMask;
+			}
+
+			/*
+			 * Backward shift deletion keeps the probe sequences intact without
+			 * tombstones.
+			 */
+			int i = pos;
+			int j = pos;
+			index[i] = 0;
+			while (true) {
+				j = (j + 1) & indexMask;
+				if (index[j] == 0) {
+					break;
+				}
+
+				int k = entries.getInt((index[j] - 1) * ENTRY_SIZE + OFF_HASH)
+				    & indexMask;
+				boolean inRange = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+				if (!inRange) {
+					index[i] = index[j];
+					index[j] = 0;
+					i = j;
+				}
+			}
+
+			unlink(id);
+			next[id] = free;
+			free = id;
+			count--;
+		}
+
+		void touch(int id) {
+			if (id != tail) {
+				unlink(id);
+				append(id);
+			}
+		}
+
+		private void append(int id) {
+			prev[id] = tail;
+			next[id] = -1;
+			if (tail >= 0) {
+				next[tail] = id;
+			} else {
+				head = id;
+			}
+			tail = id;
+		}
+
+		private void unlink(int id) {
+			if (prev[id] >= 0) {
+				next[prev[id]] = next[id];
+			} else {
+				head = next[id];
+			}
+			if (next[id] >= 0) {
+				prev[next[id]] = prev[id];
+			} else {
+				tail = prev[id];
+			}
+		}
+	}
+}
@@ -31,7 +31,6 @@ import org.jnetpcap.packet.format.FormatUtils;
 import org.jnetpcap.packet.format.JFormatter;
 import org.jnetpcap.packet.format.TextFormatter;
 import org.jnetpcap.protocol.JProtocol;
-import org.jnetpcap.util.JThreadLocal;
 
 /**
  * A native packet buffer object. This class references both packet data buffer
@@ -608,9 +607,6 @@ public abstract class JPacket extends JBuffer implements JHeaderAccessor,
 	 */
 	public final static int DEFAULT_STATE_HEADER_COUNT = 20;
 
-	/** Default scanner used to scan a packet per user request. */
-	protected static JThreadLocal<JScanner> defaultScanner;
-
 	/** The header pool. */
 	private static JHeaderPool headerPool = new JHeaderPool();
 
@@ -642,19 +638,14 @@ public abstract class JPacket extends JBuffer implements JHeaderAccessor,
 	}
 
 	/**
-	 * Returns the default scanner for all packets
+	 * Returns the default scanner for all packets. This is the thread local
+	 * scanner of the calling thread.
 	 * 
 	 * @return the current default scanner
+	 * @see JScanner#getThreadLocal()
 	 */
 	public static JScanner getDefaultScanner() {
-		if (defaultScanner == null) {
-			synchronized (JScanner.class) {
-				if (defaultScanner == null) {
-					defaultScanner = new JThreadLocal<JScanner>(JScanner.class);
-				}
-			}
-		}
-		return defaultScanner.get();
+		return JScanner.getThreadLocal();
 	}
 
 	/**
@@ -713,7 +704,6 @@ public abstract class JPacket extends JBuffer implements JHeaderAccessor,
 	 * Shutdown.
 	 */
 	public static void shutdown() {
-		defaultScanner = null;
 		pool = null;
 	}
 
@@ -806,6 +796,22 @@ public abstract class JPacket extends JBuffer implements JHeaderAccessor,
 		};
 	}
 
+	/**
+	 * Releases the packet state and data immediately. If the packet was copied
+	 * into its internal memory buffer, the buffer is given back to the memory
+	 * pool or deallocated. After the release, the packet is un-peered and must
+	 * be peered or copied into again before it can be used.
+	 * 
+	 * @see JMemoryPool#free(JMemory)
+	 * @see org.jnetpcap.nio.MemoryScope
+	 */
+	@Override
+	public void release() {
+		state.release();
+		super.release();
+		pool.free(memory);
+	}
+
 	/**
 	 * Gets the size of the current internal memory buffer.
 	 * 
@@ -1116,7 +1122,7 @@ public abstract class JPacket extends JBuffer implements JHeaderAccessor,
 	 */
 	@Deprecated
 	public JScanner getScanner() {
-		return defaultScanner.get();
+		return getDefaultScanner();
 	}
 
 	/**
@@ -25,6 +25,7 @@ import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jnetpcap.PcapDLT;
 import org.jnetpcap.packet.structure.AnnotatedBinding;
@@ -161,6 +162,13 @@ public final class JRegistry {
 	/** The Constant headerFlags. */
 	private final static int headerFlags[] = new int[A_MAX_ID_COUNT];
 
+	/**
+	 * Modification counter which is incremented every time the flags, scanners
+	 * or bindings change. Scanners compare it against the value they last
+	 * loaded to detect that they need to reload.
+	 */
+	private final static AtomicInteger modCount = new AtomicInteger();
+
 	/** The Constant IDS_TO_DLTS. */
 	private final static int[] IDS_TO_DLTS;
 
@@ -323,6 +331,8 @@ public final class JRegistry {
 			scanners[b.getTargetId()].addBindings(b);
 		}
 
+		modified();
+
 	}
 
 	/**
@@ -366,6 +376,7 @@ public final class JRegistry {
 	 */
 	public static void clearFlags(int id, int flags) {
 		headerFlags[id] &= ~flags;
+		modified();
 	}
 
 	/**
@@ -381,6 +392,8 @@ public final class JRegistry {
 
 			scanners[id].setScannerMethod(null);
 		}
+
+		modified();
 	}
 
 	/**
@@ -394,6 +407,8 @@ public final class JRegistry {
 		for (int id : ids) {
 			scanners[id].setScannerMethod(null);
 		}
+
+		modified();
 	}
 
 	/**
@@ -457,6 +472,16 @@ public final class JRegistry {
 		return errors.toArray(new HeaderDefinitionError[errors.size()]);
 	}
 
+	/**
+	 * Gets the current modification count of the registry. The count is
+	 * incremented every time the flags, header scanners or bindings are changed.
+	 * 
+	 * @return the modification count
+	 */
+	static int getModCount() {
+		return modCount.get();
+	}
+
 	/**
 	 * Gets the current flags for a specified protocol.
 	 * 
@@ -488,6 +513,7 @@ public final class JRegistry {
 	 */
 	public static void setAllFlags(int[] flags) {
 		System.arraycopy(flags, 0, headerFlags, 0, flags.length);
+		modified();
 	}
 
 	/**
@@ -798,6 +824,14 @@ public final class JRegistry {
 		return PcapDLT.valueOf(IDS_TO_DLTS[id]);
 	}
 
+	/**
+	 * Records a change of flags, header scanners or bindings. Scanners will
+	 * reload their tables before they scan the next packet.
+	 */
+	private static void modified() {
+		modCount.incrementAndGet();
+	}
+
 	/**
 	 * Register.
 	 * 
@@ -850,6 +884,7 @@ public final class JRegistry {
 		e.annotatedHeader = annotatedHeader;
 
 		scanners[id] = new JHeaderScanner(c);
+		modified();
 
 		registerAnnotatedSubHeaders(annotatedHeader.getHeaders());
 
@@ -970,6 +1005,7 @@ public final class JRegistry {
 	 */
 	public static void resetBindings(int id) {
 		scanners[id].clearBindings();
+		modified();
 	}
 
 	/**
@@ -982,6 +1018,7 @@ public final class JRegistry {
 	 */
 	public static void setFlags(int id, int flags) {
 		headerFlags[id] |= flags;
+		modified();
 	}
 
 	/**
@@ -996,6 +1033,8 @@ public final class JRegistry {
 
 			scanner.setScannerMethod(m);
 		}
+
+		modified();
 	}
 
 	/**
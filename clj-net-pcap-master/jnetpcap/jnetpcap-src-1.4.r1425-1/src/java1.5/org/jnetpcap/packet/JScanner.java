@@ -20,6 +20,7 @@ package org.jnetpcap.packet;
 
 import org.jnetpcap.nio.JMemoryReference;
 import org.jnetpcap.nio.JStruct;
+import org.jnetpcap.nio.MemoryScope;
 
 // TODO: Auto-generated Javadoc
 /**
@@ -112,6 +113,9 @@ public class JScanner extends JStruct {
 	/** The count. */
 	private static int count = 0;
 
+	/** The JRegistry modification count at the time of the last reload. */
+	private int loadedModCount;
+
 	/** Default allocation for memory block/buffer. */
 	public static final int DEFAULT_BLOCKSIZE = 100 * 1024; // 100K
 
@@ -126,7 +130,15 @@ public class JScanner extends JStruct {
 				 */
 				@Override
 				protected JScanner initialValue() {
-					return new JScanner();
+					/*
+					 * The thread local scanner outlives any memory scope.
+					 */
+					final MemoryScope scope = MemoryScope.detach();
+					try {
+						return new JScanner();
+					} finally {
+						MemoryScope.attach(scope);
+					}
 				}
 
 			};
@@ -163,23 +175,40 @@ public class JScanner extends JStruct {
 		} else {
 			JRegistry.clearFlags(id, JRegistry.FLAG_OVERRIDE_BINDING);
 		}
-
-		JPacket.getDefaultScanner().reloadAll();
 	}
 
 	/**
-	 * Maintains and allocates a pool of packet scanners.
+	 * Maintains and allocates a pool of packet scanners. Each thread gets its
+	 * own scanner instance with its own native scanner_t structure. Therefore,
+	 * multiple threads can scan packets concurrently without synchronization.
+	 * <p>
+	 * Changes to the flags, bindings and header scanners in JRegistry are
+	 * propagated to all scanners. Each scanner reloads its tables the next time
+	 * it is used by its own thread. The scanner of a thread is released when the
+	 * thread terminates, see {@link #releaseThreadLocal()} for releasing it
+	 * earlier.
+	 * </p>
 	 * 
 	 * @return a thread local global scanner
 	 */
 	public static JScanner getThreadLocal() {
-		// JScanner s = localScanners.get();
-		// s.reloadAll();
+		JScanner s = localScanners.get();
+		s.reloadIfModified();
 
-		JScanner s = JPacket.getDefaultScanner();
 		return s;
 	}
 
+	/**
+	 * Releases the scanner of the calling thread. The scanner is freed once it
+	 * is no longer referenced, e.g., by packets it has scanned. A new scanner is
+	 * allocated when the thread calls {@link #getThreadLocal()} again. This is
+	 * intended for long lived threads, e.g., pooled worker threads, that stop
+	 * scanning packets.
+	 */
+	public static void releaseThreadLocal() {
+		localScanners.remove();
+	}
+
 	/**
 	 * Shutdown.
 	 */
@@ -203,8 +232,6 @@ public class JScanner extends JStruct {
 		} else {
 			JRegistry.clearFlags(id, JRegistry.FLAG_HEURISTIC_BINDING);
 		}
-
-		JPacket.getDefaultScanner().reloadAll();
 	}
 
 	/**
@@ -223,8 +250,6 @@ public class JScanner extends JStruct {
 			JRegistry.clearFlags(id, JRegistry.FLAG_HEURISTIC_BINDING);
 			JRegistry.clearFlags(id, JRegistry.FLAG_HEURISTIC_PRE_BINDING);
 		}
-
-		JPacket.getDefaultScanner().reloadAll();
 	}
 
 	/**
@@ -243,8 +268,6 @@ public class JScanner extends JStruct {
 			JRegistry.clearFlags(id, JRegistry.FLAG_HEURISTIC_BINDING);
 			JRegistry.clearFlags(id, JRegistry.FLAG_HEURISTIC_PRE_BINDING);
 		}
-
-		JPacket.getDefaultScanner().reloadAll();
 	}
 
 	/**
@@ -357,6 +380,12 @@ public class JScanner extends JStruct {
 	 * scanner structures.
 	 */
 	public void reloadAll() {
+		/*
+		 * Read the count before loading, so a change during the reload results
+		 * in another reload.
+		 */
+		loadedModCount = JRegistry.getModCount();
+
 		JHeaderScanner[] scanners = JRegistry.getHeaderScanners();
 
 		for (int i = 0; i < scanners.length; i++) {
@@ -379,6 +408,17 @@ public class JScanner extends JStruct {
 		loadFlags(flags);
 	}
 
+	/**
+	 * Reloads the scanner and bindings table if JRegistry has been modified since
+	 * the last reload. Like scanning, this must only be called by the thread
+	 * currently using this scanner.
+	 */
+	public void reloadIfModified() {
+		if (loadedModCount != JRegistry.getModCount()) {
+			reloadAll();
+		}
+	}
+
 	/**
 	 * Performs a scan on a packet that has been peered with a packet data buffer.
 	 * The state structure o the packet is filled in and peered at the time of the
@@ -412,6 +452,8 @@ public class JScanner extends JStruct {
 	public int scan(JPacket packet, int id, int wirelen) {
 		final JPacket.State state = packet.getState();
 
+		reloadIfModified();
+
 		return scan(packet, state, id, wirelen);
 	}
 
@@ -455,11 +497,14 @@ public class JScanner extends JStruct {
 	 *          the address
 	 * @param size
 	 *          the size
+	 * @param tracked
+	 *          if false, the reference is not tracked by DisposableGC
 	 * @return the j memory reference
-	 * @see org.jnetpcap.nio.JMemory#createReference(long, long)
+	 * @see org.jnetpcap.nio.JMemory#createReference(long, long, boolean)
 	 */
 	@Override
-	protected JMemoryReference createReference(long address, long size) {
-		return new JScannerReference(this, address, size);
+	protected JMemoryReference createReference(long address, long size,
+			boolean tracked) {
+		return new JScannerReference(this, address, size, tracked);
 	}
 }
@@ -42,6 +42,23 @@ public class JScannerReference extends JMemoryReference {
 		super(referant, address, size);
 	}
 
+	/**
+	 * Instantiates a new j scanner reference.
+	 * 
+	 * @param referant
+	 *          the referant
+	 * @param address
+	 *          the address
+	 * @param size
+	 *          the size
+	 * @param tracked
+	 *          if false, the reference is not tracked by DisposableGC
+	 */
+	public JScannerReference(Object referant, long address, long size,
+			boolean tracked) {
+		super(referant, address, size, tracked);
+	}
+
 	/**
 	 * Clean up the scanner_t structure and release any held resources. For one
 	 * all the JHeaderScanners that are kept as global references need to be
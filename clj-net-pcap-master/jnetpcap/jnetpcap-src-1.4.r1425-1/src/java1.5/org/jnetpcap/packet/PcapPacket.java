@@ -572,6 +572,17 @@ public class PcapPacket extends JPacket {
 		return header;
 	}
 
+	/**
+	 * Releases the capture header, packet state and data immediately.
+	 * 
+	 * @see JPacket#release()
+	 */
+	@Override
+	public void release() {
+		header.release();
+		super.release();
+	}
+
 	/**
 	 * Gets the total size of the packet including pcap header, decoded state and
 	 * data buffer.
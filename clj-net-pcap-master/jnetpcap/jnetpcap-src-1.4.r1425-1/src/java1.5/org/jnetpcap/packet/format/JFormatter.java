@@ -791,7 +791,10 @@ public abstract class JFormatter {
 				true) : FormatUtils.asString(address, '.', 10).toUpperCase();
 		String name = ipResolver.resolve(address);
 
-		if (name == null) {
+		if (name == null && ipResolver.isCached(address) == false) {
+			return f; // Asynchronous lookup still pending
+
+		} else if (name == null) {
 			return f + " (resolve failed)";
 
 		} else {
@@ -18,7 +18,6 @@
  */
 package org.jnetpcap.packet.structure;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -345,15 +344,7 @@ public class AnnotatedBindMethod
 	    final int offset,
 	    final JHeader header) {
 
-		try {
-			return (Boolean) method.invoke(object, packet, header);
-		} catch (final IllegalArgumentException e) {
-			throw new IllegalStateException(e);
-		} catch (final IllegalAccessException e) {
-			throw new IllegalStateException(e);
-		} catch (final InvocationTargetException e) {
-			throw new AnnotatedMethodException(declaringClass, e);
-		}
+		return accessor.booleanValue(object, packet, header);
 	}
 
 	/**
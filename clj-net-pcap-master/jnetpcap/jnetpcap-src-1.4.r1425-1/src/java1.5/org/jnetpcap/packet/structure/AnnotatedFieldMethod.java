@@ -18,7 +18,6 @@
  */
 package org.jnetpcap.packet.structure;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.List;
@@ -142,20 +141,7 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 				return this.value;
 			}
 
-			try {
-				if (isMapped) {
-					return (Boolean) method.invoke(header, name);
-				} else {
-					return (Boolean) method.invoke(header);
-				}
-
-			} catch (IllegalArgumentException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			} catch (InvocationTargetException e) {
-				throw new AnnotatedMethodException(declaringClass, e);
-			}
+			return accessor.booleanValue(header, name, null);
 		}
 
 		/**
@@ -283,20 +269,7 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 				return this.value;
 			}
 
-			try {
-				if (isMapped) {
-					return (Integer) method.invoke(header, name);
-				} else {
-					return (Integer) method.invoke(header);
-				}
-
-			} catch (IllegalArgumentException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			} catch (InvocationTargetException e) {
-				throw new AnnotatedMethodException(declaringClass, e);
-			}
+			return accessor.intValue(header, name, null);
 		}
 
 		/*
@@ -441,20 +414,7 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 				return this.value;
 			}
 
-			try {
-				if (isMapped) {
-					return (Long) method.invoke(header, name);
-				} else {
-					return (Long) method.invoke(header);
-				}
-
-			} catch (IllegalArgumentException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			} catch (InvocationTargetException e) {
-				throw new AnnotatedMethodException(declaringClass, e);
-			}
+			return accessor.longValue(header, name, null);
 		}
 
 		/*
@@ -497,6 +457,9 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 	 */
 	private static class ObjectFunction extends AnnotatedFieldMethod {
 
+		/** The method returns an integral or boolean primitive. */
+		private final boolean isIntegral = isIntegral(method.getReturnType());
+
 		/**
 		 * Instantiates a new object function.
 		 * 
@@ -566,21 +529,28 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 		 * @return the object
 		 */
 		public Object execute(JHeader header, String name) {
+			return accessor.objectValue(header, name, null);
+		}
 
-			try {
-				if (isMapped) {
-					return method.invoke(header, name);
-				} else {
-					return method.invoke(header);
-				}
-
-			} catch (IllegalArgumentException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			} catch (InvocationTargetException e) {
-				throw new AnnotatedMethodException(declaringClass, e.getMessage(), e);
+		/**
+		 * Long value method. Integral and boolean values are returned without
+		 * boxing.
+		 * 
+		 * @param header
+		 *          the header
+		 * @param name
+		 *          the name
+		 * @return the long
+		 * @see org.jnetpcap.packet.structure.AnnotatedFieldMethod#longValueMethod(org.jnetpcap.packet.JHeader,
+		 *      java.lang.String)
+		 */
+		@Override
+		public long longValueMethod(JHeader header, String name) {
+			if (isIntegral) {
+				return accessor.longValue(header, name, null);
 			}
+
+			return super.longValueMethod(header, name);
 		}
 
 		/*
@@ -710,20 +680,7 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 				return this.value;
 			}
 
-			try {
-				if (isMapped) {
-					return (String) method.invoke(header, name);
-				} else {
-					return (String) method.invoke(header);
-				}
-
-			} catch (IllegalArgumentException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			} catch (InvocationTargetException e) {
-				throw new AnnotatedMethodException(declaringClass, e);
-			}
+			return (String) accessor.objectValue(header, name, null);
 		}
 
 		/**
@@ -1110,4 +1067,39 @@ public abstract class AnnotatedFieldMethod extends AnnotatedMethod {
 				"this return type is invalid for this function type");
 	}
 
+	/**
+	 * Gets the value of the field as long. Numbers are converted, booleans are
+	 * returned as 1 or 0, and strings are parsed.
+	 * 
+	 * @param header
+	 *          the header
+	 * @param name
+	 *          the name
+	 * @return the long
+	 */
+	public long longValueMethod(JHeader header, String name) {
+		Object o = objectMethod(header, name);
+		if (o instanceof Number) {
+			return ((Number) o).longValue();
+		} else if (o instanceof Boolean) {
+			return ((Boolean) o).booleanValue() ? 1L : 0L;
+		} else if (o instanceof String) {
+			return Long.parseLong(o.toString());
+		} else {
+			throw new IllegalStateException("unknown format encountered");
+		}
+	}
+
+	/**
+	 * Checks if the type is an integral or boolean primitive.
+	 * 
+	 * @param c
+	 *          the type
+	 * @return true, if integral or boolean
+	 */
+	private static boolean isIntegral(Class<?> c) {
+		return c == long.class || c == int.class || c == short.class
+				|| c == byte.class || c == char.class || c == boolean.class;
+	}
+
 }
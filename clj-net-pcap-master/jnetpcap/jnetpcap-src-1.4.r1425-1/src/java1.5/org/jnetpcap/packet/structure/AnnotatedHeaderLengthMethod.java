@@ -18,7 +18,6 @@
  */
 package org.jnetpcap.packet.structure;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
@@ -179,16 +178,7 @@ public class AnnotatedHeaderLengthMethod
 		/*
 		 * Invoke the static method: <code>public static int method(JBuffer, int)</code>
 		 */
-		try {
-			int length = (int) (Integer) this.method.invoke(null, buffer, offset);
-			return length;
-		} catch (IllegalArgumentException e) {
-			throw new IllegalStateException(e);
-		} catch (IllegalAccessException e) {
-			throw new IllegalStateException(e);
-		} catch (InvocationTargetException e) {
-			throw new AnnotatedMethodException(declaringClass, e.getCause());
-		}
+		return accessor.intValue(null, buffer, offset);
 	}
 
 	/**
@@ -323,16 +323,7 @@ public class AnnotatedJField extends JField {
 	 */
 	@Override
 	public long longValue(JHeader header) {
-		Object o = getValue(header);
-		if (o instanceof Number) {
-			return ((Number) o).longValue();
-		} else if (o instanceof Boolean) {
-			return ((Boolean) o).booleanValue() ? 1L : 0L;
-		} else if (o instanceof String) {
-			return Long.parseLong(o.toString());
-		} else {
-			throw new IllegalStateException("unknown format encountered");
-		}
+		return value.longValueMethod(header, name);
 	}
 
 }
@@ -75,6 +75,9 @@ public abstract class AnnotatedMethod {
 	/** The object. */
 	protected final Object object;
 
+	/** Invokes the method without reflection if possible. */
+	protected final MethodAccessor accessor;
+
 	/** The cache. */
 	private static HashMap<Integer, Method[]> cache =
 			new HashMap<Integer, Method[]>(20);
@@ -86,6 +89,7 @@ public abstract class AnnotatedMethod {
 		this.method = null;
 		this.declaringClass = null;
 		this.object = null;
+		this.accessor = null;
 		this.isMapped = false;
 	}
 
@@ -106,6 +110,8 @@ public abstract class AnnotatedMethod {
 		 * BUG#3599244
 		 */
 		this.method.setAccessible(true);
+
+		this.accessor = MethodAccessor.forMethod(method);
 	}
 
 	/**
@@ -126,6 +132,7 @@ public abstract class AnnotatedMethod {
 		 */
 		this.method.setAccessible(true);
 
+		this.accessor = MethodAccessor.forMethod(method);
 	}
 
 	/**
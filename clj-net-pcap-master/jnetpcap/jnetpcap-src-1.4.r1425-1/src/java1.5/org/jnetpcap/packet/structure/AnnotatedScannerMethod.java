@@ -18,7 +18,6 @@
  */
 package org.jnetpcap.packet.structure;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -189,16 +188,7 @@ public class AnnotatedScannerMethod
 	 *          the scan
 	 */
 	public void scan(JScan scan) {
-		try {
-			method.invoke(object, scan);
-
-		} catch (final IllegalArgumentException e) {
-			throw new IllegalStateException(e);
-		} catch (final IllegalAccessException e) {
-			throw new IllegalStateException(e);
-		} catch (final InvocationTargetException e) {
-			throw new AnnotatedMethodException(declaringClass, e);
-		}
+		accessor.invoke(object, scan, null);
 	}
 
 	/*
@@ -0,0 +1,856 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.packet.structure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Invokes an annotated method without reflection.
+ * <p>
+ * When an annotated method is registered, a small class that extends
+ * MethodAccessor is generated for it. The generated class overrides the value
+ * methods that match the return type of the annotated method and calls the
+ * annotated method directly, i.e., primitive results are neither boxed nor
+ * unboxed and the JIT can inline the call like hand written code. Exceptions
+ * thrown by the annotated method are propagated as is.
+ * </p>
+ * <p>
+ * The target is the object on which the method is invoked and is ignored for
+ * static methods. The arguments are passed to the method in order; surplus
+ * arguments are ignored.
+ * </p>
+ * <p>
+ * Accessors are only generated for public methods of public classes with up to
+ * two parameters of which only the second may be an int. For other methods,
+ * e.g., methods of anonymous classes, or if the system property
+ * {@value #REFLECTIVE_PROPERTY} is set to true, the method is invoked via
+ * reflection.
+ * </p>
+ *
+ * @author Ruediger Gad
+ */
+public abstract class MethodAccessor {
+
+	/**
+	 * System property that disables the generation of accessors.
+	 */
+	public static final String REFLECTIVE_PROPERTY =
+			"org.jnetpcap.structure.reflective";
+
+	/** Counter for unique class names. */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	/** Package of the generated classes. */
+	private static final String PACKAGE =
+			"org/jnetpcap/packet/structure/generated/";
+
+	/** Signature of the value methods with object arguments. */
+	private static final String OBJECT_ARGS =
+			"(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)";
+
+	/** Signature of the value methods with an int as second argument. */
+	private static final String INT_ARG =
+			"(Ljava/lang/Object;Ljava/lang/Object;I)";
+
+	/** Boxing methods of the primitive types. */
+	private static final Map<Class<?>, String[]> boxing =
+			new HashMap<Class<?>, String[]>();
+
+	static {
+		boxing.put(boolean.class, new String[] { "java/lang/Boolean", "(Z)" });
+		boxing.put(byte.class, new String[] { "java/lang/Byte", "(B)" });
+		boxing.put(char.class, new String[] { "java/lang/Character", "(C)" });
+		boxing.put(short.class, new String[] { "java/lang/Short", "(S)" });
+		boxing.put(int.class, new String[] { "java/lang/Integer", "(I)" });
+		boxing.put(long.class, new String[] { "java/lang/Long", "(J)" });
+		boxing.put(float.class, new String[] { "java/lang/Float", "(F)" });
+		boxing.put(double.class, new String[] { "java/lang/Double", "(D)" });
+	}
+
+	/**
+	 * Creates an accessor for the method. Falls back to reflection if no
+	 * accessor can be generated.
+	 *
+	 * @param method
+	 *          the method
+	 * @return the accessor
+	 */
+	public static MethodAccessor forMethod(Method method) {
+		if (!Boolean.getBoolean(REFLECTIVE_PROPERTY) && isAccessible(method)) {
+			try {
+				return generate(method);
+			} catch (Exception e) {
+				// Fall back to reflection
+			} catch (LinkageError e) {
+				// Fall back to reflection
+			}
+		}
+
+		return new Reflective(method);
+	}
+
+	/**
+	 * Checks if the method can be called by a generated class.
+	 *
+	 * @param method
+	 *          the method
+	 * @return true if accessible, otherwise false
+	 */
+	private static boolean isAccessible(Method method) {
+		final Class<?> c = method.getDeclaringClass();
+		if (!Modifier.isPublic(method.getModifiers())
+				|| !isPublic(c) || !isPublic(method.getReturnType())
+				|| c.getClassLoader() == null) {
+			return false;
+		}
+
+		final Class<?>[] params = method.getParameterTypes();
+		if (params.length > 2) {
+			return false;
+		}
+
+		for (int i = 0; i < params.length; i++) {
+			if (params[i].isPrimitive()) {
+				if (i != 1 || params[i] != int.class
+						|| method.getReturnType() != int.class) {
+					return false;
+				}
+			} else if (!isPublic(params[i])) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if the class or the component type of an array is public.
+	 *
+	 * @param c
+	 *          the class
+	 * @return true if public, otherwise false
+	 */
+	private static boolean isPublic(Class<?> c) {
+		while (c.isArray()) {
+			c = c.getComponentType();
+		}
+
+		return c.isPrimitive() || Modifier.isPublic(c.getModifiers());
+	}
+
+	/**
+	 * Generates, loads, and instantiates the accessor class for the method.
+	 *
+	 * @param method
+	 *          the method
+	 * @return the accessor
+	 * @throws Exception
+	 *           if the class could not be generated or loaded
+	 */
+	private static MethodAccessor generate(Method method) throws Exception {
+		final Class<?> c = method.getDeclaringClass();
+		final ClassLoader parent = c.getClassLoader();
+		if (Class.forName(MethodAccessor.class.getName(), false, parent) != MethodAccessor.class) {
+			throw new IllegalStateException("MethodAccessor not visible");
+		}
+
+		final String name =
+				PACKAGE + c.getSimpleName() + "$" + method.getName() + "$"
+						+ count.incrementAndGet();
+		final byte[] b = new ClassWriter(name, method).toByteArray();
+
+		return (MethodAccessor) new Loader(parent).define(name.replace('/', '.'),
+				b).getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Invokes a method that returns a boolean.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 * @return the result
+	 */
+	public boolean booleanValue(Object target, Object arg0, Object arg1) {
+		throw new UnsupportedOperationException("not a boolean method");
+	}
+
+	/**
+	 * Invokes a method that returns an int, short, byte, or char.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 * @return the result
+	 */
+	public int intValue(Object target, Object arg0, Object arg1) {
+		throw new UnsupportedOperationException("not an int method");
+	}
+
+	/**
+	 * Invokes a method that takes an int as second parameter and returns an int.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 * @return the result
+	 */
+	public int intValue(Object target, Object arg0, int arg1) {
+		throw new UnsupportedOperationException("not an int method");
+	}
+
+	/**
+	 * Invokes a method that returns a long or a value that can be widened to a
+	 * long. Booleans are returned as 1 or 0.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 * @return the result
+	 */
+	public long longValue(Object target, Object arg0, Object arg1) {
+		throw new UnsupportedOperationException("not a long method");
+	}
+
+	/**
+	 * Invokes a method with any return type. Primitive values are boxed.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 * @return the result
+	 */
+	public Object objectValue(Object target, Object arg0, Object arg1) {
+		throw new UnsupportedOperationException("not a value method");
+	}
+
+	/**
+	 * Invokes a method that does not return a value.
+	 *
+	 * @param target
+	 *          the target
+	 * @param arg0
+	 *          the first argument
+	 * @param arg1
+	 *          the second argument
+	 */
+	public void invoke(Object target, Object arg0, Object arg1) {
+		throw new UnsupportedOperationException("not a void method");
+	}
+
+	/**
+	 * Checks if the method is invoked via reflection.
+	 *
+	 * @return true if reflective, otherwise false
+	 */
+	public boolean isReflective() {
+		return false;
+	}
+
+	/**
+	 * Class loader for a generated accessor.
+	 */
+	private static final class Loader extends ClassLoader {
+
+		/**
+		 * Creates a loader that delegates to the loader of the declaring class.
+		 *
+		 * @param parent
+		 *          the parent loader
+		 */
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		/**
+		 * Defines the class.
+		 *
+		 * @param name
+		 *          binary name of the class
+		 * @param b
+		 *          class file
+		 * @return the class
+		 */
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Writes the class file of an accessor. The class file uses the Java 5
+	 * format, which does not require stack map frames.
+	 */
+	private static final class ClassWriter {
+
+		private static final int ACC_PUBLIC = 0x0001;
+
+		private static final int ACC_FINAL = 0x0010;
+
+		private static final int ACC_SUPER = 0x0020;
+
+		private static final int ALOAD_0 = 0x2a;
+
+		private static final int ALOAD_1 = 0x2b;
+
+		private static final int ALOAD_2 = 0x2c;
+
+		private static final int ALOAD_3 = 0x2d;
+
+		private static final int ILOAD_3 = 0x1d;
+
+		private static final int I2L = 0x85;
+
+		private static final int IRETURN = 0xac;
+
+		private static final int LRETURN = 0xad;
+
+		private static final int ARETURN = 0xb0;
+
+		private static final int RETURN = 0xb1;
+
+		private static final int INVOKEVIRTUAL = 0xb6;
+
+		private static final int INVOKESPECIAL = 0xb7;
+
+		private static final int INVOKESTATIC = 0xb8;
+
+		private static final int INVOKEINTERFACE = 0xb9;
+
+		private static final int CHECKCAST = 0xc0;
+
+		private final Method method;
+
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+		private final DataOutputStream cp = new DataOutputStream(pool);
+
+		private final Map<String, Integer> entries = new HashMap<String, Integer>();
+
+		private int entryCount = 1;
+
+		private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(methods);
+
+		private int methodCount = 0;
+
+		private final int codeName;
+
+		private final int thisClass;
+
+		private final int superClass;
+
+		/**
+		 * Creates the class file of the accessor for the method.
+		 *
+		 * @param name
+		 *          internal name of the class
+		 * @param method
+		 *          the method
+		 * @throws IOException
+		 *           never
+		 */
+		ClassWriter(String name, Method method) throws IOException {
+			this.method = method;
+			this.codeName = utf8Entry("Code");
+			this.thisClass = classEntry(name);
+			this.superClass = classEntry(internalName(MethodAccessor.class));
+
+			writeConstructor();
+
+			final Class<?> r = method.getReturnType();
+			final Class<?>[] params = method.getParameterTypes();
+
+			if (params.length == 2 && params[1] == int.class) {
+				writeValueMethod("intValue", INT_ARG + "I", IRETURN, false);
+
+			} else if (r == void.class) {
+				writeValueMethod("invoke", OBJECT_ARGS + "V", RETURN, false);
+
+			} else if (r == boolean.class) {
+				writeValueMethod("booleanValue", OBJECT_ARGS + "Z", IRETURN, false);
+				writeValueMethod("longValue", OBJECT_ARGS + "J", LRETURN, true);
+				writeObjectValueMethod();
+
+			} else if (r == int.class || r == short.class || r == byte.class
+					|| r == char.class) {
+				writeValueMethod("intValue", OBJECT_ARGS + "I", IRETURN, false);
+				writeValueMethod("longValue", OBJECT_ARGS + "J", LRETURN, true);
+				writeObjectValueMethod();
+
+			} else if (r == long.class) {
+				writeValueMethod("longValue", OBJECT_ARGS + "J", LRETURN, false);
+				writeObjectValueMethod();
+
+			} else {
+				writeObjectValueMethod();
+			}
+		}
+
+		/**
+		 * Gets the class file.
+		 *
+		 * @return the class file
+		 * @throws IOException
+		 *           never
+		 */
+		byte[] toByteArray() throws IOException {
+			final ByteArrayOutputStream b = new ByteArrayOutputStream();
+			final DataOutputStream d = new DataOutputStream(b);
+			d.writeInt(0xCAFEBABE);
+			d.writeShort(0);
+			d.writeShort(49);
+			d.writeShort(entryCount);
+			d.write(pool.toByteArray());
+			d.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			d.writeShort(thisClass);
+			d.writeShort(superClass);
+			d.writeShort(0); // interfaces
+			d.writeShort(0); // fields
+			d.writeShort(methodCount);
+
+			d.write(methods.toByteArray());
+			d.writeShort(0); // attributes
+
+			return b.toByteArray();
+		}
+
+		/**
+		 * Writes the public no-argument constructor.
+		 *
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeConstructor() throws IOException {
+			final ByteArrayOutputStream b = new ByteArrayOutputStream();
+			final DataOutputStream c = new DataOutputStream(b);
+			c.writeByte(ALOAD_0);
+			c.writeByte(INVOKESPECIAL);
+			c.writeShort(methodEntry(superClass, "<init>", "()V", false));
+			c.writeByte(RETURN);
+
+			writeMethod("<init>", "()V", b.toByteArray(), 1);
+		}
+
+		/**
+		 * Writes a method that calls the annotated method and returns its
+		 * result.
+		 *
+		 * @param name
+		 *          name of the overridden method
+		 * @param desc
+		 *          descriptor of the overridden method
+		 * @param ret
+		 *          return instruction
+		 * @param widen
+		 *          if true, the int result is widened to a long
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeValueMethod(String name, String desc, int ret,
+				boolean widen) throws IOException {
+			final ByteArrayOutputStream b = new ByteArrayOutputStream();
+			final DataOutputStream c = new DataOutputStream(b);
+			writeCall(c);
+			if (widen) {
+				c.writeByte(I2L);
+			}
+			c.writeByte(ret);
+
+			writeMethod(name, desc, b.toByteArray(), maxStack());
+		}
+
+		/**
+		 * Writes the objectValue method, boxing primitive results.
+		 *
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeObjectValueMethod() throws IOException {
+			final ByteArrayOutputStream b = new ByteArrayOutputStream();
+			final DataOutputStream c = new DataOutputStream(b);
+			writeCall(c);
+
+			final String[] box = boxing.get(method.getReturnType());
+			if (box != null) {
+				c.writeByte(INVOKESTATIC);
+				c.writeShort(methodEntry(classEntry(box[0]), "valueOf", box[1] + "L"
+						+ box[0] + ";", false));
+			}
+			c.writeByte(ARETURN);
+
+			writeMethod("objectValue", OBJECT_ARGS + "Ljava/lang/Object;", b
+					.toByteArray(), maxStack());
+		}
+
+		/**
+		 * Writes the instructions for loading the target and the arguments and
+		 * for calling the annotated method.
+		 *
+		 * @param c
+		 *          output for the instructions
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeCall(DataOutputStream c) throws IOException {
+			final Class<?> declaring = method.getDeclaringClass();
+			final boolean isStatic = Modifier.isStatic(method.getModifiers());
+			final int owner = classEntry(internalName(declaring));
+
+			if (!isStatic) {
+				c.writeByte(ALOAD_1);
+				c.writeByte(CHECKCAST);
+				c.writeShort(owner);
+			}
+
+			final Class<?>[] params = method.getParameterTypes();
+			for (int i = 0; i < params.length; i++) {
+				if (params[i] == int.class) {
+					c.writeByte(ILOAD_3);
+				} else {
+					c.writeByte((i == 0) ? ALOAD_2 : ALOAD_3);
+					if (params[i] != Object.class) {
+						c.writeByte(CHECKCAST);
+						c.writeShort(classEntry(internalName(params[i])));
+					}
+				}
+			}
+
+			final String desc = descriptor(method);
+			if (isStatic) {
+				c.writeByte(INVOKESTATIC);
+				c.writeShort(methodEntry(owner, method.getName(), desc, false));
+			} else if (declaring.isInterface()) {
+				c.writeByte(INVOKEINTERFACE);
+				c.writeShort(methodEntry(owner, method.getName(), desc, true));
+				c.writeByte(1 + params.length);
+				c.writeByte(0);
+			} else {
+				c.writeByte(INVOKEVIRTUAL);
+				c.writeShort(methodEntry(owner, method.getName(), desc, false));
+			}
+		}
+
+		/**
+		 * Gets the maximum operand stack size of the value methods.
+		 *
+		 * @return the maximum stack size
+		 */
+		private int maxStack() {
+			return Math.max(1 + method.getParameterTypes().length, 2);
+		}
+
+		/**
+		 * Writes a public method with a code attribute.
+		 *
+		 * @param name
+		 *          method name
+		 * @param desc
+		 *          method descriptor
+		 * @param code
+		 *          the instructions
+		 * @param maxStack
+		 *          maximum operand stack size
+		 * @throws IOException
+		 *           never
+		 */
+		private void writeMethod(String name, String desc, byte[] code,
+				int maxStack) throws IOException {
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(utf8Entry(name));
+			out.writeShort(utf8Entry(desc));
+			out.writeShort(1); // attributes
+
+			out.writeShort(codeName);
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(4); // this, target, arg0, arg1
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+
+			methodCount++;
+		}
+
+		/**
+		 * Gets or adds a UTF8 constant.
+		 *
+		 * @param s
+		 *          the string
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int utf8Entry(String s) throws IOException {
+			final String key = "U" + s;
+			Integer i = entries.get(key);
+			if (i == null) {
+				cp.writeByte(1);
+				cp.writeUTF(s);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets or adds a class constant.
+		 *
+		 * @param internalName
+		 *          internal name of the class
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int classEntry(String internalName) throws IOException {
+			final String key = "C" + internalName;
+			Integer i = entries.get(key);
+			if (i == null) {
+				final int name = utf8Entry(internalName);
+				cp.writeByte(7);
+				cp.writeShort(name);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets or adds a method reference constant.
+		 *
+		 * @param owner
+		 *          index of the class constant
+		 * @param name
+		 *          method name
+		 * @param desc
+		 *          method descriptor
+		 * @param isInterface
+		 *          if the owner is an interface
+		 * @return index of the constant
+		 * @throws IOException
+		 *           never
+		 */
+		private int methodEntry(int owner, String name, String desc,
+				boolean isInterface) throws IOException {
+			final String key = "M" + owner + "." + name + desc;
+			Integer i = entries.get(key);
+			if (i == null) {
+				final int n = utf8Entry(name);
+				final int t = utf8Entry(desc);
+				cp.writeByte(12);
+				cp.writeShort(n);
+				cp.writeShort(t);
+				final int nameAndType = entryCount++;
+
+				cp.writeByte(isInterface ? 11 : 10);
+				cp.writeShort(owner);
+				cp.writeShort(nameAndType);
+				i = entryCount++;
+				entries.put(key, i);
+			}
+
+			return i;
+		}
+
+		/**
+		 * Gets the internal name of a class, i.e., the descriptor for arrays.
+		 *
+		 * @param c
+		 *          the class
+		 * @return the internal name
+		 */
+		private static String internalName(Class<?> c) {
+			return c.getName().replace('.', '/');
+		}
+
+		/**
+		 * Gets the descriptor of a method.
+		 *
+		 * @param m
+		 *          the method
+		 * @return the descriptor
+		 */
+		private static String descriptor(Method m) {
+			final StringBuilder b = new StringBuilder();
+			b.append('(');
+			for (Class<?> p : m.getParameterTypes()) {
+				b.append(descriptor(p));
+			}
+			b.append(')');
+			b.append(descriptor(m.getReturnType()));
+
+			return b.toString();
+		}
+
+		/**
+		 * Gets the descriptor of a type.
+		 *
+		 * @param c
+		 *          the type
+		 * @return the descriptor
+		 */
+		private static String descriptor(Class<?> c) {
+			if (c.isArray()) {
+				return internalName(c);
+			} else if (c == void.class) {
+				return "V";
+			} else if (c == boolean.class) {
+				return "Z";
+			} else if (c == byte.class) {
+				return "B";
+			} else if (c == char.class) {
+				return "C";
+			} else if (c == short.class) {
+				return "S";
+			} else if (c == int.class) {
+				return "I";
+			} else if (c == long.class) {
+				return "J";
+			} else if (c == float.class) {
+				return "F";
+			} else if (c == double.class) {
+				return "D";
+			} else {
+				return "L" + internalName(c) + ";";
+			}
+		}
+	}
+
+	/**
+	 * Invokes the method via reflection.
+	 */
+	private static final class Reflective extends MethodAccessor {
+
+		private final Method method;
+
+		private final int params;
+
+		/**
+		 * Creates a reflective accessor.
+		 *
+		 * @param method
+		 *          the method
+		 */
+		Reflective(Method method) {
+			this.method = method;
+			this.params = method.getParameterTypes().length;
+
+			method.setAccessible(true);
+		}
+
+		/**
+		 * Invokes the method.
+		 *
+		 * @param target
+		 *          the target
+		 * @param arg0
+		 *          the first argument
+		 * @param arg1
+		 *          the second argument
+		 * @return the result
+		 */
+		private Object call(Object target, Object arg0, Object arg1) {
+			try {
+				switch (params) {
+				case 0:
+					return method.invoke(target);
+				case 1:
+					return method.invoke(target, arg0);
+				default:
+					return method.invoke(target, arg0, arg1);
+				}
+
+			} catch (IllegalArgumentException e) {
+				throw new IllegalStateException(e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			} catch (InvocationTargetException e) {
+				throw new AnnotatedMethodException(method.getDeclaringClass(), e);
+			}
+		}
+
+		@Override
+		public boolean booleanValue(Object target, Object arg0, Object arg1) {
+			return (Boolean) call(target, arg0, arg1);
+		}
+
+		@Override
+		public int intValue(Object target, Object arg0, Object arg1) {
+			final Object o = call(target, arg0, arg1);
+			return (o instanceof Character) ? (Character) o : ((Number) o)
+					.intValue();
+		}
+
+		@Override
+		public int intValue(Object target, Object arg0, int arg1) {
+			return intValue(target, arg0, (Object) arg1);
+		}
+
+		@Override
+		public long longValue(Object target, Object arg0, Object arg1) {
+			final Object o = call(target, arg0, arg1);
+			if (o instanceof Boolean) {
+				return ((Boolean) o) ? 1L : 0L;
+			} else if (o instanceof Character) {
+				return (Character) o;
+			}
+
+			return ((Number) o).longValue();
+		}
+
+		@Override
+		public Object objectValue(Object target, Object arg0, Object arg1) {
+			return call(target, arg0, arg1);
+		}
+
+		@Override
+		public void invoke(Object target, Object arg0, Object arg1) {
+			call(target, arg0, arg1);
+		}
+
+		@Override
+		public boolean isReflective() {
+			return true;
+		}
+	}
+}
@@ -520,6 +520,36 @@ public abstract class AbstractResolver implements Resolver,
 		return this.cache.containsKey(toHashCode(address));
 	}
 
+	/**
+	 * Copies the cache entries that did not time out yet.
+	 * 
+	 * @param names
+	 *          receives the names by hash code; null for failed lookups
+	 * @param timeouts
+	 *          receives the timeout time stamps in milli seconds by hash code
+	 * @return number of copied entries
+	 */
+	int copyCache(Map<Long, String> names, Map<Long, Long> timeouts) {
+		if (cache == null) {
+			return 0;
+		}
+
+		final long now = System.currentTimeMillis();
+		int count = 0;
+
+		synchronized (cache) {
+			for (AbstractResolver.TimeoutEntry e : timeoutQueue) {
+				if (e.timeout > now && cache.containsKey(e.hash)) {
+					names.put(e.hash, cache.get(e.hash));
+					timeouts.put(e.hash, e.timeout);
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
 	/**
 	 * Load cache entries using default mechanism.
 	 * 
@@ -573,8 +603,8 @@ public abstract class AbstractResolver implements Resolver,
 					long hash = Long.parseLong(c[0], 16);
 					long timeout = 0;
 					try {
-
-						timeout = Long.parseLong(c[1], 16);
+						/* The timeout is saved as decimal time stamp, see saveCache. */
+						timeout = Long.parseLong(c[1]);
 					} catch (NumberFormatException e) {
 						m = true; // Modify flag to allow update to this cache file
 						continue;
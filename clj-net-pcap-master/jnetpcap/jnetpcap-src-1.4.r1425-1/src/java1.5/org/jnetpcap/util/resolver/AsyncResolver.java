@@ -0,0 +1,681 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.util.resolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jnetpcap.packet.JRegistry;
+import org.jnetpcap.util.resolver.Resolver.ResolverType;
+
+/**
+ * Resolver that never blocks the calling thread.
+ * <p>
+ * The lookups are performed by another resolver, e.g., the {@link IpResolver}
+ * that does reverse DNS lookups. {@link #resolve(byte[])} only consults the
+ * cache. If the address is not cached, the lookup is scheduled on a bounded
+ * pool of background threads and null is returned immediately, i.e., the
+ * caller, e.g., the JFormatter, falls back to the numeric form of the address.
+ * Once the lookup completed, subsequent calls return the resolved name.
+ * Concurrent requests for the same address are coalesced into a single
+ * lookup.
+ * </p>
+ * <p>
+ * The cache is a concurrent map without global locks. It is seeded with the
+ * cache of the wrapped resolver, e.g., as loaded from its cache file, when the
+ * resolver is initialized. Positive and negative results time out after the
+ * respective timeout. When the number of entries
+ * exceeds the maximum, timed out entries and, if needed, the entries that time
+ * out next are evicted.
+ * </p>
+ * <p>
+ * Virtual threads are used for the lookups when the JVM supports them, the
+ * number of concurrent lookups is bounded either way. Lookups that do not fit
+ * in the queue are dropped and retried on the next request.
+ * </p>
+ *
+ * <pre>
+ * AsyncResolver.register(ResolverType.IP);
+ * formatter.setResolveAddresses(true);
+ * </pre>
+ *
+ * @author Ruediger Gad
+ */
+public class AsyncResolver implements Resolver {
+
+	/** The default number of concurrent lookups. */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** The default number of queued lookups. */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** The default maximum number of cache entries. */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** The default timeout of resolved names. */
+	public static final long DEFAULT_POSITIVE_TIMEOUT_IN_MILLIS =
+			24 * 60 * 60 * 1000;
+
+	/** The default timeout of failed lookups. */
+	public static final long DEFAULT_NEGATIVE_TIMEOUT_IN_MILLIS = 30 * 60 * 1000;
+
+	/** Percentage of the maximum number of entries that is evicted at once. */
+	private static final int BACKOFF = 10;
+
+	/**
+	 * Cache entry.
+	 */
+	private static final class Entry {
+
+		/** The resolved name or null if the lookup failed. */
+		final String name;
+
+		/** Expiration time stamp in milli seconds. */
+		final long expires;
+
+		/**
+		 * Creates an entry.
+		 *
+		 * @param name
+		 *          the name or null
+		 * @param expires
+		 *          the expiration time stamp
+		 */
+		Entry(String name, long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Wraps the resolver that is currently registered for the type into an
+	 * asynchronous resolver and registers the latter for the type.
+	 *
+	 * @param type
+	 *          the resolver type
+	 * @return the registered asynchronous resolver
+	 * @throws IllegalStateException
+	 *           if the registered resolver is not an {@link AbstractResolver}
+	 */
+	public static AsyncResolver register(ResolverType type) {
+		final Resolver current = JRegistry.getResolver(type);
+		if (current instanceof AsyncResolver) {
+			return (AsyncResolver) current;
+		}
+
+		if (!(current instanceof AbstractResolver)) {
+			throw new IllegalStateException("can not wrap resolver " + current);
+		}
+
+		final AsyncResolver async = new AsyncResolver((AbstractResolver) current);
+		JRegistry.registerResolver(type, async);
+
+		return async;
+	}
+
+	/** Performs the actual lookups. */
+	private final AbstractResolver resolver;
+
+	/** The cache. */
+	private final ConcurrentMap<Long, Entry> cache =
+			new ConcurrentHashMap<Long, Entry>();
+
+	/** The lookups that are currently queued or running. */
+	private final ConcurrentMap<Long, FutureTask<String>> pending =
+			new ConcurrentHashMap<Long, FutureTask<String>>();
+
+	/** The lookup threads. */
+	private final ThreadPoolExecutor executor;
+
+	/** Set once the cache was seeded with the cache of the wrapped resolver. */
+	private final AtomicBoolean seeded = new AtomicBoolean();
+
+	/** Set while a thread evicts entries. */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/** The number of lookups. */
+	private final AtomicLong lookups = new AtomicLong();
+
+	/** The number of lookups that were dropped because the queue was full. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** The maximum number of cache entries. */
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	/** The timeout of resolved names. */
+	private volatile long positiveTimeout = DEFAULT_POSITIVE_TIMEOUT_IN_MILLIS;
+
+	/** The timeout of failed lookups. */
+	private volatile long negativeTimeout = DEFAULT_NEGATIVE_TIMEOUT_IN_MILLIS;
+
+	/**
+	 * Creates an asynchronous resolver with the default number of threads and
+	 * queue size.
+	 *
+	 * @param resolver
+	 *          the resolver that performs the lookups
+	 */
+	public AsyncResolver(AbstractResolver resolver) {
+		this(resolver, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Creates an asynchronous resolver.
+	 *
+	 * @param resolver
+	 *          the resolver that performs the lookups
+	 * @param threads
+	 *          maximum number of concurrent lookups
+	 * @param queueSize
+	 *          maximum number of queued lookups
+	 */
+	public AsyncResolver(AbstractResolver resolver, int threads, int queueSize) {
+		if (resolver == null) {
+			throw new NullPointerException("resolver");
+		}
+
+		this.resolver = resolver;
+		this.executor =
+				new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(queueSize), threadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Creates the factory for the lookup threads. Uses virtual threads if
+	 * available, otherwise daemon threads.
+	 *
+	 * @return the thread factory
+	 */
+	private static ThreadFactory threadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Class<?> c = Class.forName("java.lang.Thread$Builder");
+			c.getMethod("name", String.class, long.class).invoke(builder,
+					"jnetpcap-resolver-", 0L);
+
+			return (ThreadFactory) c.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// Virtual threads are not available
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				final Thread t =
+						new Thread(r, "jnetpcap-resolver-" + count.getAndIncrement());
+				t.setDaemon(true);
+
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cached name of the address without blocking. If the address is
+	 * not cached, a lookup is scheduled and null is returned.
+	 *
+	 * @param address
+	 *          the address
+	 * @return the name or null if not resolved (yet)
+	 * @see org.jnetpcap.util.resolver.Resolver#resolve(byte[])
+	 */
+	public String resolve(byte[] address) {
+		final long hash = resolver.toHashCode(address);
+		final Entry e = cache.get(hash);
+
+		if (e != null && e.expires > System.currentTimeMillis()) {
+			return e.name;
+		}
+
+		lookup(address, hash);
+
+		return null;
+	}
+
+	/**
+	 * Gets the name of the address asynchronously. If the address is cached,
+	 * the returned future is already done. Otherwise, the future of the
+	 * scheduled, or already pending, lookup is returned.
+	 *
+	 * @param address
+	 *          the address
+	 * @return the future name, null if the lookup failed
+	 */
+	public Future<String> resolveAsync(byte[] address) {
+		final long hash = resolver.toHashCode(address);
+		final Entry e = cache.get(hash);
+
+		if (e != null && e.expires > System.currentTimeMillis()) {
+			final FutureTask<String> f = new FutureTask<String>(new Runnable() {
+
+				public void run() {
+				}
+			}, e.name);
+			f.run();
+
+			return f;
+		}
+
+		return lookup(address, hash);
+	}
+
+	/**
+	 * Schedules the lookup of an address unless a lookup is already pending.
+	 *
+	 * @param address
+	 *          the address
+	 * @param hash
+	 *          hash code of the address
+	 * @return the future of the lookup
+	 */
+	private FutureTask<String> lookup(final byte[] address, final long hash) {
+		FutureTask<String> f = pending.get(hash);
+		if (f != null) {
+			return f;
+		}
+
+		final byte[] copy = address.clone();
+		f = new FutureTask<String>(new Callable<String>() {
+
+			public String call() {
+				String name = null;
+				try {
+					name = resolver.resolveToName(copy, hash);
+				} finally {
+					addToCache(hash, name);
+					pending.remove(hash);
+				}
+
+				return name;
+			}
+		});
+
+		final FutureTask<String> other = pending.putIfAbsent(hash, f);
+		if (other != null) {
+			return other;
+		}
+
+		try {
+			executor.execute(f);
+			lookups.incrementAndGet();
+		} catch (RejectedExecutionException e) {
+			pending.remove(hash, f);
+			dropped.incrementAndGet();
+			f.cancel(false);
+		}
+
+		return f;
+	}
+
+	/**
+	 * Adds a name to the cache.
+	 *
+	 * @param hash
+	 *          hash code of the address
+	 * @param name
+	 *          the name or null if the lookup failed
+	 */
+	public void addToCache(long hash, String name) {
+		final long timeout = (name == null) ? negativeTimeout : positiveTimeout;
+		if (timeout == 0) {
+			return;
+		}
+
+		addToCache(hash, name, System.currentTimeMillis() + timeout);
+	}
+
+	/**
+	 * Adds a name with the given expiration time to the cache.
+	 *
+	 * @param hash
+	 *          hash code of the address
+	 * @param name
+	 *          the name or null if the lookup failed
+	 * @param expires
+	 *          expiration time stamp in milli seconds
+	 */
+	private void addToCache(long hash, String name, long expires) {
+		cache.put(hash, new Entry(name, expires));
+
+		if (cache.size() > maxEntries) {
+			evict();
+		}
+	}
+
+	/**
+	 * Evicts timed out entries and, if still needed, the entries that time out
+	 * next until the cache has room for new entries again. Only one thread
+	 * evicts at a time, other threads continue without waiting.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			final long now = System.currentTimeMillis();
+			for (Iterator<Entry> i = cache.values().iterator(); i.hasNext();) {
+				if (i.next().expires <= now) {
+					i.remove();
+				}
+			}
+
+			final int target = maxEntries - (maxEntries * BACKOFF / 100);
+			final int excess = cache.size() - target;
+			if (excess <= 0) {
+				return;
+			}
+
+			final long[] expires = new long[cache.size()];
+			int n = 0;
+			for (Entry e : cache.values()) {
+				if (n == expires.length) {
+					break;
+				}
+				expires[n++] = e.expires;
+			}
+			Arrays.sort(expires, 0, n);
+			final long threshold = expires[Math.min(excess, n) - 1];
+
+			for (Iterator<Entry> i = cache.values().iterator(); i.hasNext();) {
+				if (i.next().expires <= threshold) {
+					i.remove();
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Checks if the address is cached and can be resolved, without blocking.
+	 *
+	 * @param address
+	 *          the address
+	 * @return true, if a name is cached for the address
+	 * @see org.jnetpcap.util.resolver.Resolver#canBeResolved(byte[])
+	 */
+	public boolean canBeResolved(byte[] address) {
+		return resolve(address) != null;
+	}
+
+	/**
+	 * Checks if a name or a failed lookup is cached for the address.
+	 *
+	 * @param address
+	 *          the address
+	 * @return true, if cached
+	 * @see org.jnetpcap.util.resolver.Resolver#isCached(byte[])
+	 */
+	public boolean isCached(byte[] address) {
+		final Entry e = cache.get(resolver.toHashCode(address));
+
+		return e != null && e.expires > System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if a lookup of the address is pending.
+	 *
+	 * @param address
+	 *          the address
+	 * @return true, if pending
+	 */
+	public boolean isPending(byte[] address) {
+		return pending.containsKey(resolver.toHashCode(address));
+	}
+
+	/**
+	 * Clears the cache. Pending lookups are not cancelled.
+	 *
+	 * @see org.jnetpcap.util.resolver.Resolver#clearCache()
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Initializes the resolver that performs the lookups and, the first time,
+	 * copies its cache entries that did not time out yet, e.g., as loaded from
+	 * its cache file. Entries that are already cached are not replaced.
+	 *
+	 * @see org.jnetpcap.util.resolver.Resolver#initializeIfNeeded()
+	 */
+	public void initializeIfNeeded() {
+		resolver.initializeIfNeeded();
+
+		if (seeded.compareAndSet(false, true)) {
+			final Map<Long, String> names = new HashMap<Long, String>();
+			final Map<Long, Long> timeouts = new HashMap<Long, Long>();
+			resolver.copyCache(names, timeouts);
+
+			for (Map.Entry<Long, Long> e : timeouts.entrySet()) {
+				if (!cache.containsKey(e.getKey())) {
+					addToCache(e.getKey(), names.get(e.getKey()), e.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads cache entries in the format of {@link AbstractResolver}, i.e.,
+	 * <code>hash:timeout:name</code> with the hash in hex and the timeout as
+	 * time stamp in milli seconds. Timed out entries are skipped.
+	 *
+	 * @param url
+	 *          the url
+	 * @return the number of loaded entries
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @see org.jnetpcap.util.resolver.Resolver#loadCache(java.net.URL)
+	 */
+	public int loadCache(URL url) throws IOException {
+		final BufferedReader in =
+				new BufferedReader(new InputStreamReader(url.openStream()));
+		final long now = System.currentTimeMillis();
+		int count = 0;
+
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] c = line.split(":", 3);
+				if (c.length != 3) {
+					continue;
+				}
+
+				try {
+					final long hash = Long.parseLong(c[0], 16);
+					final long expires = Long.parseLong(c[1]);
+					if (expires <= now) {
+						continue;
+					}
+
+					addToCache(hash, (c[2].length() == 0) ? null : c[2], expires);
+					count++;
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Saves the cache via the wrapped resolver, i.e., to its cache file and
+	 * subject to its configuration. The entries that did not time out yet are
+	 * added to the cache of the wrapped resolver first.
+	 *
+	 * @return the number of saved entries
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @see org.jnetpcap.util.resolver.Resolver#saveCache()
+	 */
+	public int saveCache() throws IOException {
+		resolver.initializeIfNeeded();
+
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<Long, Entry> e : cache.entrySet()) {
+			final long timeout = e.getValue().expires - now;
+			if (timeout > 0) {
+				resolver.addToCache(e.getKey(), e.getValue().name, timeout);
+			}
+		}
+
+		return resolver.saveCache();
+	}
+
+	/**
+	 * Stops the lookup threads. Pending lookups are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Gets the number of cache entries.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Gets the number of scheduled lookups.
+	 *
+	 * @return the number of lookups
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * Gets the number of lookups that were dropped because the queue was full.
+	 *
+	 * @return the number of dropped lookups
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the maximum number of cache entries.
+	 *
+	 * @return the maximum number of entries
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets the maximum number of cache entries.
+	 *
+	 * @param maxEntries
+	 *          the maximum number of entries
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+
+		if (cache.size() > maxEntries) {
+			evict();
+		}
+	}
+
+	/**
+	 * Gets the timeout of resolved names.
+	 *
+	 * @return the timeout in milli seconds
+	 */
+	public long getPositiveTimeout() {
+		return positiveTimeout;
+	}
+
+	/**
+	 * Sets the timeout of resolved names. 0 disables caching of resolved names.
+	 *
+	 * @param positiveTimeout
+	 *          the timeout in milli seconds
+	 */
+	public void setPositiveTimeout(long positiveTimeout) {
+		this.positiveTimeout = positiveTimeout;
+	}
+
+	/**
+	 * Gets the timeout of failed lookups.
+	 *
+	 * @return the timeout in milli seconds
+	 */
+	public long getNegativeTimeout() {
+		return negativeTimeout;
+	}
+
+	/**
+	 * Sets the timeout of failed lookups. 0 disables caching of failed lookups.
+	 *
+	 * @param negativeTimeout
+	 *          the timeout in milli seconds
+	 */
+	public void setNegativeTimeout(long negativeTimeout) {
+		this.negativeTimeout = negativeTimeout;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder(80);
+		b.append("AsyncResolver");
+		b.append('[');
+		b.append("cache=").append(cache.size());
+		b.append(',');
+		b.append("pending=").append(pending.size());
+		b.append(',');
+		b.append("lookups=").append(lookups.get());
+		b.append(',');
+		b.append("dropped=").append(dropped.get());
+		b.append(']');
+
+		return b.toString();
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
+
+/**
+ * Tests the user space BPF filters. The compiled filters are compared with the
+ * interpreter on hand written and random programs, and with libpcap on the
+ * fixture files.
+ *
+ * @author Ruediger Gad
+ */
+public class TestBpfFilter
+    extends TestCase {
+
+	/**
+	 * "ip and tcp dst port 80" for Ethernet without the IPv6 part.
+	 */
+	private static final long[] TCP_PORT_80 = {
+			BpfFilter.instruction(0x28, 0, 0, 12), // ldh [12]
+			BpfFilter.instruction(0x15, 0, 8, 0x800), // jeq #0x800
+			BpfFilter.instruction(0x30, 0, 0, 23), // ldb [23]
+			BpfFilter.instruction(0x15, 0, 6, 6), // jeq #6
+			BpfFilter.instruction(0x28, 0, 0, 20), // ldh [20]
+			BpfFilter.instruction(0x45, 4, 0, 0x1fff), // jset #0x1fff
+			BpfFilter.instruction(0xb1, 0, 0, 14), // ldxb 4*([14]&0xf)
+			BpfFilter.instruction(0x48, 0, 0, 16), // ldh [x + 16]
+			BpfFilter.instruction(0x15, 0, 1, 80), // jeq #80
+			BpfFilter.instruction(0x06, 0, 0, 65535), // ret #65535
+			BpfFilter.instruction(0x06, 0, 0, 0), // ret #0
+	};
+
+	private static final String[] FIXTURES = {
+			"tests/test-afs.pcap",
+			"tests/test-http-jpeg.pcap",
+			"tests/test-ipv6.pcap",
+			"tests/test-l2tp.pcap", };
+
+	private static final String[] FILTERS = {
+			"",
+			"tcp",
+			"udp port 53",
+			"ip6",
+			"ip[8] > 64",
+			"tcp[tcpflags] & (tcp-syn|tcp-fin) != 0",
+			"len > 100 and not arp",
+			"ip[2:2] / 4 < 100 or ip[2:2] % 7 = 3", };
+
+	/**
+	 * Creates an Ethernet frame with an IPv4 header with options and a TCP
+	 * header.
+	 *
+	 * @param protocol
+	 *          IP protocol
+	 * @param fragment
+	 *          fragment offset
+	 * @param dstPort
+	 *          TCP destination port
+	 * @return the frame
+	 */
+	private static byte[] frame(int protocol, int fragment, int dstPort) {
+		final ByteBuffer b = ByteBuffer.allocate(14 + 24 + 20);
+		b.putShort(12, (short) 0x800);
+		b.put(14, (byte) 0x46); // IHL of 6 words
+		b.put(23, (byte) protocol);
+		b.putShort(20, (short) fragment);
+		b.putShort(14 + 24 + 2, (short) dstPort);
+
+		return b.array();
+	}
+
+	/**
+	 * Evaluates the filter on the packet as byte array, heap and direct
+	 * ByteBuffer, each with the packet at a non-zero offset, and checks that the
+	 * results agree.
+	 *
+	 * @param filter
+	 *          the filter
+	 * @param packet
+	 *          the packet
+	 * @param wirelen
+	 *          original length
+	 * @return the result
+	 */
+	private static boolean matches(BpfFilter filter, byte[] packet, int wirelen) {
+		final int offset = 16;
+		final byte[] array = new byte[offset + packet.length + 8];
+		System.arraycopy(packet, 0, array, offset, packet.length);
+
+		final ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+		direct.put(array);
+		direct.flip();
+
+		final boolean r = filter.matches(array, offset, packet.length, wirelen);
+		assertEquals(r, filter.matches(ByteBuffer.wrap(array), offset,
+				packet.length, wirelen));
+		assertEquals(r, filter.matches(direct, offset, packet.length, wirelen));
+
+		return r;
+	}
+
+	public void testTcpPort80() {
+		final BpfFilter f = BpfFilter.compile(TCP_PORT_80);
+		assertTrue(f.isCompiled());
+		assertEquals(TCP_PORT_80.length, f.getInstructionCount());
+
+		assertTrue(matches(f, frame(6, 0, 80), 1500));
+		assertFalse(matches(f, frame(6, 0, 81), 1500));
+		assertFalse(matches(f, frame(17, 0, 80), 1500));
+		assertFalse(matches(f, frame(6, 0x20, 80), 1500));
+
+		// The port is beyond the capture length
+		final byte[] truncated = new byte[14 + 24 + 3];
+		System.arraycopy(frame(6, 0, 80), 0, truncated, 0, truncated.length);
+		assertFalse(matches(f, truncated, 1500));
+		assertFalse(matches(f, new byte[0], 0));
+	}
+
+	public void testLoadsAndArithmetic() {
+		final long[] program = {
+				BpfFilter.instruction(0x20, 0, 0, 0), // ld [0]
+				BpfFilter.instruction(0x02, 0, 0, 3), // st M[3]
+				BpfFilter.instruction(0x80, 0, 0, 0), // ld len
+				BpfFilter.instruction(0x07, 0, 0, 0), // tax
+				BpfFilter.instruction(0x60, 0, 0, 3), // ld M[3]
+				BpfFilter.instruction(0x3c, 0, 0, 0), // div x
+				BpfFilter.instruction(0x94, 0, 0, 1000), // mod #1000
+				BpfFilter.instruction(0x15, 0, 1, 18), // jeq #18
+				BpfFilter.instruction(0x06, 0, 0, 1), // ret #1
+				BpfFilter.instruction(0x06, 0, 0, 0), // ret #0
+		};
+
+		final BpfFilter f = BpfFilter.compile(program);
+		final BpfFilter i = BpfFilter.interpret(program);
+		assertFalse(i.isCompiled());
+
+		// 0xfffffff0 / 1000 = 4294967 when unsigned, and 4294967 % 1000 = 967
+		final byte[] p = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0 };
+		assertFalse(matches(f, p, 1000));
+		assertFalse(matches(i, p, 1000));
+
+		// 0xfffffff0 / 4294 = 1000225, and 1000225 % 1000 = 225
+		assertFalse(matches(f, p, 4294));
+		// 0x00004650 / 1 = 18000, and 18000 % 1000 = 0
+		final byte[] q = { 0, 0, 0x46, 0x50 };
+		assertFalse(matches(f, q, 1));
+		// 0x00004650 / 1000 = 18
+		assertTrue(matches(f, q, 1000));
+		assertTrue(matches(i, q, 1000));
+
+		// Division by zero rejects the packet
+		assertFalse(matches(f, q, 0));
+		assertFalse(matches(i, q, 0));
+	}
+
+	public void testUnsignedComparison() {
+		final long[] program = {
+				BpfFilter.instruction(0x20, 0, 0, 0), // ld [0]
+				BpfFilter.instruction(0x25, 0, 1, 0x7fffffff), // jgt #0x7fffffff
+				BpfFilter.instruction(0x06, 0, 0, 1), // ret #1
+				BpfFilter.instruction(0x06, 0, 0, 0), // ret #0
+		};
+
+		final BpfFilter f = BpfFilter.compile(program);
+		assertTrue(matches(f, new byte[] { (byte) 0x80, 0, 0, 0 }, 4));
+		assertFalse(matches(f, new byte[] { 0x7f, 0, 0, 0 }, 4));
+	}
+
+	public void testInvalidPrograms() {
+		final long ret = BpfFilter.instruction(0x06, 0, 0, 0);
+		final long[][] programs = {
+				{},
+				{ BpfFilter.instruction(0x20, 0, 0, 0) }, // no return
+				{ BpfFilter.instruction(0x05, 0, 0, 1), ret }, // jump beyond the end
+				{ BpfFilter.instruction(0x15, 1, 0, 0), ret }, // jump beyond the end
+				{ BpfFilter.instruction(0x60, 0, 0, 16), ret }, // ld M[16]
+				{ BpfFilter.instruction(0x34, 0, 0, 0), ret }, // div #0
+				{ BpfFilter.instruction(0x64, 0, 0, 32), ret }, // lsh #32
+				{ BpfFilter.instruction(0xff, 0, 0, 0), ret }, };
+
+		for (final long[] program : programs) {
+			try {
+				BpfFilter.compile(program);
+				fail("accepted invalid program of length " + program.length);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testLargeProgramIsInterpreted() {
+		final long[] program = new long[BpfFilter.MAX_INSTRUCTIONS];
+		for (int i = 0; i < program.length - 1; i++) {
+			program[i] = BpfFilter.instruction(0x20, 0, 0, i % 64); // ld [i % 64]
+		}
+		program[program.length - 1] = BpfFilter.instruction(0x16, 0, 0, 0); // ret a
+
+		final BpfFilter f = BpfFilter.compile(program);
+		assertFalse(f.isCompiled());
+		assertFalse(matches(f, new byte[128], 128));
+	}
+
+	/**
+	 * Compares the compiled filter with the interpreter on random programs that
+	 * use all instructions.
+	 */
+	public void testRandomProgramsMatchInterpreter() {
+		final int[] codes = {
+				0x00, 0x01, 0x20, 0x28, 0x30, 0x40, 0x48, 0x50, 0x60, 0x61, 0x80,
+				0x81, 0xb1, 0x02, 0x03, 0x04, 0x0c, 0x14, 0x1c, 0x24, 0x2c, 0x34,
+				0x3c, 0x44, 0x4c, 0x54, 0x5c, 0x64, 0x6c, 0x74, 0x7c, 0x84, 0x94,
+				0x9c, 0xa4, 0xac, 0x05, 0x15, 0x1d, 0x25, 0x2d, 0x35, 0x3d, 0x45,
+				0x4d, 0x07, 0x87, };
+
+		final Random random = new Random(4711);
+		for (int n = 0; n < 500; n++) {
+			final int length = 2 + random.nextInt(40);
+			final long[] program = new long[length];
+
+			for (int i = 0; i < length - 1; i++) {
+				final int c = codes[random.nextInt(codes.length)];
+				final int remaining = length - i - 1;
+				int k = (random.nextInt(10) == 0) ? random.nextInt() : random
+						.nextInt(72);
+
+				if ((c & 0x07) == 0x02 || (c & 0x07) == 0x03 || c == 0x60 || c == 0x61) {
+					k = random.nextInt(16);
+				} else if (c == 0x05) {
+					k = random.nextInt(remaining);
+				} else if (c == 0x34 || c == 0x94) {
+					k = 1 + random.nextInt(1000);
+				} else if (c == 0x64 || c == 0x74) {
+					k = random.nextInt(32);
+				}
+
+				program[i] = BpfFilter.instruction(c, random.nextInt(remaining),
+						random.nextInt(remaining), k);
+			}
+			program[length - 1] = BpfFilter.instruction(0x16, 0, 0, 0); // ret a
+
+			final BpfFilter compiled = BpfFilter.compile(program);
+			final BpfFilter interpreted = BpfFilter.interpret(program);
+			assertTrue(compiled.isCompiled());
+
+			for (int j = 0; j < 20; j++) {
+				final byte[] p = new byte[random.nextInt(80)];
+				random.nextBytes(p);
+				final int wirelen = p.length + random.nextInt(3);
+
+				assertEquals("program " + n, matches(interpreted, p, wirelen),
+						matches(compiled, p, wirelen));
+			}
+		}
+	}
+
+	/**
+	 * Compares the filters with libpcap on the fixture files. The packets that
+	 * match are compared with the packets returned by a capture with the same
+	 * filter set.
+	 */
+	public void testMatchesLibpcapOnFixtures() {
+		final StringBuilder errbuf = new StringBuilder();
+
+		for (final String fname : FIXTURES) {
+			for (final String expression : FILTERS) {
+				Pcap pcap = Pcap.openOffline(fname, errbuf);
+				assertNotNull(errbuf.toString(), pcap);
+
+				final PcapBpfProgram program = new PcapBpfProgram();
+				assertEquals(pcap.getErr(), Pcap.OK, pcap.compile(program, expression,
+						1, 0));
+				final BpfFilter compiled = BpfFilter.compile(program);
+				final BpfFilter interpreted = BpfFilter.interpret(program
+						.toLongArray());
+
+				final PcapHeader header = new PcapHeader(JMemory.POINTER);
+				final JBuffer buffer = new JBuffer(JMemory.POINTER);
+				final List<Long> matched = new ArrayList<Long>();
+				while (pcap.nextEx(header, buffer) == Pcap.NEXT_EX_OK) {
+					final boolean r = compiled.matches(header, buffer);
+					assertEquals(interpreted.matches(header, buffer), r);
+					if (r) {
+						matched.add(header.timestampInNanos() + header.caplen());
+					}
+				}
+				pcap.close();
+
+				pcap = Pcap.openOffline(fname, errbuf);
+				assertEquals(pcap.getErr(), Pcap.OK, pcap.setFilter(program));
+				final List<Long> expected = new ArrayList<Long>();
+				while (pcap.nextEx(header, buffer) == Pcap.NEXT_EX_OK) {
+					expected.add(header.timestampInNanos() + header.caplen());
+				}
+				pcap.close();
+				Pcap.freecode(program);
+
+				assertEquals(fname + ": " + expression, expected, matched);
+			}
+		}
+	}
+}
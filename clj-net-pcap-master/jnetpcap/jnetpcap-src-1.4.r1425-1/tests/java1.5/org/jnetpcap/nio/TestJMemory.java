@@ -20,6 +20,7 @@ package org.jnetpcap.nio;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
@@ -167,4 +168,132 @@ public class TestJMemory extends TestCase {
 
 	}
 
+	public void testMemoryPoolUsesOneArenaPerThread()
+			throws InterruptedException {
+
+		final int COUNT = 4;
+		final int LOOPS = 1000;
+		final JMemoryPool POOL = new JMemoryPool(1024);
+		final CountDownLatch done = new CountDownLatch(COUNT);
+		final CountDownLatch exit = new CountDownLatch(1);
+
+		for (int i = 0; i < COUNT; i++) {
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < LOOPS; i++) {
+						POOL.allocate(100, new JBuffer(JMemory.POINTER));
+					}
+
+					done.countDown();
+					try {
+						exit.await();
+					} catch (InterruptedException e) {
+						// Exit
+					}
+				}
+			}.start();
+		}
+
+		done.await();
+		List<JMemoryPool.Arena> arenas = POOL.getArenas();
+		assertEquals(COUNT, arenas.size());
+		for (JMemoryPool.Arena arena : arenas) {
+			assertEquals(LOOPS, arena.getAllocations());
+			assertEquals(LOOPS * 100, arena.getAllocatedBytes());
+			assertEquals(LOOPS / 10, arena.getBlockCount());
+		}
+		exit.countDown();
+	}
+
+	public void testMemoryPoolReleasesFreedBlocks() {
+		final JMemoryPool POOL = new JMemoryPool(1024);
+
+		JBuffer b1 = new JBuffer(JMemory.POINTER);
+		JBuffer b2 = new JBuffer(JMemory.POINTER);
+		POOL.allocate(100, b1);
+		POOL.allocate(100, b2);
+		JMemoryPool.Block block = POOL.getBlock(100);
+
+		POOL.free(b1);
+		assertFalse(b1.isInitialized());
+		POOL.retireBlocks();
+		assertFalse(block.isReleased());
+
+		POOL.free(b2);
+		assertTrue(block.isReleased());
+
+		JBuffer big = new JBuffer(JMemory.POINTER);
+		POOL.allocate(4096, big);
+		assertEquals(4096, big.size());
+		assertEquals(1, POOL.getArenas().get(0).getOversizeBlockCount());
+	}
+
+	public void testMemoryScopeReleasesAllocations() {
+		MemoryScope scope = MemoryScope.open(1024);
+		assertSame(scope, MemoryScope.current());
+
+		JBuffer owned = new JBuffer(64);
+		JBuffer pooled = JMemoryPool.buffer(100);
+		assertTrue(pooled.isInitialized());
+		assertEquals(2, scope.size());
+		assertEquals(64 + 1024, scope.getAllocatedBytes());
+
+		scope.close();
+		assertTrue(scope.isClosed());
+		assertFalse(owned.isInitialized());
+		assertNull(MemoryScope.current());
+	}
+
+	public void testMemoryScopeDoesNotUseArenaBlocks() {
+		final JMemoryPool POOL = new JMemoryPool(1024);
+		MemoryScope scope = MemoryScope.open(1024);
+
+		JBuffer unaligned = new JBuffer(JMemory.POINTER);
+		POOL.allocate(1025, unaligned);
+		assertEquals(1025, unaligned.size());
+		assertEquals(1, scope.size());
+
+		JMemoryPool.Arena arena = POOL.getArenas().get(0);
+		assertEquals(0, arena.getBlockCount());
+		assertEquals(0, arena.getOversizeBlockCount());
+
+		scope.close();
+	}
+
+	public void testMemoryScopeOnlyUntracksOwnedMemory() {
+		MemoryScope scope = MemoryScope.open();
+
+		JMemoryReference ref = new JMemoryReference(this, 0L, 0L);
+		assertTrue(ref.isTracked());
+		ref.remove();
+
+		scope.close();
+	}
+
+	public void testNestedMemoryScopes() {
+		MemoryScope outer = MemoryScope.open();
+		MemoryScope inner = MemoryScope.open();
+
+		try {
+			outer.close();
+			fail("Closing the outer scope first must fail.");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		inner.close();
+		assertSame(outer, MemoryScope.current());
+		outer.close();
+		assertNull(MemoryScope.current());
+	}
+
+	public void testReleaseFreesMemoryImmediately() {
+		JBuffer b = new JBuffer(64);
+		assertTrue(b.isOwner());
+
+		b.release();
+		assertFalse(b.isInitialized());
+		assertFalse(b.isOwner());
+	}
+
 }
@@ -20,6 +20,8 @@ package org.jnetpcap.packet;
 
 import org.jnetpcap.nio.JBuffer;
 import org.jnetpcap.nio.JMemory;
+import org.jnetpcap.packet.structure.JField;
+import org.jnetpcap.packet.structure.MethodAccessor;
 import org.jnetpcap.protocol.network.Ip4;
 
 // TODO: Auto-generated Javadoc
@@ -110,4 +112,30 @@ public class TestJHeader
 		assertEquals(489 - 34, buffer.size());
 	}
 
+	/**
+	 * Test that the values of annotated fields are read via generated accessors
+	 * and match the values of the getter methods.
+	 * 
+	 * @throws Exception
+	 *           the exception
+	 */
+	public void testAnnotatedFieldValuesViaAccessors() throws Exception {
+		JPacket packet = TestUtils.getPcapPacket(HTTP, 5);
+
+		Ip4 ip = packet.getHeader(new Ip4());
+		assertNotNull(ip);
+
+		assertFalse(MethodAccessor.forMethod(Ip4.class.getMethod("ttl"))
+				.isReflective());
+
+		for (JField field : ip.getFields()) {
+			if ("ttl".equals(field.getName())) {
+				assertEquals(ip.ttl(), field.longValue(ip));
+				assertEquals(ip.ttl(), field.getValue(ip));
+			} else if ("hlen".equals(field.getName())) {
+				assertEquals(ip.hlen(), field.longValue(ip));
+			}
+		}
+	}
+
 }
@@ -20,6 +20,7 @@ package org.jnetpcap.packet;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 
 import org.jnetpcap.ByteBufferHandler;
 import org.jnetpcap.JBufferHandler;
@@ -311,6 +312,66 @@ public class TestJScanner
 
 	}
 
+	/**
+	 * Test that each thread gets its own thread local scanner.
+	 * 
+	 * @throws InterruptedException
+	 *           the interrupted exception
+	 */
+	public void testThreadLocalScannerPerThread() throws InterruptedException {
+		final JScanner[] other = new JScanner[1];
+		Thread t = new Thread() {
+			public void run() {
+				other[0] = JScanner.getThreadLocal();
+			}
+		};
+		t.start();
+		t.join();
+
+		assertSame(JScanner.getThreadLocal(), JScanner.getThreadLocal());
+		assertNotNull(other[0]);
+		assertNotSame(JScanner.getThreadLocal(), other[0]);
+	}
+
+	/**
+	 * Test that flag changes made in one thread are picked up by an already
+	 * initialized scanner of another thread.
+	 * 
+	 * @throws InterruptedException
+	 *           the interrupted exception
+	 */
+	public void testFlagOverridePropagatesToOtherThreads()
+	    throws InterruptedException {
+		final CountDownLatch scanned = new CountDownLatch(1);
+		final CountDownLatch flagsChanged = new CountDownLatch(1);
+		final boolean[] hasHttp = new boolean[2];
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					hasHttp[0] = getPcapPacket(HTTP, 5).hasHeader(JProtocol.HTTP_ID);
+					scanned.countDown();
+					flagsChanged.await();
+					hasHttp[1] = getPcapPacket(HTTP, 5).hasHeader(JProtocol.HTTP_ID);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		t.start();
+
+		scanned.await();
+		JScanner.bindingOverride(JProtocol.TCP_ID, true);
+		JScanner.heuristicCheck(JProtocol.TCP_ID, false);
+		flagsChanged.countDown();
+		t.join();
+
+		assertTrue(hasHttp[0]);
+		assertFalse(hasHttp[1]);
+
+		JScanner.heuristicCheck(JProtocol.TCP_ID, true);
+	}
+
 	/**
 	 * Test flag post heuristics.
 	 */
@@ -0,0 +1,272 @@
+/*
+ * This file is part of jNetPcap.
+ *
+ * jNetPcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jnetpcap.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.jnetpcap.util.resolver.AbstractResolver;
+import org.jnetpcap.util.resolver.AsyncResolver;
+
+/**
+ * Tests the asynchronous resolver with a stub resolver instead of DNS.
+ *
+ * @author Ruediger Gad
+ */
+public class TestAsyncResolver
+    extends TestCase {
+
+	/**
+	 * Resolves addresses with a last byte of 1 to "host-1" and fails for all
+	 * other addresses. Lookups block until released.
+	 */
+	private static class StubResolver
+	    extends AbstractResolver {
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final AtomicInteger lookups = new AtomicInteger();
+
+		String cacheFile;
+
+		StubResolver() {
+			super(Logger.getLogger(StubResolver.class.getName()), "STUB");
+		}
+
+		@Override
+		public int saveCache() throws IOException {
+			return saveCache(cacheFile);
+		}
+
+		@Override
+		public int loadCache() throws IOException {
+			return (cacheFile == null) ? 0 : loadCache(cacheFile);
+		}
+
+		@Override
+		protected String resolveToName(byte[] address, long hash) {
+			lookups.incrementAndGet();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return null;
+			}
+
+			return (address[3] == 1) ? "host-1" : null;
+		}
+
+		@Override
+		protected String resolveToName(long number, long hash) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected long toHashCode(byte[] address) {
+			return ((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16)
+			    | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF);
+		}
+	}
+
+	private static final byte[] HOST_1 = new byte[] { 10, 0, 0, 1 };
+
+	private static final byte[] HOST_2 = new byte[] { 10, 0, 0, 2 };
+
+	private StubResolver stub;
+
+	private AsyncResolver resolver;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		stub = new StubResolver();
+		resolver = new AsyncResolver(stub, 2, 16);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		stub.release.countDown();
+		resolver.shutdown();
+	}
+
+	/**
+	 * A miss returns immediately and the name is available once the lookup
+	 * completed.
+	 *
+	 * @throws Exception
+	 */
+	public void testResolveDoesNotBlock() throws Exception {
+		assertNull(resolver.resolve(HOST_1));
+		assertTrue(resolver.isPending(HOST_1));
+		assertFalse(resolver.isCached(HOST_1));
+
+		stub.release.countDown();
+		assertEquals("host-1", resolver.resolveAsync(HOST_1).get(10,
+		    TimeUnit.SECONDS));
+
+		assertTrue(resolver.isCached(HOST_1));
+		assertEquals("host-1", resolver.resolve(HOST_1));
+		assertEquals(1, stub.lookups.get());
+	}
+
+	/**
+	 * Concurrent requests for the same address result in a single lookup.
+	 *
+	 * @throws Exception
+	 */
+	public void testDuplicateLookupsAreCoalesced() throws Exception {
+		Future<String> f1 = resolver.resolveAsync(HOST_1);
+		for (int i = 0; i < 100; i++) {
+			assertNull(resolver.resolve(HOST_1));
+		}
+		Future<String> f2 = resolver.resolveAsync(HOST_1);
+		assertSame(f1, f2);
+
+		stub.release.countDown();
+		assertEquals("host-1", f1.get(10, TimeUnit.SECONDS));
+		assertEquals(1, stub.lookups.get());
+		assertEquals(1, resolver.getLookupCount());
+	}
+
+	/**
+	 * Failed lookups are cached as negative entries.
+	 *
+	 * @throws Exception
+	 */
+	public void testNegativeEntries() throws Exception {
+		stub.release.countDown();
+		assertNull(resolver.resolveAsync(HOST_2).get(10, TimeUnit.SECONDS));
+
+		assertTrue(resolver.isCached(HOST_2));
+		assertFalse(resolver.isPending(HOST_2));
+		assertNull(resolver.resolve(HOST_2));
+		assertFalse(resolver.isPending(HOST_2));
+		assertEquals(1, stub.lookups.get());
+	}
+
+	/**
+	 * Entries time out and are looked up again.
+	 *
+	 * @throws Exception
+	 */
+	public void testTimeout() throws Exception {
+		stub.release.countDown();
+		resolver.setPositiveTimeout(1);
+		resolver.resolveAsync(HOST_1).get(10, TimeUnit.SECONDS);
+
+		Thread.sleep(10);
+		assertFalse(resolver.isCached(HOST_1));
+		resolver.resolveAsync(HOST_1).get(10, TimeUnit.SECONDS);
+		assertEquals(2, stub.lookups.get());
+	}
+
+	/**
+	 * The number of cache entries is bounded.
+	 */
+	public void testMaxEntries() {
+		resolver.setMaxEntries(100);
+		for (int i = 0; i < 1000; i++) {
+			resolver.addToCache(i, "host-" + i);
+		}
+
+		assertTrue(resolver.size() <= 100);
+	}
+
+	/**
+	 * Lookups that do not fit in the queue are dropped.
+	 */
+	public void testBoundedQueue() {
+		for (int i = 0; i < 100; i++) {
+			resolver.resolve(new byte[] { 10, 0, 1, (byte) i });
+		}
+
+		assertEquals(100, resolver.getLookupCount() + resolver.getDroppedCount());
+		assertTrue(resolver.getDroppedCount() > 0);
+	}
+
+	/**
+	 * The cache is saved via the wrapped resolver and can be loaded again.
+	 *
+	 * @throws Exception
+	 */
+	public void testSaveAndLoadCache() throws Exception {
+		final File file = File.createTempFile("async-resolver", ".cache");
+		try {
+			stub.cacheFile = file.getPath();
+			stub.release.countDown();
+			resolver.resolveAsync(HOST_1).get(10, TimeUnit.SECONDS);
+
+			assertEquals(1, resolver.saveCache());
+
+			final AsyncResolver loaded = new AsyncResolver(new StubResolver(), 1, 1);
+			try {
+				assertEquals(1, loaded.loadCache(file.toURI().toURL()));
+				assertTrue(loaded.isCached(HOST_1));
+				assertEquals("host-1", loaded.resolve(HOST_1));
+			} finally {
+				loaded.shutdown();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * The cache file of the wrapped resolver is used when the resolver is
+	 * initialized, so cached names are not looked up again.
+	 *
+	 * @throws Exception
+	 */
+	public void testInitializeSeedsCacheFromWrappedResolver() throws Exception {
+		final File file = File.createTempFile("async-resolver", ".cache");
+		try {
+			stub.cacheFile = file.getPath();
+			stub.release.countDown();
+			resolver.resolveAsync(HOST_1).get(10, TimeUnit.SECONDS);
+			assertEquals(1, resolver.saveCache());
+
+			final StubResolver restarted = new StubResolver();
+			restarted.cacheFile = file.getPath();
+			final AsyncResolver loaded = new AsyncResolver(restarted, 1, 1);
+			try {
+				loaded.initializeIfNeeded();
+				assertTrue(loaded.isCached(HOST_1));
+				assertEquals("host-1", loaded.resolve(HOST_1));
+				assertEquals(0, restarted.lookups.get());
+			} finally {
+				loaded.shutdown();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -6,7 +6,7 @@
                  [org.clojure/tools.cli "0.4.1"]
                  [cli4clj "1.7.1"]
                  [clj-assorted-utils "1.18.3"]
-                 [jnetpcap "1.4.r1425-1g"]]
+                 [jnetpcap "1.4.r1425-1h"]]
   :min-lein-version "2.0.0"
   :aot [#"^clj-net-pcap.*"]
   :global-vars {*warn-on-reflection* true}
@@ -24,5 +24,9 @@
                    :main-cli :main-cli}
   :plugins [[lein-cloverage "1.0.2"]]
   :profiles {:uberjar {:source-paths ["src" "src-main"]}
-             :run {:source-paths ["src" "src-main"]}}
+             :run {:source-paths ["src" "src-main"]}
+             :bench {:java-source-paths ["bench-java"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.21"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.21"]]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]}
 )
@@ -0,0 +1,345 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.jnetpcap.BulkByteBufferHandler;
+import org.jnetpcap.JBufferHandler;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PcapPacketHandler;
+
+/**
+ * Batching writer for pcap files with micro second timestamps.
+ *
+ * Packets are copied into the off-heap staging buffers of DoubleBufferedFileWriter,
+ * which are written by a background thread with a single FileChannel write each.
+ * When both buffers are in use, i.e., the file can not keep up with the capture,
+ * packets are dropped instead of blocking the capture thread and are counted as drops.
+ * This also applies to packets that are due to start the next file while the
+ * previous buffer is still being written.
+ *
+ * The files are written in native byte order.
+ * Hence, the bulk buffers as created by Pcap.loop(cnt, bulkSize, snapLen, true, ...),
+ * which consist of records with a 16 byte header of int seconds, int micro seconds,
+ * int capture length, and int wire length in native byte order followed by the data,
+ * have the layout of pcap records and are copied with a single put per bulk.
+ *
+ * Files can be rotated by size and/or by time.
+ * The first file has the given name; subsequent files get the suffix ".1", ".2", and so on.
+ * Time based rotation uses the packet timestamps.
+ *
+ * A dumper is meant to be used by a single producer thread.
+ */
+public class BatchedPcapDumper extends DoubleBufferedFileWriter implements JBufferHandler<Object>, PcapPacketHandler<Object>,
+        BulkByteBufferHandler<Object> {
+
+    public static final int MAGIC_USEC = 0xA1B2C3D4;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+    private final String fileName;
+    private final int linkType;
+    private final int snapLen;
+    private final long maxFileBytes;
+    private final long maxFileSeconds;
+
+    private long fileBytes = 0;
+    private long fileStartSeconds = -1;
+
+    private long packetCount = 0;
+    private long dropCount = 0;
+    private volatile int fileCount = 1;
+
+    public BatchedPcapDumper(String fileName, int linkType, int snapLen) throws IOException {
+        this(fileName, linkType, snapLen, DEFAULT_BUFFER_SIZE, 0, 0, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Creates a dumper and writes the global header of the first file.
+     *
+     * bufferSize is the size of each of the two staging buffers in bytes.
+     * maxFileBytes and maxFileSeconds limit the size and the time span of a file;
+     * values less than or equal 0 disable the respective rotation.
+     * commitInterval is the maximum time in milliseconds that packets are kept
+     * in memory before they are written; values less than or equal 0 disable the periodic commit.
+     */
+    public BatchedPcapDumper(String fileName, int linkType, int snapLen, int bufferSize,
+                             long maxFileBytes, long maxFileSeconds, long commitInterval) throws IOException {
+        super(openChannel(fileName, bufferSize), bufferSize, ByteOrder.nativeOrder(), commitInterval);
+
+        this.fileName = fileName;
+        this.linkType = linkType;
+        this.snapLen = snapLen;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileSeconds = maxFileSeconds;
+
+        putGlobalHeader();
+        start("BatchedPcapDumper");
+    }
+
+    private static FileChannel openChannel(String fileName, int bufferSize) throws IOException {
+        if (bufferSize < MappedPcapReader.GLOBAL_HEADER_SIZE + MappedPcapReader.RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        return new FileOutputStream(fileName).getChannel();
+    }
+
+    /**
+     * Name of the file with the given index, starting with 0 for the first file.
+     */
+    public String getFileName(int index) {
+        return (index == 0) ? fileName : fileName + "." + index;
+    }
+
+    private void putGlobalHeader() {
+        active.putInt(MAGIC_USEC);
+        active.putShort((short) 2);
+        active.putShort((short) 4);
+        active.putInt(0);
+        active.putInt(0);
+        active.putInt(snapLen);
+        active.putInt(linkType);
+        fileBytes = MappedPcapReader.GLOBAL_HEADER_SIZE;
+        fileStartSeconds = -1;
+    }
+
+    /**
+     * Dumps the remaining bytes of data as one packet.
+     * The position of data is not changed.
+     * Returns false if the packet was dropped because the staging buffers are full.
+     */
+    public boolean dump(long seconds, int useconds, int wireLen, ByteBuffer data) throws IOException {
+        int capLen = data.remaining();
+        lock.lock();
+        try {
+            if (!beginPacket(seconds, MappedPcapReader.RECORD_HEADER_SIZE + capLen)) {
+                dropCount++;
+                return false;
+            }
+            putRecordHeader(seconds, useconds, capLen, wireLen);
+            active.put(data.duplicate());
+            packetDone(MappedPcapReader.RECORD_HEADER_SIZE + capLen);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Dumps the given data as one packet.
+     * Returns false if the packet was dropped because the staging buffers are full.
+     */
+    public boolean dump(PcapHeader hdr, JBuffer data) throws IOException {
+        int capLen = data.size();
+        long seconds = hdr.hdr_sec();
+        lock.lock();
+        try {
+            if (!beginPacket(seconds, MappedPcapReader.RECORD_HEADER_SIZE + capLen)) {
+                dropCount++;
+                return false;
+            }
+            putRecordHeader(seconds, hdr.hdr_usec(), capLen, hdr.hdr_wirelen());
+            data.transferTo(active);
+            packetDone(MappedPcapReader.RECORD_HEADER_SIZE + capLen);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Dumps all records of a bulk buffer with int timestamps as created by Pcap.loop(cnt, bulkSize, ...).
+     * Consecutive records are copied with a single put.
+     * The position of bulk is not changed.
+     * Returns the number of dumped packets; the remaining packets were dropped.
+     */
+    public int dumpBulk(ByteBuffer bulk) throws IOException {
+        ByteBuffer src = bulk.duplicate().order(ByteOrder.nativeOrder());
+        int end = src.limit();
+        int offset = src.position();
+        int dumped = 0;
+
+        lock.lock();
+        try {
+            while (offset + MappedPcapReader.RECORD_HEADER_SIZE <= end) {
+                int first = MappedPcapReader.RECORD_HEADER_SIZE + src.getInt(offset + 8);
+                if (offset + first > end) {
+                    throw new IOException("Truncated record in bulk buffer at offset " + offset);
+                }
+                if (!beginPacket(src.getInt(offset) & 0xFFFFFFFFL, first)) {
+                    dropCount += countRecords(src, offset, end);
+                    break;
+                }
+
+                // Extend the run as long as the records fit in the file and in the staging buffer.
+                int runEnd = offset + first;
+                int runPackets = 1;
+                long runBytes = first;
+                while (runEnd + MappedPcapReader.RECORD_HEADER_SIZE <= end) {
+                    int len = MappedPcapReader.RECORD_HEADER_SIZE + src.getInt(runEnd + 8);
+                    if (runEnd + len > end
+                            || runBytes + len > active.remaining()
+                            || rotationDue(src.getInt(runEnd) & 0xFFFFFFFFL, runBytes + len)) {
+                        break;
+                    }
+                    runEnd += len;
+                    runBytes += len;
+                    runPackets++;
+                }
+
+                src.limit(runEnd).position(offset);
+                active.put(src);
+                src.limit(end);
+                fileBytes += runBytes;
+                packetCount += runPackets;
+                dumped += runPackets;
+                offset = runEnd;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return dumped;
+    }
+
+    private static int countRecords(ByteBuffer src, int offset, int end) {
+        int n = 0;
+        while (offset + MappedPcapReader.RECORD_HEADER_SIZE <= end) {
+            offset += MappedPcapReader.RECORD_HEADER_SIZE + src.getInt(offset + 8);
+            n++;
+        }
+        return n;
+    }
+
+    private void putRecordHeader(long seconds, int useconds, int capLen, int wireLen) {
+        active.putInt((int) seconds);
+        active.putInt(useconds);
+        active.putInt(capLen);
+        active.putInt(wireLen);
+    }
+
+    private boolean rotationDue(long seconds, long size) {
+        return (maxFileBytes > 0 && fileBytes + size > maxFileBytes
+                    && fileBytes > MappedPcapReader.GLOBAL_HEADER_SIZE)
+            || (maxFileSeconds > 0 && fileStartSeconds >= 0 && seconds >= fileStartSeconds + maxFileSeconds);
+    }
+
+    /**
+     * Rotates the file if needed and ensures that size bytes can be put into the active buffer.
+     * Returns false if the packet has to be dropped; the caller counts the drop.
+     * Must be called with the lock held.
+     */
+    private boolean beginPacket(long seconds, int size) throws IOException {
+        checkState();
+        if (rotationDue(seconds, size)) {
+            if (isPending()) {
+                return false;
+            }
+            rotate();
+        }
+        if (fileStartSeconds < 0) {
+            fileStartSeconds = seconds;
+        }
+
+        if (active.remaining() < size) {
+            if (isPending()) {
+                return false;
+            }
+            handOff(false);
+            ensureActiveCapacity(size);
+        }
+        return true;
+    }
+
+    private void packetDone(int size) {
+        fileBytes += size;
+        packetCount++;
+    }
+
+    /**
+     * Hands off the data of the current file and starts the next file in the active buffer.
+     * No buffer must be pending.
+     * Must be called with the lock held.
+     */
+    private void rotate() {
+        handOff(true);
+        putGlobalHeader();
+    }
+
+    @Override
+    protected FileChannel nextChannel() throws IOException {
+        channel.close();
+        FileChannel next = new FileOutputStream(getFileName(fileCount)).getChannel();
+        fileCount++;
+        return next;
+    }
+
+    public void nextPacket(PcapHeader hdr, JBuffer data, Object user) {
+        try {
+            dump(hdr, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void nextPacket(PcapPacket packet, Object user) {
+        try {
+            dump(packet.getCaptureHeader(), packet);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void nextPacket(ByteBuffer bulk, Object user) {
+        try {
+            dumpBulk(bulk);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Number of packets that were accepted, including packets that may not have been written yet.
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Number of packets that were dropped because the staging buffers were full.
+     */
+    public long getDropCount() {
+        return dropCount;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+}
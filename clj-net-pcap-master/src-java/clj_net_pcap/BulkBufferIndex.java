@@ -0,0 +1,134 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Index of the record offsets in a bulk buffer as emitted by the bulk capture loop.
+ *
+ * Each record consists of a 16 byte header, with the capture length at offset 8,
+ * followed by the packet data.
+ * The offsets are computed in a single pass.
+ * Afterwards, the records can be processed independently, e.g., split into
+ * ranges that are processed in parallel with results stored by record index.
+ *
+ * Heap buffers are indexed in place.
+ * Direct buffers are copied with a single bulk get into a reused array first,
+ * so the extraction functions, which work on byte arrays, can be applied and
+ * the native buffer can be released right after indexing.
+ *
+ * An index is reused for subsequent buffers and is not thread safe.
+ * forCurrentThread returns an index per thread.
+ */
+public class BulkBufferIndex {
+
+    public static final int RECORD_HEADER_SIZE = 16;
+
+    private static final ThreadLocal<BulkBufferIndex> INDEXES = new ThreadLocal<BulkBufferIndex>() {
+        @Override
+        protected BulkBufferIndex initialValue() {
+            return new BulkBufferIndex();
+        }
+    };
+
+    private byte[] array;
+    private byte[] copy = new byte[0];
+    private int[] offsets = new int[64];
+    private int size = 0;
+
+    public static BulkBufferIndex forCurrentThread() {
+        return INDEXES.get();
+    }
+
+    /**
+     * Indexes the remaining bytes of bb and returns the number of records.
+     * The position of bb is not changed.
+     */
+    public int index(ByteBuffer bb) {
+        int start;
+        int end;
+        if (bb.hasArray()) {
+            array = bb.array();
+            start = bb.arrayOffset() + bb.position();
+            end = bb.arrayOffset() + bb.limit();
+        } else {
+            int len = bb.remaining();
+            if (copy.length < len) {
+                copy = new byte[len];
+            }
+            bb.duplicate().get(copy, 0, len);
+            array = copy;
+            start = 0;
+            end = len;
+        }
+        return index(array, start, end);
+    }
+
+    /**
+     * Indexes the records in ba from start (inclusive) to end (exclusive) and returns the number of records.
+     * A truncated record at the end is ignored.
+     */
+    public int index(byte[] ba, int start, int end) {
+        array = ba;
+        size = 0;
+        int offset = start;
+        while (offset + RECORD_HEADER_SIZE <= end) {
+            int next = offset + RECORD_HEADER_SIZE + ByteArrayHelper.getIntBigEndian(ba, offset + 8);
+            if (next > end || next <= offset) {
+                break;
+            }
+            if (size == offsets.length) {
+                int[] tmp = new int[size * 2];
+                System.arraycopy(offsets, 0, tmp, 0, size);
+                offsets = tmp;
+            }
+            offsets[size++] = offset;
+            offset = next;
+        }
+        return size;
+    }
+
+    /**
+     * The array of the indexed records.
+     * For direct buffers, this is a copy that is overwritten when the next buffer is indexed.
+     */
+    public byte[] getArray() {
+        return array;
+    }
+
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * The offsets of the records; only the first size() entries are valid.
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
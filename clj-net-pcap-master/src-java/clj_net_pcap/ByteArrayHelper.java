@@ -88,6 +88,18 @@ public class ByteArrayHelper {
             (array[index] & 0xFF) << 56;
     }
 
+    /**
+     * Get the six bytes of the ethernet address starting at index packed into the lower 48 bits of a long.
+     */
+    public static long getEthernetAddress(byte[] array, int index) {
+        return (array[index+5] & 0xFFL) |
+            (array[index+4] & 0xFFL) << 8 |
+            (array[index+3] & 0xFFL) << 16 |
+            (array[index+2] & 0xFFL) << 24 |
+            (array[index+1] & 0xFFL) << 32 |
+            (array[index] & 0xFFL) << 40;
+    }
+
     public static byte[] ethMacStringToByteArrayUnchecked(String str) {
         byte[] ret = new byte[6];
 
@@ -0,0 +1,313 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for file writers that stage data in two off-heap buffers.
+ *
+ * Subclasses put their data into the active buffer while holding the lock.
+ * Full buffers are handed off to a background thread that writes them with FileChannel writes
+ * while the producer fills the other buffer.
+ * Additionally, the background thread commits pending data after the commit interval,
+ * so data is written in large chunks with bounded latency.
+ * When a buffer is handed off with rotation, the background thread continues with the
+ * channel returned by nextChannel after writing it.
+ * By default, nextChannel returns the current channel, i.e., rotation is a no-op for writers
+ * that do not override it.
+ *
+ * Subclasses call start at the end of their constructor.
+ */
+public abstract class DoubleBufferedFileWriter implements Closeable {
+
+    protected final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition pendingWritten = lock.newCondition();
+
+    /**
+     * The buffer that is currently filled by the producer; must only be accessed with the lock held.
+     */
+    protected ByteBuffer active;
+    private ByteBuffer spare;
+    private ByteBuffer pending;
+    private boolean pendingRotate = false;
+    private boolean closed = false;
+    private volatile IOException error;
+
+    /**
+     * The current channel; replaced by the background thread when a file is rotated.
+     */
+    protected FileChannel channel;
+    private final ByteOrder order;
+    private final long commitInterval;
+    private Thread writerThread;
+    private volatile long bytesWritten = 0;
+
+    /**
+     * bufferSize is the size of each of the two buffers in bytes.
+     * commitInterval is the maximum time in milliseconds that data is kept
+     * in memory before it is written; values less than or equal 0 disable the periodic commit.
+     */
+    protected DoubleBufferedFileWriter(FileChannel channel, int bufferSize, ByteOrder order, long commitInterval) {
+        this.channel = channel;
+        this.order = order;
+        this.commitInterval = commitInterval;
+        this.active = ByteBuffer.allocateDirect(bufferSize).order(order);
+        this.spare = ByteBuffer.allocateDirect(bufferSize).order(order);
+    }
+
+    /**
+     * Starts the background thread.
+     */
+    protected void start(String threadName) {
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, threadName);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Returns the channel to continue with after a rotation.
+     * Called by the background thread after the buffer that was handed off with rotation was written.
+     * Subclasses that rotate close the current channel and return the next one.
+     */
+    protected FileChannel nextChannel() throws IOException {
+        return channel;
+    }
+
+    /**
+     * Hands off pending data after the commit interval elapsed.
+     * Called by the background thread with the lock held and no buffer pending.
+     */
+    protected void commit() throws IOException {
+        handOff(false);
+    }
+
+    /**
+     * Called by flush with the lock held before the active buffer is handed off,
+     * e.g., for moving data that is kept elsewhere to the active buffer.
+     */
+    protected void beforeFlush() throws IOException {
+    }
+
+    /**
+     * Called by close after the background thread finished and before the channel is closed.
+     */
+    protected void closeResources() {
+    }
+
+    /**
+     * True while the background thread has not finished writing the previously handed off buffer.
+     * Must be called with the lock held.
+     */
+    protected boolean isPending() {
+        return pending != null;
+    }
+
+    /**
+     * Replaces the active buffer with a larger one if it can not hold size bytes.
+     * The active buffer must be empty, e.g., after a hand-off.
+     * Must be called with the lock held.
+     */
+    protected void ensureActiveCapacity(int size) {
+        if (active.capacity() < size) {
+            active = ByteBuffer.allocateDirect(size).order(order);
+        }
+    }
+
+    /**
+     * Passes the active buffer to the background thread and continues with the spare buffer.
+     * No buffer must be pending.
+     * If rotate is true, the background thread continues with the next channel after writing the buffer.
+     * Must be called with the lock held.
+     */
+    protected void handOff(boolean rotate) {
+        if (active.position() == 0 && !rotate) {
+            return;
+        }
+        active.flip();
+        pending = active;
+        pendingRotate = rotate;
+        active = spare;
+        spare = null;
+        pendingAvailable.signal();
+    }
+
+    /**
+     * Waits while the background thread is still writing the previously handed off buffer.
+     * Must be called with the lock held.
+     */
+    protected void awaitPendingWritten() throws IOException {
+        try {
+            while (pending != null) {
+                pendingWritten.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer thread.");
+        }
+        checkError();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer buf;
+            boolean rotate;
+            lock.lock();
+            try {
+                while (pending == null) {
+                    if (closed) {
+                        return;
+                    }
+                    if (commitInterval > 0) {
+                        if (!pendingAvailable.await(commitInterval, TimeUnit.MILLISECONDS) && pending == null) {
+                            try {
+                                commit();
+                            } catch (IOException e) {
+                                error = e;
+                            }
+                        }
+                    } else {
+                        pendingAvailable.await();
+                    }
+                }
+                buf = pending;
+                rotate = pendingRotate;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                while (buf.hasRemaining()) {
+                    bytesWritten += channel.write(buf);
+                }
+                if (rotate) {
+                    channel = nextChannel();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                buf.clear();
+                spare = buf;
+                pending = null;
+                pendingRotate = false;
+                pendingWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Throws an IOException when the writer was closed or the background thread failed.
+     */
+    protected void checkState() throws IOException {
+        if (closed) {
+            throw new IOException(getClass().getSimpleName() + " is closed.");
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        IOException e = error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Accounts bytes that were written to the channel directly, e.g., a file header.
+     */
+    protected void addBytesWritten(long n) {
+        bytesWritten += n;
+    }
+
+    /**
+     * Writes all data to the channel and waits until it was written.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            beforeFlush();
+            awaitPendingWritten();
+            handOff(false);
+            awaitPendingWritten();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flush();
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                pendingAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeResources();
+            channel.close();
+        }
+    }
+
+    /**
+     * Number of bytes written to all channels.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+}
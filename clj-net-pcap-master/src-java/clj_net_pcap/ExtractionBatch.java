@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar batch of values extracted from multiple packets via the byte array extraction DSL.
+ *
+ * Each column is a primitive long array with one entry per row, i.e., per packet.
+ * The kinds of the columns and their encoding are the same as for ExtractionRecord.
+ * In addition, String values are supported via a dictionary per column;
+ * the column then stores the index of the String in the dictionary.
+ *
+ * Batches are meant to be reused via clear().
+ * The columns grow as needed, so a reused batch stops allocating once it
+ * reached the size of the largest bulk.
+ * A batch is not thread safe.
+ */
+public class ExtractionBatch {
+
+    private static final int BINARY_MAGIC = 0x434E5042;
+
+    private final String[] names;
+    private final int[] kinds;
+    private final long[][] columns;
+    private final List<Map<String, Integer>> dictIndexes;
+    private final List<List<String>> dictValues;
+    private int size = 0;
+
+    public ExtractionBatch(String[] names, int[] kinds, int capacity) {
+        if (names.length != kinds.length) {
+            throw new IllegalArgumentException("Got " + names.length + " names but " + kinds.length + " kinds.");
+        }
+        this.names = names;
+        this.kinds = kinds;
+        this.columns = new long[names.length][Math.max(1, capacity)];
+        this.dictIndexes = new ArrayList<Map<String, Integer>>(names.length);
+        this.dictValues = new ArrayList<List<String>>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            boolean isString = (kinds[i] == ExtractionRecord.KIND_STRING);
+            dictIndexes.add(isString ? new HashMap<String, Integer>() : null);
+            dictValues.add(isString ? new ArrayList<String>() : null);
+        }
+    }
+
+    /**
+     * Creates a new, empty batch with the same layout and capacity as this batch.
+     */
+    public ExtractionBatch newInstance() {
+        return new ExtractionBatch(names, kinds, capacity());
+    }
+
+    /**
+     * Adds a row and returns its index.
+     * The values of the new row are undefined until they are set.
+     */
+    public int addRow() {
+        if (size == capacity()) {
+            int newCapacity = capacity() * 2;
+            for (int i = 0; i < columns.length; i++) {
+                long[] column = new long[newCapacity];
+                System.arraycopy(columns[i], 0, column, 0, size);
+                columns[i] = column;
+            }
+        }
+        return size++;
+    }
+
+    /**
+     * Removes all rows and clears the dictionaries.
+     * The allocated columns are kept.
+     */
+    public void clear() {
+        size = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (dictIndexes.get(i) != null) {
+                dictIndexes.get(i).clear();
+                dictValues.get(i).clear();
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return (columns.length > 0) ? columns[0].length : Integer.MAX_VALUE;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getName(int col) {
+        return names[col];
+    }
+
+    public int getKind(int col) {
+        return kinds[col];
+    }
+
+    /**
+     * Returns the raw values of the given column.
+     * Only the first size() entries are valid.
+     * The returned array is replaced when the batch grows.
+     */
+    public long[] getColumn(int col) {
+        return columns[col];
+    }
+
+    /**
+     * Returns the dictionary of a String column or null for other columns.
+     */
+    public List<String> getDictionary(int col) {
+        return dictValues.get(col);
+    }
+
+    public void setLong(int col, int row, long value) {
+        columns[col][row] = value;
+    }
+
+    public long getLong(int col, int row) {
+        return columns[col][row];
+    }
+
+    public void setDouble(int col, int row, double value) {
+        columns[col][row] = Double.doubleToRawLongBits(value);
+    }
+
+    public double getDouble(int col, int row) {
+        return Double.longBitsToDouble(columns[col][row]);
+    }
+
+    public void setString(int col, int row, String value) {
+        Map<String, Integer> index = dictIndexes.get(col);
+        Integer code = index.get(value);
+        if (code == null) {
+            List<String> values = dictValues.get(col);
+            code = values.size();
+            values.add(value);
+            index.put(value, code);
+        }
+        columns[col][row] = code;
+    }
+
+    public String getString(int col, int row) {
+        return dictValues.get(col).get((int) columns[col][row]);
+    }
+
+    /**
+     * Returns the boxed value, or the formatted String in case of addresses.
+     */
+    public Object getValue(int col, int row) {
+        switch (kinds[col]) {
+        case ExtractionRecord.KIND_DOUBLE:
+            return getDouble(col, row);
+        case ExtractionRecord.KIND_IPV4:
+        case ExtractionRecord.KIND_ETHERNET:
+        case ExtractionRecord.KIND_STRING:
+            return format(col, row);
+        default:
+            return columns[col][row];
+        }
+    }
+
+    public String format(int col, int row) {
+        switch (kinds[col]) {
+        case ExtractionRecord.KIND_DOUBLE:
+            return Double.toString(getDouble(col, row));
+        case ExtractionRecord.KIND_IPV4:
+            return ExtractionRecord.formatIpv4((int) columns[col][row]);
+        case ExtractionRecord.KIND_ETHERNET:
+            return ExtractionRecord.formatEthernet(columns[col][row]);
+        case ExtractionRecord.KIND_STRING:
+            return getString(col, row);
+        default:
+            return Long.toString(columns[col][row]);
+        }
+    }
+
+    /**
+     * Writes the rows as CSV lines in the same way as the :csv-str DSL output type.
+     * As the ARFF data section uses the same format, this can also be used
+     * for writing ARFF data after the header from get-arff-header.
+     */
+    public void writeCsv(Writer w) throws IOException {
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < columns.length; col++) {
+                if (col > 0) {
+                    w.write(',');
+                }
+                switch (kinds[col]) {
+                case ExtractionRecord.KIND_IPV4:
+                case ExtractionRecord.KIND_ETHERNET:
+                case ExtractionRecord.KIND_STRING:
+                    w.write('"');
+                    w.write(format(col, row));
+                    w.write('"');
+                    break;
+                case ExtractionRecord.KIND_DOUBLE:
+                    w.write(Double.toString(getDouble(col, row)));
+                    break;
+                default:
+                    w.write(Long.toString(columns[col][row]));
+                }
+            }
+            w.write('\n');
+        }
+    }
+
+    /**
+     * Writes the batch in a simple binary, column oriented format.
+     *
+     * The batch starts with the magic number 0x434E5042, the number of rows,
+     * and the number of columns as int.
+     * For each column, the name (UTF), the kind (byte), and, for String
+     * columns, the number of dictionary entries followed by the entries (UTF)
+     * are written.
+     * Afterwards, the values of each column are written as longs, column by column.
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(size);
+        out.writeInt(columns.length);
+        for (int col = 0; col < columns.length; col++) {
+            out.writeUTF(names[col]);
+            out.writeByte(kinds[col]);
+            List<String> dict = dictValues.get(col);
+            if (dict != null) {
+                out.writeInt(dict.size());
+                for (String s : dict) {
+                    out.writeUTF(s);
+                }
+            }
+        }
+        for (int col = 0; col < columns.length; col++) {
+            long[] column = columns[col];
+            for (int row = 0; row < size; row++) {
+                out.writeLong(column[row]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeCsv(sw);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sw.toString();
+    }
+
+}
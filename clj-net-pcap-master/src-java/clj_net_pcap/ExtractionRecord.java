@@ -0,0 +1,220 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Record of primitive values extracted from a packet via the byte array extraction DSL.
+ *
+ * All values are stored in a single long array.
+ * Floating point values are stored as their raw long bits.
+ * IPv4 and ethernet addresses are stored packed as they appear in the packet,
+ * i.e., in network byte order in the lower 32 or 48 bits respectively.
+ * Addresses are only formatted as String when the value is actually requested
+ * via getValue, format, or the toMap, toCsv, and toJson methods.
+ *
+ * Records are meant to be reused.
+ * A record is not thread safe.
+ */
+public class ExtractionRecord {
+
+    public static final int KIND_LONG = 0;
+    public static final int KIND_DOUBLE = 1;
+    public static final int KIND_IPV4 = 2;
+    public static final int KIND_ETHERNET = 3;
+    /**
+     * Dictionary encoded String values; only supported by ExtractionBatch.
+     */
+    public static final int KIND_STRING = 4;
+
+    private final String[] names;
+    private final int[] kinds;
+    private final long[] values;
+
+    public ExtractionRecord(String[] names, int[] kinds) {
+        if (names.length != kinds.length) {
+            throw new IllegalArgumentException("Got " + names.length + " names but " + kinds.length + " kinds.");
+        }
+        this.names = names;
+        this.kinds = kinds;
+        this.values = new long[names.length];
+    }
+
+    /**
+     * Creates a new, empty record with the same layout as this record.
+     */
+    public ExtractionRecord newInstance() {
+        return new ExtractionRecord(names, kinds);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String getName(int idx) {
+        return names[idx];
+    }
+
+    public int getKind(int idx) {
+        return kinds[idx];
+    }
+
+    public void setLong(int idx, long value) {
+        values[idx] = value;
+    }
+
+    public long getLong(int idx) {
+        return values[idx];
+    }
+
+    public void setDouble(int idx, double value) {
+        values[idx] = Double.doubleToRawLongBits(value);
+    }
+
+    public double getDouble(int idx) {
+        return Double.longBitsToDouble(values[idx]);
+    }
+
+    /**
+     * Copies the values of the given record, which must have the same layout, into this record.
+     */
+    public void copyFrom(ExtractionRecord other) {
+        System.arraycopy(other.values, 0, values, 0, values.length);
+    }
+
+    /**
+     * Returns the boxed value, or the formatted String in case of addresses.
+     */
+    public Object getValue(int idx) {
+        switch (kinds[idx]) {
+        case KIND_DOUBLE:
+            return getDouble(idx);
+        case KIND_IPV4:
+        case KIND_ETHERNET:
+            return format(idx);
+        default:
+            return values[idx];
+        }
+    }
+
+    public String format(int idx) {
+        switch (kinds[idx]) {
+        case KIND_DOUBLE:
+            return Double.toString(getDouble(idx));
+        case KIND_IPV4:
+            return formatIpv4((int) values[idx]);
+        case KIND_ETHERNET:
+            return formatEthernet(values[idx]);
+        default:
+            return Long.toString(values[idx]);
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < values.length; i++) {
+            map.put(names[i], getValue(i));
+        }
+        return map;
+    }
+
+    /**
+     * Formats the record as CSV line in the same way as the :csv-str DSL output type.
+     */
+    public String toCsv() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendValue(sb, i);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Formats the record as JSON object in the same way as the :json-str DSL output type.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(names[i]).append("\":");
+            appendValue(sb, i);
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toCsv();
+    }
+
+    private void appendValue(StringBuilder sb, int idx) {
+        switch (kinds[idx]) {
+        case KIND_IPV4:
+        case KIND_ETHERNET:
+            sb.append('"').append(format(idx)).append('"');
+            break;
+        case KIND_DOUBLE:
+            sb.append(getDouble(idx));
+            break;
+        default:
+            sb.append(values[idx]);
+        }
+    }
+
+    /**
+     * Formats a packed IPv4 address, e.g., "192.168.1.1".
+     */
+    public static String formatIpv4(int address) {
+        StringBuilder sb = new StringBuilder(15);
+        sb.append((address >>> 24) & 0xFF).append('.')
+            .append((address >>> 16) & 0xFF).append('.')
+            .append((address >>> 8) & 0xFF).append('.')
+            .append(address & 0xFF);
+        return sb.toString();
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Formats a packed ethernet address, e.g., "E0:CB:4E:E3:38:46".
+     */
+    public static String formatEthernet(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (address >>> (40 - 8 * i)) & 0xFF;
+            chars[i * 3] = HEX_DIGITS[b >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+}
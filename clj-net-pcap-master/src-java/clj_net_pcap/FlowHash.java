@@ -0,0 +1,114 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Symmetric flow hash for raw Ethernet frames.
+ * The hash is calculated from the IPv4/IPv6 addresses, the IP protocol, and,
+ * for TCP and UDP, the ports.
+ * Source and destination are combined commutatively such that both directions
+ * of a flow yield the same hash value.
+ * Frames that cannot be parsed fall back to the Ethernet addresses.
+ *
+ * The buffer is accessed with absolute gets relative to its position.
+ * Hence, the position and limit of the buffer are not changed.
+ */
+public class FlowHash {
+
+    private static final int ETH_HDR_LEN = 14;
+    private static final int ETH_TYPE_IPV4 = 0x0800;
+    private static final int ETH_TYPE_IPV6 = 0x86DD;
+    private static final int ETH_TYPE_VLAN = 0x8100;
+    private static final int ETH_TYPE_QINQ = 0x88A8;
+    private static final int IP_PROTO_TCP = 6;
+    private static final int IP_PROTO_UDP = 17;
+
+    public static int hash(ByteBuffer buf) {
+        int start = buf.position();
+        int end = buf.limit();
+
+        if (end - start < ETH_HDR_LEN) {
+            return 0;
+        }
+
+        int ethType = getUInt16(buf, start + 12);
+        int l3 = start + ETH_HDR_LEN;
+        while ((ethType == ETH_TYPE_VLAN || ethType == ETH_TYPE_QINQ) && l3 + 4 <= end) {
+            ethType = getUInt16(buf, l3 + 2);
+            l3 += 4;
+        }
+
+        if (ethType == ETH_TYPE_IPV4 && l3 + 20 <= end) {
+            int ihl = (buf.get(l3) & 0x0F) * 4;
+            int proto = buf.get(l3 + 9) & 0xFF;
+            int src = buf.getInt(l3 + 12);
+            int dst = buf.getInt(l3 + 16);
+            return mix(src, dst, proto, buf, l3 + ihl, end);
+        } else if (ethType == ETH_TYPE_IPV6 && l3 + 40 <= end) {
+            int proto = buf.get(l3 + 6) & 0xFF;
+            int src = buf.getInt(l3 + 8) ^ buf.getInt(l3 + 12) ^ buf.getInt(l3 + 16) ^ buf.getInt(l3 + 20);
+            int dst = buf.getInt(l3 + 24) ^ buf.getInt(l3 + 28) ^ buf.getInt(l3 + 32) ^ buf.getInt(l3 + 36);
+            return mix(src, dst, proto, buf, l3 + 40, end);
+        }
+
+        int dstMac = buf.getInt(start) ^ getUInt16(buf, start + 4);
+        int srcMac = buf.getInt(start + 6) ^ getUInt16(buf, start + 10);
+        return finish((dstMac + srcMac) ^ (dstMac * srcMac));
+    }
+
+    /**
+     * Returns the index of the worker, in the range [0, workers), that is
+     * responsible for the flow to which the frame in buf belongs.
+     */
+    public static int workerIndex(ByteBuffer buf, int workers) {
+        return (hash(buf) & 0x7FFFFFFF) % workers;
+    }
+
+    private static int mix(int src, int dst, int proto, ByteBuffer buf, int l4, int end) {
+        int ports = 0;
+        if ((proto == IP_PROTO_TCP || proto == IP_PROTO_UDP) && l4 + 4 <= end) {
+            int srcPort = getUInt16(buf, l4);
+            int dstPort = getUInt16(buf, l4 + 2);
+            ports = (srcPort + dstPort) ^ (srcPort * dstPort);
+        }
+        int h = (src + dst) ^ (src * dst);
+        h = 31 * h + proto;
+        h = 31 * h + ports;
+        return finish(h);
+    }
+
+    private static int finish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int getUInt16(ByteBuffer buf, int index) {
+        return ((buf.get(index) & 0xFF) << 8) | (buf.get(index + 1) & 0xFF);
+    }
+
+}
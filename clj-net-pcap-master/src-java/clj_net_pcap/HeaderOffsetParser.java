@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+/**
+ * Minimal parser for the header prefix of packets that are represented as byte arrays.
+ *
+ * The byte arrays are laid out as used by the raw data processing, i.e., a
+ * 16 byte pcap header followed by the packet data.
+ * All returned offsets are relative to the start of the pcap header, like the
+ * offsets in clj-net-pcap.packet-offsets.
+ *
+ * Only the link layer header, including 802.1Q/802.1ad VLAN tags, and the
+ * length of the IP header are evaluated.
+ * When the data is too short, the offsets of an untagged Ethernet frame with
+ * an IPv4 header without options are returned.
+ */
+public class HeaderOffsetParser {
+
+    public static final int PCAP_HDR_LEN = 16;
+
+    public static final int DLT_EN10MB = 1;
+    public static final int DLT_RAW = 12;
+    public static final int DLT_RAW_LINKTYPE = 101;
+    public static final int DLT_LINUX_SLL = 113;
+
+    private static final int ETH_HDR_LEN = 14;
+    private static final int VLAN_TAG_LEN = 4;
+    private static final int SLL_HDR_LEN = 16;
+    private static final int IPV4_HDR_LEN = 20;
+    private static final int IPV6_HDR_LEN = 40;
+
+    private static final int ETHER_TYPE_VLAN = 0x8100;
+    private static final int ETHER_TYPE_QINQ = 0x88A8;
+    private static final int ETHER_TYPE_QINQ_OLD = 0x9100;
+
+    /*
+     * Limit the number of stacked VLAN tags to guard against bogus data.
+     */
+    private static final int MAX_VLAN_TAGS = 4;
+
+    /**
+     * Get the offset of the network layer header for a packet of the given link type.
+     */
+    public static int networkHeaderOffset(byte[] array, int offset, int linkType) {
+        switch (linkType) {
+        case DLT_RAW:
+        case DLT_RAW_LINKTYPE:
+            return PCAP_HDR_LEN;
+        case DLT_LINUX_SLL:
+            return PCAP_HDR_LEN + SLL_HDR_LEN;
+        default:
+            int typeIdx = offset + PCAP_HDR_LEN + ETH_HDR_LEN - 2;
+            int tags = 0;
+            while (tags < MAX_VLAN_TAGS && typeIdx + 1 < array.length) {
+                int etherType = ByteArrayHelper.getInt16(array, typeIdx);
+                if (etherType != ETHER_TYPE_VLAN && etherType != ETHER_TYPE_QINQ && etherType != ETHER_TYPE_QINQ_OLD) {
+                    break;
+                }
+                typeIdx += VLAN_TAG_LEN;
+                tags++;
+            }
+            return PCAP_HDR_LEN + ETH_HDR_LEN + tags * VLAN_TAG_LEN;
+        }
+    }
+
+    /**
+     * Get the offset of the transport layer header based on the given network header offset.
+     * For IPv4, the header length field is evaluated.
+     * For IPv6, extension headers are not evaluated.
+     */
+    public static int transportHeaderOffset(byte[] array, int offset, int networkHeaderOffset) {
+        int idx = offset + networkHeaderOffset;
+        if (idx >= array.length) {
+            return networkHeaderOffset + IPV4_HDR_LEN;
+        }
+
+        switch (ByteArrayHelper.getNibbleHigh(array, idx)) {
+        case 4:
+            int hdrLen = ByteArrayHelper.getNibbleLow(array, idx) * 4;
+            return networkHeaderOffset + (hdrLen < IPV4_HDR_LEN ? IPV4_HDR_LEN : hdrLen);
+        case 6:
+            return networkHeaderOffset + IPV6_HDR_LEN;
+        default:
+            return networkHeaderOffset + IPV4_HDR_LEN;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values, e.g., latencies in nano seconds.
+ *
+ * The buckets are log-linear like in HdrHistogram:
+ * values below 64 have their own bucket; above, each power of two is split into 32 buckets.
+ * Hence, the relative error of the reported values is at most about 3%.
+ * Values are recorded with a single atomic increment and can be recorded concurrently.
+ * Negative values are recorded as 0 and values larger than MAX_VALUE as MAX_VALUE.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    /** Largest value that is distinguished, about 18 minutes in nano seconds. */
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketIndex(long v) {
+        if (v < 0) {
+            return 0;
+        }
+        if (v > MAX_VALUE) {
+            v = MAX_VALUE;
+        }
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (v >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * Largest value that is recorded in the bucket with the given index.
+     */
+    static long bucketValue(int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long top = SUB_COUNT + (index % SUB_COUNT);
+        return ((top + 1) << shift) - 1;
+    }
+
+    public void record(long v) {
+        counts.incrementAndGet(bucketIndex(v));
+        count.incrementAndGet();
+        if (v > 0) {
+            sum.addAndGet(v);
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) {
+                m = max.get();
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return (n > 0) ? sum.get() / n : 0;
+    }
+
+    /**
+     * Returns the value below or at which the given percentage, e.g., 99.9, of the recorded values are.
+     * Returns 0 when no values were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * n));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(bucketValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Sets all counts to zero.
+     * Values that are recorded concurrently may or may not be included afterwards.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+}
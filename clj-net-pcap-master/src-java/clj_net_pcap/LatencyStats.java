@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-stage latency histograms of the capture pipeline.
+ *
+ * Every sampleInterval-th packet is sampled when it enters the pipeline.
+ * A sampled packet is passed through the queues wrapped in a Sample that carries the time
+ * when it entered the current queue.
+ * When a stage takes a Sample from its queue, the time spent in the queue is recorded.
+ * Packets that are not sampled are passed unchanged, so the overhead is limited to
+ * the sampled packets and an instanceof check per stage.
+ *
+ * The stages are:
+ * capture, the time from the pcap timestamp until the packet is handled by the capture thread,
+ * buffer-queue, scanner-queue, and out-queue, the time spent in the respective queues,
+ * forwarder, the time spent in the forwarder function, and
+ * total, the time from the pcap timestamp until the forwarder function returned.
+ * The capture and total stages compare the pcap timestamp with the wall clock, which is derived
+ * from System.nanoTime() and calibrated against System.currentTimeMillis() once.
+ * All values are in nano seconds.
+ *
+ * The statistics can be exposed via JMX, see register.
+ */
+public class LatencyStats implements LatencyStatsMBean {
+
+    public static final int CAPTURE = 0;
+    public static final int BUFFER_QUEUE = 1;
+    public static final int SCANNER_QUEUE = 2;
+    public static final int OUT_QUEUE = 3;
+    public static final int FORWARDER = 4;
+    public static final int TOTAL = 5;
+
+    private static final String[] STAGES = {"capture", "buffer-queue", "scanner-queue", "out-queue", "forwarder", "total"};
+
+    /**
+     * A sampled packet in the pipeline.
+     */
+    public class Sample {
+
+        private final long pcapNanos;
+        private long entered;
+        private Object payload;
+
+        Sample(long pcapNanos, long entered, Object payload) {
+            this.pcapNanos = pcapNanos;
+            this.entered = entered;
+            this.payload = payload;
+        }
+
+        /**
+         * Records the time spent in the queue of the given stage and returns the payload.
+         */
+        public Object dequeued(int stage) {
+            long now = System.nanoTime();
+            histograms[stage].record(now - entered);
+            entered = now;
+            return payload;
+        }
+
+        /**
+         * Replaces the payload, e.g., with the result of the current stage,
+         * before the Sample is put into the next queue.
+         */
+        public Sample enqueue(Object payload) {
+            this.payload = payload;
+            this.entered = System.nanoTime();
+            return this;
+        }
+
+        /**
+         * Records the forwarder and total stages after the forwarder function returned.
+         */
+        public void done() {
+            long now = System.nanoTime();
+            histograms[FORWARDER].record(now - entered);
+            histograms[TOTAL].record(now + wallOffset - pcapNanos);
+        }
+
+        public Object getPayload() {
+            return payload;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final int sampleInterval;
+    private final long mask;
+    private final long wallOffset;
+
+    private long seen = 0;
+    private volatile long sampled = 0;
+    private ObjectName objectName;
+
+    /**
+     * sampleInterval is rounded up to the next power of two.
+     */
+    public LatencyStats(int sampleInterval) {
+        int n = 1;
+        while (n < sampleInterval) {
+            n <<= 1;
+        }
+        this.sampleInterval = n;
+        this.mask = n - 1;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+
+        // Align with the next tick of the milli second clock for a sub milli second offset.
+        long ms = System.currentTimeMillis();
+        long now;
+        while ((now = System.currentTimeMillis()) == ms) {
+        }
+        this.wallOffset = now * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * Called by the capture thread for each packet.
+     * Returns a Sample with the given payload for every sampleInterval-th packet,
+     * after recording the capture stage, or the payload itself otherwise.
+     * Must only be called by a single thread.
+     */
+    public Object sample(long seconds, int useconds, Object payload) {
+        if ((seen++ & mask) != 0) {
+            return payload;
+        }
+        long now = System.nanoTime();
+        long pcapNanos = seconds * 1000000000L + useconds * 1000L;
+        histograms[CAPTURE].record(now + wallOffset - pcapNanos);
+        sampled++;
+        return new Sample(pcapNanos, now, payload);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public String[] getStages() {
+        return STAGES.clone();
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public long getSampledCount() {
+        return sampled;
+    }
+
+    public long[] getCounts() {
+        long[] v = new long[histograms.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = histograms[i].getCount();
+        }
+        return v;
+    }
+
+    public long[] getMeanNanos() {
+        long[] v = new long[histograms.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = histograms[i].getMean();
+        }
+        return v;
+    }
+
+    public long[] getP50Nanos() {
+        return percentiles(50.0);
+    }
+
+    public long[] getP99Nanos() {
+        return percentiles(99.0);
+    }
+
+    public long[] getP999Nanos() {
+        return percentiles(99.9);
+    }
+
+    public long[] getMaxNanos() {
+        long[] v = new long[histograms.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = histograms[i].getMax();
+        }
+        return v;
+    }
+
+    private long[] percentiles(double percentile) {
+        long[] v = new long[histograms.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = histograms[i].getValueAtPercentile(percentile);
+        }
+        return v;
+    }
+
+    public long percentileNanos(String stage, double percentile) {
+        for (int i = 0; i < STAGES.length; i++) {
+            if (STAGES[i].equals(stage)) {
+                return histograms[i].getValueAtPercentile(percentile);
+            }
+        }
+        throw new IllegalArgumentException("Unknown stage: " + stage);
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    /**
+     * Returns the statistics of the stages that have samples, e.g., "latency-out-queue-p99",
+     * in the same form as the other statistics of the capture pipeline.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("latency-sample-interval", sampleInterval);
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram h = histograms[i];
+            if (h.getCount() == 0) {
+                continue;
+            }
+            String prefix = "latency-" + STAGES[i] + "-";
+            m.put(prefix + "count", h.getCount());
+            m.put(prefix + "mean", h.getMean());
+            m.put(prefix + "p50", h.getValueAtPercentile(50.0));
+            m.put(prefix + "p99", h.getValueAtPercentile(99.0));
+            m.put(prefix + "p999", h.getValueAtPercentile(99.9));
+            m.put(prefix + "max", h.getMax());
+        }
+        return m;
+    }
+
+    /**
+     * Registers this instance with the platform MBean server
+     * as "clj-net-pcap:type=LatencyStats,name=" followed by the given name.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("clj-net-pcap:type=LatencyStats,name=" + ObjectName.quote(name));
+        server.registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+}
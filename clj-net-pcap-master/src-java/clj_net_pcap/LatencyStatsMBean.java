@@ -0,0 +1,52 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+/**
+ * JMX interface of LatencyStats.
+ * The array attributes are indexed like getStages().
+ */
+public interface LatencyStatsMBean {
+
+    String[] getStages();
+
+    int getSampleInterval();
+
+    long getSampledCount();
+
+    long[] getCounts();
+
+    long[] getMeanNanos();
+
+    long[] getP50Nanos();
+
+    long[] getP99Nanos();
+
+    long[] getP999Nanos();
+
+    long[] getMaxNanos();
+
+    long percentileNanos(String stage, double percentile);
+
+    void reset();
+
+}
@@ -0,0 +1,334 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PeeringException;
+
+/**
+ * Reader for classic pcap files based on memory-mapped files.
+ *
+ * Unlike Pcap.openOffline this does not use libpcap.
+ * The records are accessed in place in the mapped file without copying.
+ * Big and little endian files as well as files with micro and nano second
+ * timestamps are supported.
+ *
+ * As a single mapping is limited to 2 GB, a file is accessed via chunks that
+ * are aligned to record boundaries.
+ * The chunks can also be used to decode a single file with multiple threads,
+ * see split(int).
+ * Each thread uses its own Cursor to iterate over the records of a chunk.
+ */
+public class MappedPcapReader {
+
+    public static final int GLOBAL_HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 16;
+
+    private static final int MAGIC_USEC = 0xA1B2C3D4;
+    private static final int MAGIC_NSEC = 0xA1B23C4D;
+
+    /*
+     * Records larger than this are considered a sign of a corrupted file.
+     */
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_MAP_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long maxMapSize;
+    private final ByteOrder order;
+    private final boolean nanos;
+    private final int snapLen;
+    private final int linkType;
+
+    public MappedPcapReader(String fileName) throws IOException {
+        this(fileName, DEFAULT_MAX_MAP_SIZE);
+    }
+
+    public MappedPcapReader(String fileName, long maxMapSize) throws IOException {
+        this.maxMapSize = Math.min(maxMapSize, Integer.MAX_VALUE);
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+
+        try {
+            if (fileSize < GLOBAL_HEADER_SIZE) {
+                throw new IOException("File too short for pcap global header: " + fileName);
+            }
+
+            ByteBuffer hdr = channel.map(FileChannel.MapMode.READ_ONLY, 0, GLOBAL_HEADER_SIZE);
+            hdr.order(ByteOrder.BIG_ENDIAN);
+            int magic = hdr.getInt(0);
+            if (magic == MAGIC_USEC || magic == MAGIC_NSEC) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else if (Integer.reverseBytes(magic) == MAGIC_USEC || Integer.reverseBytes(magic) == MAGIC_NSEC) {
+                order = ByteOrder.LITTLE_ENDIAN;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                throw new IOException("Not a pcap file, unknown magic number: 0x" + Integer.toHexString(magic));
+            }
+            nanos = (magic == MAGIC_NSEC);
+
+            hdr.order(order);
+            snapLen = hdr.getInt(16);
+            linkType = hdr.getInt(20);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public ByteOrder getByteOrder() {
+        return order;
+    }
+
+    public boolean isNanos() {
+        return nanos;
+    }
+
+    public int getSnapLen() {
+        return snapLen;
+    }
+
+    /**
+     * The link type, i.e., the DLT, of the packets in the file.
+     */
+    public int getLinkType() {
+        return linkType;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Returns the chunks covering the entire file with as few chunks as possible.
+     */
+    public Chunk[] chunks() throws IOException {
+        return split(1);
+    }
+
+    /**
+     * Splits the file into about count chunks of similar size.
+     * The chunks are aligned to record boundaries.
+     * More chunks are returned when a chunk would exceed the maximum mapping
+     * size; fewer chunks are returned when the file contains less records.
+     *
+     * Finding the record boundaries requires a pass over the record headers.
+     */
+    public Chunk[] split(int count) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        long dataSize = fileSize - GLOBAL_HEADER_SIZE;
+        long chunkSize = Math.max(1, Math.min((dataSize + count - 1) / Math.max(1, count), maxMapSize));
+
+        long chunkStart = GLOBAL_HEADER_SIZE;
+        long pos = GLOBAL_HEADER_SIZE;
+        long windowStart = 0;
+        ByteBuffer window = null;
+
+        while (pos + RECORD_HEADER_SIZE <= fileSize) {
+            if (window == null || pos + RECORD_HEADER_SIZE > windowStart + window.capacity()) {
+                windowStart = pos;
+                window = map(windowStart, Math.min(maxMapSize, fileSize - windowStart));
+            }
+
+            int capLen = window.getInt((int) (pos - windowStart) + 8);
+            if (capLen < 0 || capLen > MAX_RECORD_SIZE || RECORD_HEADER_SIZE + capLen > maxMapSize) {
+                throw new IOException("Invalid record length " + capLen + " at offset " + pos);
+            }
+
+            long recordEnd = pos + RECORD_HEADER_SIZE + capLen;
+            if (recordEnd > fileSize) {
+                /*
+                 * Ignore truncated trailing record.
+                 */
+                break;
+            }
+
+            if (pos > chunkStart && (pos - chunkStart >= chunkSize || recordEnd - chunkStart > maxMapSize)) {
+                chunks.add(new Chunk(chunkStart, pos));
+                chunkStart = pos;
+            }
+            pos = recordEnd;
+        }
+
+        if (pos > chunkStart) {
+            chunks.add(new Chunk(chunkStart, pos));
+        }
+
+        return chunks.toArray(new Chunk[chunks.size()]);
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buf.order(order);
+        return buf;
+    }
+
+    /**
+     * A record aligned part of the pcap file.
+     */
+    public class Chunk {
+
+        private final long start;
+        private final long end;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Maps the chunk and returns a new cursor positioned before the first record.
+         */
+        public Cursor cursor() throws IOException {
+            return new Cursor(map(start, end - start));
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk: [" + start + ", " + end + ")";
+        }
+    }
+
+    /**
+     * Iterates over the records of a chunk.
+     * A cursor is not thread safe and must only be used by one thread.
+     * The values returned by the accessors refer to the current record,
+     * i.e., the record to which the last call to next() advanced.
+     */
+    public class Cursor {
+
+        private final ByteBuffer buffer;
+        private final ByteBuffer data;
+        private int next = 0;
+        private int current = -1;
+
+        Cursor(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.data = buffer.duplicate();
+        }
+
+        /**
+         * Advances to the next record.
+         * Returns false when no more records are available.
+         */
+        public boolean next() {
+            if (next + RECORD_HEADER_SIZE > buffer.limit()) {
+                return false;
+            }
+            int capLen = buffer.getInt(next + 8);
+            int dataStart = next + RECORD_HEADER_SIZE;
+            if (capLen < 0 || dataStart + capLen > buffer.limit()) {
+                return false;
+            }
+
+            current = next;
+            next = dataStart + capLen;
+            data.limit(next);
+            data.position(dataStart);
+            return true;
+        }
+
+        public long seconds() {
+            return buffer.getInt(current) & 0xFFFFFFFFL;
+        }
+
+        /**
+         * The fraction of the timestamp in micro seconds.
+         */
+        public int micros() {
+            int frac = buffer.getInt(current + 4);
+            return nanos ? frac / 1000 : frac;
+        }
+
+        /**
+         * The fraction of the timestamp in nano seconds.
+         */
+        public int nanos() {
+            int frac = buffer.getInt(current + 4);
+            return nanos ? frac : frac * 1000;
+        }
+
+        public long timestampInNanos() {
+            return seconds() * 1000000000L + nanos();
+        }
+
+        public int capLen() {
+            return buffer.getInt(current + 8);
+        }
+
+        public int wireLen() {
+            return buffer.getInt(current + 12);
+        }
+
+        /**
+         * The packet data of the current record.
+         * The returned buffer is a view on the mapped file and is reused for
+         * subsequent records.
+         */
+        public ByteBuffer data() {
+            return data;
+        }
+
+        /**
+         * Peers the given header and packet with the current record without copying the packet data.
+         * The header must have been allocated, e.g., via new PcapHeader(), and the
+         * packet must be of type JMemory.Type.POINTER.
+         * Both can be reused for subsequent records.
+         * Nano second timestamps are truncated to micro seconds.
+         */
+        public PcapPacket peer(PcapHeader hdr, PcapPacket pkt) throws PeeringException {
+            hdr.hdr_sec(seconds());
+            hdr.hdr_usec(micros());
+            hdr.hdr_len(capLen());
+            hdr.hdr_wirelen(wireLen());
+            pkt.peerHeaderAndData(hdr, data);
+            return pkt;
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+
+/**
+ * Generates packets from a PacketTemplate at a given rate and emits them to a Sink.
+ *
+ * Packets are generated in batches.
+ * For each batch, the tokens for all of its packets are taken from the TokenBucket at once,
+ * the packets are written back to back into one preallocated direct buffer,
+ * and are then handed to the sink one after another as slices of this buffer.
+ * Hence, apart from the sink, no objects are allocated and no native calls are made per packet.
+ * Direct buffers are required by Pcap.sendPacket and Pcap.inject to avoid an additional copy.
+ *
+ * The timestamps of the packets are the points in time at which they were scheduled by the TokenBucket,
+ * converted to wall clock time.
+ * Without a rate limit, all packets of a batch share the time at which the batch was created.
+ *
+ * A PacketGenerator is intended to be used by a single thread.
+ * The statistics and stop() can be used from other threads.
+ */
+public class PacketGenerator {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * Receives the generated packets.
+     * The packet is the remaining data of the given buffer, which is only valid during the call.
+     */
+    public interface Sink {
+        /**
+         * Returns false if the packet could not be emitted.
+         */
+        boolean emit(long seconds, int useconds, ByteBuffer data) throws IOException, InterruptedException;
+    }
+
+    private final PacketTemplate template;
+    private final Sink sink;
+    private final TokenBucket bucket;
+    private final int batchSize;
+    private final ByteBuffer batch;
+    private final ByteBuffer view;
+    private final long wallClockOffsetNanos;
+    private final double nanosPerPacket;
+
+    private long nextIndex = 0;
+    private volatile boolean running = true;
+    private volatile long sentCount = 0;
+    private volatile long failedCount = 0;
+
+    /**
+     * Creates a generator that emits pps packets per second or as fast as possible if pps is not positive.
+     */
+    public PacketGenerator(PacketTemplate template, Sink sink, double pps, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least one but was: " + batchSize);
+        }
+        this.template = template;
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.bucket = (pps > 0) ? new TokenBucket(pps, batchSize) : null;
+        this.nanosPerPacket = (pps > 0) ? 1e9 / pps : 0;
+        this.batch = ByteBuffer.allocateDirect(batchSize * template.getLength());
+        this.view = batch.duplicate();
+        this.wallClockOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * Generates and emits count packets, continuing with the index after the last generated packet.
+     * Returns early when stop() is called.
+     * Returns the number of packets that were successfully emitted.
+     */
+    public long generate(long count) throws IOException, InterruptedException {
+        final int len = template.getLength();
+        final long end = nextIndex + count;
+        long emitted = 0;
+
+        while (nextIndex < end && running) {
+            int n = (int) Math.min(batchSize, end - nextIndex);
+            long due = (bucket != null) ? bucket.acquire(n) : System.nanoTime();
+            long batchNanos = wallClockOffsetNanos + due;
+
+            batch.clear();
+            for (int i = 0; i < n; i++) {
+                template.fill(nextIndex + i, batch);
+            }
+
+            for (int i = 0; i < n; i++) {
+                view.clear();
+                view.limit((i + 1) * len);
+                view.position(i * len);
+                long ts = batchNanos - (long) ((n - 1 - i) * nanosPerPacket);
+                if (sink.emit(ts / 1000000000L, (int) ((ts / 1000) % 1000000L), view)) {
+                    emitted++;
+                } else {
+                    failedCount++;
+                }
+            }
+
+            nextIndex += n;
+            sentCount += n;
+        }
+
+        return emitted;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Number of generated packets, including those the sink failed to emit.
+     */
+    public long getGeneratedCount() {
+        return sentCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Sends the packets via pcap_sendpacket.
+     */
+    public static Sink createSendPacketSink(final Pcap pcap) {
+        return new Sink() {
+            @Override
+            public boolean emit(long seconds, int useconds, ByteBuffer data) {
+                return pcap.sendPacket(data) == Pcap.OK;
+            }
+        };
+    }
+
+    /**
+     * Sends the packets via pcap_inject.
+     */
+    public static Sink createInjectSink(final Pcap pcap) {
+        return new Sink() {
+            @Override
+            public boolean emit(long seconds, int useconds, ByteBuffer data) {
+                return pcap.inject(data) >= 0;
+            }
+        };
+    }
+
+    /**
+     * Writes the packets to a pcap file.
+     */
+    public static Sink createDumperSink(final BatchedPcapDumper dumper) {
+        return new Sink() {
+            @Override
+            public boolean emit(long seconds, int useconds, ByteBuffer data) throws IOException {
+                return dumper.dump(seconds, useconds, data.remaining(), data);
+            }
+        };
+    }
+
+    /**
+     * Puts the packets into an in-memory ring.
+     * When block is false, packets are dropped while the ring is full.
+     */
+    public static Sink createRingSink(final PacketRingBuffer ring, final boolean block) {
+        final PcapHeader hdr = new PcapHeader();
+        return new Sink() {
+            @Override
+            public boolean emit(long seconds, int useconds, ByteBuffer data) throws InterruptedException {
+                hdr.hdr_sec(seconds);
+                hdr.hdr_usec(useconds);
+                hdr.hdr_len(data.remaining());
+                hdr.hdr_wirelen(data.remaining());
+                if (block) {
+                    ring.put(hdr, data);
+                    return true;
+                }
+                return ring.offer(hdr, data);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PeeringException;
+
+/**
+ * Preallocated, off-heap ring buffer for handing packets from a single
+ * producer, the pcap capture thread, to multiple consumers.
+ *
+ * The ring consists of a fixed number of equally sized slots in one directly
+ * allocated ByteBuffer.
+ * The producer copies the pcap header fields and the packet data into the
+ * next free slot and publishes the slot by advancing a sequence number.
+ * Each packet is assigned to exactly one consumer based on its flow hash, see
+ * FlowHash.
+ * Consumers read the slots assigned to them in place and release them
+ * explicitly when they are done.
+ * A slot is reused by the producer only after all consumers moved past it.
+ * This is similar to the sequence barriers used in the LMAX Disruptor.
+ *
+ * Apart from the one copy into the ring, no data is copied and no objects
+ * are allocated per packet.
+ *
+ * Slot layout (native byte order):
+ * <pre>
+ * +--------+---------+---------+---------+--------+--------------+
+ * | sec(8) | usec(4) | caplen  | wirelen | shard  | data         |
+ * |        |         | (4)     | (4)     | (4)    | (slotSize)   |
+ * +--------+---------+---------+---------+--------+--------------+
+ * </pre>
+ * Packets larger than the slot size are truncated, like with a snap length.
+ */
+public class PacketRingBuffer {
+
+    public static final int SLOT_HEADER_SIZE = 24;
+
+    private static final int OFFSET_SEC = 0;
+    private static final int OFFSET_USEC = 8;
+    private static final int OFFSET_CAPLEN = 12;
+    private static final int OFFSET_WIRELEN = 16;
+    private static final int OFFSET_SHARD = 20;
+
+    /*
+     * Stride of 8 longs = 64 bytes to keep the cursors of the consumers in
+     * different cache lines.
+     */
+    private static final int PADDING = 8;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] slots;
+    private final int slotCount;
+    private final int slotDataSize;
+    private final int slotStride;
+    private final int mask;
+    private final int consumerCount;
+
+    /*
+     * Sequence of the last published slot.
+     */
+    private final AtomicLong published = new AtomicLong(-1);
+
+    /*
+     * Sequence of the last released slot per consumer at index PADDING * (consumer + 1).
+     */
+    private final AtomicLongArray cursors;
+
+    /*
+     * Producer only fields.
+     */
+    private long nextSeq = 0;
+    private long cachedGate = -1;
+
+    public PacketRingBuffer(int slotCount, int slotDataSize, int consumerCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("The slot count must be a power of two but was: " + slotCount);
+        }
+        if (consumerCount < 1) {
+            throw new IllegalArgumentException("At least one consumer is required but got: " + consumerCount);
+        }
+
+        this.slotCount = slotCount;
+        this.slotDataSize = slotDataSize;
+        this.slotStride = SLOT_HEADER_SIZE + slotDataSize;
+        this.mask = slotCount - 1;
+        this.consumerCount = consumerCount;
+
+        buffer = ByteBuffer.allocateDirect(slotCount * slotStride).order(ByteOrder.nativeOrder());
+        slots = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(i * slotStride + SLOT_HEADER_SIZE);
+            b.limit(i * slotStride + slotStride);
+            slots[i] = b.slice();
+        }
+
+        cursors = new AtomicLongArray(PADDING * (consumerCount + 1));
+        for (int i = 0; i < consumerCount; i++) {
+            cursors.set(cursorIndex(i), -1);
+        }
+    }
+
+    /**
+     * Copies the packet into the next slot and publishes it.
+     * The position of data is not changed.
+     * Returns false without copying when no slot is free.
+     */
+    public boolean offer(PcapHeader hdr, ByteBuffer data) {
+        if (!hasFreeSlot()) {
+            return false;
+        }
+        write(hdr, data);
+        return true;
+    }
+
+    /**
+     * Copies the packet into the next slot and publishes it.
+     * The position of data is not changed.
+     * Blocks while no slot is free.
+     */
+    public void put(PcapHeader hdr, ByteBuffer data) throws InterruptedException {
+        int spins = 0;
+        while (!hasFreeSlot()) {
+            spins = idle(spins);
+        }
+        write(hdr, data);
+    }
+
+    /**
+     * Returns the sequence of the next slot assigned to the given consumer.
+     * Blocks until such a slot was published.
+     * Slots of other consumers are skipped and released implicitly.
+     * The returned slot has to be released via release(int, long) before next
+     * is called again.
+     */
+    public long next(int consumer) throws InterruptedException {
+        int idx = cursorIndex(consumer);
+        long seq = cursors.get(idx) + 1;
+        int spins = 0;
+
+        while (true) {
+            long available = published.get();
+
+            if (seq <= available) {
+                for (; seq <= available; seq++) {
+                    if (buffer.getInt(slotOffset(seq) + OFFSET_SHARD) == consumer) {
+                        return seq;
+                    }
+                    cursors.lazySet(idx, seq);
+                }
+                spins = 0;
+            } else {
+                spins = idle(spins);
+            }
+        }
+    }
+
+    /**
+     * Releases the slot with the given sequence.
+     * The data of the slot must not be accessed anymore after it was released.
+     */
+    public void release(int consumer, long seq) {
+        cursors.lazySet(cursorIndex(consumer), seq);
+    }
+
+    /**
+     * Peers the given header and packet with the slot identified by seq.
+     * The header must have been allocated, e.g., via new PcapHeader(), and the
+     * packet must be of type JMemory.Type.POINTER.
+     * Both can be reused for subsequent slots.
+     */
+    public PcapPacket peer(long seq, PcapHeader hdr, PcapPacket pkt) throws PeeringException {
+        int off = slotOffset(seq);
+        hdr.hdr_sec(buffer.getLong(off + OFFSET_SEC));
+        hdr.hdr_usec(buffer.getInt(off + OFFSET_USEC));
+        hdr.hdr_len(buffer.getInt(off + OFFSET_CAPLEN));
+        hdr.hdr_wirelen(buffer.getInt(off + OFFSET_WIRELEN));
+
+        pkt.peerHeaderAndData(hdr, data(seq));
+        return pkt;
+    }
+
+    /**
+     * Returns a view of the packet data in the slot identified by seq.
+     * The returned buffer is owned by the ring and reused for the slot.
+     */
+    public ByteBuffer data(long seq) {
+        ByteBuffer b = slots[(int) (seq & mask)];
+        b.limit(buffer.getInt(slotOffset(seq) + OFFSET_CAPLEN));
+        b.position(0);
+        return b;
+    }
+
+    /**
+     * Number of published slots that were not yet released by all consumers.
+     */
+    public long size() {
+        return published.get() - minCursor();
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getConsumerCount() {
+        return consumerCount;
+    }
+
+    private boolean hasFreeSlot() {
+        long wrapPoint = nextSeq - slotCount;
+        if (wrapPoint > cachedGate) {
+            cachedGate = minCursor();
+            return wrapPoint <= cachedGate;
+        }
+        return true;
+    }
+
+    private void write(PcapHeader hdr, ByteBuffer data) {
+        long seq = nextSeq;
+        int off = slotOffset(seq);
+        int len = Math.min(data.remaining(), slotDataSize);
+
+        buffer.putLong(off + OFFSET_SEC, hdr.hdr_sec());
+        buffer.putInt(off + OFFSET_USEC, hdr.hdr_usec());
+        buffer.putInt(off + OFFSET_CAPLEN, len);
+        buffer.putInt(off + OFFSET_WIRELEN, hdr.hdr_wirelen());
+        buffer.putInt(off + OFFSET_SHARD, FlowHash.workerIndex(data, consumerCount));
+
+        ByteBuffer slot = slots[(int) (seq & mask)];
+        slot.clear();
+        ByteBuffer src = data.duplicate();
+        src.limit(src.position() + len);
+        slot.put(src);
+
+        nextSeq = seq + 1;
+        published.lazySet(seq);
+    }
+
+    private long minCursor() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < consumerCount; i++) {
+            long c = cursors.get(cursorIndex(i));
+            if (c < min) {
+                min = c;
+            }
+        }
+        return min;
+    }
+
+    private int slotOffset(long seq) {
+        return (int) (seq & mask) * slotStride;
+    }
+
+    private static int cursorIndex(int consumer) {
+        return (consumer + 1) * PADDING;
+    }
+
+    /*
+     * Spin briefly, then yield, then park in order to not burn a core when idle.
+     */
+    private static int idle(int spins) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (spins < 100) {
+            return spins + 1;
+        } else if (spins < 200) {
+            Thread.yield();
+            return spins + 1;
+        }
+        LockSupport.parkNanos(10000L);
+        return spins;
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Precompiled Ethernet/IPv4 packet for generating many packets that only differ in a few fields.
+ *
+ * The template is parsed and its IPv4, UDP, TCP, or ICMP checksums are computed once.
+ * Per packet, the template is copied with a single bulk put and only the varying fields,
+ * e.g., addresses, ports, IP ids, or sequence numbers, are patched.
+ * The checksums are updated incrementally for the patched 16 bit words as described in RFC 1624,
+ * so the costs per packet do not depend on the packet size apart from the copy.
+ *
+ * The value of a varying field for the packet with index i is start + step * (i % count),
+ * or start + step * i when count is 0, truncated to the size of the field.
+ * All fields are written in network byte order, independent of the byte order of the buffer.
+ * A single VLAN tag is supported.
+ *
+ * A template is immutable once the fields are set up and can be used by multiple threads.
+ */
+public class PacketTemplate {
+
+    public static final int IP_SRC = 0;
+    public static final int IP_DST = 1;
+    public static final int IP_ID = 2;
+    public static final int SRC_PORT = 3;
+    public static final int DST_PORT = 4;
+    public static final int TCP_SEQ = 5;
+    public static final int ICMP_ID = 6;
+    public static final int ICMP_SEQ = 7;
+
+    private static final String[] FIELDS = {"ip-src", "ip-dst", "ip-id", "src-port", "dst-port", "tcp-seq", "icmp-id", "icmp-seq"};
+
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final byte[] template;
+    private final int ipOffset;
+    private final int l4Offset;
+    private final int protocol;
+    private final int ipChecksum;
+    private final int l4Checksum;
+    private final int l4ChecksumOffset;
+
+    private int[] fieldOffsets = new int[0];
+    private int[] fieldSizes = new int[0];
+    private boolean[] fieldInL4 = new boolean[0];
+    private boolean[] fieldInIp = new boolean[0];
+    private long[] starts = new long[0];
+    private long[] steps = new long[0];
+    private long[] counts = new long[0];
+
+    /**
+     * Parses the template and computes its checksums.
+     * Throws an IllegalArgumentException when the template is not an Ethernet frame with an IPv4 packet.
+     */
+    public PacketTemplate(byte[] template) {
+        this.template = template.clone();
+
+        int ethType = getShort(this.template, 12);
+        int ip = 14;
+        if (ethType == 0x8100) {
+            ethType = getShort(this.template, 16);
+            ip = 18;
+        }
+        if (ethType != 0x0800 || this.template.length < ip + 20 || (this.template[ip] & 0xf0) != 0x40) {
+            throw new IllegalArgumentException("Template is not an Ethernet frame with an IPv4 packet.");
+        }
+        this.ipOffset = ip;
+
+        int ipHdrLen = (this.template[ip] & 0x0f) * 4;
+        int ipEnd = Math.min(this.template.length, ip + getShort(this.template, ip + 2));
+        this.l4Offset = ip + ipHdrLen;
+        this.protocol = this.template[ip + 9] & 0xff;
+
+        putShort(this.template, ip + 10, 0);
+        this.ipChecksum = ~sum(this.template, ip, ipHdrLen, 0) & 0xffff;
+        putShort(this.template, ip + 10, ipChecksum);
+
+        int l4Len = ipEnd - l4Offset;
+        if (protocol == PROTOCOL_UDP && l4Len >= 8 && getShort(this.template, l4Offset + 6) != 0) {
+            this.l4ChecksumOffset = l4Offset + 6;
+        } else if (protocol == PROTOCOL_TCP && l4Len >= 20) {
+            this.l4ChecksumOffset = l4Offset + 16;
+        } else if (protocol == PROTOCOL_ICMP && l4Len >= 8) {
+            this.l4ChecksumOffset = l4Offset + 2;
+        } else {
+            // No or disabled checksum, e.g., a UDP checksum of zero
+            this.l4ChecksumOffset = -1;
+        }
+
+        if (l4ChecksumOffset >= 0) {
+            putShort(this.template, l4ChecksumOffset, 0);
+            int s = 0;
+            if (protocol != PROTOCOL_ICMP) {
+                // Pseudo header
+                s = sum(this.template, ip + 12, 8, 0);
+                s += protocol + l4Len;
+            }
+            int c = ~sum(this.template, l4Offset, l4Len, s) & 0xffff;
+            if (c == 0 && protocol == PROTOCOL_UDP) {
+                c = 0xffff;
+            }
+            this.l4Checksum = c;
+            putShort(this.template, l4ChecksumOffset, c);
+        } else {
+            this.l4Checksum = 0;
+        }
+    }
+
+    /**
+     * Lets the given field vary per packet; see the class documentation.
+     * Throws an IllegalArgumentException when the template does not contain the field.
+     */
+    public PacketTemplate vary(int field, long start, long step, long count) {
+        int offset;
+        int size;
+        boolean inIp = false;
+        boolean inL4 = false;
+        boolean isTransport = protocol == PROTOCOL_UDP || protocol == PROTOCOL_TCP;
+        switch (field) {
+            case IP_SRC:
+            case IP_DST:
+                offset = ipOffset + ((field == IP_SRC) ? 12 : 16);
+                size = 4;
+                inIp = true;
+                inL4 = isTransport;
+                break;
+            case IP_ID:
+                offset = ipOffset + 4;
+                size = 2;
+                inIp = true;
+                break;
+            case SRC_PORT:
+            case DST_PORT:
+                offset = (isTransport) ? l4Offset + ((field == SRC_PORT) ? 0 : 2) : -1;
+                size = 2;
+                inL4 = true;
+                break;
+            case TCP_SEQ:
+                offset = (protocol == PROTOCOL_TCP) ? l4Offset + 4 : -1;
+                size = 4;
+                inL4 = true;
+                break;
+            case ICMP_ID:
+            case ICMP_SEQ:
+                offset = (protocol == PROTOCOL_ICMP) ? l4Offset + ((field == ICMP_ID) ? 4 : 6) : -1;
+                size = 2;
+                inL4 = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        if (offset < 0 || offset + size > template.length) {
+            throw new IllegalArgumentException("Template does not contain field: " + FIELDS[field]);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative: " + count);
+        }
+
+        fieldOffsets = grow(fieldOffsets, offset);
+        fieldSizes = grow(fieldSizes, size);
+        fieldInIp = grow(fieldInIp, inIp);
+        fieldInL4 = grow(fieldInL4, inL4 && l4ChecksumOffset >= 0);
+        starts = grow(starts, start);
+        steps = grow(steps, step);
+        counts = grow(counts, count);
+        return this;
+    }
+
+    public static int fieldId(String name) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field: " + name);
+    }
+
+    public int getLength() {
+        return template.length;
+    }
+
+    /**
+     * A copy of the template with the computed checksums.
+     */
+    public byte[] getTemplate() {
+        return template.clone();
+    }
+
+    /**
+     * Writes the packet with the given index at the position of dst and advances the position.
+     * Returns the length of the packet.
+     */
+    public int fill(long index, ByteBuffer dst) {
+        int pos = dst.position();
+        dst.put(template);
+
+        int ipSum = ~ipChecksum & 0xffff;
+        int l4Sum = ~l4Checksum & 0xffff;
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            long v = starts[i] + steps[i] * ((counts[i] > 0) ? index % counts[i] : index);
+            int off = fieldOffsets[i];
+            int words = fieldSizes[i] / 2;
+            for (int w = 0; w < words; w++) {
+                int shift = 16 * (words - 1 - w);
+                int newWord = (int) (v >>> shift) & 0xffff;
+                int oldWord = getShort(template, off + 2 * w);
+                if (newWord == oldWord) {
+                    continue;
+                }
+                dst.put(pos + off + 2 * w, (byte) (newWord >>> 8));
+                dst.put(pos + off + 2 * w + 1, (byte) newWord);
+                // RFC 1624: HC' = ~(~HC + ~m + m')
+                int diff = (~oldWord & 0xffff) + newWord;
+                if (fieldInIp[i]) {
+                    ipSum += diff;
+                }
+                if (fieldInL4[i]) {
+                    l4Sum += diff;
+                }
+            }
+        }
+
+        int c = ~fold(ipSum) & 0xffff;
+        dst.put(pos + ipOffset + 10, (byte) (c >>> 8));
+        dst.put(pos + ipOffset + 11, (byte) c);
+        if (l4ChecksumOffset >= 0) {
+            c = ~fold(l4Sum) & 0xffff;
+            if (c == 0 && protocol == PROTOCOL_UDP) {
+                c = 0xffff;
+            }
+            dst.put(pos + l4ChecksumOffset, (byte) (c >>> 8));
+            dst.put(pos + l4ChecksumOffset + 1, (byte) c);
+        }
+        return template.length;
+    }
+
+    /**
+     * Returns the packet with the given index as new byte array.
+     */
+    public byte[] toByteArray(long index) {
+        byte[] ba = new byte[template.length];
+        fill(index, ByteBuffer.wrap(ba));
+        return ba;
+    }
+
+    /**
+     * Computes the ones' complement sum of the 16 bit words of the given range, starting with sum.
+     * The result is folded to 16 bits.
+     */
+    static int sum(byte[] ba, int offset, int length, int sum) {
+        long s = sum;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 1 < end; i += 2) {
+            s += getShort(ba, i);
+        }
+        if (i < end) {
+            s += (ba[i] & 0xff) << 8;
+        }
+        while ((s >>> 16) != 0) {
+            s = (s & 0xffff) + (s >>> 16);
+        }
+        return (int) s;
+    }
+
+    private static int fold(int s) {
+        while ((s >>> 16) != 0) {
+            s = (s & 0xffff) + (s >>> 16);
+        }
+        return s;
+    }
+
+    private static int getShort(byte[] ba, int offset) {
+        return ((ba[offset] & 0xff) << 8) | (ba[offset + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] ba, int offset, int v) {
+        ba[offset] = (byte) (v >>> 8);
+        ba[offset + 1] = (byte) v;
+    }
+
+    private static int[] grow(int[] a, int v) {
+        int[] tmp = new int[a.length + 1];
+        System.arraycopy(a, 0, tmp, 0, a.length);
+        tmp[a.length] = v;
+        return tmp;
+    }
+
+    private static long[] grow(long[] a, long v) {
+        long[] tmp = new long[a.length + 1];
+        System.arraycopy(a, 0, tmp, 0, a.length);
+        tmp[a.length] = v;
+        return tmp;
+    }
+
+    private static boolean[] grow(boolean[] a, boolean v) {
+        boolean[] tmp = new boolean[a.length + 1];
+        System.arraycopy(a, 0, tmp, 0, a.length);
+        tmp[a.length] = v;
+        return tmp;
+    }
+
+}
@@ -0,0 +1,538 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jnetpcap.BulkByteBufferHandler;
+import org.jnetpcap.ByteBufferHandler;
+import org.jnetpcap.JBufferHandler;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
+import org.jnetpcap.packet.JRegistry;
+import org.jnetpcap.packet.JScanner;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PcapPacketHandler;
+import org.jnetpcap.packet.PeeringException;
+
+/**
+ * Streaming reader for pcapng files.
+ *
+ * The file is read block by block into a reused direct ByteBuffer.
+ * Section header blocks (SHB), interface description blocks (IDB),
+ * enhanced packet blocks (EPB), and simple packet blocks (SPB) are evaluated;
+ * all other blocks are skipped.
+ * Sections with either byte order and per-interface timestamp resolutions,
+ * e.g., nano seconds, are supported.
+ *
+ * Packets are either iterated via next() and the accessors for the current
+ * packet or dispatched to the handler interfaces that are also used with
+ * org.jnetpcap.Pcap.
+ * In both cases, the packet data is a view on the read buffer that is only
+ * valid until the next packet is read.
+ */
+public class PcapNgReader {
+
+    public static final int BLOCK_SHB = 0x0A0D0D0A;
+    public static final int BLOCK_IDB = 0x00000001;
+    public static final int BLOCK_SPB = 0x00000003;
+    public static final int BLOCK_EPB = 0x00000006;
+
+    static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    static final int OPT_END = 0;
+    static final int OPT_IF_NAME = 2;
+    static final int OPT_IF_TSRESOL = 9;
+    static final int OPT_IF_TSOFFSET = 14;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_BLOCK_SIZE = 256 * 1024 * 1024;
+    private static final int BULK_HEADER_SIZE = 16;
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private ByteBuffer data;
+    private boolean eof = false;
+    private int nextBlock = 0;
+
+    private final List<Interface> interfaces = new ArrayList<Interface>();
+
+    private Interface currentInterface;
+    private int interfaceId;
+    private long timestamp;
+    private int capLen;
+    private int wireLen;
+
+    /*
+     * Lazily created as these require native memory.
+     */
+    private PcapHeader pcapHeader;
+    private JBuffer jbuffer;
+    private PcapPacket packet;
+    private ByteBuffer bulkBuffer;
+
+    public PcapNgReader(String fileName) throws IOException {
+        this(new FileInputStream(fileName).getChannel());
+    }
+
+    public PcapNgReader(ReadableByteChannel channel) throws IOException {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * The buffer grows automatically when a block is larger than bufferSize.
+     */
+    public PcapNgReader(ReadableByteChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        setBuffer(ByteBuffer.allocateDirect(Math.max(bufferSize, 12)));
+        buffer.limit(0);
+
+        if (!fill(12) || buffer.getInt(buffer.position()) != BLOCK_SHB) {
+            close();
+            throw new IOException("Not a pcapng file, the first block is not a section header block.");
+        }
+    }
+
+    /**
+     * Returns true if the file starts with a pcapng section header block.
+     */
+    public static boolean isPcapNg(String fileName) throws IOException {
+        FileInputStream in = new FileInputStream(fileName);
+        try {
+            ByteBuffer b = ByteBuffer.allocate(4);
+            while (b.hasRemaining() && in.getChannel().read(b) >= 0) {
+            }
+            return !b.hasRemaining() && b.getInt(0) == BLOCK_SHB;
+        } finally {
+            in.close();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Advances to the next packet.
+     * Returns false when the end of the file was reached.
+     */
+    public boolean next() throws IOException {
+        buffer.position(nextBlock);
+
+        while (fill(12)) {
+            int start = buffer.position();
+            int type = buffer.getInt(start);
+
+            if (type == BLOCK_SHB) {
+                int bom = buffer.getInt(start + 8);
+                if (bom == Integer.reverseBytes(BYTE_ORDER_MAGIC)) {
+                    buffer.order(buffer.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                } else if (bom != BYTE_ORDER_MAGIC) {
+                    throw new IOException("Invalid byte order magic in section header block: 0x" + Integer.toHexString(bom));
+                }
+                interfaces.clear();
+            }
+
+            int length = buffer.getInt(start + 4);
+            if (length < 12 || length > MAX_BLOCK_SIZE || (length & 3) != 0) {
+                throw new IOException("Invalid block length: " + length);
+            }
+            if (!fill(length)) {
+                /*
+                 * Ignore truncated trailing block.
+                 */
+                break;
+            }
+            start = buffer.position();
+            nextBlock = start + length;
+
+            switch (type) {
+            case BLOCK_IDB:
+                readInterface(start, length);
+                break;
+            case BLOCK_EPB:
+                interfaceId = buffer.getInt(start + 8);
+                currentInterface = getInterface(interfaceId);
+                timestamp = ((buffer.getInt(start + 12) & 0xFFFFFFFFL) << 32) | (buffer.getInt(start + 16) & 0xFFFFFFFFL);
+                capLen = buffer.getInt(start + 20);
+                wireLen = buffer.getInt(start + 24);
+                // Fixed fields, padded data, and trailing block total length
+                if (capLen < 0 || 32L + ((capLen + 3L) & ~3L) > length) {
+                    throw new IOException("Invalid captured length in enhanced packet block: " + capLen);
+                }
+                setData(start + 28);
+                return true;
+            case BLOCK_SPB:
+                interfaceId = 0;
+                currentInterface = getInterface(0);
+                timestamp = 0;
+                wireLen = buffer.getInt(start + 8);
+                capLen = Math.min(wireLen, length - 16);
+                if (currentInterface.snapLen > 0) {
+                    capLen = Math.min(capLen, currentInterface.snapLen);
+                }
+                setData(start + 12);
+                return true;
+            default:
+                break;
+            }
+
+            buffer.position(nextBlock);
+        }
+
+        return false;
+    }
+
+    public Interface getInterface(int id) throws IOException {
+        if (id < 0 || id >= interfaces.size()) {
+            throw new IOException("Packet refers to undefined interface: " + id);
+        }
+        return interfaces.get(id);
+    }
+
+    public int interfaceCount() {
+        return interfaces.size();
+    }
+
+    public int interfaceId() {
+        return interfaceId;
+    }
+
+    public int linkType() {
+        return currentInterface.linkType;
+    }
+
+    public long seconds() {
+        return currentInterface.seconds(timestamp);
+    }
+
+    /**
+     * The fraction of the timestamp in nano seconds.
+     */
+    public int nanos() {
+        return currentInterface.nanos(timestamp);
+    }
+
+    /**
+     * The fraction of the timestamp in micro seconds.
+     */
+    public int micros() {
+        return nanos() / 1000;
+    }
+
+    public long timestampInNanos() {
+        return seconds() * 1000000000L + nanos();
+    }
+
+    public int capLen() {
+        return capLen;
+    }
+
+    public int wireLen() {
+        return wireLen;
+    }
+
+    /**
+     * The packet data of the current packet.
+     * The returned buffer is reused and only valid until the next packet is read.
+     */
+    public ByteBuffer data() {
+        return data;
+    }
+
+    /**
+     * Peers the given header and packet with the current packet without copying the packet data.
+     * The header must have been allocated, e.g., via new PcapHeader(), and the
+     * packet must be of type JMemory.Type.POINTER.
+     * Nano second timestamps are truncated to micro seconds.
+     */
+    public PcapPacket peer(PcapHeader hdr, PcapPacket pkt) throws PeeringException {
+        setHeader(hdr);
+        pkt.peerHeaderAndData(hdr, data);
+        return pkt;
+    }
+
+    /**
+     * Dispatches up to cnt packets, or all packets if cnt is negative.
+     * Returns the number of dispatched packets.
+     */
+    public <T> int dispatch(int cnt, ByteBufferHandler<T> handler, T user) throws IOException {
+        PcapHeader hdr = header();
+        int n = 0;
+        while ((cnt < 0 || n < cnt) && next()) {
+            setHeader(hdr);
+            handler.nextPacket(hdr, data, user);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Dispatches up to cnt packets, or all packets if cnt is negative.
+     * Returns the number of dispatched packets.
+     */
+    public <T> int dispatchJBuffer(int cnt, JBufferHandler<T> handler, T user) throws IOException {
+        PcapHeader hdr = header();
+        if (jbuffer == null) {
+            jbuffer = new JBuffer(JMemory.Type.POINTER);
+        }
+        int n = 0;
+        while ((cnt < 0 || n < cnt) && next()) {
+            setHeader(hdr);
+            try {
+                jbuffer.peer(data);
+            } catch (PeeringException e) {
+                throw new IllegalStateException(e);
+            }
+            handler.nextPacket(hdr, jbuffer, user);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Dispatches up to cnt packets, or all packets if cnt is negative.
+     * The packets are scanned with the JScanner of the current thread.
+     * Returns the number of dispatched packets.
+     */
+    public <T> int dispatch(int cnt, PcapPacketHandler<T> handler, T user) throws IOException {
+        PcapHeader hdr = header();
+        if (packet == null) {
+            packet = new PcapPacket(JMemory.Type.POINTER);
+        }
+        JScanner scanner = JScanner.getThreadLocal();
+        int n = 0;
+        while ((cnt < 0 || n < cnt) && next()) {
+            try {
+                peer(hdr, packet);
+            } catch (PeeringException e) {
+                throw new IllegalStateException(e);
+            }
+            scanner.scan(packet, JRegistry.mapDLTToId(linkType()), wireLen);
+            handler.nextPacket(packet, user);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Dispatches up to cnt packets, or all packets if cnt is negative, in
+     * bulks of bulkSize packets.
+     * The bulk layout is the same as for Pcap.loop with bulk size and int
+     * timestamps: for each packet seconds, micro seconds, captured length, and
+     * wire length as int in native byte order followed by the packet data.
+     * A last incomplete bulk is dispatched as well.
+     * The bulk buffer is reused and only valid during the call to the handler.
+     * Returns the number of dispatched packets.
+     */
+    public <T> int dispatch(int cnt, int bulkSize, BulkByteBufferHandler<T> handler, T user) throws IOException {
+        if (bulkBuffer == null) {
+            bulkBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        }
+        bulkBuffer.clear();
+        int n = 0;
+        int inBulk = 0;
+        while ((cnt < 0 || n < cnt) && next()) {
+            if (bulkBuffer.remaining() < BULK_HEADER_SIZE + capLen) {
+                int size = bulkBuffer.capacity();
+                while (size - bulkBuffer.position() < BULK_HEADER_SIZE + capLen) {
+                    size *= 2;
+                }
+                bulkBuffer.flip();
+                bulkBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()).put(bulkBuffer);
+            }
+            bulkBuffer.putInt((int) seconds());
+            bulkBuffer.putInt(micros());
+            bulkBuffer.putInt(capLen);
+            bulkBuffer.putInt(wireLen);
+            bulkBuffer.put(data);
+            n++;
+
+            if (++inBulk == bulkSize) {
+                bulkBuffer.flip();
+                handler.nextPacket(bulkBuffer, user);
+                bulkBuffer.clear();
+                inBulk = 0;
+            }
+        }
+        if (inBulk > 0) {
+            bulkBuffer.flip();
+            handler.nextPacket(bulkBuffer, user);
+            bulkBuffer.clear();
+        }
+        return n;
+    }
+
+    private PcapHeader header() {
+        if (pcapHeader == null) {
+            pcapHeader = new PcapHeader();
+        }
+        return pcapHeader;
+    }
+
+    private void setHeader(PcapHeader hdr) {
+        hdr.hdr_sec(seconds());
+        hdr.hdr_usec(micros());
+        hdr.hdr_len(capLen);
+        hdr.hdr_wirelen(wireLen);
+    }
+
+    private void setData(int dataStart) {
+        data.limit(dataStart + capLen);
+        data.position(dataStart);
+    }
+
+    private void readInterface(int start, int length) {
+        Interface iface = new Interface(buffer.getShort(start + 8) & 0xFFFF, buffer.getInt(start + 12));
+
+        int pos = start + 16;
+        int end = start + length - 4;
+        while (pos + 4 <= end) {
+            int code = buffer.getShort(pos) & 0xFFFF;
+            int len = buffer.getShort(pos + 2) & 0xFFFF;
+            int value = pos + 4;
+            if (code == OPT_END || value + len > end) {
+                break;
+            }
+
+            if (code == OPT_IF_NAME) {
+                byte[] name = new byte[len];
+                for (int i = 0; i < len; i++) {
+                    name[i] = buffer.get(value + i);
+                }
+                iface.name = new String(name).trim();
+            } else if (code == OPT_IF_TSRESOL && len >= 1) {
+                iface.setResolution(buffer.get(value));
+            } else if (code == OPT_IF_TSOFFSET && len >= 8) {
+                iface.offset = buffer.getLong(value);
+            }
+
+            pos = value + ((len + 3) & ~3);
+        }
+
+        interfaces.add(iface);
+    }
+
+    /*
+     * Ensures that at least n bytes are available from the current position.
+     * Returns false if the end of the file is reached before.
+     */
+    private boolean fill(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+
+        if (n > buffer.capacity()) {
+            int size = buffer.capacity();
+            while (size < n) {
+                size *= 2;
+            }
+            ByteBuffer b = ByteBuffer.allocateDirect(size).order(buffer.order());
+            b.put(buffer);
+            setBuffer(b);
+        } else {
+            buffer.compact();
+        }
+
+        while (!eof && buffer.position() < n) {
+            if (channel.read(buffer) < 0) {
+                eof = true;
+            }
+        }
+        buffer.flip();
+        nextBlock = 0;
+
+        return buffer.remaining() >= n;
+    }
+
+    private void setBuffer(ByteBuffer b) {
+        buffer = b;
+        data = b.duplicate();
+    }
+
+    /**
+     * Description of a capture interface as given by an interface description block.
+     */
+    public static class Interface {
+
+        private final int linkType;
+        private final int snapLen;
+        private String name;
+        private long unitsPerSecond = 1000000L;
+        private long offset = 0;
+
+        Interface(int linkType, int snapLen) {
+            this.linkType = linkType;
+            this.snapLen = snapLen;
+        }
+
+        public int getLinkType() {
+            return linkType;
+        }
+
+        public int getSnapLen() {
+            return snapLen;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The timestamp resolution in units per second, e.g., 1000000000 for nano seconds.
+         */
+        public long getUnitsPerSecond() {
+            return unitsPerSecond;
+        }
+
+        void setResolution(byte tsresol) {
+            int exp = tsresol & 0x7F;
+            long ups = 1;
+            for (int i = 0; i < exp && ups < Long.MAX_VALUE / 10; i++) {
+                ups = ((tsresol & 0x80) == 0) ? ups * 10 : ups << 1;
+            }
+            unitsPerSecond = ups;
+        }
+
+        long seconds(long ts) {
+            return ts / unitsPerSecond + offset;
+        }
+
+        int nanos(long ts) {
+            long frac = ts % unitsPerSecond;
+            if (unitsPerSecond == 1000000000L) {
+                return (int) frac;
+            } else if (unitsPerSecond <= 1000000000L) {
+                return (int) (frac * 1000000000L / unitsPerSecond);
+            }
+            return (int) ((double) frac * 1e9 / unitsPerSecond);
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import org.jnetpcap.JBufferHandler;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PcapPacketHandler;
+
+/**
+ * Streaming writer for pcapng files.
+ *
+ * A section header block is written when the writer is created.
+ * Interfaces are added via addInterface; their interface description blocks
+ * use nano second timestamp resolution.
+ * Packets are written as enhanced packet blocks.
+ * The blocks are assembled in a reused direct ByteBuffer that is written
+ * to the channel when it is full, on flush(), and on close().
+ *
+ * The writer can be used directly as JBufferHandler or PcapPacketHandler.
+ * In this case, the packets are written for interface 0.
+ */
+public class PcapNgWriter implements JBufferHandler<Object>, PcapPacketHandler<Object> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private int interfaceCount = 0;
+
+    public PcapNgWriter(String fileName) throws IOException {
+        this(new FileOutputStream(fileName).getChannel());
+    }
+
+    /**
+     * Creates a writer with a single interface with the given link type and snap length.
+     */
+    public PcapNgWriter(String fileName, int linkType, int snapLen) throws IOException {
+        this(fileName);
+        addInterface(linkType, snapLen, null);
+    }
+
+    public PcapNgWriter(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+
+        buffer.putInt(PcapNgReader.BLOCK_SHB);
+        buffer.putInt(28);
+        buffer.putInt(PcapNgReader.BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putLong(-1L);
+        buffer.putInt(28);
+    }
+
+    /**
+     * Adds an interface and returns its id.
+     * name is optional and may be null.
+     */
+    public int addInterface(int linkType, int snapLen, String name) throws IOException {
+        byte[] nameBytes = (name != null) ? name.getBytes() : new byte[0];
+        int namePadded = (nameBytes.length + 3) & ~3;
+        int length = 20 + (nameBytes.length > 0 ? 4 + namePadded : 0) + 8 + 4;
+
+        ensureRemaining(length);
+        buffer.putInt(PcapNgReader.BLOCK_IDB);
+        buffer.putInt(length);
+        buffer.putShort((short) linkType);
+        buffer.putShort((short) 0);
+        buffer.putInt(snapLen);
+        if (nameBytes.length > 0) {
+            buffer.putShort((short) PcapNgReader.OPT_IF_NAME);
+            buffer.putShort((short) nameBytes.length);
+            buffer.put(nameBytes);
+            pad(namePadded - nameBytes.length);
+        }
+        buffer.putShort((short) PcapNgReader.OPT_IF_TSRESOL);
+        buffer.putShort((short) 1);
+        buffer.put((byte) 9);
+        pad(3);
+        buffer.putInt(PcapNgReader.OPT_END);
+        buffer.putInt(length);
+
+        return interfaceCount++;
+    }
+
+    /**
+     * Writes the remaining bytes of data as enhanced packet block.
+     * The position of data is not changed.
+     */
+    public void write(int interfaceId, long seconds, int nanos, int wireLen, ByteBuffer data) throws IOException {
+        int capLen = data.remaining();
+        int length = beginPacket(interfaceId, seconds, nanos, capLen, wireLen);
+        buffer.put(data.duplicate());
+        endPacket(capLen, length);
+    }
+
+    /**
+     * Writes the given data as enhanced packet block.
+     */
+    public void write(int interfaceId, PcapHeader hdr, JBuffer data) throws IOException {
+        int capLen = data.size();
+        int length = beginPacket(interfaceId, hdr.hdr_sec(), hdr.hdr_usec() * 1000, capLen, hdr.hdr_wirelen());
+        data.transferTo(buffer);
+        endPacket(capLen, length);
+    }
+
+    public void nextPacket(PcapHeader hdr, JBuffer data, Object user) {
+        try {
+            write(0, hdr, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void nextPacket(PcapPacket packet, Object user) {
+        try {
+            write(0, packet.getCaptureHeader(), packet);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private int beginPacket(int interfaceId, long seconds, int nanos, int capLen, int wireLen) throws IOException {
+        if (interfaceId < 0 || interfaceId >= interfaceCount) {
+            throw new IOException("Undefined interface: " + interfaceId);
+        }
+
+        int length = 32 + ((capLen + 3) & ~3);
+        ensureRemaining(length);
+
+        long ts = seconds * 1000000000L + nanos;
+        buffer.putInt(PcapNgReader.BLOCK_EPB);
+        buffer.putInt(length);
+        buffer.putInt(interfaceId);
+        buffer.putInt((int) (ts >>> 32));
+        buffer.putInt((int) ts);
+        buffer.putInt(capLen);
+        buffer.putInt(wireLen);
+        return length;
+    }
+
+    private void endPacket(int capLen, int length) {
+        pad(((capLen + 3) & ~3) - capLen);
+        buffer.putInt(length);
+    }
+
+    private void pad(int n) {
+        for (int i = 0; i < n; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private void ensureRemaining(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+        if (buffer.remaining() < n) {
+            buffer = ByteBuffer.allocateDirect(n).order(ByteOrder.nativeOrder());
+        }
+    }
+
+}
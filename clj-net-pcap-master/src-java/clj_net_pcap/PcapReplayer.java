@@ -0,0 +1,308 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jnetpcap.BpfFilter;
+import org.jnetpcap.ByteBufferHandler;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+
+/**
+ * Replays classic pcap files at controlled rates.
+ *
+ * The file is read via MappedPcapReader and the packets are passed in place to a ByteBufferHandler,
+ * like with Pcap.loop, e.g., to the handler chain of the capture pipeline or to an InjectHandler.
+ *
+ * Packets are scheduled either:
+ * <ul>
+ * <li>by their original timestamps, with the gaps between packets divided by a speed multiplier,</li>
+ * <li>at a fixed rate in packets per second, ignoring the original timestamps, or</li>
+ * <li>as fast as the handler accepts them, when neither speed nor rate are positive.</li>
+ * </ul>
+ * The schedule is absolute, i.e., when the handler falls behind, the following packets are emitted
+ * without waiting until the schedule is met again.
+ * The lag behind the schedule is recorded.
+ *
+ * The file can be replayed multiple times.
+ * By default, the timestamps of repeated passes are shifted by the duration of the file plus
+ * the mean gap between packets, so the timestamps seen by the handler increase monotonically.
+ * Alternatively, the timestamps can be rewritten to the wall clock time at which each packet was scheduled.
+ *
+ * A PcapReplayer replays in a single thread.
+ * The statistics and stop() can be used from other threads.
+ */
+public class PcapReplayer {
+
+    private final MappedPcapReader reader;
+
+    private double speed = 1.0;
+    private double pps = 0;
+    private int loops = 1;
+    private boolean rewriteTimestamps = false;
+    private volatile BpfFilter filter = null;
+
+    private volatile boolean running = true;
+    private volatile long packetCount = 0;
+    private volatile long byteCount = 0;
+    private volatile long filteredCount = 0;
+    private volatile long loopCount = 0;
+    private volatile long maxLagNanos = 0;
+    private volatile long firstDue = 0;
+    private volatile long lastDue = 0;
+    private volatile long firstEmitted = 0;
+    private volatile long lastEmitted = 0;
+
+    public PcapReplayer(String fileName) throws IOException {
+        this.reader = new MappedPcapReader(fileName);
+    }
+
+    /**
+     * Sets the speed multiplier for replaying with the original timing, e.g., 2.0 for twice as fast.
+     * A value of 0 or less replays as fast as possible unless a rate is set.
+     */
+    public PcapReplayer setSpeed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Sets a fixed rate in packets per second that takes precedence over the speed multiplier.
+     * A value of 0 or less disables the fixed rate.
+     */
+    public PcapReplayer setPps(double pps) {
+        this.pps = pps;
+        return this;
+    }
+
+    /**
+     * Sets how often the file is replayed.
+     * A value of 0 or less replays the file until stop() is called.
+     */
+    public PcapReplayer setLoops(int loops) {
+        this.loops = loops;
+        return this;
+    }
+
+    /**
+     * If true, the timestamps are set to the wall clock time at which the packets were scheduled.
+     */
+    public PcapReplayer setRewriteTimestamps(boolean rewriteTimestamps) {
+        this.rewriteTimestamps = rewriteTimestamps;
+        return this;
+    }
+
+    /**
+     * Only packets matching the given filter are replayed; null replays all packets.
+     * Packets that do not match do not consume time of the schedule when a fixed rate is used.
+     */
+    public PcapReplayer setFilter(BpfFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public int getLinkType() {
+        return reader.getLinkType();
+    }
+
+    /**
+     * Replays the file to the given handler and returns the number of replayed packets.
+     * Blocks until all passes over the file were replayed or until stop() was called.
+     * The header and buffer passed to the handler are reused and only valid during the call.
+     */
+    public <T> long replay(ByteBufferHandler<T> handler, T user) throws IOException {
+        final MappedPcapReader.Chunk[] chunks = reader.chunks();
+        final PcapHeader hdr = new PcapHeader();
+        final TokenBucket bucket = (pps > 0) ? new TokenBucket(pps, 1) : null;
+        final long wallClockOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+        final long start = System.nanoTime();
+
+        long firstTs = -1;
+        long lastTs = -1;
+        long filePackets = 0;
+        long loopShift = 0;
+        long emitted = 0;
+
+        for (int loop = 0; (loops <= 0 || loop < loops) && running; loop++) {
+            for (int c = 0; c < chunks.length && running; c++) {
+                MappedPcapReader.Cursor cursor = chunks[c].cursor();
+                while (running && cursor.next()) {
+                    long ts = cursor.timestampInNanos();
+                    if (loop == 0) {
+                        if (firstTs < 0) {
+                            firstTs = ts;
+                        }
+                        lastTs = Math.max(lastTs, ts);
+                        filePackets++;
+                    }
+
+                    ByteBuffer data = cursor.data();
+                    int capLen = cursor.capLen();
+                    int wireLen = cursor.wireLen();
+                    if (filter != null && !filter.matches(data, data.position(), capLen, wireLen)) {
+                        filteredCount++;
+                        continue;
+                    }
+
+                    long replayTs = ts + loopShift;
+                    long due;
+                    if (bucket != null) {
+                        due = bucket.acquire(1);
+                    } else if (speed > 0) {
+                        due = start + (long) ((replayTs - firstTs) / speed);
+                        TokenBucket.waitUntil(due);
+                    } else {
+                        due = System.nanoTime();
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - due > maxLagNanos) {
+                        maxLagNanos = now - due;
+                    }
+                    if (emitted == 0) {
+                        firstDue = due;
+                        firstEmitted = now;
+                    }
+                    lastDue = due;
+                    lastEmitted = now;
+
+                    long outTs = rewriteTimestamps ? wallClockOffsetNanos + due : replayTs;
+                    hdr.hdr_sec(outTs / 1000000000L);
+                    hdr.hdr_usec((int) ((outTs / 1000) % 1000000L));
+                    hdr.hdr_len(capLen);
+                    hdr.hdr_wirelen(wireLen);
+                    handler.nextPacket(hdr, data, user);
+
+                    emitted++;
+                    packetCount = emitted;
+                    byteCount += capLen;
+                }
+            }
+
+            if (!running) {
+                break;
+            }
+            loopCount++;
+            if (filePackets == 0) {
+                break;
+            }
+            long duration = lastTs - firstTs;
+            long gap = (filePackets > 1) ? duration / (filePackets - 1) : 1000000L;
+            loopShift += duration + Math.max(gap, 1000);
+        }
+
+        return emitted;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        reader.close();
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Number of packets that were skipped because they did not match the filter.
+     */
+    public long getFilteredCount() {
+        return filteredCount;
+    }
+
+    /**
+     * Number of completed passes over the file.
+     */
+    public long getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * The largest delay between the scheduled time of a packet and the time it was passed to the handler.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    /**
+     * The rate in packets per second requested by the schedule, or 0 if packets are not paced.
+     */
+    public double getRequestedRate() {
+        if (pps > 0) {
+            return pps;
+        }
+        return (speed > 0) ? rate(packetCount, lastDue - firstDue) : 0;
+    }
+
+    /**
+     * The rate in packets per second at which the packets were actually passed to the handler.
+     */
+    public double getAchievedRate() {
+        return rate(packetCount, lastEmitted - firstEmitted);
+    }
+
+    private static double rate(long packets, long nanos) {
+        if (packets < 2 || nanos <= 0) {
+            return 0;
+        }
+        return (packets - 1) * 1e9 / nanos;
+    }
+
+    /**
+     * Sends the replayed packets via pcap_inject, e.g., on a loopback or dummy device.
+     */
+    public static class InjectHandler implements ByteBufferHandler<Object> {
+
+        private final Pcap pcap;
+        private long failedCount = 0;
+
+        public InjectHandler(Pcap pcap) {
+            this.pcap = pcap;
+        }
+
+        @Override
+        public void nextPacket(PcapHeader header, ByteBuffer buffer, Object user) {
+            if (pcap.inject(buffer) < 0) {
+                failedCount++;
+            }
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming reader for files written with RecordFileWriter.
+ *
+ * The reader iterates over the records via next().
+ * The values of the current record can be accessed via the getters,
+ * copied into a reused ExtractionRecord via copyTo, or converted to a map via toMap.
+ * A reader is not thread safe.
+ */
+public class RecordFileReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final int[] kinds;
+    private final int[] widths;
+    private final int codec;
+
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(RecordFileWriter.BLOCK_HEADER_SIZE);
+    private ByteBuffer stored = ByteBuffer.allocate(0);
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private final Inflater inflater = new Inflater();
+    private int blockRecords = 0;
+
+    private final long[] values;
+    private final String[] strings;
+
+    public RecordFileReader(String fileName) throws IOException {
+        this(new FileInputStream(fileName).getChannel());
+    }
+
+    public RecordFileReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        ByteBuffer hdr = read(ByteBuffer.allocate(11));
+        if (hdr.getInt() != RecordFileWriter.MAGIC) {
+            throw new IOException("Not a record file.");
+        }
+        short version = hdr.getShort();
+        if (version != RecordFileWriter.VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        codec = hdr.get();
+        int columns = hdr.getInt();
+
+        names = new String[columns];
+        kinds = new int[columns];
+        widths = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            int len = read(ByteBuffer.allocate(2)).getShort() & 0xFFFF;
+            ByteBuffer col = read(ByteBuffer.allocate(len + 2));
+            names[i] = new String(col.array(), 0, len, RecordFileWriter.UTF8);
+            col.position(len);
+            kinds[i] = col.get();
+            widths[i] = col.get();
+        }
+
+        values = new long[columns];
+        strings = new String[columns];
+    }
+
+    private ByteBuffer read(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Unexpected end of record file.");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads the next block; returns false at the end of the file.
+     */
+    private boolean nextBlock() throws IOException {
+        blockHeader.clear();
+        int n = 0;
+        while (blockHeader.hasRemaining() && (n = channel.read(blockHeader)) >= 0) {
+        }
+        if (n < 0 && blockHeader.position() == 0) {
+            return false;
+        }
+        if (blockHeader.hasRemaining()) {
+            throw new EOFException("Truncated block header.");
+        }
+        blockHeader.flip();
+
+        int records = blockHeader.getInt();
+        int rawLength = blockHeader.getInt();
+        int storedLength = blockHeader.getInt();
+        int storedCodec = blockHeader.get();
+
+        if (stored.capacity() < storedLength) {
+            stored = ByteBuffer.allocate(storedLength);
+        }
+        stored.clear();
+        stored.limit(storedLength);
+        read(stored);
+
+        if (storedCodec == RecordFileWriter.CODEC_NONE) {
+            block = stored;
+        } else if (storedCodec == RecordFileWriter.CODEC_DEFLATE) {
+            if (block == stored || block.capacity() < rawLength) {
+                block = ByteBuffer.allocate(rawLength);
+            }
+            inflater.reset();
+            inflater.setInput(stored.array(), 0, storedLength);
+            try {
+                int inflated = inflater.inflate(block.array(), 0, rawLength);
+                if (inflated != rawLength) {
+                    throw new IOException("Corrupt block: got " + inflated + " bytes but expected " + rawLength);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block: " + e.getMessage());
+            }
+            block.clear();
+            block.limit(rawLength);
+        } else {
+            throw new IOException("Unknown codec: " + storedCodec);
+        }
+
+        blockRecords = records;
+        return true;
+    }
+
+    /**
+     * Advances to the next record; returns false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        while (blockRecords == 0) {
+            if (!nextBlock()) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < widths.length; i++) {
+            switch (widths[i]) {
+            case 0:
+                int len = block.getShort() & 0xFFFF;
+                strings[i] = new String(block.array(), block.arrayOffset() + block.position(), len,
+                                        RecordFileWriter.UTF8);
+                block.position(block.position() + len);
+                break;
+            case 1:
+                values[i] = block.get() & 0xFFL;
+                break;
+            case 2:
+                values[i] = block.getShort() & 0xFFFFL;
+                break;
+            case 4:
+                values[i] = block.getInt() & 0xFFFFFFFFL;
+                break;
+            case 6:
+                values[i] = ((block.getShort() & 0xFFFFL) << 32) | (block.getInt() & 0xFFFFFFFFL);
+                break;
+            default:
+                values[i] = block.getLong();
+            }
+        }
+        blockRecords--;
+        return true;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getName(int col) {
+        return names[col];
+    }
+
+    public int getKind(int col) {
+        return kinds[col];
+    }
+
+    public int getWidth(int col) {
+        return widths[col];
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public long getLong(int col) {
+        return values[col];
+    }
+
+    public double getDouble(int col) {
+        return Double.longBitsToDouble(values[col]);
+    }
+
+    public String getString(int col) {
+        return strings[col];
+    }
+
+    /**
+     * Returns the boxed value, or the formatted String in case of addresses, of the current record.
+     */
+    public Object getValue(int col) {
+        switch (kinds[col]) {
+        case ExtractionRecord.KIND_DOUBLE:
+            return getDouble(col);
+        case ExtractionRecord.KIND_IPV4:
+            return ExtractionRecord.formatIpv4((int) values[col]);
+        case ExtractionRecord.KIND_ETHERNET:
+            return ExtractionRecord.formatEthernet(values[col]);
+        case ExtractionRecord.KIND_STRING:
+            return strings[col];
+        default:
+            return values[col];
+        }
+    }
+
+    /**
+     * Creates a new record with the layout of this file.
+     * Files with String columns can not be read into records.
+     */
+    public ExtractionRecord newRecord() {
+        for (int kind : kinds) {
+            if (kind == ExtractionRecord.KIND_STRING) {
+                throw new IllegalStateException("String columns are not supported by ExtractionRecord.");
+            }
+        }
+        return new ExtractionRecord(names, kinds);
+    }
+
+    /**
+     * Copies the values of the current record into rec, which must have the layout of this file.
+     */
+    public ExtractionRecord copyTo(ExtractionRecord rec) {
+        for (int i = 0; i < values.length; i++) {
+            rec.setLong(i, values[i]);
+        }
+        return rec;
+    }
+
+    /**
+     * Returns the current record as map with the same keys and values as ExtractionRecord.toMap.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < values.length; i++) {
+            map.put(names[i], getValue(i));
+        }
+        return map;
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+}
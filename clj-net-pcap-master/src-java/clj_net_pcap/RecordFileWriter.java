@@ -0,0 +1,422 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+
+/**
+ * Writer for a binary, schema described file format for values extracted via the byte array extraction DSL.
+ *
+ * The file starts with a header:
+ * the magic number 0x434E5052 ("CNPR"), the version (short), the codec (byte),
+ * the number of columns (int), and, for each column, the name (unsigned short length
+ * followed by the UTF-8 bytes), the kind (byte),
+ * and the width in bytes (byte).
+ * The kinds are the same as for ExtractionRecord.
+ *
+ * The header is followed by blocks of records.
+ * Each block starts with the number of records (int), the uncompressed length (int),
+ * the stored length (int), and the codec (byte), followed by the stored bytes.
+ * Blocks that do not get smaller when compressed are stored uncompressed.
+ * Within a block, each record has the values of all columns in order, big endian, with the
+ * fixed width of the column.
+ * Widths of 1, 2, or 4 bytes are meant for unsigned values, e.g., as extracted by int8 or int16;
+ * they are zero extended when read.
+ * String values (width 0) are written as unsigned short length followed by the UTF-8 bytes.
+ *
+ * Sealed blocks are collected in the buffers of DoubleBufferedFileWriter,
+ * so records are written in groups without a flush per record and with bounded latency.
+ *
+ * A writer is meant to be used by a single producer thread.
+ */
+public class RecordFileWriter extends DoubleBufferedFileWriter {
+
+    public static final int MAGIC = 0x434E5052;
+    public static final short VERSION = 1;
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+    static final int BLOCK_HEADER_SIZE = 13;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String[] names;
+    private final int[] kinds;
+    private final int[] widths;
+    private final boolean hasStrings;
+    private final int codec;
+
+    private ByteBuffer block;
+    private int blockRecords = 0;
+    private final Deflater deflater;
+    private byte[] compressed = new byte[0];
+
+    private long recordCount = 0;
+    private long blockCount = 0;
+
+    /**
+     * Creates a writer for records with the layout of the given record.
+     * The widths are derived from the kinds, see defaultWidth.
+     */
+    public RecordFileWriter(String fileName, ExtractionRecord layout, int codec) throws IOException {
+        this(new FileOutputStream(fileName).getChannel(), names(layout), kinds(layout), null, codec,
+             DEFAULT_BLOCK_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Creates a writer for batches with the layout of the given batch.
+     * The widths are derived from the kinds, see defaultWidth.
+     */
+    public RecordFileWriter(String fileName, ExtractionBatch layout, int codec) throws IOException {
+        this(new FileOutputStream(fileName).getChannel(), names(layout), kinds(layout), null, codec,
+             DEFAULT_BLOCK_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Creates a writer and writes the file header.
+     *
+     * widths may be null or contain 0 for columns that should use the default width of their kind.
+     * commitInterval is the maximum time in milliseconds that sealed blocks are kept
+     * in memory before they are written; values less than or equal 0 disable the periodic commit.
+     */
+    public RecordFileWriter(FileChannel channel, String[] names, int[] kinds, int[] widths,
+                            int codec, int blockSize, long commitInterval) throws IOException {
+        super(channel, 2 * (BLOCK_HEADER_SIZE + blockSize), ByteOrder.BIG_ENDIAN, commitInterval);
+        if (names.length != kinds.length || (widths != null && widths.length != kinds.length)) {
+            throw new IllegalArgumentException("Got " + names.length + " names but " + kinds.length + " kinds.");
+        }
+        if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+            throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+
+        this.names = names.clone();
+        this.kinds = kinds.clone();
+        this.widths = new int[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            int w = (widths != null && widths[i] > 0) ? widths[i] : defaultWidth(kinds[i]);
+            if (kinds[i] == ExtractionRecord.KIND_STRING) {
+                w = 0;
+            } else if (w != 1 && w != 2 && w != 4 && w != 6 && w != 8) {
+                throw new IllegalArgumentException("Invalid width " + w + " for column " + names[i]);
+            }
+            this.widths[i] = w;
+        }
+        this.hasStrings = hasStrings(this.widths);
+        this.codec = codec;
+        this.deflater = (codec == CODEC_DEFLATE) ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        this.block = ByteBuffer.allocate(blockSize);
+
+        writeFileHeader();
+        start("RecordFileWriter");
+    }
+
+    /**
+     * Default width of the values of the given kind.
+     * Longs and doubles use 8 bytes, IPv4 addresses 4, ethernet addresses 6, and Strings are variable (0).
+     */
+    public static int defaultWidth(int kind) {
+        switch (kind) {
+        case ExtractionRecord.KIND_IPV4:
+            return 4;
+        case ExtractionRecord.KIND_ETHERNET:
+            return 6;
+        case ExtractionRecord.KIND_STRING:
+            return 0;
+        default:
+            return 8;
+        }
+    }
+
+    private static boolean hasStrings(int[] widths) {
+        for (int w : widths) {
+            if (w == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] names(ExtractionRecord r) {
+        String[] n = new String[r.size()];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = r.getName(i);
+        }
+        return n;
+    }
+
+    private static int[] kinds(ExtractionRecord r) {
+        int[] k = new int[r.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = r.getKind(i);
+        }
+        return k;
+    }
+
+    private static String[] names(ExtractionBatch b) {
+        String[] n = new String[b.getColumnCount()];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = b.getName(i);
+        }
+        return n;
+    }
+
+    private static int[] kinds(ExtractionBatch b) {
+        int[] k = new int[b.getColumnCount()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = b.getKind(i);
+        }
+        return k;
+    }
+
+    private void writeFileHeader() throws IOException {
+        int size = 11;
+        byte[][] nameBytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            nameBytes[i] = names[i].getBytes(UTF8);
+            size += 2 + nameBytes[i].length + 2;
+        }
+
+        ByteBuffer hdr = ByteBuffer.allocate(size);
+        hdr.putInt(MAGIC);
+        hdr.putShort(VERSION);
+        hdr.put((byte) codec);
+        hdr.putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            hdr.putShort((short) nameBytes[i].length);
+            hdr.put(nameBytes[i]);
+            hdr.put((byte) kinds[i]);
+            hdr.put((byte) widths[i]);
+        }
+        hdr.flip();
+        while (hdr.hasRemaining()) {
+            channel.write(hdr);
+        }
+        addBytesWritten(size);
+    }
+
+    /**
+     * Writes the values of the record, which must have the layout of this writer.
+     */
+    public void write(ExtractionRecord rec) throws IOException {
+        lock.lock();
+        try {
+            checkState();
+            if (hasStrings) {
+                throw new IOException("Records can not be written to a layout with String columns.");
+            }
+            ensureBlockRemaining(recordSize());
+            for (int i = 0; i < widths.length; i++) {
+                putFixed(widths[i], rec.getLong(i));
+            }
+            recordDone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all rows of the batch, which must have the layout of this writer.
+     */
+    public void write(ExtractionBatch batch) throws IOException {
+        lock.lock();
+        try {
+            checkState();
+            int rows = batch.size();
+            for (int row = 0; row < rows; row++) {
+                int size = recordSize();
+                byte[][] strings = null;
+                for (int i = 0; i < widths.length; i++) {
+                    if (widths[i] == 0) {
+                        if (strings == null) {
+                            strings = new byte[widths.length][];
+                        }
+                        strings[i] = batch.getString(i, row).getBytes(UTF8);
+                        if (strings[i].length > 0xFFFF) {
+                            throw new IOException("String too long in column " + names[i]);
+                        }
+                        size += strings[i].length;
+                    }
+                }
+
+                ensureBlockRemaining(size);
+                for (int i = 0; i < widths.length; i++) {
+                    if (widths[i] == 0) {
+                        block.putShort((short) strings[i].length);
+                        block.put(strings[i]);
+                    } else {
+                        putFixed(widths[i], batch.getLong(i, row));
+                    }
+                }
+                recordDone();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int recordSize() {
+        int size = 0;
+        for (int i = 0; i < widths.length; i++) {
+            size += (widths[i] == 0) ? 2 : widths[i];
+        }
+        return size;
+    }
+
+    private void putFixed(int width, long v) {
+        switch (width) {
+        case 1:
+            block.put((byte) v);
+            break;
+        case 2:
+            block.putShort((short) v);
+            break;
+        case 4:
+            block.putInt((int) v);
+            break;
+        case 6:
+            block.putShort((short) (v >>> 32));
+            block.putInt((int) v);
+            break;
+        default:
+            block.putLong(v);
+        }
+    }
+
+    private void recordDone() throws IOException {
+        blockRecords++;
+        recordCount++;
+        if (!block.hasRemaining()) {
+            sealBlock();
+        }
+    }
+
+    private void ensureBlockRemaining(int size) throws IOException {
+        if (block.remaining() >= size) {
+            return;
+        }
+        sealBlock();
+        if (block.capacity() < size) {
+            block = ByteBuffer.allocate(size);
+        }
+    }
+
+    /**
+     * Compresses the current block, if enabled, and appends it to the active buffer.
+     * Must be called with the lock held.
+     */
+    private void sealBlock() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+
+        byte[] raw = block.array();
+        int rawLength = block.position();
+        byte[] stored = raw;
+        int storedLength = rawLength;
+        int storedCodec = CODEC_NONE;
+
+        if (deflater != null) {
+            if (compressed.length < rawLength) {
+                compressed = new byte[rawLength];
+            }
+            deflater.reset();
+            deflater.setInput(raw, 0, rawLength);
+            deflater.finish();
+            int n = deflater.deflate(compressed, 0, compressed.length);
+            if (deflater.finished() && n < rawLength) {
+                stored = compressed;
+                storedLength = n;
+                storedCodec = CODEC_DEFLATE;
+            }
+        }
+
+        int needed = BLOCK_HEADER_SIZE + storedLength;
+        if (active.remaining() < needed) {
+            awaitPendingWritten();
+            handOff(false);
+            ensureActiveCapacity(needed);
+        }
+        active.putInt(blockRecords);
+        active.putInt(rawLength);
+        active.putInt(storedLength);
+        active.put((byte) storedCodec);
+        active.put(stored, 0, storedLength);
+
+        block.clear();
+        blockRecords = 0;
+        blockCount++;
+    }
+
+    /**
+     * Seals the current block and hands it off after the commit interval elapsed.
+     */
+    @Override
+    protected void commit() throws IOException {
+        sealBlock();
+        if (!isPending()) {
+            handOff(false);
+        }
+    }
+
+    @Override
+    protected void beforeFlush() throws IOException {
+        sealBlock();
+    }
+
+    /**
+     * Flushes the records and forces them to the storage device.
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    protected void closeResources() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    public int getWidth(int col) {
+        return widths[col];
+    }
+
+}
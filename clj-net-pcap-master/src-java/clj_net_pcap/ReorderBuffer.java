@@ -0,0 +1,101 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+/**
+ * Restores the original order of objects that were processed out of order by
+ * multiple threads.
+ *
+ * Each object is identified by a sequence number that is assigned in the
+ * original order, starting with 0, without gaps.
+ * Producers put objects with their sequence number; the consumer takes them
+ * in sequence order.
+ * Objects that are lost during processing must be marked via skip(long) so
+ * that the consumer does not wait for them.
+ *
+ * A producer blocks when its sequence number is more than capacity entries
+ * ahead of the next sequence number to be taken.
+ * As the producer holding the next sequence number never blocks this cannot
+ * deadlock as long as every producer handles its sequence numbers in
+ * ascending order.
+ */
+public class ReorderBuffer {
+
+    private static final Object SKIPPED = new Object();
+
+    private final Object[] slots;
+    private long nextSeq = 0;
+    private int size = 0;
+
+    public ReorderBuffer(int capacity) {
+        slots = new Object[capacity];
+    }
+
+    public synchronized void put(long seq, Object o) throws InterruptedException {
+        while (seq - nextSeq >= slots.length) {
+            wait();
+        }
+
+        if (o == null) {
+            slots[(int) (seq % slots.length)] = SKIPPED;
+        } else {
+            slots[(int) (seq % slots.length)] = o;
+            size++;
+        }
+
+        if (seq == nextSeq) {
+            notifyAll();
+        }
+    }
+
+    public void skip(long seq) throws InterruptedException {
+        put(seq, null);
+    }
+
+    public synchronized Object take() throws InterruptedException {
+        while (true) {
+            int idx = (int) (nextSeq % slots.length);
+
+            while (slots[idx] == null) {
+                wait();
+            }
+
+            Object o = slots[idx];
+            slots[idx] = null;
+            nextSeq++;
+            notifyAll();
+
+            if (o != SKIPPED) {
+                size--;
+                return o;
+            }
+        }
+    }
+
+    /**
+     * Number of objects that were put but not yet taken; skipped sequence numbers are not counted.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+}
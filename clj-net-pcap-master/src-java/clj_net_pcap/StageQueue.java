@@ -0,0 +1,452 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue between two stages of the capture pipeline with a pluggable overload policy.
+ *
+ * The number of elements is tracked in an atomic counter, so size() is O(1) independent of the
+ * wrapped queue, e.g., a LinkedTransferQueue for which size() traverses all elements.
+ * Producers reserve a slot in the counter before they enqueue an element, so the capacity is never exceeded.
+ * Blocked producers wait on a condition that is signalled when elements are removed.
+ *
+ * Producers first call admit() to decide if and how a packet is to be enqueued and only then
+ * create, i.e., copy, the packet and pass it to insert() or insertDegraded().
+ * Thus, no copies are made for packets that are dropped.
+ * The decision depends on the policy, which can be changed at runtime, and on the fill level:
+ * <ul>
+ * <li>The queue is overloaded when the high watermark (3/4 of the capacity) is reached
+ * and stays overloaded until the low watermark (1/2 of the capacity) is reached again.</li>
+ * <li>BLOCK blocks the producer while the queue is full.</li>
+ * <li>DROP_NEWEST drops new packets while the queue is full.</li>
+ * <li>DROP_OLDEST removes the oldest packets to make room for new packets.</li>
+ * <li>SAMPLE keeps only every n-th packet while overloaded and drops new packets while full.</li>
+ * <li>HEADER_ONLY truncates packets to their headers while overloaded and drops new packets while full.
+ * Stages that cannot truncate their elements enqueue them unchanged.</li>
+ * </ul>
+ * The policy can be fixed for queues that must not lose packets, e.g., when processing files.
+ * DROP_OLDEST can be disabled for queues whose elements must not be lost silently once they were enqueued,
+ * e.g., because a sequence number was assigned to them; it then behaves like DROP_NEWEST.
+ * Each decision is counted, see toMap().
+ */
+public class StageQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    public static final int BLOCK = 0;
+    public static final int DROP_NEWEST = 1;
+    public static final int DROP_OLDEST = 2;
+    public static final int SAMPLE = 3;
+    public static final int HEADER_ONLY = 4;
+
+    public static final int ADMIT = 0;
+    public static final int DEGRADE = 1;
+    public static final int DROP = 2;
+
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    private static final String[] POLICIES = {"block", "drop-newest", "drop-oldest", "sample", "header-only"};
+
+    private final String name;
+    private final BlockingQueue<E> queue;
+    private final int capacity;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final ReentrantLock notFullLock = new ReentrantLock();
+    private final Condition notFull = notFullLock.newCondition();
+    private volatile int waitingProducers = 0;
+
+    private volatile int policy;
+    private volatile boolean policyFixed = false;
+    private volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile boolean overloaded = false;
+    private volatile boolean dropOldestAllowed = true;
+    private final AtomicLong sampleSeq = new AtomicLong();
+
+    private final Counter droppedNewest = new Counter();
+    private final Counter droppedOldest = new Counter();
+    private final Counter sampledOut = new Counter();
+    private final Counter degraded = new Counter();
+    private final Counter blocked = new Counter();
+    private final Counter overloads = new Counter();
+
+    /**
+     * Wraps the given, empty queue, which must be able to hold at least capacity elements.
+     */
+    public StageQueue(String name, BlockingQueue<E> queue, int capacity, int policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least one but was: " + capacity);
+        }
+        this.name = name;
+        this.queue = queue;
+        this.capacity = capacity;
+        this.highWatermark = Math.max(1, capacity - capacity / 4);
+        this.lowWatermark = capacity / 2;
+        setPolicy(policy);
+    }
+
+    public static int policyId(String policyName) {
+        for (int i = 0; i < POLICIES.length; i++) {
+            if (POLICIES[i].equals(policyName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overload policy: " + policyName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public String getPolicyName() {
+        return POLICIES[policy];
+    }
+
+    /**
+     * Changes the policy; throws an IllegalStateException if the policy is fixed.
+     */
+    public void setPolicy(int policy) {
+        if (policy < 0 || policy >= POLICIES.length) {
+            throw new IllegalArgumentException("Unknown overload policy: " + policy);
+        }
+        if (policyFixed) {
+            throw new IllegalStateException("The overload policy of " + name + " is fixed to " + getPolicyName());
+        }
+        this.policy = policy;
+    }
+
+    public boolean isPolicyFixed() {
+        return policyFixed;
+    }
+
+    /**
+     * Prevents subsequent changes of the policy, see setPolicy().
+     */
+    public void fixPolicy() {
+        this.policyFixed = true;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * With the SAMPLE policy, every n-th packet is kept while the queue is overloaded.
+     */
+    public void setSampleRate(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("The sample rate must be at least one but was: " + n);
+        }
+        this.sampleRate = n;
+    }
+
+    public void setDropOldestAllowed(boolean allowed) {
+        this.dropOldestAllowed = allowed;
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Decides if the next packet is to be enqueued as is (ADMIT), truncated to its headers (DEGRADE), or dropped (DROP).
+     * Dropped packets are counted.
+     */
+    public int admit() {
+        int size = count.get();
+        if (overloaded) {
+            if (size <= lowWatermark) {
+                overloaded = false;
+            }
+        } else if (size >= highWatermark) {
+            overloaded = true;
+            overloads.inc();
+        }
+
+        int p = effectivePolicy();
+        if (size >= capacity) {
+            if (p == BLOCK || p == DROP_OLDEST) {
+                return ADMIT;
+            }
+            droppedNewest.inc();
+            return DROP;
+        }
+        if (overloaded) {
+            if (p == SAMPLE && sampleSeq.incrementAndGet() % sampleRate != 0) {
+                sampledOut.inc();
+                return DROP;
+            }
+            if (p == HEADER_ONLY) {
+                return DEGRADE;
+            }
+        }
+        return ADMIT;
+    }
+
+    /**
+     * Enqueues an admitted packet according to the policy.
+     * Blocks with the BLOCK policy and evicts the oldest packets with the DROP_OLDEST policy.
+     * Returns false if the packet could not be enqueued because the queue filled up in the meantime.
+     */
+    public boolean insert(E e) throws InterruptedException {
+        switch (effectivePolicy()) {
+            case BLOCK:
+                put(e);
+                return true;
+            case DROP_OLDEST:
+                while (count.get() >= capacity) {
+                    if (poll() != null) {
+                        droppedOldest.inc();
+                    }
+                }
+                return offer(e);
+            default:
+                return offer(e);
+        }
+    }
+
+    /**
+     * Like insert() for packets that were truncated because admit() returned DEGRADE.
+     */
+    public boolean insertDegraded(E e) throws InterruptedException {
+        degraded.inc();
+        return insert(e);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (!reserve()) {
+            return false;
+        }
+        return enqueueReserved(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!reserve()) {
+            long nanos = unit.toNanos(timeout);
+            notFullLock.lockInterruptibly();
+            try {
+                waitingProducers++;
+                try {
+                    while (!reserve()) {
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } finally {
+                    waitingProducers--;
+                }
+            } finally {
+                notFullLock.unlock();
+            }
+        }
+        return enqueueReserved(e);
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (!reserve()) {
+            blocked.inc();
+            notFullLock.lockInterruptibly();
+            try {
+                waitingProducers++;
+                try {
+                    while (!reserve()) {
+                        notFull.await();
+                    }
+                } finally {
+                    waitingProducers--;
+                }
+            } finally {
+                notFullLock.unlock();
+            }
+        }
+        boolean enqueued = false;
+        try {
+            queue.put(e);
+            enqueued = true;
+        } finally {
+            if (!enqueued) {
+                release(1);
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = queue.take();
+        release(1);
+        return e;
+    }
+
+    @Override
+    public E poll() {
+        E e = queue.poll();
+        if (e != null) {
+            release(1);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = queue.poll(timeout, unit);
+        if (e != null) {
+            release(1);
+        }
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, capacity - count.get());
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = queue.drainTo(c, maxElements);
+        if (n > 0) {
+            release(n);
+        }
+        return n;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> it = queue.iterator();
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                release(1);
+            }
+        };
+    }
+
+    /**
+     * The decision counters and the current size with keys prefixed by the name of the stage.
+     * All values are numbers, so the map can be merged into the capture statistics.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> m = new HashMap<String, Object>();
+        String prefix = name + "-";
+        m.put(prefix + "size", count.get());
+        m.put(prefix + "overloads", overloads.value());
+        m.put(prefix + "dropped-newest", droppedNewest.value());
+        m.put(prefix + "dropped-oldest", droppedOldest.value());
+        m.put(prefix + "sampled-out", sampledOut.value());
+        m.put(prefix + "degraded", degraded.value());
+        m.put(prefix + "blocked", blocked.value());
+        return m;
+    }
+
+    private int effectivePolicy() {
+        int p = policy;
+        return (p == DROP_OLDEST && !dropOldestAllowed) ? DROP_NEWEST : p;
+    }
+
+    /**
+     * Reserves a slot for one element in the counter; returns false if the queue is full.
+     */
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (c >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean enqueueReserved(E e) {
+        boolean enqueued = false;
+        try {
+            enqueued = queue.offer(e);
+        } finally {
+            if (!enqueued) {
+                release(1);
+            }
+        }
+        return enqueued;
+    }
+
+    /**
+     * Frees n slots and wakes up blocked producers, if any.
+     */
+    private void release(int n) {
+        count.addAndGet(-n);
+        if (waitingProducers > 0) {
+            notFullLock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                notFullLock.unlock();
+            }
+        }
+    }
+
+}
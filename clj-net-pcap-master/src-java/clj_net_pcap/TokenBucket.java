@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright (C) 2019 Ruediger Gad
+ *
+ * This file is part of clj-net-pcap.
+ *
+ * clj-net-pcap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) as
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * clj-net-pcap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License (LGPL)
+ * along with clj-net-pcap.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package clj_net_pcap;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces events, e.g., sent packets, to a fixed rate per second.
+ *
+ * The bucket holds up to burst tokens and is refilled with rate tokens per second.
+ * Instead of refilling periodically, the time at which the n-th token becomes available is calculated
+ * as origin + n / rate.
+ * This way, rounding errors do not accumulate and the rate is met precisely over long runs,
+ * even for rates at which the interval between two tokens is not a whole number of nanoseconds.
+ *
+ * Waiting is done by parking the calling thread until shortly before the token is due
+ * and busy spinning for the remaining time, as the granularity of parking is too coarse for high rates.
+ *
+ * A TokenBucket is intended to be used by a single thread.
+ */
+public class TokenBucket {
+
+    /*
+     * Wait times below this threshold are spun instead of parked.
+     */
+    private static final long SPIN_THRESHOLD_NANOS = 100000;
+
+    private final double rate;
+    private final long burst;
+    private final double nanosPerToken;
+
+    private long origin;
+    private long issued = 0;
+
+    /**
+     * Creates a bucket with the given rate in tokens per second that starts full.
+     */
+    public TokenBucket(double rate, long burst) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("The rate must be positive but was: " + rate);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("The burst must be at least one but was: " + burst);
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.nanosPerToken = 1e9 / rate;
+        this.origin = System.nanoTime() - (long) (burst * nanosPerToken);
+    }
+
+    /**
+     * Takes n tokens and blocks until they are available.
+     * Returns the System.nanoTime() at which the last of the tokens was due.
+     * More than burst tokens may be taken at once, in which case the caller waits for all of them.
+     */
+    public long acquire(int n) {
+        long due = reserve(n);
+        waitUntil(due);
+        return due;
+    }
+
+    /**
+     * Blocks until System.nanoTime() reached the given deadline.
+     * The thread is parked until shortly before the deadline and spins for the remaining time.
+     */
+    public static void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            remaining = deadline - System.nanoTime();
+        }
+        while (remaining > 0) {
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Takes n tokens if they are available without waiting.
+     */
+    public boolean tryAcquire(int n) {
+        long now = System.nanoTime();
+        rebase(now);
+        if (dueTime(issued + n) > now) {
+            return false;
+        }
+        issued += n;
+        return true;
+    }
+
+    /**
+     * Takes n tokens without waiting and returns the System.nanoTime() at which they are due.
+     */
+    public long reserve(int n) {
+        rebase(System.nanoTime());
+        issued += n;
+        return dueTime(issued);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    private long dueTime(long tokens) {
+        return origin + (long) (tokens * nanosPerToken);
+    }
+
+    /*
+     * Tokens that were not taken in time do not accumulate beyond burst.
+     * When the bucket would overflow, the origin is moved such that it is full now.
+     */
+    private void rebase(long now) {
+        if (now - dueTime(issued) > burst * nanosPerToken) {
+            origin = now - (long) (burst * nanosPerToken);
+            issued = 0;
+        }
+    }
+
+}
@@ -19,11 +19,55 @@
   clj-net-pcap.byte-array-extraction-dsl
   (:require (clj-net-pcap [packet-offsets :as offsets]))
   (:use clojure.pprint
+        [clojure.walk :only [postwalk]]
         clj-assorted-utils.util)
-  (:import (java.util HashMap Map)))
+  (:import (clj_net_pcap ByteArrayHelper ExtractionBatch ExtractionRecord HeaderOffsetParser)
+           (java.util HashMap Map)))
 
 
 
+(def ^:dynamic *dynamic-offsets*
+  "When true, offset names listed in clj-net-pcap.packet-offsets/dynamic-offsets are resolved to
+   offsets that are computed for each packet based on the actual header lengths.
+   Bound by create-extraction-fn based on the :offsets entry of the DSL expression."
+  false)
+
+(def ^:dynamic *link-type*
+  "The link type, i.e., the DLT, of the packets for which dynamic offsets are computed."
+  HeaderOffsetParser/DLT_EN10MB)
+
+(defn get-link-type
+  "Get the numeric link type for the given link-type, which can be a number or one of :ethernet, :linux-sll, or :raw."
+  [link-type]
+  (cond
+    (nil? link-type) HeaderOffsetParser/DLT_EN10MB
+    (number? link-type) link-type
+    :default (condp = (keyword link-type)
+               :ethernet HeaderOffsetParser/DLT_EN10MB
+               :linux-sll HeaderOffsetParser/DLT_LINUX_SLL
+               :raw HeaderOffsetParser/DLT_RAW_LINKTYPE
+               (throw (RuntimeException. (str "Unknown link type: " link-type))))))
+
+(defn resolve-offset-name
+  "Resolve the offset with the given name from clj-net-pcap.packet-offsets.
+   With *dynamic-offsets* enabled, a form computing the offset based on the per-packet header offsets is returned for dynamic offsets."
+  [offset-name]
+  (let [n (name offset-name)
+        [base rel] (if *dynamic-offsets* (offsets/dynamic-offsets n))]
+    (condp = base
+      :network `(+ ~'network-offset ~rel)
+      :transport `(+ ~'transport-offset ~rel)
+      (var-get (resolve (symbol (str "clj-net-pcap.packet-offsets/" n)))))))
+
+(defn wrap-offset-bindings
+  "When *dynamic-offsets* is enabled, wrap body in a let that computes the network and transport header offsets once per packet."
+  [ba offset body]
+  (if *dynamic-offsets*
+    `(let [~'network-offset (HeaderOffsetParser/networkHeaderOffset ~ba (int ~offset) (int ~*link-type*))
+           ~'transport-offset (HeaderOffsetParser/transportHeaderOffset ~ba (int ~offset) (int ~'network-offset))]
+       ~body)
+    body))
+
 (defn get-offset
   "Get the offset value for the given DSL expression e.
    If the offset is no numeric value this function tries to resolve the offset by its name.
@@ -34,7 +78,7 @@
       (number? offset-val) offset-val
       (or
         (keyword? offset-val)
-        (string? offset-val)) (var-get (resolve (symbol (str "clj-net-pcap.packet-offsets/" (name offset-val)))))
+        (string? offset-val)) (resolve-offset-name offset-val)
       :default (do
                  (println "Error: Got unknown offset value" offset-val "from entry" e)
                  0))))
@@ -75,7 +119,7 @@
                                        (ns-resolve 'clj-net-pcap.dsl.transformation s)
                                          (conj v (ns-resolve 'clj-net-pcap.dsl.transformation s) 'ba)
                                        (ns-resolve 'clj-net-pcap.packet-offsets s)
-                                         (conj v `(+ ~(var-get (ns-resolve 'clj-net-pcap.packet-offsets s)) ~off))
+                                         (conj v `(+ ~(resolve-offset-name s) ~off))
                                        (do
                                          (println "Could not resolve keyword/symbol:" s)
                                          v)))
@@ -162,7 +206,7 @@
                             (fn [v rule]
                               (if (is-new-dsl? rule)
                                 (let [transf-fn (create-transf-fn (second rule) ba offset)
-                                      transf-ret-type (get-transformation-fn-ret-type (eval `(fn [~ba ~offset] ~transf-fn)))]
+                                      transf-ret-type (get-transformation-fn-ret-type (eval `(fn [~ba ~offset] ~(wrap-offset-bindings ba offset transf-fn))))]
                                   (conj v (if (= java.lang.String transf-ret-type)
                                             `(str "\"" ~transf-fn "\"")
                                             transf-fn)))
@@ -183,7 +227,7 @@
                               (fn [v rule]
                                 (if (is-new-dsl? rule)
                                   (let [transf-fn (create-transf-fn (second rule) ba offset)
-                                        transf-ret-type (get-transformation-fn-ret-type (eval `(fn [~ba ~offset] ~transf-fn)))]
+                                        transf-ret-type (get-transformation-fn-ret-type (eval `(fn [~ba ~offset] ~(wrap-offset-bindings ba offset transf-fn))))]
                                     (conj v "\"" (name (first rule)) "\":"
                                             (if (= java.lang.String transf-ret-type)
                                               `(str "\"" ~transf-fn "\"")
@@ -200,10 +244,208 @@
 ;    (println (interleave extracted-strings commas))
     (vec (filter (fn [x] (and (not= \. x) (not= "." x))) (interleave extracted-strings commas)))))
 
-(defn create-extraction-fn
-  "Create an extraction function based on the given dsl-expression."
+;;; The :record output type compiles the rules into a function that writes
+;;; primitive values into a reused clj_net_pcap.ExtractionRecord.
+;;; Known transformations are inlined as type-hinted calls to ByteArrayHelper
+;;; and addresses are kept packed until they are formatted.
+
+(def record-transformations
+  "Inlined, non-reflective forms of the transformation functions for the :record output type.
+   Each fn takes the byte-array and index forms and returns the form extracting the value."
+  {"int4low" (fn [ba idx] `(ByteArrayHelper/getNibbleLow ~ba ~idx))
+   "int4high" (fn [ba idx] `(ByteArrayHelper/getNibbleHigh ~ba ~idx))
+   "int8" (fn [ba idx] `(ByteArrayHelper/getByte ~ba ~idx))
+   "int16" (fn [ba idx] `(ByteArrayHelper/getInt16 ~ba ~idx))
+   "int16be" (fn [ba idx] `(ByteArrayHelper/getInt16BigEndian ~ba ~idx))
+   "int32" (fn [ba idx] `(ByteArrayHelper/getInt ~ba ~idx))
+   "int32be" (fn [ba idx] `(ByteArrayHelper/getIntBigEndian ~ba ~idx))
+   "timestamp" (fn [ba idx] `(+ (* (long (ByteArrayHelper/getInt ~ba ~idx)) 1000000000)
+                                (* (long (ByteArrayHelper/getInt ~ba (+ ~idx 4))) 1000)))
+   "timestamp-be" (fn [ba idx] `(+ (* (long (ByteArrayHelper/getIntBigEndian ~ba ~idx)) 1000000000)
+                                   (* (long (ByteArrayHelper/getIntBigEndian ~ba (+ ~idx 4))) 1000)))
+   "ipv4-address" (fn [ba idx] `(bit-and 0xFFFFFFFF (ByteArrayHelper/getInt ~ba ~idx)))
+   "ethernet-address" (fn [ba idx] `(ByteArrayHelper/getEthernetAddress ~ba ~idx))})
+
+(def record-address-kinds
+  {"ipv4-address" ExtractionRecord/KIND_IPV4
+   "ethernet-address" ExtractionRecord/KIND_ETHERNET})
+
+(def record-widths
+  "Widths in bytes of the unsigned values of transformations for clj_net_pcap.RecordFileWriter.
+   Values of other transformations use the default width of their kind."
+  {"int4low" 1
+   "int4high" 1
+   "int8" 1
+   "int16" 2
+   "int16be" 2})
+
+(defn- get-record-kind
+  "Get the ExtractionRecord kind for values of type ret-type."
+  [ret-type rule]
+  (cond
+    (#{Long Integer Short Byte} ret-type) ExtractionRecord/KIND_LONG
+    (#{Double Float clojure.lang.Ratio java.math.BigDecimal} ret-type) ExtractionRecord/KIND_DOUBLE
+    (= String ret-type) ExtractionRecord/KIND_STRING
+    :default (throw (RuntimeException. (str "Unsupported value type " ret-type " in rule: " rule)))))
+
+(defn- get-transformation-name
+  "Get the name of the transformation function var at the head of transf-form.
+   nil is returned if transf-form is no call of a function from clj-net-pcap.dsl.transformation."
+  [transf-form]
+  (if (and (seq? transf-form)
+           (var? (first transf-form))
+           (= 'clj-net-pcap.dsl.transformation (ns-name (:ns (meta (first transf-form))))))
+    (name (:name (meta (first transf-form))))))
+
+(defn- inline-transformations
+  "Replace all calls of numeric transformation functions in transf-form with inlined forms."
+  [transf-form]
+  (postwalk
+    (fn [x]
+      (let [transf-name (get-transformation-name x)]
+        (if (and transf-name
+                 (contains? record-transformations transf-name)
+                 (not (contains? record-address-kinds transf-name)))
+          ((record-transformations transf-name) (second x) (nth x 2))
+          x)))
+    transf-form))
+
+(defn create-record-rule
+  "Create a vector of the name, ExtractionRecord kind, value form, and width for the given rule.
+   The width is the number of bytes used by clj_net_pcap.RecordFileWriter, see record-widths;
+   0 means the default width of the kind."
+  [rule ba offset]
+  (if (is-new-dsl? rule)
+    (let [rule-name (name (first rule))
+          transf-form (create-transf-fn (second rule) ba offset)
+          transf-name (get-transformation-name transf-form)]
+      (if (contains? record-address-kinds transf-name)
+        [rule-name
+         (record-address-kinds transf-name)
+         ((record-transformations transf-name) (second transf-form) (nth transf-form 2))
+         0]
+        [rule-name
+         (get-record-kind (get-transformation-fn-ret-type (eval `(fn [~ba ~offset] ~(wrap-offset-bindings ba offset transf-form)))) rule)
+         (inline-transformations transf-form)
+         (get record-widths transf-name 0)]))
+    (let [rule-name (name (:name rule))
+          transf-name (name (:transformation rule))
+          idx `(+ ~offset ~(get-offset rule))]
+      (if (contains? record-transformations transf-name)
+        [rule-name
+         (get record-address-kinds transf-name ExtractionRecord/KIND_LONG)
+         ((record-transformations transf-name) ba idx)
+         (get record-widths transf-name 0)]
+        (let [transf-fn (resolve-transf-fn rule)]
+          [rule-name
+           (get-record-kind (get-transformation-fn-ret-type transf-fn) rule)
+           `(~transf-fn ~ba ~idx)
+           0])))))
+
+(defn create-record-extraction-fn
+  "Create an extraction function that writes the values extracted with the given rules into a clj_net_pcap.ExtractionRecord.
+   The returned function can be called as follows:
+   ([]) returns a new, empty record,
+   ([ba offset]) extracts the values into a new record, and
+   ([ba offset rec]) extracts the values into the given, reused record rec and returns rec.
+   Integer values are stored as long and other numeric values as double.
+   IPv4 and ethernet addresses are stored packed and are only formatted on request.
+   Rules that yield other values, e.g., Strings, are not supported."
+  [rules]
+  (let [ba-sym 'ba
+        offset-sym 'offset
+        rec-sym 'rec
+        proto-sym 'prototype
+        compiled-rules (vec (map #(create-record-rule % ba-sym offset-sym) rules))
+        _ (doseq [[rule-name kind] compiled-rules]
+            (if (= kind ExtractionRecord/KIND_STRING)
+              (throw (RuntimeException. (str "String values are not supported for :record output in rule: " rule-name)))))
+        prototype (ExtractionRecord.
+                    (into-array String (map first compiled-rules))
+                    (int-array (map second compiled-rules)))
+        setters (map-indexed
+                  (fn [i [_ kind form]]
+                    (if (= kind ExtractionRecord/KIND_DOUBLE)
+                      `(.setDouble ~rec-sym (int ~i) (double ~form))
+                      `(.setLong ~rec-sym (int ~i) (long ~form))))
+                  compiled-rules)
+        fn-factory (eval
+                     `(fn [~(with-meta proto-sym {:tag 'clj_net_pcap.ExtractionRecord})]
+                        (fn ~'record-extraction-fn
+                          ([]
+                            (.newInstance ~proto-sym))
+                          ([~ba-sym ~offset-sym]
+                            (~'record-extraction-fn ~ba-sym ~offset-sym (.newInstance ~proto-sym)))
+                          ([~(with-meta ba-sym {:tag 'bytes})
+                            ~offset-sym
+                            ~(with-meta rec-sym {:tag 'clj_net_pcap.ExtractionRecord})]
+                            (let [~offset-sym (long ~offset-sym)]
+                              ~(wrap-offset-bindings ba-sym offset-sym `(do ~@setters))
+                              ~rec-sym)))))]
+    (fn-factory prototype)))
+
+(def ^:dynamic *batch-capacity*
+  "Initial number of rows of the batches created by functions from create-batch-extraction-fn."
+  1024)
+
+(defn create-batch-extraction-fn
+  "Create an extraction function that appends the values extracted with the rules of dsl-expression
+   as rows to a columnar clj_net_pcap.ExtractionBatch.
+   The returned function can be called as follows:
+   ([]) returns a new, empty batch with *batch-capacity* rows,
+   ([ba offset batch]) extracts the values of the packet at offset in ba into a new row of batch and returns batch.
+   Values are encoded like for the :record type; String values are dictionary encoded.
+   The :offsets and :link-type entries of dsl-expression are considered as for create-extraction-fn.
+   See also clj-net-pcap.pcap-data/process-packet-byte-buffer-bulk-batch."
+  [dsl-expression]
+  (binding [*dynamic-offsets* (and (map? dsl-expression) (= :dynamic (keyword (:offsets dsl-expression))))
+            *link-type* (if (map? dsl-expression) (get-link-type (:link-type dsl-expression)) *link-type*)]
+    (let [rules (if (map? dsl-expression) (:rules dsl-expression) dsl-expression)
+          ba-sym 'ba
+          offset-sym 'offset
+          batch-sym 'batch
+          row-sym 'row
+          proto-sym 'prototype
+          compiled-rules (vec (map #(create-record-rule % ba-sym offset-sym) rules))
+          prototype (ExtractionBatch.
+                      (into-array String (map first compiled-rules))
+                      (int-array (map second compiled-rules))
+                      (int *batch-capacity*))
+          setters (doall
+                    (map-indexed
+                      (fn [i [_ kind form]]
+                        (condp = kind
+                          ExtractionRecord/KIND_DOUBLE `(.setDouble ~batch-sym (int ~i) ~row-sym (double ~form))
+                          ExtractionRecord/KIND_STRING `(.setString ~batch-sym (int ~i) ~row-sym (str ~form))
+                          `(.setLong ~batch-sym (int ~i) ~row-sym (long ~form))))
+                      compiled-rules))
+          fn-factory (eval
+                       `(fn [~(with-meta proto-sym {:tag 'clj_net_pcap.ExtractionBatch})]
+                          (fn
+                            ([]
+                              (.newInstance ~proto-sym))
+                            ([~(with-meta ba-sym {:tag 'bytes})
+                              ~offset-sym
+                              ~(with-meta batch-sym {:tag 'clj_net_pcap.ExtractionBatch})]
+                              (let [~offset-sym (long ~offset-sym)
+                                    ~row-sym (.addRow ~batch-sym)]
+                                ~(wrap-offset-bindings ba-sym offset-sym `(do ~@setters))
+                                ~batch-sym)))))]
+      (fn-factory prototype))))
+
+(defn get-record-widths
+  "Get the widths of the values extracted with the rules of dsl-expression for clj_net_pcap.RecordFileWriter.
+   Unsigned 8 and 16 bit values use 1 or 2 bytes; 0 means the default width of the kind.
+   See also clj-net-pcap.pcap-data/create-record-file-out-forwarder."
+  [dsl-expression]
+  (binding [*dynamic-offsets* (and (map? dsl-expression) (= :dynamic (keyword (:offsets dsl-expression))))
+            *link-type* (if (map? dsl-expression) (get-link-type (:link-type dsl-expression)) *link-type*)]
+    (let [rules (if (map? dsl-expression) (:rules dsl-expression) dsl-expression)]
+      (int-array (map #(nth (create-record-rule % 'ba 'offset) 3) rules)))))
+
+(defn- create-map-or-str-extraction-fn
+  "Create an extraction function for the map and String based output types."
   [dsl-expression]
-;  (println "Got DSL expression:" dsl-expression)
   (let [ba-sym 'ba
         offset-sym 'offset
         fn-body-vec (cond
@@ -228,9 +470,23 @@
 ;        _ (println "Created extraction function vector from DSL:" fn-body-vec)
         fn-body (reverse (into '() fn-body-vec))
 ;        _ (println "Created extraction function body:" fn-body)
-        extraction-fn (eval `(fn [~ba-sym ~offset-sym] ~fn-body))]
+        extraction-fn (eval `(fn [~ba-sym ~offset-sym] ~(wrap-offset-bindings ba-sym offset-sym fn-body)))]
     extraction-fn))
 
+(defn create-extraction-fn
+  "Create an extraction function based on the given dsl-expression.
+   For the :record type, see create-record-extraction-fn.
+   With {:offsets :dynamic} in a map dsl-expression, the offsets of the IPv4, UDP, and ICMP fields
+   are computed for each packet, see *dynamic-offsets*.
+   The link type for dynamic offsets can be set via :link-type and defaults to :ethernet."
+  [dsl-expression]
+;  (println "Got DSL expression:" dsl-expression)
+  (binding [*dynamic-offsets* (and (map? dsl-expression) (= :dynamic (keyword (:offsets dsl-expression))))
+            *link-type* (if (map? dsl-expression) (get-link-type (:link-type dsl-expression)) *link-type*)]
+    (if (and (map? dsl-expression) (= :record (keyword (:type dsl-expression))))
+      (create-record-extraction-fn (:rules dsl-expression))
+      (create-map-or-str-extraction-fn dsl-expression))))
+
 (def ipv4-udp-be-dsl-expression
   [{:offset 0 :transformation "timestamp-be" :name "ts"}
    {:offset 12 :transformation "int32be" :name "len"}
@@ -29,27 +29,43 @@
         clj-net-pcap.pcap-data
         clj-net-pcap.sniffer
         clj-assorted-utils.util)
-  (:import (clj_net_pcap Counter JBufferWrapper PcapPacketWrapper ProcessingLoop)
+  (:import (clj_net_pcap Counter FlowHash JBufferWrapper LatencyStats LatencyStats$Sample
+                         MappedPcapReader MappedPcapReader$Chunk MappedPcapReader$Cursor
+                         PacketRingBuffer PcapPacketWrapper PcapReplayer PcapReplayer$InjectHandler ProcessingLoop ReorderBuffer
+                         StageQueue)
            (java.nio BufferUnderflowException ByteBuffer)
            (java.util ArrayList)
-           (java.util.concurrent ArrayBlockingQueue LinkedTransferQueue)
+           (java.util.concurrent ArrayBlockingQueue BlockingQueue LinkedTransferQueue)
            (org.jnetpcap DirectBulkByteBufferWrapper Pcap PcapDLT PcapHeader)
            (org.jnetpcap.nio JBuffer JMemory JMemory$Type)
-           (org.jnetpcap.packet PcapPacket PcapPacketHandler)))
+           (org.jnetpcap.packet JRegistry JScanner PcapPacket PcapPacketHandler)))
 
 
 (def ^:dynamic *bulk-size* 1)
 (def ^:dynamic *emit-raw-data* false)
 (def ^:dynamic *forward-exceptions* false)
+(def ^:dynamic *latency-sample-interval* 0)
+(def ^:dynamic *ordered-merge* false)
+(def ^:dynamic *overload-header-length* 96)
+(def ^:dynamic *overload-policy* nil)
+(def ^:dynamic *overload-sample-rate* StageQueue/DEFAULT_SAMPLE_RATE)
 (def ^:dynamic *queue-size* 100000)
+(def ^:dynamic *ring-size* 16384)
+(def ^:dynamic *ring-slot-size* 2048)
+(def ^:dynamic *scanner-threads* 1)
+(def ^:dynamic *subscriber-queue-size* 10000)
 (def ^:dynamic *use-intermediate-buffer* true)
+(def ^:dynamic *use-ring-buffer* false)
 
 
 (def trace-level 1)
 
 
 (defrecord BufferRecord
-  [s us cl wl buf])
+  [s us cl wl buf seq-no])
+
+(defrecord Subscriber
+  [sub-name filter-expr matches? queue delivered-counter dropped-counter failed-counter forwarder])
 
 (defn deep-copy
   "Creates a deep-copy of the supplied data.
@@ -67,7 +83,7 @@
     (doto (ByteBuffer/allocate (+ (.remaining buf) 16))
       (.putInt (int (.hdr_sec ph)))
       (.putInt (.hdr_usec ph))
-      (.putInt (.caplen ph))
+      (.putInt (.remaining buf))
       (.putInt (.wirelen ph))
       (.put buf)
       (.flip))))
@@ -75,14 +91,19 @@
 (defn create-buffer-record
   "Create a BufferRecord.
    The BufferRecord contains the values of the PcapHeader and a directly allocated
-   deep-copy of the ByteBuffer."
-  [^ByteBuffer buf ^PcapHeader ph]
-  (BufferRecord.
-    (.hdr_sec ph)
-    (.hdr_usec ph)
-    (.caplen ph)
-    (.wirelen ph)
-    (deep-copy buf)))
+   deep-copy of the ByteBuffer.
+   The capture length is taken from the ByteBuffer, which may be truncated, see header-only.
+   Optionally, a sequence number seq-no can be supplied that identifies the position of the record in the capture order."
+  ([^ByteBuffer buf ^PcapHeader ph]
+    (create-buffer-record buf ph -1))
+  ([^ByteBuffer buf ^PcapHeader ph seq-no]
+    (BufferRecord.
+      (.hdr_sec ph)
+      (.hdr_usec ph)
+      (.remaining buf)
+      (.wirelen ph)
+      (deep-copy buf)
+      seq-no)))
 
 (defn peer-packet
   "Create a new PcapPacket instance and fill/peer it with the data from the supplied BufferRecord."
@@ -94,79 +115,115 @@
     pkt))
 
 (defn scan-packet
-  "Scan the supplied packet and return it."
-  [^PcapPacket pkt]
-  (doto pkt (.scan (.value (PcapDLT/EN10MB)))))
+  "Scan the supplied packet and return it.
+   Optionally, the JScanner instance that is used for scanning can be supplied."
+  ([^PcapPacket pkt]
+    (doto pkt (.scan (.value (PcapDLT/EN10MB)))))
+  ([^PcapPacket pkt ^JScanner scanner]
+    (.scan scanner pkt (.value (PcapDLT/EN10MB)) (.wirelen (.getCaptureHeader pkt)))
+    pkt))
+
+(defn latency-stage
+  "Applies f to obj, or, when obj is a sampled clj_net_pcap.LatencyStats$Sample,
+   records the time the sample spent in the queue of stage, applies f to its payload,
+   and returns the sample with the result as new payload."
+  [obj stage f]
+  (if (instance? LatencyStats$Sample obj)
+    (let [^LatencyStats$Sample s obj]
+      (.enqueue s (f (.dequeued s (int stage)))))
+    (f obj)))
+
+(defn header-only
+  "Returns a view on buf that is limited to the first header-length bytes.
+   Used for degrading packets to their headers when a stage is overloaded, see clj_net_pcap.StageQueue."
+  [^ByteBuffer buf header-length]
+  (let [view (.duplicate buf)]
+    (.limit view (min (.limit view) (+ (.position view) (int header-length))))
+    view))
+
+(defn sample-record
+  "Wraps the BufferRecord bufrec in a clj_net_pcap.LatencyStats$Sample when latency-stats is not nil and the packet is sampled."
+  [^LatencyStats latency-stats ^PcapHeader ph bufrec]
+  (if latency-stats
+    (.sample latency-stats (.hdr_sec ph) (.hdr_usec ph) bufrec)
+    bufrec))
+
+(defn create-stage-queue
+  "Creates a clj_net_pcap.StageQueue named stage-name with the given capacity that wraps queue.
+   If force-put is true, packets are blocked and the policy is fixed, so no packets are dropped, e.g., when processing files.
+   Otherwise, the overload policy is taken from *overload-policy*, e.g., :drop-oldest or :sample,
+   and packets are dropped when *overload-policy* is nil."
+  [stage-name ^BlockingQueue queue capacity force-put]
+  (let [^StageQueue q (StageQueue. ^String stage-name queue (int capacity)
+                                   (StageQueue/policyId (name (if force-put :block (or *overload-policy* :drop-newest)))))]
+    (.setSampleRate q (int *overload-sample-rate*))
+    (if force-put
+      (.fixPolicy q))
+    q))
 
 (defmacro enqueue-data
-  [queue op force-put queued-cntr dropped-cntr]
-  (cond
-    (>= trace-level 1) `(if ~force-put
-                          (.put ~queue ~op)
-                          (if (< (.size ~queue) *queue-size*)
-                            (if (.hasWaitingConsumer ~queue)
-                              (.transfer ~queue ~op)
-                              (.offer ~queue ~op))
-;                               (.inc ~queued-cntr)
-;                               (.inc ~dropped-cntr)))
-                            (.inc ~dropped-cntr)))
-    :default `(if ~force-put
-                (.put ~queue ~op)
-                (if (< (.size ~queue) *queue-size*)
-                  (.offer ~queue ~op)))))
-
-(defmacro enqueue-data-put
-  [queue op force-put queued-cntr dropped-cntr]
-  (cond
-    (>= trace-level 1) `(if ~force-put
-                          (.put ~queue ~op)
-                          (if (< (.size ~queue) *queue-size*)
-                            (if (.put ~queue ~op)
-                              (.inc ~queued-cntr)
-                              (.inc ~dropped-cntr))
-                            (.inc ~dropped-cntr)))
-    :default `(if ~force-put
-                (.put ~queue ~op)
-                (if (< (.size ~queue) *queue-size*)
-                  (.offer ~queue ~op)))))
+  "Enqueues op in the clj_net_pcap.StageQueue queue according to the overload policy of the queue.
+   op is only evaluated when the packet is admitted.
+   When the policy degrades packets to their headers, degraded-op is enqueued instead, if it is given.
+   Returns true if the packet was enqueued."
+  [queue op queued-cntr dropped-cntr & [degraded-op]]
+  (let [q (with-meta (gensym "queue") {:tag 'clj_net_pcap.StageQueue})
+        insert-degraded (if degraded-op
+                          `(.insertDegraded ~q ~degraded-op)
+                          `(.insert ~q ~op))]
+    (cond
+      (>= trace-level 1) `(let [~q ~queue]
+                            (if (condp = (.admit ~q)
+                                  StageQueue/ADMIT (.insert ~q ~op)
+                                  StageQueue/DEGRADE ~insert-degraded
+                                  false)
+                              (do (.inc ~queued-cntr) true)
+                              (do (.inc ~dropped-cntr) false)))
+      :default `(let [~q ~queue]
+                  (condp = (.admit ~q)
+                    StageQueue/ADMIT (.insert ~q ~op)
+                    StageQueue/DEGRADE ~insert-degraded
+                    false)))))
 
 (defn create-raw-handler
   ""
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running]
-  (fn
-    ([]
-      (fn [ph buf _]
-        (if (not (nil? buf))
-          (enqueue-data-put
-            out-queue (deep-copy buf ph) force-put
-            out-queued-counter out-drop-counter))))
-    ([k]
-      (condp = k
-        :get-stats {"out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)}
-        nil))))
+  [^StageQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter running]
+  (let [header-length *overload-header-length*]
+    (fn
+      ([]
+        (fn [ph buf _]
+          (if (not (nil? buf))
+            (enqueue-data
+              out-queue (deep-copy buf ph)
+              out-queued-counter out-drop-counter
+              (deep-copy (header-only buf header-length) ph)))))
+      ([k]
+        (condp = k
+          :get-stats {"out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)}
+          nil)))))
 
 (defn create-raw-bulk-handler
   ""
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter bulk-size force-put running use-intermediate-buffer]
+  [^StageQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter bulk-size running use-intermediate-buffer]
+  ;;; Evicting the oldest DirectBulkByteBufferWrapper would not return its native memory to the bulk buffer pool.
+  (if (not use-intermediate-buffer)
+    (.setDropOldestAllowed out-queue false))
   (fn
     ([]
       (if use-intermediate-buffer
         (fn [^ByteBuffer buf _]
           (when (not (nil? buf))
-            (let [direct-bb (doto (ByteBuffer/allocate (.remaining buf))
-                              (.put buf)
-                              (.flip))]
-              (enqueue-data
-                out-queue
-                direct-bb
-                force-put
-                out-queued-counter out-drop-counter))))
+            (enqueue-data
+              out-queue
+              (doto (ByteBuffer/allocate (.remaining buf))
+                (.put buf)
+                (.flip))
+              out-queued-counter out-drop-counter)))
         (fn [^DirectBulkByteBufferWrapper buf _]
           (when (not (nil? buf))
             (enqueue-data
               out-queue
               buf
-              force-put
               out-queued-counter out-drop-counter)))))
     ([k]
       (condp = k
@@ -175,15 +232,17 @@
 
 (defn create-packet-processing-handler
   ""
-  [^LinkedTransferQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running forward-exceptions]
-  (let [buffer-queue (ArrayBlockingQueue. *queue-size*)
+  [^StageQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running forward-exceptions
+   ^LatencyStats latency-stats]
+  (let [^StageQueue buffer-queue (create-stage-queue "buffer" (ArrayBlockingQueue. *queue-size*) *queue-size* force-put)
         buffer-drop-counter (Counter.) buffer-queued-counter (Counter.)
         failed-counter (Counter.)
-        scanner-queue (ArrayBlockingQueue. *queue-size*)
+        ^StageQueue scanner-queue (create-stage-queue "scanner" (ArrayBlockingQueue. *queue-size*) *queue-size* force-put)
         scanner-drop-counter (Counter.) scanner-queued-counter (Counter.)
+        header-length *overload-header-length*
         buffer-processor #(try (let [bufrec (.take buffer-queue)]
-                                 (enqueue-data-put
-                                   scanner-queue (peer-packet bufrec) force-put
+                                 (enqueue-data
+                                   scanner-queue (latency-stage bufrec LatencyStats/BUFFER_QUEUE peer-packet)
                                    scanner-queued-counter scanner-drop-counter))
                             (catch Exception e
                               (when @running
@@ -193,9 +252,9 @@
                                 (throw e))))
         buffer-processor-thread (doto (ProcessingLoop. buffer-processor)
                                   (.setName "ByteBufferProcessor") (.setDaemon true) (.start))
-        scanner #(try (let [^PcapPacket pkt (.take scanner-queue)]
-                        (enqueue-data-put
-                          out-queue (scan-packet pkt) force-put
+        scanner #(try (let [pkt (.take scanner-queue)]
+                        (enqueue-data
+                          out-queue (latency-stage pkt LatencyStats/SCANNER_QUEUE scan-packet)
                           out-queued-counter out-drop-counter))
                   (catch Exception e
                     (when @running
@@ -207,12 +266,15 @@
                          (.setName "PacketScanner") (.setDaemon true) (.start))]
     (fn
       ([]
-        (fn [ph buf _]
+        (fn [^PcapHeader ph buf _]
           (if (not (nil? buf))
-            (enqueue-data-put buffer-queue (create-buffer-record buf ph) force-put
-                              buffer-queued-counter buffer-drop-counter))))
+            (enqueue-data buffer-queue
+                          (sample-record latency-stats ph (create-buffer-record buf ph))
+                          buffer-queued-counter buffer-drop-counter
+                          (sample-record latency-stats ph (create-buffer-record (header-only buf header-length) ph))))))
       ([k]
         (condp = k
+          :get-stage-queues [buffer-queue scanner-queue]
           :get-stats {"buffer-queued" (.value buffer-queued-counter) "buffer-dropped" (.value buffer-drop-counter)
                       "scanner-queued" (.value scanner-queued-counter) "scanner-dropped" (.value scanner-drop-counter)
                       "out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)
@@ -221,6 +283,152 @@
                                 (while (or (> (.size buffer-queue) 0) (> (.size scanner-queue) 0))
                                   (sleep 100))))))))
 
+(defn create-parallel-packet-processing-handler
+  "Like create-packet-processing-handler but peering and scanning is distributed over scanner-threads worker threads.
+   Each worker has its own queue and its own JScanner instance.
+   Packets are assigned to workers based on a symmetric flow hash, see clj_net_pcap.FlowHash.
+   Thus, packets of the same flow, in both directions, are processed in capture order by the same worker.
+   Packets of different flows may be emitted out of order.
+   When ordered is true, the scanned packets are merged back into capture order before being put into out-queue.
+   This is done in a separate \"PacketMerger\" thread via a clj_net_pcap.ReorderBuffer.
+   With latency-stats, the time spent in a worker queue is recorded as scanner-queue stage
+   and the time in the reorder buffer is included in the out-queue stage.
+   The stage queues of the workers are named worker-0, worker-1, and so on.
+   When ordered is true, the :drop-oldest policy is not applied to them, as the reorder buffer
+   waits for every packet that was assigned a sequence number."
+  [^StageQueue out-queue ^Counter out-queued-counter ^Counter out-drop-counter force-put running forward-exceptions scanner-threads ordered
+   ^LatencyStats latency-stats]
+  (let [worker-queue-size (max 1 (quot *queue-size* scanner-threads))
+        failed-counter (Counter.)
+        scanner-drop-counter (Counter.) scanner-queued-counter (Counter.)
+        ^ReorderBuffer reorder-buffer (if ordered (ReorderBuffer. *queue-size*))
+        seq-no (long-array 1 0)
+        handle-exception (fn [e]
+                           (when @running
+                             (.inc failed-counter)
+                             (.printStackTrace ^Exception e))
+                           (if forward-exceptions
+                             (throw e)))
+        header-length *overload-header-length*
+        worker-queues (vec (for [idx (range scanner-threads)]
+                             (doto ^StageQueue (create-stage-queue (str "worker-" idx) (ArrayBlockingQueue. (int worker-queue-size))
+                                                                   worker-queue-size force-put)
+                               (.setDropOldestAllowed (not ordered)))))
+        worker-threads (doall
+                         (map-indexed
+                           (fn [idx ^StageQueue queue]
+                             (let [scanner (JScanner.)
+                                   worker-fn #(try
+                                                (let [obj (.take queue)
+                                                      ^LatencyStats$Sample sample (if (instance? LatencyStats$Sample obj) obj)
+                                                      ^BufferRecord bufrec (if sample (.dequeued sample LatencyStats/SCANNER_QUEUE) obj)]
+                                                  (try
+                                                    (let [pkt (scan-packet (peer-packet bufrec) scanner)
+                                                          out (if sample (.enqueue sample pkt) pkt)]
+                                                      (if reorder-buffer
+                                                        (.put reorder-buffer (long (:seq-no bufrec)) out)
+                                                        (enqueue-data
+                                                          out-queue out
+                                                          out-queued-counter out-drop-counter)))
+                                                    (catch Exception e
+                                                      (if reorder-buffer
+                                                        (.skip reorder-buffer (long (:seq-no bufrec))))
+                                                      (throw e))))
+                                                (catch Exception e
+                                                  (handle-exception e)))]
+                               (doto (ProcessingLoop. worker-fn)
+                                 (.setName (str "PacketScanner-" idx)) (.setDaemon true) (.start))))
+                           worker-queues))
+        merger-thread (if reorder-buffer
+                        (doto (ProcessingLoop.
+                                #(try
+                                   (enqueue-data
+                                     out-queue (.take reorder-buffer)
+                                     out-queued-counter out-drop-counter)
+                                   (catch Exception e
+                                     (handle-exception e))))
+                          (.setName "PacketMerger") (.setDaemon true) (.start)))]
+    (fn
+      ([]
+        (fn [^PcapHeader ph ^ByteBuffer buf _]
+          (if (not (nil? buf))
+            (let [queue (worker-queues (FlowHash/workerIndex buf scanner-threads))]
+              (if (enqueue-data queue
+                                (sample-record latency-stats ph (create-buffer-record buf ph (aget seq-no 0)))
+                                scanner-queued-counter scanner-drop-counter
+                                (sample-record latency-stats ph (create-buffer-record (header-only buf header-length) ph (aget seq-no 0))))
+                (aset seq-no 0 (inc (aget seq-no 0))))))))
+      ([k]
+        (condp = k
+          :get-stage-queues worker-queues
+          :get-stats {"scanner-queued" (.value scanner-queued-counter) "scanner-dropped" (.value scanner-drop-counter)
+                      "out-queued" (.value out-queued-counter) "out-dropped" (.value out-drop-counter)
+                      "handler-failed" (.value failed-counter)}
+          :wait-for-completed (do
+                                (while (or (some #(> (.size ^StageQueue %) 0) worker-queues)
+                                           (and reorder-buffer (> (.size reorder-buffer) 0)))
+                                  (sleep 100))))))))
+
+(defn create-ring-packet-processing-handler
+  "Hands the captured packets over to scanner-threads worker threads via a preallocated off-heap ring buffer.
+   See clj_net_pcap.PacketRingBuffer for details.
+   The capture thread copies each packet once into a slot of the ring.
+   The workers peer, scan, and process the packets in place, directly calling forwarder-fn.
+   Each worker reuses its own PcapPacket, PcapHeader, and JScanner instances.
+   Hence, no objects are allocated per packet.
+   As with create-parallel-packet-processing-handler, packets are assigned to workers by flow hash.
+
+   The slot is released as soon as forwarder-fn returns.
+   Thus, forwarder-fn must not retain the packet or any data referring to the packet memory.
+   Data that needs to be kept has to be copied or transformed, e.g., into a map or bean, in forwarder-fn.
+
+   Unlike with the other handlers, which pass the packets to a single forwarder thread via the out queue,
+   forwarder-fn is called concurrently by all workers.
+   Hence, forwarder-fn must be thread safe when more than one scanner thread is used."
+  [forwarder-fn force-put running forward-exceptions scanner-threads]
+  (let [^PacketRingBuffer ring (PacketRingBuffer. *ring-size* *ring-slot-size* scanner-threads)
+        failed-counter (Counter.)
+        ring-drop-counter (Counter.) ring-queued-counter (Counter.)
+        worker-threads (doall
+                         (for [idx (range scanner-threads)]
+                           (let [consumer (int idx)
+                                 scanner (JScanner.)
+                                 ph (PcapHeader.)
+                                 pkt (PcapPacket. JMemory$Type/POINTER)
+                                 worker-fn #(try
+                                              (let [sq (.next ring consumer)]
+                                                (try
+                                                  (forwarder-fn (scan-packet (.peer ring sq ph pkt) scanner))
+                                                  (finally
+                                                    (.release ring consumer sq))))
+                                              (catch Exception e
+                                                (when @running
+                                                  (.inc failed-counter)
+                                                  (.printStackTrace e))
+                                                (if forward-exceptions
+                                                  (throw e))))]
+                             (doto (ProcessingLoop. worker-fn)
+                               (.setName (str "PacketScanner-" idx)) (.setDaemon true) (.start)))))]
+    (fn
+      ([]
+        (fn [^PcapHeader ph ^ByteBuffer buf _]
+          (if (not (nil? buf))
+            (if force-put
+              (do
+                (.put ring ph buf)
+                (.inc ring-queued-counter))
+              (if (.offer ring ph buf)
+                (.inc ring-queued-counter)
+                (.inc ring-drop-counter))))))
+      ([k]
+        (condp = k
+          :get-stage-queues []
+          :get-stats {"ring-queued" (.value ring-queued-counter) "ring-dropped" (.value ring-drop-counter)
+                      "handler-failed" (.value failed-counter)}
+          :wait-for-completed (do
+                                (while (> (.size ring) 0)
+                                  (sleep 100))))))))
+
 (defn send-bytes-packet
   "Send the packet as given in the byte array pkt-ba packets via the Pcap instance pcap.
    Optionally a repetition count rep as well as a delay d can be given."
@@ -244,29 +452,47 @@
    It is recommended to use: create-and-start-online-cljnetpcap or process-pcap-file"
   [pcap forwarder-fn filter-expr force-put]
   (let [running (ref true)
-        out-queue (LinkedTransferQueue.)
+        ^StageQueue out-queue (create-stage-queue "out" (LinkedTransferQueue.) *queue-size* force-put)
         out-drop-counter (Counter.) out-queued-counter (Counter.)
         bulk-size *bulk-size*
         use-intermediate-buffer *use-intermediate-buffer*
         emit-raw-data *emit-raw-data*
         forward-exceptions *forward-exceptions*
-        handler (if emit-raw-data
-                  (if force-put
-                    (create-raw-handler out-queue out-queued-counter out-drop-counter force-put running)
-                    (create-raw-bulk-handler out-queue out-queued-counter out-drop-counter bulk-size force-put running use-intermediate-buffer))
-                  (create-packet-processing-handler out-queue out-queued-counter out-drop-counter force-put running forward-exceptions))
+        scanner-threads *scanner-threads*
+        ordered-merge *ordered-merge*
+        use-ring-buffer (and (not emit-raw-data) *use-ring-buffer*)
+        ^LatencyStats latency-stats (if (and (> *latency-sample-interval* 0) (not emit-raw-data) (not *use-ring-buffer*))
+                                      (doto (LatencyStats. *latency-sample-interval*)
+                                        (.register (str "cljnetpcap-" (System/identityHashCode out-queue)))))
+        failed-packet-counter (Counter.)
+        wrapped-forwarder-fn #(try (if (instance? LatencyStats$Sample %)
+                                     (let [^LatencyStats$Sample s %]
+                                       (forwarder-fn (.dequeued s LatencyStats/OUT_QUEUE))
+                                       (.done s))
+                                     (forwarder-fn %))
+                                (catch Exception e
+                                  (.inc failed-packet-counter)
+                                  (if forward-exceptions
+                                    (throw e))))
+        handler (cond
+                  emit-raw-data (if force-put
+                                  (create-raw-handler out-queue out-queued-counter out-drop-counter running)
+                                  (create-raw-bulk-handler out-queue out-queued-counter out-drop-counter bulk-size running use-intermediate-buffer))
+                  use-ring-buffer (create-ring-packet-processing-handler
+                                      wrapped-forwarder-fn force-put running forward-exceptions scanner-threads)
+                  (> scanner-threads 1) (create-parallel-packet-processing-handler
+                                          out-queue out-queued-counter out-drop-counter force-put running forward-exceptions
+                                          scanner-threads ordered-merge latency-stats)
+                  :default (create-packet-processing-handler out-queue out-queued-counter out-drop-counter force-put running forward-exceptions
+                                                             latency-stats))
+        stage-queues (vec (cons out-queue (handler :get-stage-queues)))
         filter-expressions (ref [])
         _ (if (and (not (nil? filter-expr)) (not= "" filter-expr))
             (dosync (alter filter-expressions conj filter-expr)))
         _ (create-and-set-filter pcap filter-expr)
-        failed-packet-counter (Counter.)
-        forwarder (create-and-start-forwarder out-queue
-                    #(try (forwarder-fn %)
-                       (catch Exception e
-                         (.inc failed-packet-counter)
-                         (if forward-exceptions
-                           (throw e))))
-                    forward-exceptions)
+        ;;; With the ring buffer, the workers call the forwarder-fn directly and nothing is put into the out queue.
+        forwarder (if (not use-ring-buffer)
+                    (create-and-start-forwarder out-queue wrapped-forwarder-fn forward-exceptions))
         sniffer (if (and emit-raw-data (not force-put))
                   (create-and-start-sniffer pcap bulk-size use-intermediate-buffer (handler) nil)
                   (create-and-start-sniffer pcap (handler)))
@@ -275,11 +501,19 @@
     (fn 
       ([k]
         (condp = k
-          :get-stats (merge (stats-fn) (handler :get-stats) {"forwarder-failed" (.value failed-packet-counter)})
+          :get-stats (merge (stats-fn) (handler :get-stats) {"forwarder-failed" (.value failed-packet-counter)}
+                            (if latency-stats (into {} (.toMap latency-stats)))
+                            (reduce #(merge %1 (.toMap ^StageQueue %2)) {} stage-queues))
+          :get-overload-policies (reduce #(assoc %1 (.getName ^StageQueue %2) (keyword (.getPolicyName ^StageQueue %2)))
+                                         {} stage-queues)
+          :get-latency-stats latency-stats
           :stop (do
                   (dosync (ref-set running false))
-                  (stop-forwarder forwarder)
-                  (stop-sniffer sniffer))
+                  (if forwarder
+                    (stop-forwarder forwarder))
+                  (stop-sniffer sniffer)
+                  (if latency-stats
+                    (.unregister latency-stats)))
           :get-filters @filter-expressions
           :remove-last-filter (do
                                 (dosync (alter filter-expressions pop))
@@ -307,6 +541,17 @@
           :remove-filter (do (dosync
                                (alter filter-expressions (fn [fe] (vec (filter #(not= arg %) fe)))))
                              (create-and-set-filter pcap (join " " @filter-expressions)))
+          :replace-all-filters (do (dosync
+                                     (ref-set filter-expressions (vec (remove #(or (nil? %) (= "" %)) arg))))
+                                   (create-and-set-filter pcap (join " " @filter-expressions)))
+          :set-overload-policy (let [{:keys [policy sample-rate stages]} (if (map? arg) arg {:policy arg})]
+                                 (doseq [^StageQueue q stage-queues]
+                                   (when (and (not (.isPolicyFixed q))
+                                              (or (nil? stages) (some #(= (.getName q) %) stages)))
+                                     (if sample-rate
+                                       (.setSampleRate q (int sample-rate)))
+                                     (if policy
+                                       (.setPolicy q (StageQueue/policyId (name policy)))))))
           :send-bytes-packet (send-bytes-packet pcap arg)
           :send-packet-map (send-bytes-packet pcap (generate-packet-data arg))
           :default (throw (RuntimeException. (str "Unsupported operation: " k " Args: " arg)))))
@@ -339,9 +584,209 @@
     (let [pcap (create-and-activate-online-pcap device)]
       (set-up-and-start-cljnetpcap pcap forwarder-fn filter-expr false))))
 
+(defn- create-subscriber
+  "Creates a Subscriber with its own bounded queue and forwarder thread that calls handler-fn for each delivered packet.
+   An empty filter-expr matches all packets."
+  [sub-name filter-expr handler-fn queue-size link-type]
+  (let [matches? (if (and filter-expr (not= "" filter-expr))
+                   (user-space-filter-fn filter-expr link-type))
+        queue (ArrayBlockingQueue. (int queue-size))
+        failed-counter (Counter.)
+        forwarder (create-and-start-forwarder
+                    queue
+                    #(try
+                       (handler-fn %)
+                       (catch Exception e
+                         (.inc failed-counter)))
+                    false)]
+    (Subscriber. sub-name filter-expr matches? queue (Counter.) (Counter.) failed-counter forwarder)))
+
+(defn create-fan-out-forwarder
+  "Creates a forwarder-fn that dispatches each packet to all subscribers whose filter matches.
+   The filters of the subscribers are evaluated in user space via org.jnetpcap.BpfFilter once per packet and subscriber.
+   Each subscriber has its own bounded queue, see *subscriber-queue-size*, and forwarder thread.
+   When the queue of a subscriber is full, the packet is dropped for this subscriber only,
+   unless force-put is true, in which case the dispatching blocks.
+   As the subscribers process packets concurrently, only the first matching subscriber gets the packet instance
+   itself and every further matching subscriber gets its own copy.
+   With *use-ring-buffer*, the packet refers to a ring slot that is reused once the forwarder-fn returns;
+   hence, all matching subscribers get copies.
+   Packets are org.jnetpcap.packet.PcapPacket instances or, with *emit-raw-data* and per packet forwarding,
+   ByteBuffers with a 16 byte header, see user-space-filter-fn; raw bulk buffers are not supported
+   for subscribers with a filter.
+
+   Besides being called with a packet, the returned fn supports the following operations:
+   (f :subscribe [sub-name filter-expr handler-fn]), (f :unsubscribe sub-name),
+   (f :get-subscribers), (f :union-filter), (f :get-stats), (f :wait-for-completed), and (f :stop)."
+  [link-type force-put]
+  (let [subscribers (atom [])
+        unmatched-counter (Counter.)
+        stop-subscriber #(stop-forwarder (:forwarder %))
+        copy-all (and (not *emit-raw-data*) *use-ring-buffer*)
+        copy-data (fn [data]
+                    (cond
+                      (instance? PcapPacket data) (PcapPacket. ^PcapPacket data)
+                      (instance? ByteBuffer data) (.duplicate ^ByteBuffer data)
+                      :default data))]
+    (fn
+      ([data]
+        (let [subs @subscribers
+              n (count subs)]
+          (loop [i 0
+                 matched false]
+            (if (< i n)
+              (let [sub (subs i)
+                    matches? (:matches? sub)]
+                (if (or (nil? matches?) (matches? data))
+                  (let [^ArrayBlockingQueue queue (:queue sub)
+                        d (if (or copy-all matched) (copy-data data) data)]
+                    (if force-put
+                      (do
+                        (.put queue d)
+                        (.inc ^Counter (:delivered-counter sub)))
+                      (if (.offer queue d)
+                        (.inc ^Counter (:delivered-counter sub))
+                        (.inc ^Counter (:dropped-counter sub))))
+                    (recur (inc i) true))
+                  (recur (inc i) matched)))
+              (if (not matched)
+                (.inc unmatched-counter))))))
+      ([k]
+        (condp = k
+          :get-subscribers (vec (map (fn [sub] [(:sub-name sub) (:filter-expr sub)]) @subscribers))
+          :union-filter (let [exprs (map :filter-expr @subscribers)]
+                          (if (or (empty? exprs) (some #(or (nil? %) (= "" %)) exprs))
+                            ""
+                            (join " or " (map #(str "(" % ")") exprs))))
+          :get-stats (reduce
+                       (fn [m sub]
+                         (let [prefix (str "subscriber-" (:sub-name sub) "-")]
+                           (assoc m
+                                  (str prefix "delivered") (.value ^Counter (:delivered-counter sub))
+                                  (str prefix "dropped") (.value ^Counter (:dropped-counter sub))
+                                  (str prefix "failed") (.value ^Counter (:failed-counter sub)))))
+                       {"fan-out-unmatched" (.value unmatched-counter)}
+                       @subscribers)
+          :wait-for-completed (do
+                                (while (some #(> (.size ^ArrayBlockingQueue (:queue %)) 0) @subscribers)
+                                  (sleep 100))
+                                ;;; Like for the out-queue, give the handlers a little time to process the last packets.
+                                (sleep 100))
+          :stop (doseq [sub @subscribers]
+                  (stop-subscriber sub))
+          (throw (RuntimeException. (str "Unsupported operation: " k)))))
+      ([k arg]
+        (condp = k
+          :subscribe (let [[sub-name filter-expr handler-fn] arg]
+                       (when (some #(= sub-name (:sub-name %)) @subscribers)
+                         (throw (IllegalArgumentException. (str "Subscriber already exists: " sub-name))))
+                       (let [sub (create-subscriber sub-name filter-expr handler-fn *subscriber-queue-size* link-type)]
+                         (swap! subscribers conj sub)
+                         sub-name))
+          :unsubscribe (let [removed (filter #(= arg (:sub-name %)) @subscribers)]
+                         (swap! subscribers (fn [subs] (vec (remove #(= arg (:sub-name %)) subs))))
+                         (doseq [sub removed]
+                           (stop-subscriber sub))
+                         (not (empty? removed)))
+          (throw (RuntimeException. (str "Unsupported operation: " k " Args: " arg))))))))
+
+(defn set-up-and-start-fan-out-cljnetpcap
+  "Like set-up-and-start-cljnetpcap but instead of a single forwarder-fn, packets are dispatched to subscribers.
+   Each subscriber registers a filter expression and a handler-fn, see subscribe.
+   The capture runs the union of the filters of all subscribers as pcap filter, i.e., in the kernel when capturing online,
+   and the filters of the individual subscribers are evaluated in user space, see create-fan-out-forwarder.
+   subscriptions is a sequence of [sub-name filter-expr handler-fn] vectors that are subscribed before the capture starts.
+   The filters of the returned handle are managed via the subscriptions; add-filter and similar should not be used.
+   get-stats also contains the number of delivered, dropped, and failed packets per subscriber.
+   This is not intended to be used directly.
+   It is recommended to use: create-and-start-online-fan-out-cljnetpcap or process-pcap-file-fan-out"
+  [pcap subscriptions force-put]
+  (let [link-type (if (pcap) (.datalink ^Pcap (pcap)) (.value PcapDLT/EN10MB))
+        fan-out (create-fan-out-forwarder link-type force-put)
+        _ (doseq [subscription subscriptions]
+            (fan-out :subscribe subscription))
+        cljnetpcap (set-up-and-start-cljnetpcap pcap fan-out (if (pcap) (fan-out :union-filter) "") force-put)
+        update-filter #(if (pcap)
+                         (cljnetpcap :replace-all-filters [(fan-out :union-filter)]))]
+    (fn
+      ([k]
+        (condp = k
+          :get-stats (merge (cljnetpcap :get-stats) (fan-out :get-stats))
+          :get-subscribers (fan-out :get-subscribers)
+          :wait-for-completed (do
+                                (cljnetpcap :wait-for-completed)
+                                (fan-out :wait-for-completed))
+          :stop (do
+                  (cljnetpcap :stop)
+                  (fan-out :stop))
+          (cljnetpcap k)))
+      ([k arg]
+        (condp = k
+          :subscribe (let [sub-name (fan-out :subscribe arg)]
+                       (try
+                         (update-filter)
+                         (catch Exception e
+                           (fan-out :unsubscribe sub-name)
+                           (throw e)))
+                       sub-name)
+          :unsubscribe (let [removed (fan-out :unsubscribe arg)]
+                         (update-filter)
+                         removed)
+          (cljnetpcap k arg)))
+      ([k arg1 arg2]
+        (cljnetpcap k arg1 arg2))
+      ([k arg1 arg2 arg3]
+        (cljnetpcap k arg1 arg2 arg3)))))
+
+(defn create-and-start-online-fan-out-cljnetpcap
+  "Convenience function for live online capturing with multiple subscribers that each have their own filter and handler-fn.
+   See set-up-and-start-fan-out-cljnetpcap for details.
+   By default the 'any' device is used and no subscribers are registered initially; see subscribe.
+   Please note that the returned handle should be stored as it is needed for stopping the capture."
+  ([]
+    (create-and-start-online-fan-out-cljnetpcap any))
+  ([device]
+    (create-and-start-online-fan-out-cljnetpcap device []))
+  ([device subscriptions]
+    (let [pcap (create-and-activate-online-pcap device)]
+      (set-up-and-start-fan-out-cljnetpcap pcap subscriptions false))))
+
+(defn create-and-start-replay-cljnetpcap
+  "Replays a classic pcap file through the capture pipeline at controlled rates, see create-replay-pcap.
+   forwarder-fn will be called for each replayed packet like for live captures.
+   Takes the options of create-replay-pcap and additionally:
+   :filter-expr  Filter that is evaluated in user space (default \"\").
+   :force-put    If true, the pipeline blocks instead of dropping packets when queues are full (default false).
+   The replay starts immediately and runs in its own thread; :wait-for-completed waits for the end of the replay.
+   The statistics contain the requested and achieved rates, see get-replay-stats."
+  [file-name forwarder-fn & {:keys [filter-expr force-put]
+                             :or {filter-expr "" force-put false}
+                             :as opts}]
+  (let [pcap (apply create-replay-pcap file-name (mapcat identity (dissoc opts :filter-expr :force-put)))
+        cljnetpcap (set-up-and-start-cljnetpcap pcap forwarder-fn filter-expr force-put)]
+    (fn
+      ([k]
+        (condp = k
+          :wait-for-completed (do
+                                (pcap :wait-for-completed)
+                                (cljnetpcap k))
+          (cljnetpcap k)))
+      ([k arg]
+        (cljnetpcap k arg))
+      ([k arg1 arg2]
+        (cljnetpcap k arg1 arg2))
+      ([k arg1 arg2 arg3]
+        (cljnetpcap k arg1 arg2 arg3)))))
+
 (defn get-stats
   "Given a handle as returned by, e.g., create-and-start-online-cljnetpcap or process-pcap-file,
-   this function emits a map with statistical data about the capture process."
+   this function emits a map with statistical data about the capture process.
+   When *latency-sample-interval* is larger than 0, every n-th packet is sampled and the map also contains
+   per-stage latency percentiles in nano seconds, e.g., \"latency-out-queue-p99\"; see clj_net_pcap.LatencyStats.
+   The latency statistics are also registered as JMX MBean while the capture is running.
+   Latency sampling is not available for raw data and the ring buffer.
+   For each stage queue, the map contains its size and the counts of the overload decisions,
+   e.g., \"buffer-dropped-newest\" or \"out-sampled-out\"; see set-overload-policy."
   [cljnetpcap] 
   (cljnetpcap :get-stats))
 
@@ -351,6 +796,24 @@
   [cljnetpcap]
   (cljnetpcap :stop))
 
+(defn set-overload-policy
+  "Changes the overload policy of the stage queues of a running capture, see clj_net_pcap.StageQueue.
+   policy is one of :block, :drop-newest, :drop-oldest, :sample, or :header-only.
+   With :sample, every sample-rate-th packet is kept while a queue is overloaded.
+   With :header-only, packets are truncated to *overload-header-length* bytes while a queue is overloaded.
+   By default, all stages are changed; alternatively, the names of the stages can be given, e.g., [\"buffer\" \"out\"].
+   The initial policy is taken from *overload-policy*.
+   Stages of captures with force-put, e.g., when processing files, always block and are not changed.
+   Stages that do not allow :drop-oldest, i.e., the workers of ordered processing and the out queue of raw bulk
+   captures without intermediate buffer, drop the newest packets instead."
+  [cljnetpcap policy & {:keys [sample-rate stages]}]
+  (cljnetpcap :set-overload-policy {:policy policy :sample-rate sample-rate :stages stages}))
+
+(defn get-overload-policies
+  "Returns a map from the names of the stage queues of a capture to their current overload policy."
+  [cljnetpcap]
+  (cljnetpcap :get-overload-policies))
+
 (defn get-filters
   "Returns the vector containing all currently applied filter sub-expressions."
   [cljnetpcap]
@@ -381,6 +844,21 @@
   [cljnetpcap old-filter new-filter]
   (cljnetpcap :replace-filter old-filter new-filter))
 
+(defn subscribe
+  "Subscribes handler-fn under the name sub-name to the packets that match filter-expr
+   at a handle as returned by create-and-start-online-fan-out-cljnetpcap.
+   An empty filter-expr matches all packets.
+   The pcap filter of the capture is updated to the union of the filters of all subscribers.
+   Throws an exception when the name is already used or the filter is invalid."
+  [cljnetpcap sub-name filter-expr handler-fn]
+  (cljnetpcap :subscribe [sub-name filter-expr handler-fn]))
+
+(defn unsubscribe
+  "Removes the subscriber with the name sub-name and stops its forwarder thread.
+   Returns true if the subscriber existed."
+  [cljnetpcap sub-name]
+  (cljnetpcap :unsubscribe sub-name))
+
 (defn process-pcap-file
   "Convenience function to process data stored in pcap files.
    Arguments are the file-name of the pcap file, the handler-fn that is executed for each read packet, and optional user data.
@@ -394,6 +872,92 @@
       (clj-net-pcap :wait-for-completed)
       (stop-cljnetpcap clj-net-pcap))))
 
+(defn process-pcap-file-fan-out
+  "Processes a pcap file and dispatches the packets to the given subscriptions,
+   a sequence of [sub-name filter-expr handler-fn] vectors, see set-up-and-start-fan-out-cljnetpcap.
+   No packets are dropped when processing files.
+   Returns the statistics, including the number of packets delivered per subscriber."
+  [file-name subscriptions]
+  (let [pcap (create-offline-pcap file-name)
+        clj-net-pcap (set-up-and-start-fan-out-cljnetpcap pcap subscriptions true)]
+    (clj-net-pcap :wait-for-completed)
+    (let [stats (get-stats clj-net-pcap)]
+      (stop-cljnetpcap clj-net-pcap)
+      stats)))
+
+(defn process-pcap-file-mapped
+  "Processes a pcap file via a memory-mapped file instead of libpcap and the capture pipeline.
+   See clj_net_pcap.MappedPcapReader for details.
+   handler-fn is called with the org.jnetpcap.packet.PcapPacket instance for each packet.
+   The packets are peered with the mapped file without copying and the PcapPacket instances are reused.
+   Thus, handler-fn must not retain the packet; data that is to be kept has to be copied or transformed.
+
+   Optionally, the number of threads can be given.
+   The file is then split into record-aligned chunks that are processed in parallel.
+   With a single thread, which is the default, the packets are processed in file order.
+   This function blocks until the entire file was processed and returns the number of processed packets."
+  ([file-name handler-fn]
+    (process-pcap-file-mapped file-name handler-fn 1))
+  ([file-name handler-fn threads]
+    (let [^MappedPcapReader reader (MappedPcapReader. ^String file-name)
+          protocol-id (JRegistry/mapDLTToId (.getLinkType reader))
+          process-chunk (fn [^MappedPcapReader$Chunk chunk]
+                          (let [^MappedPcapReader$Cursor cursor (.cursor chunk)
+                                scanner (JScanner.)
+                                ph (PcapHeader.)
+                                pkt (PcapPacket. JMemory$Type/POINTER)]
+                            (loop [cnt 0]
+                              (if (.next cursor)
+                                (do
+                                  (.peer cursor ph pkt)
+                                  (.scan scanner pkt protocol-id (.wireLen cursor))
+                                  (handler-fn pkt)
+                                  (recur (inc cnt)))
+                                cnt))))]
+      (try
+        (let [chunks (.split reader (int threads))
+              chunks-per-thread (max 1 (int (Math/ceil (/ (alength chunks) (double threads)))))]
+          (->> (partition-all chunks-per-thread chunks)
+               (map (fn [thread-chunks] (future (reduce + (map process-chunk thread-chunks)))))
+               (doall)
+               (map deref)
+               (reduce + 0)))
+        (finally
+          (.close reader))))))
+
+(defn replay-pcap-file
+  "Replays a classic pcap file through the capture pipeline and blocks until all packets were processed.
+   Takes the same options as create-and-start-replay-cljnetpcap.
+   Returns the statistics, including the requested and achieved replay rates."
+  [file-name forwarder-fn & opts]
+  (let [cljnetpcap (apply create-and-start-replay-cljnetpcap file-name forwarder-fn opts)]
+    (cljnetpcap :wait-for-completed)
+    (let [stats (get-stats cljnetpcap)]
+      (stop-cljnetpcap cljnetpcap)
+      stats)))
+
+(defn replay-pcap-file-inject
+  "Replays a classic pcap file by sending the packets via pcap_inject on the given device, e.g., a loopback or dummy device.
+   Takes the :speed, :pps, and :loops options of create-replay-pcap and a user space :filter-expr.
+   Blocks until the replay finished and returns the replay statistics, see get-replay-stats,
+   plus the number of packets that could not be sent as \"replay-inject-failed\"."
+  [file-name device & {:keys [speed pps loops filter-expr]
+                       :or {speed 1.0 pps 0 loops 1 filter-expr ""}}]
+  (let [^Pcap pcap (activate-online-pcap (create-online-pcap device))
+        ^PcapReplayer replayer (doto (PcapReplayer. ^String file-name)
+                                 (.setSpeed (double speed))
+                                 (.setPps (double pps))
+                                 (.setLoops (int loops)))
+        handler (PcapReplayer$InjectHandler. pcap)]
+    (try
+      (if (and (not (nil? filter-expr)) (not= "" filter-expr))
+        (.setFilter replayer (create-user-space-filter filter-expr (.getLinkType replayer))))
+      (.replay replayer handler nil)
+      (assoc (get-replay-stats replayer) "replay-inject-failed" (.getFailedCount handler))
+      (finally
+        (.close replayer)
+        (.close pcap)))))
+
 
 (defn extract-data-from-pcap-file
   "Function to extract the data from a pcap file.
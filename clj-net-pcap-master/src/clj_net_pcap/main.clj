@@ -60,6 +60,14 @@
     ["-i" "--interface"
      "Interface on which the packets are captured"
      :default "lo"]
+    ["-o" "--overload-policies"
+     (str "Vector of overload policies for the queues between the processing stages, e.g., \"[:drop-newest :header-only :sample]\"."
+          " The first policy is applied initially."
+          " With self-adaptation (-a), the next policy is applied when packets are dropped persistently"
+          " and the previous one is restored when the packet rate decreases again."
+          " Available policies are: block, drop-newest, drop-oldest, sample, header-only")
+     :default nil
+     :parse-fn #(read-string %)]
     ["-r" "--raw"
      (str "Emit raw data instead of decoded packets."
           " Be careful, not all transformation and forwarder functions support this.")
@@ -76,6 +84,11 @@
     ["-w" "--write-to-file"
      "Write output to file with the given name."
      :default nil]
+    ["-x" "--extraction-threads"
+     (str "The number of threads used for applying the DSL expression (-e) to the packets of a bulk."
+          " Only has an effect for a bulk size larger than 1.")
+     :default 1
+     :parse-fn #(Integer. ^java.lang.String %)]
     ["-A" "--self-adaptation-opts"
      "Options for self-adaptive adjustment of DSL expressions."
      :default {:threshold 0.01, :interpolation 2, :inactivity 1}
@@ -84,7 +97,19 @@
      "The buffer size to use."
      :default (int (Math/pow 2 26))
      :parse-fn #(Integer. ^java.lang.String %)]
+    ["-C" "--columnar-format"
+     (str "Decode each bulk of raw data in a single pass into a reused columnar batch."
+          " Requires a DSL expression (-e) and a bulk size larger than 1."
+          " When writing to a file (-w), the batches are written in the given format: csv or binary."
+          " For csv, an ARFF header can be prepended via -W.")
+     :default nil]
     ["-D" "--debug" "Enable additional debugging." :flag true]
+    ["-E" "--record-file"
+     (str "Write the values extracted via the DSL expression (-e) to the file given via -w"
+          " in the binary record file format instead of as text."
+          " The parameter is the compression of the blocks: none or deflate."
+          " Also applies to the batches of the columnar format (-C).")
+     :default nil]
     ["-F" "--forwarder-fn"
      (str "Use the specified function as forwarder function for processing packets.\n"
           "Available function names are:\n"
@@ -93,6 +118,27 @@
           "stdout-forwarder-fn, no-op-converter-forwarder-fn, "
           "counting-no-op-forwarder-fn, calls-per-second-no-op-forwarder-fn")
      :default "stdout-forwarder-fn"]
+    ["-L" "--latency-sample-interval"
+     (str "Sample every n-th packet for measuring the latency of the processing stages."
+          " The latency percentiles are included in the stats (-s) and exposed via JMX."
+          " 0 disables the latency measurement.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-M" "--bulk-buffer-pool-size"
+     (str "Maximum number of native bulk buffers when the intermediate buffer is not used."
+          " When all buffers are in use, packets are dropped."
+          " 0 means that the number of buffers is not limited.")
+     :default 0
+     :parse-fn #(Integer. ^java.lang.String %)]
+    ["-O" "--ordered-merge"
+     (str "Merge the packets processed by multiple scanner threads back into capture order."
+          " Only has an effect when more than one scanner thread is used.")
+     :flag true]
+    ["-P" "--scanner-threads"
+     (str "The number of threads used for scanning packets."
+          " Packets are distributed to the threads based on a flow hash.")
+     :default 1
+     :parse-fn #(Integer. ^java.lang.String %)]
     ["-S" "--snap-len"
      (str "The snaplen to use."
           " This determines how many bytes of data will be captured from each packet.")
@@ -106,6 +152,11 @@
           "  packet-byte-buffer-extract-map-ipv4-udp-single, packet-byte-buffer-extract-map-ipv4-udp-bulk,\n"
           "  packet-byte-buffer-extract-bean-ipv4-udp-single, packet-byte-buffer-extract-bean-ipv4-udp-bulk, no-op")
      :default "pcap-packet-to-bean"]
+    ["-U" "--use-ring-buffer"
+     (str "Hand packets over to the scanner threads via a preallocated off-heap ring buffer."
+          " Packets are processed in place; the forwarder function must not retain them"
+          " and is called concurrently by the scanner threads.")
+     :flag true]
     ["-R" "--read-file"
      "Read from a pcap file instead of performing a live capture."
      :default ""]
@@ -132,11 +183,25 @@
                              (if (not= "" dsl-expr-string)
                                (read-string dsl-expr-string))))
           _ (println "DSL expression from command line args:" dsl-expression)
+          columnar-format (arg-map :columnar-format)
+          record-file-codec (arg-map :record-file)
           get-dsl-fn (fn [dsl-expr]
-                       (let [extraction-fn (create-extraction-fn dsl-expr)]
-                         (if (> bulk-size 1)
-                           (partial process-packet-byte-buffer-bulk extraction-fn)
-                           (partial process-packet-byte-buffer extraction-fn))))
+                       (if (and columnar-format (> bulk-size 1))
+                         ;;; A batch is reused for each bulk, so every consumer thread needs its own.
+                         (let [batch-fn (create-batch-extraction-fn dsl-expr)
+                               batches (proxy [ThreadLocal] []
+                                         (initialValue [] (batch-fn)))]
+                           #(process-packet-byte-buffer-bulk-batch batch-fn (.get ^ThreadLocal batches) %))
+                         (let [extraction-fn (create-extraction-fn
+                                               (cond
+                                                 (nil? record-file-codec) dsl-expr
+                                                 (map? dsl-expr) (assoc dsl-expr :type :record)
+                                                 :default {:type :record :rules dsl-expr}))]
+                           (cond
+                             (and (> bulk-size 1) (> (arg-map :extraction-threads) 1))
+                               (partial process-packet-byte-buffer-bulk-parallel extraction-fn (arg-map :extraction-threads))
+                             (> bulk-size 1) (partial process-packet-byte-buffer-bulk extraction-fn)
+                             :default (partial process-packet-byte-buffer extraction-fn)))))
           get-transformation-fn (fn []
                                   (if dsl-expression
                                     (get-dsl-fn dsl-expression)
@@ -157,11 +222,23 @@
           output-file (arg-map :write-to-file)
           file-output-forwarder (when (not (nil? output-file))
                                   (println "Writing data to file:" output-file)
-                                  (create-file-out-forwarder output-file
-                                                             (> bulk-size 1)
-                                                             (if (arg-map :write-arff-header)
-                                                               (get-arff-header dsl-expression)
-                                                               "")))
+                                  (cond
+                                    record-file-codec
+                                    (create-record-file-out-forwarder output-file
+                                                                      :codec record-file-codec
+                                                                      :widths (get-record-widths dsl-expression))
+                                    (and columnar-format (> bulk-size 1))
+                                    (create-batch-file-out-forwarder output-file
+                                                                     columnar-format
+                                                                     (if (arg-map :write-arff-header)
+                                                                       (get-arff-header dsl-expression)
+                                                                       ""))
+                                    :default
+                                    (create-file-out-forwarder output-file
+                                                               (> bulk-size 1)
+                                                               (if (arg-map :write-arff-header)
+                                                                 (get-arff-header dsl-expression)
+                                                                 ""))))
           processing-fn (let [f-tmp (resolve (symbol (str "clj-net-pcap.pcap-data/" (arg-map :forwarder-fn))))
                               f (cond
                                   (not (nil? file-output-forwarder)) file-output-forwarder
@@ -182,8 +259,13 @@
           cljnetpcap (binding [clj-net-pcap.core/*bulk-size* bulk-size
                                clj-net-pcap.core/*emit-raw-data* (arg-map :raw)
                                clj-net-pcap.core/*forward-exceptions* (arg-map :debug)
+                               clj-net-pcap.core/*latency-sample-interval* (arg-map :latency-sample-interval)
+                               clj-net-pcap.core/*ordered-merge* (arg-map :ordered-merge)
+                               clj-net-pcap.core/*scanner-threads* (arg-map :scanner-threads)
+                               clj-net-pcap.core/*use-ring-buffer* (arg-map :use-ring-buffer)
                                clj-net-pcap.pcap/*snap-len* (arg-map :snap-len)
-                               clj-net-pcap.pcap/*buffer-size* (arg-map :buffer-size)]
+                               clj-net-pcap.pcap/*buffer-size* (arg-map :buffer-size)
+                               clj-net-pcap.pcap/*bulk-buffer-pool-size* (arg-map :bulk-buffer-pool-size)]
                        (if (= "" pcap-file-name)
                          (create-and-start-online-cljnetpcap
                            processing-fn
@@ -192,6 +274,10 @@
                          (process-pcap-file
                            pcap-file-name
                            processing-fn)))
+          overload-ctrlr (when-let [policies (arg-map :overload-policies)]
+                           (create-overload-policy-controller #(set-overload-policy cljnetpcap %) policies
+                                                              (sa-opts :threshold) (sa-opts :interpolation)
+                                                              (sa-opts :inactivity)))
           stat-interval (arg-map :stats)
           stat-out-executor (executor)
           shutdown-fn (fn [] (do
@@ -217,7 +303,10 @@
         (run-repeat stat-out-executor #(print-err-ln (get-stats cljnetpcap)) stat-interval))
       (when (> sa-interval 0)
         (println "Enabling self-adaptivity with interval:" sa-interval)
-        (run-repeat sa-executor #(self-adapt-ctrlr (get-stats cljnetpcap)) sa-interval))
+        (run-repeat sa-executor #(self-adapt-ctrlr (get-stats cljnetpcap)) sa-interval)
+        (when overload-ctrlr
+          (println "Enabling self-adaptive overload policies:" (arg-map :overload-policies))
+          (run-repeat sa-executor #(overload-ctrlr (get-stats cljnetpcap)) sa-interval)))
       (cond
         (not= "" pcap-file-name)
           (do
@@ -19,7 +19,7 @@
   clj-net-pcap.packet-gen
   (:use clj-net-pcap.pcap
         clj-assorted-utils.util)
-  (:import (clj_net_pcap ByteArrayHelper)
+  (:import (clj_net_pcap BatchedPcapDumper ByteArrayHelper PacketGenerator PacketGenerator$Sink PacketRingBuffer PacketTemplate)
            (java.nio BufferUnderflowException ByteBuffer)
            (java.util Map)
            (java.util.concurrent ArrayBlockingQueue)
@@ -136,3 +136,85 @@
         nil))
     (.getByteArray jpkt 0 ba)))
 
+
+(defn- field-value
+  "Convert the start value of a template field to a long.
+   IPv4 addresses may be given as String like \"1.2.3.4\"."
+  [v]
+  (if (string? v)
+    (reduce (fn [acc b] (bit-or (bit-shift-left acc 8) (bit-and b 0xff)))
+            0
+            (ByteArrayHelper/ipv4StringToByteArrayUnchecked v))
+    (long v)))
+
+(defn create-packet-template
+  "Create a clj_net_pcap.PacketTemplate for generating many similar packets at high rates.
+   The template is either a byte-array or a packet description map as for generate-packet-data.
+   Checksums of the template are computed once and only updated incrementally per packet.
+
+   variations is a map from field keyword to a map with the keys :start, :step (default 1), and :count.
+   The value of a field for the packet with index i is start + step * (i mod count).
+   If :count is 0 or not given, the value increases without wrapping.
+   Supported fields are :ip-src, :ip-dst, :ip-id, :src-port, :dst-port, :tcp-seq, :icmp-id, and :icmp-seq.
+   IP addresses may be given as String, e.g.: {:ip-src {:start \"10.0.0.1\" :count 256}}"
+  [template & [variations]]
+  (let [^bytes ba (if (map? template)
+                    (generate-packet-data template)
+                    template)
+        tmpl (PacketTemplate. ba)]
+    (doseq [[field {start :start step :step cnt :count :or {step 1 cnt 0}}] variations]
+      (.vary tmpl
+             (PacketTemplate/fieldId (name field))
+             (field-value start)
+             (long step)
+             (long cnt)))
+    tmpl))
+
+(defn create-fn-sink
+  "Create a sink for generated packets that calls f with the seconds, micro seconds, and the data as ByteBuffer.
+   The data is only valid during the call.
+   The return value of f is used as indicator if the packet was emitted successfully."
+  [f]
+  (reify PacketGenerator$Sink
+    (emit [_ seconds useconds data]
+      (boolean (f seconds useconds data)))))
+
+(defn create-send-sink
+  "Create a sink that sends the generated packets via the given org.jnetpcap.Pcap instance using pcap_sendpacket."
+  [^Pcap pcap]
+  (PacketGenerator/createSendPacketSink pcap))
+
+(defn create-inject-sink
+  "Create a sink that sends the generated packets via the given org.jnetpcap.Pcap instance using pcap_inject."
+  [^Pcap pcap]
+  (PacketGenerator/createInjectSink pcap))
+
+(defn create-pcap-file-sink
+  "Create a sink that writes the generated packets via the given clj_net_pcap.BatchedPcapDumper."
+  [^BatchedPcapDumper dumper]
+  (PacketGenerator/createDumperSink dumper))
+
+(defn create-ring-sink
+  "Create a sink that puts the generated packets into the given clj_net_pcap.PacketRingBuffer.
+   If block is true, generation waits while the ring is full.
+   Otherwise, packets are dropped and counted as failed."
+  [^PacketRingBuffer ring block]
+  (PacketGenerator/createRingSink ring (boolean block)))
+
+(defn create-packet-generator
+  "Create a clj_net_pcap.PacketGenerator that emits packets from the given template to the given sink.
+   With a positive :pps, packets are paced to the given rate via a token bucket.
+   Otherwise, packets are generated as fast as possible.
+   Packets are generated in batches of :batch-size packets."
+  [^PacketTemplate template sink & {:keys [pps batch-size]
+                                    :or {pps 0
+                                         batch-size PacketGenerator/DEFAULT_BATCH_SIZE}}]
+  (PacketGenerator. template sink (double pps) (int batch-size)))
+
+(defn generate-packets
+  "Generate n packets from the given template, emit them to the given sink, and return the number of emitted packets.
+   This blocks until all packets were emitted.
+   The options are the same as for create-packet-generator."
+  [^PacketTemplate template sink n & opts]
+  (let [^PacketGenerator gen (apply create-packet-generator template sink opts)]
+    (.generate gen (long n))))
@@ -45,3 +45,24 @@
 (def icmp-id (+ icmp-hdr-offset 4))
 (def icmp-seq-no (+ icmp-hdr-offset 6))
 
+;;; Offsets that depend on the header lengths of the individual packet.
+;;; With dynamic offsets enabled in the byte array extraction DSL, these names
+;;; are resolved relative to the network or transport header offset that is
+;;; computed for each packet via clj_net_pcap.HeaderOffsetParser.
+;;; This accounts for IPv4 options, VLAN tags, and the link type.
+
+(def dynamic-offsets
+  "Map of offset names to the base header, :network or :transport, and the offset relative to that base."
+  {"ipv4-src" [:network 12]
+   "ipv4-dst" [:network 16]
+   "ipv4-id" [:network 4]
+   "ipv4-checksum" [:network 10]
+   "ipv4-ttl" [:network 8]
+   "ipv4-proto" [:network 9]
+   "ipv4-version" [:network 0]
+   "udp-src" [:transport 0]
+   "udp-dst" [:transport 2]
+   "icmp-type" [:transport 0]
+   "icmp-code" [:transport 1]
+   "icmp-id" [:transport 4]
+   "icmp-seq-no" [:transport 6]})
@@ -21,11 +21,15 @@
   clj-net-pcap.pcap
   (:use clj-assorted-utils.util
         clj-net-pcap.native)
-  (:import (java.util ArrayList) 
-           (org.jnetpcap Pcap PcapBpfProgram PcapIf PcapStat)))
+  (:import (clj_net_pcap ByteArrayHelper PcapNgReader PcapReplayer)
+           (java.nio ByteBuffer)
+           (java.util ArrayList) 
+           (org.jnetpcap BpfFilter ByteBufferHandler DirectBulkBufferPool Pcap PcapBpfProgram PcapIf PcapStat)
+           (org.jnetpcap.packet PcapPacket)))
 
 
 (def ^:dynamic *buffer-size* (int (Math/pow 2 26)))
+(def ^:dynamic *bulk-buffer-pool-size* 0)
 (def ^:dynamic *flags* Pcap/MODE_PROMISCUOUS)
 (def ^:dynamic *snap-len* 0x00080)
 
@@ -124,23 +128,69 @@
 
 (defn create-and-set-filter
   "Convenience function for creating and setting a filter in one step.
-   For details see create-filter and set-filter."
+   For details see create-filter and set-filter.
+   For sources without org.jnetpcap.Pcap instance, e.g., pcapng files, only empty filters are accepted,
+   unless the source evaluates filters in user space, like replayed pcap files."
   [pcap filter-string]
-  (let [f (create-filter (pcap) filter-string)]
-    (set-filter (pcap) f)))
+  (if (nil? (pcap))
+    (if (pcap :user-space-filter?)
+      (pcap :set-user-space-filter filter-string)
+      (when (and (not (nil? filter-string)) (not= "" filter-string))
+        (throw (RuntimeException. (str "Filters are not supported for this pcap source: " filter-string)))))
+    (let [f (create-filter (pcap) filter-string)]
+      (set-filter (pcap) f))))
+
+(defn create-user-space-filter
+  "Compiles the filter given as String into an org.jnetpcap.BpfFilter that is
+   evaluated in user space on already captured packets, e.g., for re-filtering
+   or routing packets in a forwarder or for filtering offline data.
+   The BPF program is translated into JVM bytecode, see org.jnetpcap.BpfFilter.
+   Optionally, the link type can be passed; the default is Ethernet (DLT_EN10MB)."
+  ([filter-string]
+    (create-user-space-filter filter-string 1))
+  ([filter-string link-type]
+    (let [f (PcapBpfProgram.)]
+      (if (= (Pcap/compileNoPcap (int 65535) (int link-type) f filter-string (int 1) (int 0)) Pcap/OK)
+        (try
+          (BpfFilter/compile f)
+          (finally
+            (Pcap/freecode f)))
+        (let [errmsg (str "Error compiling user space filter: " filter-string)]
+          (println-err errmsg)
+          (throw (RuntimeException. errmsg)))))))
+
+(defn user-space-filter-fn
+  "Returns a predicate that evaluates the filter given as String, see
+   create-user-space-filter, on org.jnetpcap.packet.PcapPacket instances and on
+   byte arrays or ByteBuffers in the format used by the byte array extraction DSL
+   and the raw data output, i.e., a 16 byte header with seconds, micro seconds,
+   capture length, and wire length followed by the packet data.
+   For ByteBuffers, the header starts at the position of the buffer."
+  [filter-string & [link-type]]
+  (let [^BpfFilter f (create-user-space-filter filter-string (or link-type 1))]
+    (fn [data]
+      (cond
+        (instance? PcapPacket data) (.matches f (.getCaptureHeader ^PcapPacket data) ^PcapPacket data)
+        (instance? ByteBuffer data) (let [^ByteBuffer bb data
+                                          pos (.position bb)]
+                                      (.matches f bb (int (+ pos 16)) (.getInt bb (int (+ pos 8))) (.getInt bb (int (+ pos 12)))))
+        :default (let [^bytes ba data]
+                   (.matches f ba (int 16) (ByteArrayHelper/getInt ba 8) (ByteArrayHelper/getInt ba 12)))))))
 
 (defn create-and-activate-online-pcap
   "Convenience function for creating and activating a Pcap instance in one step.
    See create-online-pcap and activate-online-pcap for details."
   [dev-name]
   (let [pcap (create-online-pcap dev-name)
-        pcap-thread (ref nil)]
+        pcap-thread (ref nil)
+        bulk-buffer-pool (DirectBulkBufferPool. *bulk-buffer-pool-size* false)]
     (activate-online-pcap pcap)
     (fn
       ([]
         pcap)
       ([k]
         (condp = k
+          :bulk-buffer-pool bulk-buffer-pool
           :stop (do 
                   (println "Stopping online pcap.")
                   (.breakloop pcap)
@@ -173,7 +223,7 @@
                                   (.loop pcap Pcap/LOOP_INFINITE bulk-size 
                                          snap-len true handler nil)
                                   (.loop_direct pcap Pcap/LOOP_INFINITE bulk-size 
-                                         snap-len true handler nil)))]
+                                         snap-len true bulk-buffer-pool handler nil)))]
                    (dosync (ref-set pcap-thread (doto (Thread. run-fn) (.setName "PcapOnlineCaptureThread") (.start)))))
           (throw (RuntimeException. (str "Unsupported operation for online pcap: " k " arguments: " [bulk-size use-intermediate-buffer handler]))))))))
 
@@ -184,15 +234,25 @@
 
 (defn create-stats-fn
   "Returns an fn that prints statistical data about a org.jnetpcap.Pcap instance.
-   Argument is the org.jnetpcap.Pcap instance."
+   Argument is the org.jnetpcap.Pcap instance.
+   When a bounded bulk buffer pool is used, its statistics are included as well."
   [pcap]
-  (let [pcap-stats (PcapStat.)]
+  (let [pcap-stats (PcapStat.)
+        ^DirectBulkBufferPool pool (pcap :bulk-buffer-pool)
+        pool-stats-fn (if (and pool (> (.getCapacity pool) 0))
+                        (fn [] {"bulk-pool-allocated" (.getAllocated pool)
+                                "bulk-pool-dropped" (.getDropped pool)})
+                        (fn [] {}))]
     (fn []
-      (if (= 0 (.stats ^Pcap (pcap) pcap-stats))
-        {"recv" (.getRecv pcap-stats) 
-         "drop" (.getDrop pcap-stats) 
-         "ifdrop" (.getIfDrop pcap-stats)}
-        (print-err-ln (.getErr pcap))))))
+      (cond
+        (nil? (pcap)) (merge (pool-stats-fn) (pcap :get-stats))
+        (= 0 (.stats ^Pcap (pcap) pcap-stats))
+        (merge
+          {"recv" (.getRecv pcap-stats) 
+           "drop" (.getDrop pcap-stats) 
+           "ifdrop" (.getIfDrop pcap-stats)}
+          (pool-stats-fn))
+        :default (print-err-ln (.getErr ^Pcap (pcap)))))))
 
 (defn create-pcap-from-file
   "Create an offline org.jnetpcap.Pcap from a file."
@@ -205,9 +265,7 @@
         (throw (RuntimeException. errmsg)))
       pcap)))
 
-(defn create-offline-pcap
-  "Convenience function for creating and activating a Pcap instance in one step.
-   See create-online-pcap and activate-online-pcap for details."
+(defn- create-classic-offline-pcap
   [file-name]
   (let [pcap (create-pcap-from-file file-name)]
     (fn
@@ -221,3 +279,93 @@
                    (doto (Thread. run-fn) (.setName "PcapOfflineCaptureThread") (.setDaemon true) (.start) (.join)))
           (println "Unsupported operation for online pcap:" k))))))
 
+(defn create-offline-pcapng
+  "Creates an offline pcap for a pcapng file.
+   The file is read with clj_net_pcap.PcapNgReader instead of libpcap.
+   As no org.jnetpcap.Pcap instance is involved, neither filters nor pcap statistics are available."
+  [file-name]
+  (let [^PcapNgReader reader (PcapNgReader. ^String file-name)]
+    (fn
+      ([]
+        nil)
+      ([k])
+      ([k opt]
+        (condp = k
+          :start (let [run-fn (fn []
+                                (try
+                                  (.dispatch reader (int -1) ^ByteBufferHandler opt nil)
+                                  (finally
+                                    (.close reader))))]
+                   (doto (Thread. ^Runnable run-fn) (.setName "PcapNgOfflineReaderThread") (.setDaemon true) (.start) (.join)))
+          (println "Unsupported operation for offline pcapng:" k)))
+      ([k bulk-size use-intermediate-buffer handler]
+        (throw (RuntimeException. (str "Bulk operation is not supported for offline pcapng: " k)))))))
+
+(defn create-offline-pcap
+  "Convenience function for creating and activating a Pcap instance in one step.
+   See create-online-pcap and activate-online-pcap for details.
+   pcapng files are read via create-offline-pcapng."
+  [file-name]
+  (if (PcapNgReader/isPcapNg file-name)
+    (create-offline-pcapng file-name)
+    (create-classic-offline-pcap file-name)))
+
+(defn get-replay-stats
+  "Returns the statistics of the given clj_net_pcap.PcapReplayer as map.
+   The rates are in packets per second; a requested rate of 0 means that packets were not paced."
+  [^PcapReplayer replayer]
+  {"replay-packets" (.getPacketCount replayer)
+   "replay-bytes" (.getByteCount replayer)
+   "replay-filtered" (.getFilteredCount replayer)
+   "replay-loops" (.getLoopCount replayer)
+   "replay-max-lag-ns" (.getMaxLagNanos replayer)
+   "replay-requested-pps" (.getRequestedRate replayer)
+   "replay-achieved-pps" (.getAchievedRate replayer)})
+
+(defn create-replay-pcap
+  "Creates a pcap source that replays a classic pcap file at controlled rates, see clj_net_pcap.PcapReplayer.
+   It can be used with the capture pipeline like the other pcap sources; see also create-and-start-replay-cljnetpcap.
+   Unlike create-offline-pcap, starting the source does not block until all packets were read.
+   Filters are evaluated in user space, see create-user-space-filter.
+
+   Options:
+   :speed              Multiplier for the original timing, e.g., 2.0 for twice as fast (default 1.0).
+                       With 0, packets are replayed as fast as possible.
+   :pps                Fixed rate in packets per second that is used instead of the original timing.
+   :loops              Number of passes over the file; with 0, the file is replayed until stopped (default 1).
+   :rewrite-timestamps If true, timestamps are set to the time at which the packets were scheduled.
+                       Otherwise, the original timestamps are kept and shifted for repeated passes."
+  [file-name & {:keys [speed pps loops rewrite-timestamps]
+                :or {speed 1.0 pps 0 loops 1 rewrite-timestamps false}}]
+  (let [^PcapReplayer replayer (doto (PcapReplayer. ^String file-name)
+                                 (.setSpeed (double speed))
+                                 (.setPps (double pps))
+                                 (.setLoops (int loops))
+                                 (.setRewriteTimestamps (boolean rewrite-timestamps)))
+        replay-thread (ref nil)]
+    (fn
+      ([]
+        nil)
+      ([k]
+        (condp = k
+          :replayer replayer
+          :user-space-filter? true
+          :get-stats (get-replay-stats replayer)
+          :wait-for-completed (if-let [^Thread t @replay-thread]
+                                (.join t))
+          :stop (do
+                  (.stop replayer)
+                  (if-let [^Thread t @replay-thread]
+                    (.join t))
+                  (.close replayer))
+          nil))
+      ([k opt]
+        (condp = k
+          :set-user-space-filter (.setFilter replayer (if (and (not (nil? opt)) (not= "" opt))
+                                                        (create-user-space-filter opt (.getLinkType replayer))))
+          :start (let [run-fn (fn []
+                                (.replay replayer ^ByteBufferHandler opt nil))]
+                   (dosync (ref-set replay-thread (doto (Thread. ^Runnable run-fn) (.setName "PcapReplayThread") (.setDaemon true) (.start)))))
+          (println "Unsupported operation for replay pcap:" k)))
+      ([k bulk-size use-intermediate-buffer handler]
+        (throw (RuntimeException. (str "Bulk operation is not supported for replay pcap: " k)))))))
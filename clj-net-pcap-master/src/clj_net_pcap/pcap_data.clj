@@ -23,13 +23,14 @@
         clj-assorted-utils.util
         clj-net-pcap.native)
   (:require (clj-net-pcap [packet-offsets :as offsets]))
-  (:import (java.io BufferedWriter IOException Writer)
+  (:import (java.io BufferedOutputStream BufferedWriter DataOutputStream FileOutputStream IOException Writer)
            (java.net InetAddress)
            (java.nio ByteBuffer)
            (java.util Arrays ArrayList HashMap Iterator List Map)
            (java.util.concurrent ScheduledThreadPoolExecutor)
-           (clj_net_pcap ByteArrayHelper Counter PacketHeaderDataBean PacketHeaderDataBeanIpv4UdpOnly PacketHeaderDataBeanWithIpv4Udp)
-           (org.jnetpcap PcapHeader)
+           (clj_net_pcap BatchedPcapDumper BulkBufferIndex ByteArrayHelper Counter ExtractionBatch ExtractionRecord PacketHeaderDataBean PacketHeaderDataBeanIpv4UdpOnly PacketHeaderDataBeanWithIpv4Udp
+                         RecordFileReader RecordFileWriter)
+           (org.jnetpcap DirectBulkByteBufferWrapper PcapHeader)
            (org.jnetpcap.packet PcapPacket)
            (org.jnetpcap.packet.format FormatUtils)
            (org.jnetpcap.protocol.lan Ethernet)
@@ -595,16 +596,16 @@ user=>
    This is used for testing purposes."
   [bulk-size]
   (let [cntr (Counter.)
-        delta-cntr (delta-counter)
+        total (ref 0)
         time-tmp (ref (System/currentTimeMillis))
-        pps-printer #(let [val (* bulk-size (.value cntr))]
-                       (if (>= val 0)
-                         (let [cur-time (System/currentTimeMillis)
-                               time-delta (- cur-time @time-tmp)]
-                           (when (> time-delta 0)
-                             (println "pps" (float (/ (delta-cntr :val val) (/ time-delta 1000))) "total" val)
-                             (dosync
-                               (ref-set time-tmp cur-time))))))
+        pps-printer #(let [cur-time (System/currentTimeMillis)
+                           time-delta (- cur-time @time-tmp)]
+                       (when (> time-delta 0)
+                         (let [delta (* bulk-size (.sumThenReset cntr))]
+                           (dosync
+                             (alter total + delta)
+                             (ref-set time-tmp cur-time))
+                           (println "pps" (float (/ delta (/ time-delta 1000))) "total" @total))))
         _ (run-repeat (executor) pps-printer 1000)]
     (fn [_]
       (.inc cntr))))
@@ -675,17 +676,79 @@ user=>
     (.setUdpSrc (ByteArrayHelper/getInt16 ba (+ offset offsets/udp-src)))
     (.setUdpDst (ByteArrayHelper/getInt16 ba (+ offset offsets/udp-dst)))))
 
+(def ^:dynamic *bulk-parallel-min-records* 64)
+
+(defn index-bulk-buffer
+  "Index the record offsets of the bulk buffer bb in a single pass via clj_net_pcap.BulkBufferIndex.
+   bb is either a ByteBuffer or an org.jnetpcap.DirectBulkByteBufferWrapper as emitted when no intermediate buffer is used.
+   The data of direct buffers is copied to a reused array and the native memory of a wrapper is released afterwards.
+   Returns the index of the current thread, which is reused when the next buffer is indexed."
+  ^BulkBufferIndex [bb]
+  (let [^BulkBufferIndex idx (BulkBufferIndex/forCurrentThread)]
+    (if (instance? DirectBulkByteBufferWrapper bb)
+      (let [^DirectBulkByteBufferWrapper w bb]
+        (.index idx (.getBuffer w))
+        (.freeNativeMemory w))
+      (.index idx ^ByteBuffer bb))
+    idx))
+
 (defn process-packet-byte-buffer-bulk
-  [f ^ByteBuffer bb]
-  (if (.hasArray bb)
-    (let [ba (.array bb)
-          r (ArrayList.)]
-      (loop [offset 0]
-        (.add r (f ba offset))
-        (let [new-offset (+ offset 16 (ByteArrayHelper/getIntBigEndian ba 8))]
-          (if (< new-offset (alength ba))
-            (recur new-offset))))
-      r)))
+  [f bb]
+  (let [idx (index-bulk-buffer bb)
+        ba (.getArray idx)
+        ^ints offsets (.getOffsets idx)
+        n (.size idx)
+        r (ArrayList. n)]
+    (loop [i 0]
+      (when (< i n)
+        (.add r (f ba (aget offsets i)))
+        (recur (inc i))))
+    r))
+
+(defn process-packet-byte-buffer-bulk-parallel
+  "Apply the extraction function f to all records of the bulk buffer bb using the given number of threads.
+   The record offsets are indexed first; then, contiguous ranges of records are processed in parallel
+   and the results are stored in a preallocated array by record index.
+   Hence, the returned list has the same order as process-packet-byte-buffer-bulk.
+   Bulks with less than *bulk-parallel-min-records* records are processed in the calling thread."
+  [f threads bb]
+  (let [idx (index-bulk-buffer bb)
+        ba (.getArray idx)
+        ^ints offsets (.getOffsets idx)
+        n (.size idx)
+        ^objects results (object-array n)
+        process-range (fn [start end]
+                        (loop [i start]
+                          (when (< i end)
+                            (aset results i (f ba (aget offsets i)))
+                            (recur (inc i)))))]
+    (if (or (<= threads 1) (< n *bulk-parallel-min-records*))
+      (process-range 0 n)
+      (let [per-thread (int (Math/ceil (/ n (double threads))))]
+        (->> (range 0 n per-thread)
+             (map (fn [start] (future (process-range start (min n (+ start per-thread))))))
+             (doall)
+             (map deref)
+             (dorun))))
+    (Arrays/asList results)))
+
+(defn process-packet-byte-buffer-bulk-batch
+  "Decode all packets of the bulk ByteBuffer bb into the columnar batch in a single pass.
+   f is a function as created by clj-net-pcap.byte-array-extraction-dsl/create-batch-extraction-fn.
+   The batch is cleared first and returned.
+   As the batch is reused, the result must be consumed before the next bulk is processed.
+   A batch must not be shared between threads; use one batch per consumer thread."
+  [f ^ExtractionBatch batch bb]
+  (let [idx (index-bulk-buffer bb)
+        ba (.getArray idx)
+        ^ints offsets (.getOffsets idx)
+        n (.size idx)]
+    (.clear batch)
+    (loop [i 0]
+      (when (< i n)
+        (f ba (aget offsets i) batch)
+        (recur (inc i))))
+    batch))
 
 (defn process-packet-byte-buffer
   [f ^ByteBuffer bb]
@@ -766,3 +829,189 @@ user=>
                   (catch Exception e
                     (handle-exception-fn e)))))))))))
 
+(defn create-batch-file-out-forwarder
+  "Create a forwarder that writes clj_net_pcap.ExtractionBatch instances to out-file.
+   fmt is either :csv or :binary; see ExtractionBatch.writeCsv and ExtractionBatch.writeBinary.
+   For :csv, hdr, e.g., an ARFF header, is written first.
+   Calling the forwarder without arguments closes the file."
+  ([out-file fmt]
+    (create-batch-file-out-forwarder out-file fmt ""))
+  ([out-file fmt hdr]
+    (let [binary (= :binary (keyword fmt))
+          out (if binary
+                (DataOutputStream. (BufferedOutputStream. (FileOutputStream. ^String out-file true)))
+                (doto ^BufferedWriter (writer out-file :append true)
+                  (.write ^String hdr)))
+          closed (atom false)]
+      (fn
+        ([]
+          (reset! closed true)
+          (.close ^java.io.Closeable out))
+        ([^ExtractionBatch batch]
+          (when (not @closed)
+            (try
+              (if binary
+                (do
+                  (.writeBinary batch ^DataOutputStream out)
+                  (.flush ^DataOutputStream out))
+                (do
+                  (.writeCsv batch ^BufferedWriter out)
+                  (.flush ^BufferedWriter out)))
+              (catch Exception e
+                (println e)))))))))
+
+(def record-file-codecs
+  {:none RecordFileWriter/CODEC_NONE
+   :deflate RecordFileWriter/CODEC_DEFLATE})
+
+(defn- create-record-file-writer
+  [out-file names kinds widths codec block-size commit-interval]
+  (RecordFileWriter. (.getChannel (FileOutputStream. ^String out-file))
+                     ^"[Ljava.lang.String;" (into-array String names)
+                     (int-array kinds)
+                     (if widths (int-array widths))
+                     (int (record-file-codecs (keyword codec)))
+                     (int block-size)
+                     (long commit-interval)))
+
+(defn create-record-file-out-forwarder
+  "Create a forwarder that writes values extracted via the DSL in the binary format of clj_net_pcap.RecordFileWriter to out-file.
+   The forwarder accepts clj_net_pcap.ExtractionRecord instances, e.g., as created with the :record output type,
+   lists of records as created in bulk mode, and clj_net_pcap.ExtractionBatch instances.
+   The file is created when the first data is forwarded and takes the layout of this data.
+   Options are:
+   :codec :none or :deflate, the compression of the blocks, defaults to :none,
+   :widths the widths of the values, e.g., as returned by clj-net-pcap.byte-array-extraction-dsl/get-record-widths,
+   :block-size the uncompressed size of the blocks in bytes, and
+   :commit-interval the maximum time in milliseconds that data is buffered before it is written.
+   Calling the forwarder without arguments closes the file."
+  [out-file & {:keys [codec widths block-size commit-interval]
+               :or {codec :none
+                    block-size RecordFileWriter/DEFAULT_BLOCK_SIZE
+                    commit-interval RecordFileWriter/DEFAULT_COMMIT_INTERVAL}}]
+  (let [wrtr (atom nil)
+        closed (atom false)
+        get-wrtr-fn (fn [data]
+                      (if-let [w @wrtr]
+                        w
+                        (reset! wrtr
+                                (if (instance? ExtractionRecord data)
+                                  (let [^ExtractionRecord r data]
+                                    (create-record-file-writer out-file
+                                                               (map #(.getName r (int %)) (range (.size r)))
+                                                               (map #(.getKind r (int %)) (range (.size r)))
+                                                               widths codec block-size commit-interval))
+                                  (let [^ExtractionBatch b data]
+                                    (create-record-file-writer out-file
+                                                               (map #(.getName b (int %)) (range (.getColumnCount b)))
+                                                               (map #(.getKind b (int %)) (range (.getColumnCount b)))
+                                                               widths codec block-size commit-interval))))))]
+    (fn
+      ([]
+        (reset! closed true)
+        (if-let [^RecordFileWriter w @wrtr]
+          (.close w)))
+      ([data]
+        (when (and (not @closed) (not (nil? data)))
+          (try
+            (cond
+              (instance? ExtractionRecord data)
+                (.write ^RecordFileWriter (get-wrtr-fn data) ^ExtractionRecord data)
+              (instance? ExtractionBatch data)
+                (.write ^RecordFileWriter (get-wrtr-fn data) ^ExtractionBatch data)
+              (instance? List data)
+                (when (not (.isEmpty ^List data))
+                  (let [^RecordFileWriter w (get-wrtr-fn (.get ^List data 0))
+                        ^Iterator it (.iterator ^List data)]
+                    (while (.hasNext it)
+                      (.write w ^ExtractionRecord (.next it)))))
+              :default (println "Unsupported data for record file:" (type data)))
+            (catch Exception e
+              (println e))))))))
+
+(defn read-record-file
+  "Read a file written with clj_net_pcap.RecordFileWriter, e.g., via create-record-file-out-forwarder.
+   Returns a lazy sequence of the records in the given output type:
+   :clj-map, the default, and :java-map like the respective DSL output types, or
+   :record for new clj_net_pcap.ExtractionRecord instances.
+   The file is closed when the sequence was fully consumed."
+  ([in-file]
+    (read-record-file in-file :clj-map))
+  ([in-file out-type]
+    (let [rdr (RecordFileReader. ^String in-file)
+          n (.getColumnCount rdr)
+          names (vec (map #(.getName rdr (int %)) (range n)))
+          convert-fn (condp = (keyword out-type)
+                       :clj-map (fn [^RecordFileReader r]
+                                  (persistent!
+                                    (reduce (fn [m i] (assoc! m (names i) (.getValue r (int i))))
+                                            (transient {}) (range n))))
+                       :java-map (fn [^RecordFileReader r] (.toMap r))
+                       :record (fn [^RecordFileReader r] (.copyTo r (.newRecord r))))
+          read-fn (fn read-fn []
+                    (lazy-seq
+                      (if (.next rdr)
+                        (cons (convert-fn rdr) (read-fn))
+                        (do
+                          (.close rdr)
+                          nil))))]
+      (read-fn))))
+
+(defn create-pcap-file-out-forwarder
+  "Create a forwarder that writes raw packets to pcap files via clj_net_pcap.BatchedPcapDumper.
+   The forwarder accepts the bulk ByteBuffer instances as emitted in raw bulk mode,
+   org.jnetpcap.DirectBulkByteBufferWrapper instances as emitted when no intermediate buffer is used,
+   org.jnetpcap.packet.PcapPacket instances, and lists of these.
+   The native memory of wrappers is released after their packets were dumped.
+   Packets are staged off-heap and written in batches by a background thread;
+   packets that arrive while the staging buffers are full are dropped.
+   This includes packets that would start a new file while the previous buffer is still being written.
+   Options are:
+   :link-type the link type of the pcap files, defaults to 1 (Ethernet),
+   :snap-len the snap length written to the pcap files, defaults to 65535,
+   :buffer-size the size of each of the two staging buffers in bytes,
+   :max-file-bytes and :max-file-seconds for rotating the files by size and/or time, 0 disables the rotation, and
+   :commit-interval the maximum time in milliseconds that packets are buffered before they are written.
+   Calling the forwarder without arguments closes the file.
+   Calling it with :stats returns a map with the number of packets, drops, files, and written bytes.
+   For a single bulk buffer, the forwarder returns the number of dumped, i.e., not dropped, packets."
+  [out-file & {:keys [link-type snap-len buffer-size max-file-bytes max-file-seconds commit-interval]
+               :or {link-type 1
+                    snap-len 65535
+                    buffer-size BatchedPcapDumper/DEFAULT_BUFFER_SIZE
+                    max-file-bytes 0
+                    max-file-seconds 0
+                    commit-interval BatchedPcapDumper/DEFAULT_COMMIT_INTERVAL}}]
+  (let [dumper (BatchedPcapDumper. ^String out-file (int link-type) (int snap-len) (int buffer-size)
+                                   (long max-file-bytes) (long max-file-seconds) (long commit-interval))
+        closed (atom false)
+        dump-fn (fn [data]
+                  (cond
+                    (instance? ByteBuffer data) (.dumpBulk dumper ^ByteBuffer data)
+                    (instance? DirectBulkByteBufferWrapper data)
+                      (let [^DirectBulkByteBufferWrapper w data]
+                        (try
+                          (.dumpBulk dumper (.getBuffer w))
+                          (finally
+                            (.freeNativeMemory w))))
+                    (instance? PcapPacket data) (.dump dumper (.getCaptureHeader ^PcapPacket data) ^PcapPacket data)
+                    :default (println "Unsupported data for pcap file:" (type data))))]
+    (fn
+      ([]
+        (reset! closed true)
+        (.close dumper))
+      ([data]
+        (cond
+          (= :stats data) {"packets" (.getPacketCount dumper)
+                           "drops" (.getDropCount dumper)
+                           "files" (.getFileCount dumper)
+                           "bytes" (.getBytesWritten dumper)}
+          (and (not @closed) (not (nil? data)))
+            (try
+              (if (instance? List data)
+                (let [^Iterator it (.iterator ^List data)]
+                  (while (.hasNext it)
+                    (dump-fn (.next it))))
+                (dump-fn data))
+              (catch Exception e
+                (println e))))))))
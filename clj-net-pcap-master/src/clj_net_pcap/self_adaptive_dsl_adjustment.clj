@@ -23,7 +23,8 @@
 (defn create-stat-delta-counter
   []
   (let [delta-cntr (delta-counter)]
-    (doseq [e {"out-dropped" 0, "ifdrop" 0, "out-queued" 0, "drop" 0, "recv" 0, "forwarder-failed" 0}]
+    (doseq [e {"out-dropped" 0, "out-dropped-newest" 0, "out-dropped-oldest" 0, "ifdrop" 0, "out-queued" 0, "drop" 0,
+               "recv" 0, "forwarder-failed" 0}]
       (delta-cntr (keyword (key e)) (val e)))
     (fn [current-stats]
       (reduce #(let [k (key %2)]
@@ -133,3 +134,72 @@
     ;          :default (println "Undefined state in self-adaptation-controller."))))))
               :default nil))))))
 
+(defn get-dropped-sum-all-stages
+  "Like get-dropped-sum but includes the packets dropped in any stage of the capture pipeline,
+   i.e., all values with keys ending in \"-dropped\"."
+  [data]
+  (reduce
+    (fn [sum [k v]]
+      (if (or (= "drop" k) (= "ifdrop" k) (.endsWith ^String k "-dropped"))
+        (+ sum v)
+        sum))
+    0
+    data))
+
+(defn get-overload-dropped-sum
+  "Sums the packets that were dropped due to overload, i.e., the pcap drop counts, the packets dropped
+   when the bulk buffer pool was exhausted, and the packets dropped by full stage queues,
+   i.e., all values with keys ending in \"-dropped-newest\" or \"-dropped-oldest\".
+   Unlike get-dropped-sum-all-stages, packets that were sampled out or degraded by an overload policy are not included."
+  [data]
+  (reduce
+    (fn [sum [k v]]
+      (if (or (= "drop" k) (= "ifdrop" k) (= "bulk-pool-dropped" k)
+              (.endsWith ^String k "-dropped-newest") (.endsWith ^String k "-dropped-oldest"))
+        (+ sum v)
+        sum))
+    0
+    data))
+
+(defn create-overload-policy-controller
+  "Creates a controller that switches the overload policy of the capture pipeline at runtime.
+   policies is a vector of overload policies in the order in which they are to be applied, e.g., [:drop-newest :header-only :sample].
+   set-policy-fn is called with the policy to apply, e.g., #(set-overload-policy cljnetpcap %).
+   Like the self-adaptation controller, the returned fn is to be called periodically with the current stats.
+   When packets are dropped in interpolation consecutive intervals, the next policy is applied
+   and the receive rate at which this happened is remembered.
+   Only genuine drops, see get-overload-dropped-sum, count; packets sampled out or degraded by the
+   current policy do not cause a further escalation.
+   When the receive rate falls below (1 - threshold) times this rate, the previous policy is restored.
+   After each change, the next inactivity calls are ignored."
+  [set-policy-fn policies threshold interpolation inactivity]
+  (let [policies (vec policies)
+        current-policy (ref 0)
+        escalation-rates (ref [])
+        rep-det (create-repetition-detector interpolation)
+        rcv-mvg-avg-calc (create-moving-average-calculator interpolation)
+        inact-ctr (counter)
+        stat-delta-cntr (create-stat-delta-counter)]
+    (set-policy-fn (first policies))
+    (add-watch current-policy :overload-policy-update-watch
+               (fn [k r old-state new-state]
+                 (println "overload-policy-controller changed policy from" (policies old-state) "to" (policies new-state))
+                 (set-policy-fn (policies new-state))
+                 (inact-ctr (fn [_] inactivity))))
+    (fn
+      [stat-data]
+      (let [deltas (stat-delta-cntr stat-data)
+            rcv (get deltas "recv" (get deltas "replay-packets" 0))
+            _ (rcv-mvg-avg-calc rcv)
+            dropping (rep-det #(> (get-overload-dropped-sum deltas) 0))]
+        (cond
+          (< 0 (inact-ctr)) (inact-ctr dec)
+          (and dropping (< (inc @current-policy) (count policies)))
+            (dosync
+              (alter escalation-rates conj (rcv-mvg-avg-calc))
+              (alter current-policy inc))
+          (and (< 0 @current-policy) (< rcv (* (- 1.0 threshold) (peek @escalation-rates))))
+            (dosync
+              (alter escalation-rates pop)
+              (alter current-policy dec))
+          :default nil)))))
@@ -25,7 +25,8 @@
            (java.util ArrayList)
            (java.util.concurrent BlockingQueue)
            (org.jnetpcap BulkByteBufferHandler ByteBufferHandler DirectBulkByteBufferHandler Pcap PcapHeader)
-           (org.jnetpcap.packet PcapPacket PcapPacketHandler)))
+           (org.jnetpcap.nio MemoryScope)
+           (org.jnetpcap.packet JPacket PcapPacket PcapPacketHandler)))
 
 
 (defrecord Packet 
@@ -51,6 +52,26 @@
   [^PcapPacket p]
   (PcapPacket. p))
 
+(defn release-packet
+  "Releases the native memory of a packet, e.g., one that was created with
+   clone-packet, immediately instead of waiting for the garbage collector.
+   The packet must not be used afterwards."
+  [^JPacket p]
+  (.release p))
+
+(defmacro with-memory-scope
+  "Evaluates body in a MemoryScope.
+   Native memory that is allocated by the current thread while evaluating body,
+   e.g., by clone-packet, is not tracked by the DisposableGC and is released
+   when body returns.
+   Packets created in body must not be used after body returned."
+  [& body]
+  `(let [scope# (MemoryScope/open)]
+     (try
+       ~@body
+       (finally
+         (.close scope#)))))
+
 (defn create-and-start-sniffer
   "Creates a thread in which Pcap.loop() is called with Pcap/LOOP_INFINITE set.
    Each received packet is passed to the supplied handler-fn. 
@@ -23,7 +23,7 @@
         clj-net-pcap.dsl.transformation
         clj-net-pcap.pcap-data
         clj-assorted-utils.util)
-  (:import (clj_net_pcap PacketHeaderDataBeanIpv4UdpOnly)))
+  (:import (clj_net_pcap ExtractionRecord HeaderOffsetParser PacketHeaderDataBeanIpv4UdpOnly)))
 
 (deftest simple-hardcoded-offsets-dsl-test
   (let [expected-map {"udpSrc" 2048, "udpDst" 4096}
@@ -592,3 +592,139 @@
         extracted-str (extraction-fn pkt-ba 0)]
     (is (= expected-str extracted-str))))
 
+(deftest record-type-full-ipv4-udp-test
+  (let [expected-map {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0",
+                      "ipId" 3, "ipTtl" 7, "ipChecksum" 29639, "ipVer" 4,
+                      "ipDst" "252.253.254.255", "ipSrc" "1.2.3.4",
+                      "udpSrc" 2048, "udpDst" 4096, "len" 77, "ts" 1422366459969231000}
+        dsl-expression {:type :record
+                        :rules ipv4-udp-be-dsl-expression}
+        pkt-raw-vec [-5 -106 -57 84   15 -54 14 0   77 0 0 0   77 0 0 0    ; 16 byte pcap header
+                     -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0                  ; 14 byte Ethernet header
+                     69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+                     8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+                     97 98 99 100]                                         ; 4 byte data "abcd"
+        pkt-ba (byte-array (map byte pkt-raw-vec))
+        extraction-fn (create-extraction-fn dsl-expression)
+        ^ExtractionRecord rec (extraction-fn pkt-ba 0)]
+    (is (= ExtractionRecord (type rec)))
+    (is (= 12 (.size rec)))
+    (is (= "ipSrc" (.getName rec 5)))
+    (is (= ExtractionRecord/KIND_IPV4 (.getKind rec 5)))
+    (is (= 0x01020304 (.getLong rec 5)))
+    (is (= 0xFCFDFEFF (.getLong rec 4)))
+    (is (= 0xFFFEFDF2F1F0 (.getLong rec 2)))
+    (is (= expected-map (.toMap rec)))))
+
+(deftest record-type-reuse-record-test
+  (let [dsl-expression {:type :record
+                        :rules [{:offset "udp-src" :transformation "int16" :name "udpSrc"}
+                                {:offset "udp-dst" :transformation "int16" :name "udpDst"}]}
+        pkt-raw-vec [-5 -106 -57 84   15 -54 14 0   77 0 0 0   77 0 0 0    ; 16 byte pcap header
+                     -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0                  ; 14 byte Ethernet header
+                     69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+                     8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+                     97 98 99 100]                                         ; 4 byte data "abcd"
+        pkt-ba (byte-array (map byte pkt-raw-vec))
+        extraction-fn (create-extraction-fn dsl-expression)
+        ^ExtractionRecord rec (extraction-fn)]
+    (is (= 0 (.getLong rec 0)))
+    (is (identical? rec (extraction-fn pkt-ba 0 rec)))
+    (is (= 2048 (.getLong rec 0)))
+    (is (= 4096 (.getLong rec 1)))))
+
+(deftest record-type-new-dsl-test
+  (let [dsl-expression {:type :record
+                        :rules [['ethDst '(ethernet-address eth-dst)]
+                                ['udpSrc '(int16 udp-src)]
+                                ['udpDst '(float (/ (int16 udp-dst) 65535))]]}
+        pkt-raw-vec [-5 -106 -57 84   15 -54 14 0   77 0 0 0   77 0 0 0    ; 16 byte pcap header
+                     -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0                  ; 14 byte Ethernet header
+                     69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+                     8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+                     97 98 99 100]                                         ; 4 byte data "abcd"
+        pkt-ba (byte-array (map byte pkt-raw-vec))
+        extraction-fn (create-extraction-fn dsl-expression)
+        ^ExtractionRecord rec (extraction-fn pkt-ba 0)]
+    (is (= ExtractionRecord/KIND_ETHERNET (.getKind rec 0)))
+    (is (= ExtractionRecord/KIND_LONG (.getKind rec 1)))
+    (is (= ExtractionRecord/KIND_DOUBLE (.getKind rec 2)))
+    (is (= (double (float 0.06250095)) (.getDouble rec 2)))
+    (is (= (str "\"FF:FE:FD:F2:F1:F0\",2048," (double (float 0.06250095))) (.toCsv rec)))
+    (is (= (str "{\"ethDst\":\"FF:FE:FD:F2:F1:F0\",\"udpSrc\":2048,\"udpDst\":" (double (float 0.06250095)) "}")
+           (.toJson rec)))))
+
+(deftest record-type-string-rule-not-supported-test
+  (let [dsl-expression {:type :record
+                        :rules [['udpSrc '(str (int16 udp-src))]]}]
+    (is (thrown? RuntimeException (create-extraction-fn dsl-expression)))))
+
+(def ipv4-options-pkt-raw-vec
+  [-5 -106 -57 84   15 -54 14 0   77 0 0 0   77 0 0 0    ; 16 byte pcap header
+   -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0                  ; 14 byte Ethernet header
+   70 0 0 36 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 24 byte IP header with options
+   1 1 1 0
+   8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+   97 98 99 100])                                        ; 4 byte data "abcd"
+
+(def vlan-pkt-raw-vec
+  [-5 -106 -57 84   15 -54 14 0   81 0 0 0   81 0 0 0    ; 16 byte pcap header
+   -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 -127 0               ; 18 byte Ethernet header with 802.1Q tag
+   0 5 8 0
+   69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+   8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+   97 98 99 100])                                        ; 4 byte data "abcd"
+
+(def sll-pkt-raw-vec
+  [-5 -106 -57 84   15 -54 14 0   79 0 0 0   79 0 0 0    ; 16 byte pcap header
+   0 0 0 1 0 6 1 2 3 4 5 6 0 0 8 0                       ; 16 byte Linux cooked header
+   69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+   8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+   97 98 99 100])                                        ; 4 byte data "abcd"
+
+(deftest header-offset-parser-test
+  (let [opts-ba (byte-array (map byte ipv4-options-pkt-raw-vec))
+        vlan-ba (byte-array (map byte vlan-pkt-raw-vec))
+        sll-ba (byte-array (map byte sll-pkt-raw-vec))]
+    (is (= 30 (HeaderOffsetParser/networkHeaderOffset opts-ba 0 HeaderOffsetParser/DLT_EN10MB)))
+    (is (= 54 (HeaderOffsetParser/transportHeaderOffset opts-ba 0 30)))
+    (is (= 34 (HeaderOffsetParser/networkHeaderOffset vlan-ba 0 HeaderOffsetParser/DLT_EN10MB)))
+    (is (= 54 (HeaderOffsetParser/transportHeaderOffset vlan-ba 0 34)))
+    (is (= 32 (HeaderOffsetParser/networkHeaderOffset sll-ba 0 HeaderOffsetParser/DLT_LINUX_SLL)))
+    (is (= 52 (HeaderOffsetParser/transportHeaderOffset sll-ba 0 32)))
+    (is (= 30 (HeaderOffsetParser/networkHeaderOffset (byte-array 20) 0 HeaderOffsetParser/DLT_EN10MB)))
+    (is (= 50 (HeaderOffsetParser/transportHeaderOffset (byte-array 20) 0 30)))))
+
+(deftest dynamic-offsets-ipv4-options-test
+  (let [expected-map {"ipSrc" "1.2.3.4", "udpSrc" 2048, "udpDst" 4096}
+        rules [{:offset "ipv4-src" :transformation "ipv4-address" :name "ipSrc"}
+               {:offset "udp-src" :transformation "int16" :name "udpSrc"}
+               {:offset "udp-dst" :transformation "int16" :name "udpDst"}]
+        pkt-ba (byte-array (map byte ipv4-options-pkt-raw-vec))
+        static-fn (create-extraction-fn {:type :java-map :rules rules})
+        dynamic-fn (create-extraction-fn {:type :java-map :offsets :dynamic :rules rules})]
+    (is (not= expected-map (static-fn pkt-ba 0)))
+    (is (= expected-map (dynamic-fn pkt-ba 0)))))
+
+(deftest dynamic-offsets-vlan-new-dsl-test
+  (let [expected-str "{\"ipDst\":\"252.253.254.255\",\"udpSrc\":2048,\"udpDst\":4096}"
+        dsl-expression {:type :json-str
+                        :offsets :dynamic
+                        :rules [['ipDst '(ipv4-address ipv4-dst)]
+                                ['udpSrc '(int16 udp-src)]
+                                ['udpDst '(int16 udp-dst)]]}
+        pkt-ba (byte-array (map byte vlan-pkt-raw-vec))
+        extraction-fn (create-extraction-fn dsl-expression)]
+    (is (= expected-str (extraction-fn pkt-ba 0)))))
+
+(deftest dynamic-offsets-sll-record-test
+  (let [dsl-expression {:type :record
+                        :offsets :dynamic
+                        :link-type :linux-sll
+                        :rules [{:offset "ipv4-src" :transformation "ipv4-address" :name "ipSrc"}
+                                ['udpSrc '(int16 udp-src)]
+                                {:offset "udp-dst" :transformation "int16" :name "udpDst"}]}
+        pkt-ba (byte-array (map byte (concat [0 0 0] sll-pkt-raw-vec)))
+        extraction-fn (create-extraction-fn dsl-expression)
+        ^ExtractionRecord rec (extraction-fn pkt-ba 3)]
+    (is (= {"ipSrc" "1.2.3.4", "udpSrc" 2048, "udpDst" 4096} (.toMap rec)))))
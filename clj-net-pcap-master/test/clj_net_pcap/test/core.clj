@@ -98,3 +98,20 @@
     (is (map? (get-stats cljnetpcap)))
     (stop-cljnetpcap  cljnetpcap)))
 
+
+(deftest test-fan-out-subscribe-unsubscribe
+  (let [was-run (prepare-flag)
+        cljnetpcap (create-and-start-online-fan-out-cljnetpcap lo)]
+    (is (empty? (get-filters cljnetpcap)))
+    (subscribe cljnetpcap "icmp" "icmp" (fn [_] (set-flag was-run)))
+    (subscribe cljnetpcap "syn" "tcp[tcpflags] & tcp-syn != 0" (fn [_]))
+    (is (= ["(icmp) or (tcp[tcpflags] & tcp-syn != 0)"] (get-filters cljnetpcap)))
+    (is (thrown? IllegalArgumentException (subscribe cljnetpcap "icmp" "udp" (fn [_]))))
+    (exec-blocking "ping -c 1 localhost")
+    (await-flag was-run)
+    (is (flag-set? was-run))
+    (is (> ((get-stats cljnetpcap) "subscriber-icmp-delivered") 0))
+    (is (unsubscribe cljnetpcap "icmp"))
+    (is (= ["(tcp[tcpflags] & tcp-syn != 0)"] (get-filters cljnetpcap)))
+    (is (not (unsubscribe cljnetpcap "icmp")))
+    (stop-cljnetpcap cljnetpcap)))
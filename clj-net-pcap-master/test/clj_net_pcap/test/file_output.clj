@@ -23,7 +23,10 @@
         clj-net-pcap.pcap
         clj-net-pcap.pcap-data
         clj-assorted-utils.util)
-  (:import (clj_net_pcap PacketHeaderDataBeanIpv4UdpOnly)))
+  (:import (clj_net_pcap ExtractionBatch ExtractionRecord MappedPcapReader MappedPcapReader$Chunk MappedPcapReader$Cursor
+                         PacketHeaderDataBeanIpv4UdpOnly)
+           (java.io DataInputStream FileInputStream)
+           (java.nio ByteBuffer)))
 
 
 
@@ -181,3 +184,175 @@
     (is (= expected-str (slurp test-out-file)))
     (stop-cljnetpcap cljnetpcap)))
 
+(def bulk-pkt-raw-vec
+  [-5 -106 -57 84   15 -54 14 0   46 0 0 0   46 0 0 0    ; 16 byte pcap header
+   -1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0                  ; 14 byte Ethernet header
+   69 0 0 32 0 3 64 0 7 17 115 -57 1 2 3 4 -4 -3 -2 -1   ; 20 byte IP header
+   8 0 16 0 0 4 -25 -26                                  ; 8 byte UDP header
+   97 98 99 100])                                        ; 4 byte data "abcd"
+
+(def expected-batch-csv-line
+  (str "1422366459969231000,46,\"FF:FE:FD:F2:F1:F0\",\"01:02:03:04:05:06\","
+       "\"252.253.254.255\",\"1.2.3.4\",3,7,29639,4,2048,4096\n"))
+
+(deftest batch-extraction-bulk-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        batch-fn (create-batch-extraction-fn ipv4-udp-be-dsl-expression)
+        ^ExtractionBatch batch (batch-fn)]
+    (is (identical? batch (process-packet-byte-buffer-bulk-batch batch-fn batch bb)))
+    (is (= 2 (.size batch)))
+    (is (= 12 (.getColumnCount batch)))
+    (is (= 1422366459969231000 (.getLong batch 0 1)))
+    (is (= "1.2.3.4" (.getValue batch 5 1)))
+    (is (= 2048 (.getLong batch 10 0)))
+    (process-packet-byte-buffer-bulk-batch batch-fn batch bb)
+    (is (= 2 (.size batch)))
+    (is (= (str expected-batch-csv-line expected-batch-csv-line) (str batch)))))
+
+(def short-pkt-raw-vec
+  [0 0 0 0   0 0 0 0   4 0 0 0   4 0 0 0   1 2 3 4])
+
+(deftest bulk-index-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec short-pkt-raw-vec bulk-pkt-raw-vec))))
+        direct-bb (doto (ByteBuffer/allocateDirect (.capacity bb))
+                    (.put (.duplicate bb))
+                    (.flip))]
+    (is (= [0 62 82] (vec (process-packet-byte-buffer-bulk (fn [_ offset] offset) bb))))
+    (is (= [0 62 82] (vec (process-packet-byte-buffer-bulk (fn [_ offset] offset) direct-bb))))
+    (is (= 0 (.position direct-bb)))))
+
+(deftest bulk-parallel-extraction-test
+  (let [n 1000
+        bb (ByteBuffer/wrap (byte-array (map byte (apply concat (repeat n bulk-pkt-raw-vec)))))
+        extraction-fn (create-extraction-fn ipv4-udp-be-dsl-expression)
+        expected (vec (process-packet-byte-buffer-bulk extraction-fn bb))
+        threads (atom #{})
+        tracking-fn (fn [ba offset]
+                      (swap! threads conj (Thread/currentThread))
+                      (extraction-fn ba offset))]
+    (is (= n (count expected)))
+    (is (= expected (vec (process-packet-byte-buffer-bulk-parallel tracking-fn 4 bb))))
+    (is (not (contains? @threads (Thread/currentThread))))
+    (is (= (take 5 expected) (vec (process-packet-byte-buffer-bulk-parallel extraction-fn 4
+                                                                            (.limit (.duplicate bb) (* 5 62))))))))
+
+(deftest batch-extraction-dictionary-test
+  (let [dsl-expression {:type :java-map
+                        :rules [['udpSrc '(int16 udp-src)]
+                                ['dst '(str "p" (int16 udp-dst))]]}
+        bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        batch-fn (create-batch-extraction-fn dsl-expression)
+        ^ExtractionBatch batch (process-packet-byte-buffer-bulk-batch batch-fn (batch-fn) bb)]
+    (is (= 2 (.size batch)))
+    (is (= ["p4096"] (vec (.getDictionary batch 1))))
+    (is (= 0 (.getLong batch 1 1)))
+    (is (= "p4096" (.getValue batch 1 1)))
+    (is (= "2048,\"p4096\"\n2048,\"p4096\"\n" (str batch)))))
+
+(deftest batch-csv-file-out-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        batch-fn (create-batch-extraction-fn ipv4-udp-be-dsl-expression)
+        batch (process-packet-byte-buffer-bulk-batch batch-fn (batch-fn) bb)
+        file-out-forwarder (create-batch-file-out-forwarder test-out-file :csv "@DATA\n")]
+    (file-out-forwarder batch)
+    (file-out-forwarder)
+    (is (= (str "@DATA\n" expected-batch-csv-line expected-batch-csv-line) (slurp test-out-file)))))
+
+(deftest batch-binary-file-out-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        batch-fn (create-batch-extraction-fn ipv4-udp-be-dsl-expression)
+        batch (process-packet-byte-buffer-bulk-batch batch-fn (batch-fn) bb)
+        file-out-forwarder (create-batch-file-out-forwarder test-out-file :binary)]
+    (file-out-forwarder batch)
+    (file-out-forwarder)
+    (let [in (DataInputStream. (FileInputStream. ^String test-out-file))]
+      (is (= 0x434E5042 (.readInt in)))
+      (is (= 2 (.readInt in)))
+      (is (= 12 (.readInt in)))
+      (is (= "ts" (.readUTF in)))
+      (.close in))))
+
+(deftest record-widths-test
+  (is (= [0 0 0 0 0 0 2 1 2 1 2 2] (vec (get-record-widths ipv4-udp-be-dsl-expression)))))
+
+(deftest record-file-out-bulk-test
+  (let [dsl-expression {:type :record :rules ipv4-udp-be-dsl-expression}
+        bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        records (process-packet-byte-buffer-bulk (create-extraction-fn dsl-expression) bb)
+        file-out-forwarder (create-record-file-out-forwarder test-out-file
+                                                             :codec :deflate
+                                                             :widths (get-record-widths dsl-expression))]
+    (file-out-forwarder records)
+    (file-out-forwarder records)
+    (file-out-forwarder)
+    (let [maps (read-record-file test-out-file)]
+      (is (= 4 (count maps)))
+      (is (= (into {} (.toMap ^ExtractionRecord (first records))) (first maps)))
+      (is (= 1422366459969231000 ((first maps) "ts")))
+      (is (= "1.2.3.4" ((first maps) "ipSrc")))
+      (is (= "FF:FE:FD:F2:F1:F0" ((first maps) "ethDst")))
+      (is (= 7 ((first maps) "ipTtl")))
+      (is (= 2048 ((first maps) "udpSrc"))))
+    (let [^ExtractionRecord rec (first (read-record-file test-out-file :record))]
+      (is (= (str (first records)) (str rec))))))
+
+(deftest record-file-out-batch-test
+  (let [dsl-expression {:type :java-map
+                        :rules [['udpSrc '(int16 udp-src)]
+                                ['dst '(str "p" (int16 udp-dst))]]}
+        bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        batch-fn (create-batch-extraction-fn dsl-expression)
+        batch (process-packet-byte-buffer-bulk-batch batch-fn (batch-fn) bb)
+        file-out-forwarder (create-record-file-out-forwarder test-out-file)]
+    (file-out-forwarder batch)
+    (file-out-forwarder)
+    (is (= [{"udpSrc" 2048 "dst" "p4096"} {"udpSrc" 2048 "dst" "p4096"}]
+           (vec (map #(into {} %) (read-record-file test-out-file :java-map)))))))
+
+(def test-pcap-out-file "file-out.test.pcap")
+
+(defn- read-pcap-cap-lens
+  [file-name]
+  (let [reader (MappedPcapReader. ^String file-name)
+        cap-lens (vec (mapcat (fn [^MappedPcapReader$Chunk c]
+                                (let [^MappedPcapReader$Cursor cursor (.cursor c)]
+                                  (loop [acc []]
+                                    (if (.next cursor)
+                                      (recur (conj acc (.capLen cursor)))
+                                      acc))))
+                              (.chunks reader)))]
+    (.close reader)
+    cap-lens))
+
+(deftest pcap-file-out-bulk-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        file-out-forwarder (create-pcap-file-out-forwarder test-pcap-out-file)]
+    (file-out-forwarder bb)
+    (file-out-forwarder [bb bb])
+    (is (= {"packets" 6 "drops" 0 "files" 1} (dissoc (file-out-forwarder :stats) "bytes")))
+    (file-out-forwarder)
+    (is (= (+ 24 (* 3 (.capacity bb))) ((file-out-forwarder :stats) "bytes")))
+    (is (= (repeat 6 46) (read-pcap-cap-lens test-pcap-out-file)))))
+
+(deftest pcap-file-out-rotation-test
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (concat bulk-pkt-raw-vec bulk-pkt-raw-vec))))
+        file-out-forwarder (create-pcap-file-out-forwarder test-pcap-out-file :max-file-bytes 200)]
+    (file-out-forwarder bb)
+    (file-out-forwarder bb)
+    (file-out-forwarder)
+    (is (= 2 ((file-out-forwarder :stats) "files")))
+    (is (= [46 46] (read-pcap-cap-lens test-pcap-out-file)))
+    (is (= [46 46] (read-pcap-cap-lens (str test-pcap-out-file ".1"))))))
+
+(deftest pcap-file-out-backpressure-drops-test
+  ;;; A bulk is dumped with the lock held, so a bulk larger than both staging buffers always overflows.
+  (let [bb (ByteBuffer/wrap (byte-array (map byte (apply concat (repeat 10 bulk-pkt-raw-vec)))))
+        file-out-forwarder (create-pcap-file-out-forwarder test-pcap-out-file
+                                                           :buffer-size 200 :commit-interval 100000)
+        dumped (reduce + (repeatedly 20 #(file-out-forwarder bb)))
+        stats (file-out-forwarder :stats)]
+    (file-out-forwarder)
+    (is (= dumped (stats "packets")))
+    (is (> (stats "drops") 0))
+    (is (= 200 (+ (stats "packets") (stats "drops"))))
+    (is (= (stats "packets") (count (read-pcap-cap-lens test-pcap-out-file))))))
@@ -21,6 +21,7 @@
         clj-net-pcap.packet-gen
         clj-assorted-utils.util)
   (:import (clj_net_pcap ByteArrayHelper PacketHeaderDataBean)
+           (java.nio ByteBuffer)
            (java.util Arrays)
            (org.jnetpcap.packet.format FormatUtils)))
 
@@ -184,3 +185,57 @@
     (is (= expected-vec (vec result-ba)))
     (is (Arrays/equals expected-ba result-ba))))
 
+
+(deftest packet-template-vary-udp-ports-test
+  (let [pkt-description-map {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0",
+                             "ipVer" 4, "ipDst" "252.253.254.255", "ipId" 3, "ipType" 17,
+                             "ipTtl" 7, "ipSrc" "1.2.3.4",
+                             "udpSrc" 2048, "udpDst" 4096, "data" "abcd"}
+        tmpl (create-packet-template pkt-description-map {:src-port {:start 2048 :step 2 :count 3}})
+        expected-ba (.getTemplate (create-packet-template (assoc pkt-description-map "udpSrc" 2052)))]
+    (is (Arrays/equals (.getTemplate tmpl) (.toByteArray tmpl 0)))
+    (is (Arrays/equals expected-ba (.toByteArray tmpl 2)))
+    (is (Arrays/equals expected-ba (.toByteArray tmpl 5)))))
+
+(deftest packet-template-vary-ip-src-test
+  (let [pkt-description-map {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0",
+                             "ipVer" 4, "ipDst" "252.253.254.255", "ipId" 3, "ipType" 17,
+                             "ipTtl" 7, "ipSrc" "1.2.3.4",
+                             "udpSrc" 2048, "udpDst" 4096, "data" "abcd"}
+        tmpl (create-packet-template pkt-description-map {:ip-src {:start "10.0.0.255"}})]
+    (is (Arrays/equals (.getTemplate (create-packet-template (assoc pkt-description-map "ipSrc" "10.0.1.1")))
+                       (.toByteArray tmpl 2)))))
+
+(deftest packet-template-unsupported-field-test
+  (let [pkt-description-map {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0",
+                             "ipVer" 4, "ipDst" "252.253.254.255", "ipId" 3, "ipType" 17,
+                             "ipTtl" 7, "ipSrc" "1.2.3.4",
+                             "udpSrc" 2048, "udpDst" 4096, "data" "abcd"}]
+    (is (thrown? IllegalArgumentException (create-packet-template pkt-description-map {:tcp-seq {:start 0}})))
+    (is (thrown? IllegalArgumentException (create-packet-template (byte-array 14))))))
+
+(deftest generate-packets-fn-sink-test
+  (let [tmpl (create-packet-template {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0",
+                                      "ipVer" 4, "ipDst" "252.253.254.255", "ipId" 3, "ipType" 1,
+                                      "ipTtl" 7, "ipSrc" "1.2.3.4",
+                                      "icmpType" 8, "icmpId" 123, "icmpSeqNo" 12, "data" "abcd"}
+                                     {:icmp-seq {:start 12}})
+        received (atom [])
+        sink (create-fn-sink (fn [_ _ ^ByteBuffer data]
+                               (let [ba (byte-array (.remaining data))]
+                                 (.get data ba)
+                                 (swap! received conj (vec ba)))))]
+    (is (= 100 (generate-packets tmpl sink 100 :batch-size 16)))
+    (is (= 100 (count @received)))
+    (is (= (vec (.toByteArray tmpl 0)) (first @received)))
+    (is (= (vec (.toByteArray tmpl 99)) (last @received)))))
+
+(deftest generate-packets-paced-test
+  (let [tmpl (create-packet-template {"ethSrc" "01:02:03:04:05:06", "ethDst" "FF:FE:FD:F2:F1:F0"
+                                      "ipVer" 4, "ipDst" "252.253.254.255", "ipType" 17,
+                                      "ipSrc" "1.2.3.4", "data" "abcd"})
+        sink (create-fn-sink (fn [_ _ _] true))
+        start (System/nanoTime)]
+    (is (= 2000 (generate-packets tmpl sink 2000 :pps 10000 :batch-size 10)))
+    ; The bucket starts with one batch worth of tokens, so the remaining 1990 packets take 199 ms.
+    (is (<= 199000000 (- (System/nanoTime) start)))))
@@ -0,0 +1,258 @@
+;;;
+;;; Copyright (C) 2019 Ruediger Gad
+;;;
+;;; This file is part of clj-net-pcap.
+;;; clj-net-pcap is licensed under the terms of either
+;;; - the GNU Lesser General Public License (LGPL) version 3 or later
+;;;   http://www.gnu.org/licenses/lgpl-3.0.html
+;;; or, at your option,
+;;; - the Eclipse Public License (EPL) 1.0.
+;;;   http://opensource.org/licenses/eclipse-1.0.php
+;;;
+;;; By contributing to clj-net-pcap, you agree that your contribution will be licensed under both licenses
+;;; and that users of clj-net-pcap can chose any of these licenses.
+;;;
+
+(ns
+  ^{:author "Ruediger Gad",
+    :doc "Tests for multi-threaded packet processing."}
+  clj-net-pcap.test.parallel-processing
+  (:use clojure.test
+        clj-net-pcap.core
+        clj-net-pcap.pcap-data
+        clj-assorted-utils.util)
+  (:import (clj_net_pcap Counter FlowHash LatencyHistogram LatencyStats MappedPcapReader MappedPcapReader$Chunk
+                         PacketRingBuffer ReorderBuffer)
+           (java.nio ByteBuffer)
+           (org.jnetpcap PcapHeader)
+           (org.jnetpcap.nio JMemory$Type)
+           (org.jnetpcap.packet JFlowRecord JFlowRecord$Reason JFlowRecordHandler JFlowTable PcapPacket)))
+
+(def test-file "test/clj_net_pcap/test/data/offline-test.pcap")
+
+(def test-pkt-bytes [-1 -2 -3 -14 -15 -16 1 2 3 4 5 6 8 0
+                     69 0 0 40 0 3 64 0 7 17 115 -49 1 2 3 4 -4 -3 -2 -1
+                     0 53 -61 80 0 20 0 0 97 98 99 100])
+
+(def test-pkt-bytes-reverse [1 2 3 4 5 6 -1 -2 -3 -14 -15 -16 8 0
+                             69 0 0 40 0 3 64 0 7 17 115 -49 -4 -3 -2 -1 1 2 3 4
+                             -61 80 0 53 0 20 0 0 97 98 99 100])
+
+(deftest test-flow-hash-is-symmetric
+  (let [bb (ByteBuffer/wrap (byte-array (map byte test-pkt-bytes)))
+        bb-rev (ByteBuffer/wrap (byte-array (map byte test-pkt-bytes-reverse)))]
+    (is (= (FlowHash/hash bb) (FlowHash/hash bb-rev)))
+    (is (= (FlowHash/workerIndex bb 7) (FlowHash/workerIndex bb-rev 7)))
+    (is (= 0 (.position bb)))))
+
+(deftest test-flow-hash-short-buffer
+  (is (= 0 (FlowHash/hash (ByteBuffer/wrap (byte-array 4))))))
+
+(deftest test-counter-does-not-lose-increments
+  (let [cntr (Counter.)
+        threads (doall
+                  (repeatedly 8 #(doto (Thread. (fn [] (dotimes [_ 100000] (.inc cntr))))
+                                   (.start))))]
+    (doseq [^Thread t threads]
+      (.join t))
+    (is (= 800000 (.value cntr)))))
+
+(deftest test-counter-sum-then-reset
+  (let [cntr (Counter.)]
+    (.add cntr 40)
+    (.inc cntr)
+    (.inc cntr)
+    (is (= 42 (.sumThenReset cntr)))
+    (is (= 0 (.value cntr)))
+    (.inc cntr)
+    (.reset cntr)
+    (is (= 0 (.value cntr)))))
+
+(deftest test-reorder-buffer-restores-order
+  (let [rb (ReorderBuffer. 4)]
+    (.put rb 2 "c")
+    (.put rb 0 "a")
+    (.skip rb 1)
+    (.put rb 3 "d")
+    (is (= 3 (.size rb)))
+    (is (= "a" (.take rb)))
+    (is (= "c" (.take rb)))
+    (is (= "d" (.take rb)))
+    (is (= 0 (.size rb)))))
+
+(deftest test-latency-histogram-percentiles
+  (let [h (LatencyHistogram.)]
+    (doseq [v (range 1 100001)]
+      (.record h (* 10 v)))
+    (is (= 100000 (.getCount h)))
+    (is (= 1000000 (.getMax h)))
+    (is (< (Math/abs (- 500000 (.getValueAtPercentile h 50.0))) 20000))
+    (is (< (Math/abs (- 990000 (.getValueAtPercentile h 99.0))) 40000))
+    (.record h -1)
+    (is (= 0 (.getValueAtPercentile h 0.0)))
+    (.reset h)
+    (is (= 0 (.getCount h)))
+    (is (= 0 (.getValueAtPercentile h 99.0)))))
+
+(deftest test-latency-stats-sampling
+  (let [stats (LatencyStats. 3)
+        now-s (quot (System/currentTimeMillis) 1000)
+        samples (filter #(not= "pkt" %) (map (fn [_] (.sample stats now-s 0 "pkt")) (range 16)))]
+    (is (= 4 (.getSampleInterval stats)))
+    (is (= 4 (count samples)))
+    (doseq [s samples]
+      (is (= "pkt" (latency-stage s LatencyStats/BUFFER_QUEUE identity))))
+    (is (= [4 4 0 0 0 0] (vec (.getCounts stats))))
+    (is (= 4 ((.toMap stats) "latency-buffer-queue-count")))))
+
+(deftest test-process-pcap-file-with-latency-sampling
+  (let [pkts (ref [])
+        handler-fn (fn [p] (dosync (alter pkts conj p)))]
+    (binding [*latency-sample-interval* 1]
+      (process-pcap-file test-file handler-fn))
+    (sleep 1000)
+    (is (= 6 (count @pkts)))
+    (is (every? #(instance? PcapPacket %) @pkts))))
+
+(deftest test-process-pcap-file-with-multiple-scanner-threads
+  (let [my-counter (counter)
+        handler-fn (fn [_] (my-counter inc))]
+    (binding [*scanner-threads* 4]
+      (process-pcap-file test-file handler-fn))
+    (sleep 1000)
+    (is (= 6 (my-counter)))))
+
+(deftest test-process-pcap-file-with-multiple-scanner-threads-ordered
+  (let [timestamps (ref [])
+        handler-fn (fn [^PcapPacket p]
+                     (dosync (alter timestamps conj (.timestampInNanos (.getCaptureHeader p)))))]
+    (binding [*scanner-threads* 4
+              *ordered-merge* true]
+      (process-pcap-file test-file handler-fn))
+    (sleep 1000)
+    (is (= 6 (count @timestamps)))
+    (is (= (sort @timestamps) @timestamps))))
+
+(deftest test-packet-ring-buffer-shards-by-flow
+  (let [ring (PacketRingBuffer. 4 64 2)
+        ph (PcapHeader. 48 48 1 2)
+        bb (ByteBuffer/wrap (byte-array (map byte test-pkt-bytes)))
+        consumer (FlowHash/workerIndex bb 2)]
+    (is (.offer ring ph bb))
+    (is (= 0 (.position bb)))
+    (is (= 1 (.size ring)))
+    (let [sq (.next ring consumer)
+          pkt (.peer ring sq (PcapHeader.) (PcapPacket. JMemory$Type/POINTER))]
+      (is (= 0 sq))
+      (is (= 48 (.size pkt)))
+      (is (= 1 (.hdr_sec (.getCaptureHeader pkt))))
+      (is (= (byte -1) (.getByte pkt 0)))
+      (.release ring consumer sq))
+    (is (= 0 (.size ring)))))
+
+(deftest test-packet-ring-buffer-full
+  (let [ring (PacketRingBuffer. 2 64 1)
+        ph (PcapHeader. 48 48 1 2)
+        bb (ByteBuffer/wrap (byte-array (map byte test-pkt-bytes)))]
+    (is (.offer ring ph bb))
+    (is (.offer ring ph bb))
+    (is (not (.offer ring ph bb)))
+    (.release ring 0 (.next ring 0))
+    (is (.offer ring ph bb))
+    (.release ring 0 (.next ring 0))
+    (let [pkt (.peer ring (.next ring 0) (PcapHeader.) (PcapPacket. JMemory$Type/POINTER))]
+      (is (= 48 (.size pkt))))))
+
+(deftest test-process-pcap-file-with-ring-buffer
+  (let [my-counter (counter)
+        handler-fn (fn [_] (my-counter inc))]
+    (binding [*scanner-threads* 4
+              *use-ring-buffer* true]
+      (process-pcap-file test-file handler-fn))
+    (sleep 1000)
+    (is (= 6 (my-counter)))))
+
+(deftest test-mapped-pcap-reader-chunks
+  (let [reader (MappedPcapReader. test-file)
+        count-records (fn [chunks]
+                        (reduce + (map (fn [^MappedPcapReader$Chunk c]
+                                         (let [cursor (.cursor c)]
+                                           (loop [cnt 0]
+                                             (if (.next cursor)
+                                               (recur (inc cnt))
+                                               cnt))))
+                                       chunks)))]
+    (is (= 1 (.getLinkType reader)))
+    (is (= 1 (alength (.chunks reader))))
+    (is (= 6 (count-records (.chunks reader))))
+    (is (= 3 (alength (.split reader 3))))
+    (is (= 6 (count-records (.split reader 3))))
+    (is (= 6 (count-records (.split reader 10))))
+    (.close reader)))
+
+(deftest test-process-pcap-file-mapped
+  (let [my-counter (counter)
+        handler-fn (fn [_] (my-counter inc))]
+    (is (= 6 (process-pcap-file-mapped test-file handler-fn)))
+    (is (= 6 (my-counter)))))
+
+(deftest test-process-pcap-file-mapped-with-multiple-threads
+  (let [timestamps (ref [])
+        handler-fn (fn [^PcapPacket p]
+                     (dosync (alter timestamps conj (.timestampInNanos (.getCaptureHeader p)))))]
+    (is (= 6 (process-pcap-file-mapped test-file handler-fn 3)))
+    (is (= 6 (count @timestamps)))
+    (is (= 1361746824586786000 (first (sort @timestamps))))))
+
+(defn- create-flow-record-collector [records]
+  (proxy [JFlowRecordHandler] []
+    (nextFlow [r] (dosync (alter records conj r)))))
+
+(deftest test-flow-table-with-multiple-scanner-threads
+  (let [records (ref [])
+        flow-table (JFlowTable. 1024 0 0 (create-flow-record-collector records))
+        handler-fn (fn [p] (.nextPacket flow-table p nil))]
+    (binding [*scanner-threads* 4]
+      (process-pcap-file test-file handler-fn))
+    (sleep 1000)
+    (is (= 6 (.getTotalPacketCount flow-table)))
+    (is (= 6 (reduce + (map #(.getPackets ^JFlowRecord %) (.snapshot flow-table)))))
+    (is (= (.size flow-table) (.flush flow-table)))
+    (is (= 0 (.size flow-table)))
+    (is (= 6 (reduce + (map #(.getPackets ^JFlowRecord %) @records))))))
+
+(deftest test-flow-table-timeouts
+  (let [records (ref [])
+        flow-table (JFlowTable. 16 1 100 1000 (create-flow-record-collector records))]
+    (.update flow-table 1 (long-array [1 2]) 0 10)
+    (.update flow-table 1 (long-array [3 4]) 50 20)
+    (.update flow-table 1 (long-array [1 2]) 60 10)
+    (is (= 2 (.size flow-table)))
+    (is (= 1 (.expire flow-table 155)))
+    (is (= 1 (.size flow-table)))
+    (let [^JFlowRecord r (first @records)]
+      (is (= JFlowRecord$Reason/IDLE_TIMEOUT (.getReason r)))
+      (is (= 3 (.getPair r 0)))
+      (is (= 1 (.getPackets r)))
+      (is (= 20 (.getBytes r))))
+    (doseq [ts (range 100 1100 50)]
+      (.update flow-table 1 (long-array [1 2]) ts 10))
+    (is (= 1 (.expire flow-table 1100)))
+    (let [^JFlowRecord r (last @records)]
+      (is (= JFlowRecord$Reason/ACTIVE_TIMEOUT (.getReason r)))
+      (is (= 22 (.getPackets r)))
+      (is (= 0 (.getFirst r))))
+    (is (= 1 (.size flow-table)))
+    (is (= 0 (.flush flow-table)))))
+
+(deftest test-flow-table-evicts-least-recently-used
+  (let [records (ref [])
+        flow-table (JFlowTable. 2 1 0 0 (create-flow-record-collector records))]
+    (.update flow-table 1 (long-array [1]) 0 10)
+    (.update flow-table 1 (long-array [2]) 1 10)
+    (.update flow-table 1 (long-array [1]) 2 10)
+    (.update flow-table 1 (long-array [3]) 3 10)
+    (is (= 2 (.size flow-table)))
+    (is (= 1 (.getEvictedCount flow-table)))
+    (is (= JFlowRecord$Reason/EVICTED (.getReason ^JFlowRecord (first @records))))
+    (is (= 2 (.getPair ^JFlowRecord (first @records) 0)))))
@@ -76,6 +76,26 @@
         pcap (create-and-activate-online-pcap lo)]
     (create-and-set-filter pcap filter-string)))
 
+(deftest test-user-space-filter
+  (let [f (create-user-space-filter "udp port 53")
+        pred (user-space-filter-fn "udp port 53")
+        ba (byte-array 58)
+        bb (java.nio.ByteBuffer/wrap ba)]
+    (is (instance? org.jnetpcap.BpfFilter f))
+    (.putInt bb 8 42)
+    (.putInt bb 12 42)
+    (.putShort bb 28 (short 0x800))
+    (.put bb 30 (byte 0x45))
+    (.put bb 39 (byte 17))
+    (.putShort bb 52 (short 53))
+    (is (.matches f ba 16 42))
+    (is (pred ba))
+    (.putShort bb 52 (short 54))
+    (is (not (pred ba)))))
+
+(deftest test-create-user-space-filter-exception
+  (is (thrown? RuntimeException (create-user-space-filter "this is not a filter"))))
+
 (deftest test-create-get-stat-fn
   (let [pcap (create-and-activate-online-pcap lo)
         stats-fn (create-stats-fn pcap)]
@@ -129,3 +129,30 @@
     (.freeNativeMemory @received-data)
     (stop-cljnetpcap cljnetpcap)))
 
+
+(deftest cljnetpcap-bounded-bulk-buffer-pool-drop-test
+  (let [ba (byte-array (map byte test-pkt-bytes))
+        cntr (counter)
+        received-data (ref [])
+        forwarder-fn (fn [data]
+                       (dosync (alter received-data conj data))
+                       (cntr inc))
+        cljnetpcap (binding [clj-net-pcap.core/*bulk-size* 10
+                             clj-net-pcap.core/*emit-raw-data* true
+                             clj-net-pcap.core/*use-intermediate-buffer* false
+                             clj-net-pcap.pcap/*bulk-buffer-pool-size* 2]
+                     (create-and-start-online-cljnetpcap forwarder-fn lo))
+        _ (add-filter cljnetpcap "icmp and (dst host 252.253.254.255) and (src host 1.2.3.4)")]
+    (sleep 1000)
+    (cljnetpcap :send-bytes-packet ba 40 10)
+    (sleep 1000)
+    (is (= 2 (cntr)))
+    (is (= 2 ((get-stats cljnetpcap) "bulk-pool-allocated")))
+    (is (< 0 ((get-stats cljnetpcap) "bulk-pool-dropped")))
+    (.freeNativeMemory (first @received-data))
+    (cljnetpcap :send-bytes-packet ba 20 10)
+    (sleep 1000)
+    (is (= 3 (cntr)))
+    (stop-cljnetpcap cljnetpcap)
+    (doseq [^DirectBulkByteBufferWrapper d (rest @received-data)]
+      (.freeNativeMemory d))))
@@ -22,8 +22,9 @@
         clj-net-pcap.pcap
         clj-net-pcap.pcap-data
         clj-assorted-utils.util)
-  (:import (org.jnetpcap.packet PcapPacketHandler)
-           (clj_net_pcap PacketHeaderDataBean)))
+  (:import (java.nio ByteBuffer)
+           (org.jnetpcap.packet PcapPacket PcapPacketHandler)
+           (clj_net_pcap PacketHeaderDataBean PcapNgReader PcapNgWriter)))
 
 (def test-file "test/clj_net_pcap/test/data/offline-test.pcap")
 
@@ -118,3 +119,166 @@
     (is (= 6 (count my-raw-data)))
     (is (vector? my-raw-data))
     (is (= byte-array-type (type (my-raw-data 0))))))
+
+(def test-file-pcapng "test/clj_net_pcap/test/data/offline-test.pcapng")
+
+(deftest test-pcapng-reader
+  (let [reader (PcapNgReader. ^String test-file-pcapng)]
+    (is (PcapNgReader/isPcapNg test-file-pcapng))
+    (is (not (PcapNgReader/isPcapNg test-file)))
+    (is (.next reader))
+    (is (= 1 (.linkType reader)))
+    (is (= "eth0" (.getName (.getInterface reader 0))))
+    (is (= 1361746824586786000 (.timestampInNanos reader)))
+    (is (= 98 (.capLen reader)))
+    (is (= 98 (.remaining (.data reader))))
+    (is (= 5 (loop [cnt 0]
+               (if (.next reader)
+                 (recur (inc cnt))
+                 cnt))))
+    (.close reader)))
+
+(deftest test-pcapng-writer-round-trip
+  (let [out-file "test/clj_net_pcap/test/data/pcapng-writer-test.pcapng"
+        writer (PcapNgWriter. out-file 1 65535)
+        data (ByteBuffer/wrap (byte-array (map byte (range 60))))]
+    (.write writer 0 1 2 60 data)
+    (.write writer 0 3 4 1500 data)
+    (.close writer)
+    (let [reader (PcapNgReader. ^String out-file)]
+      (is (.next reader))
+      (is (= 1000000002 (.timestampInNanos reader)))
+      (is (= 60 (.wireLen reader)))
+      (is (= (byte 59) (.get (.data reader) (+ (.position (.data reader)) 59))))
+      (is (.next reader))
+      (is (= 3000000004 (.timestampInNanos reader)))
+      (is (= 60 (.capLen reader)))
+      (is (= 1500 (.wireLen reader)))
+      (is (not (.next reader)))
+      (.close reader))
+    (rm out-file)))
+
+(deftest test-pcapng-reader-invalid-captured-length
+  (let [out-file "test/clj_net_pcap/test/data/pcapng-invalid-caplen-test.pcapng"
+        writer (PcapNgWriter. out-file 1 65535)
+        data (ByteBuffer/wrap (byte-array (map byte (range 60))))]
+    (.write writer 0 1 2 60 data)
+    (.close writer)
+    (let [ba (java.nio.file.Files/readAllBytes (.toPath (java.io.File. out-file)))
+          buf (.order (ByteBuffer/wrap ba) (java.nio.ByteOrder/nativeOrder))
+          shb-len (.getInt buf 4)
+          epb (+ shb-len (.getInt buf (+ shb-len 4)))]
+      ; The captured length now includes the trailing block total length.
+      (.putInt buf (+ epb 20) 64)
+      (java.nio.file.Files/write (.toPath (java.io.File. out-file)) ba (make-array java.nio.file.OpenOption 0)))
+    (let [reader (PcapNgReader. ^String out-file)]
+      (is (thrown? java.io.IOException (.next reader)))
+      (.close reader))
+    (rm out-file)))
+
+(deftest test-process-pcapng-file
+  (let [my-counter (counter)
+        handler-fn (fn [_] (my-counter inc))]
+    (process-pcap-file test-file-pcapng handler-fn)
+    (sleep 1000)
+    (is (= 6 (my-counter)))))
+
+(deftest test-process-pcap-file-fan-out
+  (let [all-counter (counter)
+        icmp-counter (counter)
+        udp-counter (counter)
+        stats (process-pcap-file-fan-out
+                test-file
+                [["all" "" (fn [_] (all-counter inc))]
+                 ["icmp" "icmp" (fn [_] (icmp-counter inc))]
+                 ["udp" "udp" (fn [_] (udp-counter inc))]])]
+    (is (= 6 (all-counter)))
+    (is (= 6 (icmp-counter)))
+    (is (= 0 (udp-counter)))
+    (is (= 6 (stats "subscriber-icmp-delivered")))
+    (is (= 0 (stats "subscriber-udp-delivered")))
+    (is (= 0 (stats "subscriber-icmp-dropped")))
+    (is (= 0 (stats "fan-out-unmatched")))))
+
+(deftest test-process-pcap-file-fan-out-distinct-packets
+  (let [first-packets (ref [])
+        second-packets (ref [])]
+    (process-pcap-file-fan-out
+      test-file
+      [["first" "" (fn [p] (dosync (alter first-packets conj p)))]
+       ["second" "" (fn [p] (dosync (alter second-packets conj p)))]])
+    (is (= 6 (count @first-packets) (count @second-packets)))
+    (is (not-any? true? (map identical? @first-packets @second-packets)))))
+
+(deftest test-process-pcap-file-fan-out-unmatched
+  (let [dns-packets (ref [])
+        stats (process-pcap-file-fan-out
+                "test/clj_net_pcap/test/data/dns-query-response.pcap"
+                [["dns" "udp port 53" (fn [p] (dosync (alter dns-packets conj p)))]
+                 ["http" "tcp port 80" (fn [_])]])]
+    (is (= 2 (count @dns-packets)))
+    (is (= 2 (stats "subscriber-dns-delivered")))
+    (is (= 0 (stats "subscriber-http-delivered")))
+    (is (= 0 (stats "fan-out-unmatched")))))
+
+(deftest test-replay-pcap-file-scaled-timing-with-loops
+  (let [timestamps (ref [])
+        start (System/nanoTime)
+        stats (replay-pcap-file
+                test-file
+                (fn [^PcapPacket p] (dosync (alter timestamps conj (.timestampInMicros (.getCaptureHeader p)))))
+                :speed 10.0 :loops 2 :force-put true)]
+    ; At original timing, the second pass ends 2 * 2.03 s + the mean gap of 0.41 s after the first packet.
+    (is (<= 440000000 (- (System/nanoTime) start)))
+    (is (= 12 (count @timestamps)))
+    (is (= (sort @timestamps) @timestamps))
+    (is (= (count (distinct @timestamps)) 12))
+    (is (= 12 (stats "replay-packets")))
+    (is (= 2 (stats "replay-loops")))
+    (is (< 0 (stats "replay-requested-pps")))))
+
+(deftest test-replay-pcap-file-fixed-rate
+  (let [my-counter (counter)
+        start (System/nanoTime)
+        stats (replay-pcap-file test-file (fn [_] (my-counter inc)) :pps 20 :force-put true)]
+    (is (<= 250000000 (- (System/nanoTime) start)))
+    (is (= 6 (my-counter)))
+    (is (= 20.0 (stats "replay-requested-pps")))
+    (is (< 15.0 (stats "replay-achieved-pps") 21.0))))
+
+(deftest test-replay-pcap-file-user-space-filter
+  (let [my-counter (counter)
+        stats (replay-pcap-file "test/clj_net_pcap/test/data/dns-query-response.pcap" (fn [_] (my-counter inc))
+                                :speed 0 :filter-expr "udp port 53" :force-put true)
+        stats-filtered (replay-pcap-file test-file (fn [_] (my-counter inc))
+                                         :speed 0 :filter-expr "udp" :force-put true)]
+    (is (= 2 (my-counter)))
+    (is (= 2 (stats "replay-packets")))
+    (is (= 0 (stats-filtered "replay-packets")))
+    (is (= 6 (stats-filtered "replay-filtered")))))
+
+(deftest test-replay-pcap-file-overload-policies
+  (let [my-counter (counter)
+        cljnetpcap (binding [*overload-policy* :drop-oldest]
+                     (create-and-start-replay-cljnetpcap test-file (fn [_] (my-counter inc)) :speed 0))]
+    (is (= {"out" :drop-oldest, "buffer" :drop-oldest, "scanner" :drop-oldest} (get-overload-policies cljnetpcap)))
+    (set-overload-policy cljnetpcap :sample :sample-rate 2 :stages ["out"])
+    (is (= {"out" :sample, "buffer" :drop-oldest, "scanner" :drop-oldest} (get-overload-policies cljnetpcap)))
+    (cljnetpcap :wait-for-completed)
+    (let [stats (get-stats cljnetpcap)]
+      (stop-cljnetpcap cljnetpcap)
+      (is (= 6 (my-counter)))
+      (is (= 0 (stats "out-dropped-oldest")))
+      (is (= 0 (stats "out-sampled-out")))
+      (is (= 0 (stats "buffer-degraded"))))))
+
+(deftest test-replay-pcap-file-force-put-fixes-block-policy
+  (let [my-counter (counter)
+        cljnetpcap (binding [*overload-policy* :drop-oldest]
+                     (create-and-start-replay-cljnetpcap test-file (fn [_] (my-counter inc)) :speed 0 :force-put true))]
+    (is (= {"out" :block, "buffer" :block, "scanner" :block} (get-overload-policies cljnetpcap)))
+    (set-overload-policy cljnetpcap :drop-newest)
+    (is (= {"out" :block, "buffer" :block, "scanner" :block} (get-overload-policies cljnetpcap)))
+    (cljnetpcap :wait-for-completed)
+    (stop-cljnetpcap cljnetpcap)
+    (is (= 6 (my-counter)))))
@@ -280,3 +280,70 @@
     (self-adpt-ctrlr stat-9)
     (is (= [{:b "B"} {:c "C"}] @dynamic-dsl-expr))))
 
+
+(deftest get-dropped-sum-all-stages-test
+  (let [delta {"forwarder-failed" 1, "out-dropped" 2, "out-queued" 3, "recv" 4, "drop" 5, "ifdrop" 6,
+               "buffer-dropped" 7, "scanner-dropped" 8, "buffer-dropped-newest" 9}]
+    (is (= 28 (get-dropped-sum-all-stages delta)))))
+
+(deftest get-overload-dropped-sum-test
+  (let [delta {"forwarder-failed" 1, "out-dropped" 2, "out-queued" 3, "recv" 4, "drop" 5, "ifdrop" 6,
+               "bulk-pool-dropped" 7, "out-dropped-newest" 8, "out-dropped-oldest" 9, "out-sampled-out" 10,
+               "out-degraded" 11}]
+    (is (= 35 (get-overload-dropped-sum delta)))))
+
+(deftest overload-policy-controller-test
+  (let [policy (atom nil)
+        threshold 0.01
+        interpolation 3
+        inactivity 0
+        stat-1 {"forwarder-failed" 0, "out-dropped" 2000, "out-dropped-newest" 2000, "out-queued" 0, "recv" 10000, "drop" 0, "ifdrop" 0}
+        stat-2 {"forwarder-failed" 0, "out-dropped" 4000, "out-dropped-newest" 4000, "out-queued" 0, "recv" 20000, "drop" 0, "ifdrop" 0}
+        stat-3 {"forwarder-failed" 0, "out-dropped" 6000, "out-dropped-newest" 6000, "out-queued" 0, "recv" 30000, "drop" 0, "ifdrop" 0}
+        stat-4 {"forwarder-failed" 0, "out-dropped" 6000, "out-dropped-newest" 6000, "out-queued" 0, "recv" 35000, "drop" 0, "ifdrop" 0}
+        overload-ctrlr (create-overload-policy-controller #(reset! policy %) [:drop-newest :header-only :sample]
+                                                          threshold interpolation inactivity)]
+    (is (= :drop-newest @policy))
+    (overload-ctrlr stat-1)
+    (overload-ctrlr stat-2)
+    (is (= :drop-newest @policy))
+    (overload-ctrlr stat-3)
+    (is (= :header-only @policy))
+    (overload-ctrlr stat-4)
+    (is (= :drop-newest @policy))))
+
+(deftest overload-policy-controller-threshold-test
+  (let [policy (atom nil)
+        threshold 0.5
+        interpolation 3
+        inactivity 0
+        stat-1 {"forwarder-failed" 0, "out-dropped" 2000, "out-dropped-newest" 2000, "out-queued" 0, "recv" 10000, "drop" 0, "ifdrop" 0}
+        stat-2 {"forwarder-failed" 0, "out-dropped" 4000, "out-dropped-newest" 4000, "out-queued" 0, "recv" 20000, "drop" 0, "ifdrop" 0}
+        stat-3 {"forwarder-failed" 0, "out-dropped" 6000, "out-dropped-newest" 6000, "out-queued" 0, "recv" 30000, "drop" 0, "ifdrop" 0}
+        stat-4 {"forwarder-failed" 0, "out-dropped" 6000, "out-dropped-newest" 6000, "out-queued" 0, "recv" 36000, "drop" 0, "ifdrop" 0}
+        stat-5 {"forwarder-failed" 0, "out-dropped" 6000, "out-dropped-newest" 6000, "out-queued" 0, "recv" 40000, "drop" 0, "ifdrop" 0}
+        overload-ctrlr (create-overload-policy-controller #(reset! policy %) [:drop-newest :header-only]
+                                                          threshold interpolation inactivity)]
+    (overload-ctrlr stat-1)
+    (overload-ctrlr stat-2)
+    (overload-ctrlr stat-3)
+    (is (= :header-only @policy))
+    (overload-ctrlr stat-4)
+    (is (= :header-only @policy))
+    (overload-ctrlr stat-5)
+    (is (= :drop-newest @policy))))
+
+(deftest overload-policy-controller-ignores-sampled-out-test
+  (let [policy (atom nil)
+        threshold 0.01
+        interpolation 3
+        inactivity 0
+        stat-1 {"out-dropped" 2000, "out-sampled-out" 2000, "out-dropped-newest" 0, "recv" 10000, "drop" 0, "ifdrop" 0}
+        stat-2 {"out-dropped" 4000, "out-sampled-out" 4000, "out-dropped-newest" 0, "recv" 20000, "drop" 0, "ifdrop" 0}
+        stat-3 {"out-dropped" 6000, "out-sampled-out" 6000, "out-dropped-newest" 0, "recv" 30000, "drop" 0, "ifdrop" 0}
+        overload-ctrlr (create-overload-policy-controller #(reset! policy %) [:sample :drop-newest]
+                                                          threshold interpolation inactivity)]
+    (overload-ctrlr stat-1)
+    (overload-ctrlr stat-2)
+    (overload-ctrlr stat-3)
+    (is (= :sample @policy))))
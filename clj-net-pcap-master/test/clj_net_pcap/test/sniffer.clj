@@ -21,7 +21,9 @@
         clj-net-pcap.pcap
         clj-net-pcap.sniffer
         clj-assorted-utils.util)
-  (:import (java.util.concurrent LinkedBlockingQueue)))
+  (:import (java.util.concurrent LinkedBlockingQueue)
+           (org.jnetpcap.nio MemoryScope)
+           (org.jnetpcap.packet JMemoryPacket)))
 
 (def receive-delay 1000)
 
@@ -63,3 +65,19 @@
     (stop-sniffer sniffer)
     (stop-forwarder forwarder)))
 
+(deftest test-with-memory-scope
+  (let [scope (with-memory-scope
+                (dotimes [_ 3]
+                  (JMemoryPacket. 64))
+                (let [^MemoryScope scope (MemoryScope/current)]
+                  (is (pos? (.size scope)))
+                  (is (<= (* 3 64) (.getAllocatedBytes scope)))
+                  scope))]
+    (is (.isClosed ^MemoryScope scope))
+    (is (nil? (MemoryScope/current)))))
+
+(deftest test-release-packet
+  (let [pkt (JMemoryPacket. 64)]
+    (is (.isInitialized pkt))
+    (release-packet pkt)
+    (is (not (.isInitialized pkt)))))